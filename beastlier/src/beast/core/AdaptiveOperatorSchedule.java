@@ -0,0 +1,323 @@
+/*
+* File AdaptiveOperatorSchedule.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.core;
+
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.GuideTreeSummary;
+import beast.util.Randomizer;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * An operator schedule that learns its own weights during burn-in. Each proposal is timed from the selection of its
+ * operator to the selection of the next one, which covers the proposal, the likelihood and the decision. How much it
+ * moved the chain is measured as the squared jump in the infection times of the transmission tree, summed over the
+ * hosts. Every updateEvery proposals each operator is weighted by its jump per second of CPU time; after adaptFor
+ * proposals the weights are fixed and reported, so that they can be put into the XML of later runs.
+ *
+ * Operators that have never moved an infection time (the ones on rates and other parameters, or every operator if
+ * there is no tree) keep their share of the total weight as given in the XML, and only the weight of the rest is
+ * redistributed. No operator falls below minWeight times its XML weight, so nothing is starved entirely.
+ *
+ * Changing the weights while the chain runs changes the chain, so the weights are only learned during the MCMC's
+ * preBurnin and are fixed by sample 0, when logging starts. adaptFor defaults to the whole of the preBurnin, and a
+ * larger value is an error. With no preBurnin the XML weights are kept.
+ *
+ * A resumed run is past its preBurnin, so it starts frozen with the XML weights. The weights learned by the first
+ * run are not in the state file; to keep them, put the ones from fileName into the XML before resuming.
+ */
+
+@Description("Operator schedule that weights operators by infection time jump per CPU second during burn-in")
+public class AdaptiveOperatorSchedule extends OperatorSchedule {
+
+    public Input<EpidemiologicalPartitionedTree> treeInput = new Input<>("tree", "The transmission tree whose " +
+            "infection times measure how far each proposal moves the chain");
+    public Input<Integer> adaptForInput = new Input<>("adaptFor", "Number of proposals over which the weights are " +
+            "learned; by default the whole of the MCMC's preBurnin, and it cannot be more than that");
+    public Input<Integer> updateEveryInput = new Input<>("updateEvery", "Number of proposals between updates of " +
+            "the weights", 1000);
+    public Input<Double> minWeightInput = new Input<>("minWeight", "No operator's weight goes below this proportion " +
+            "of its weight in the XML", 0.1);
+    public Input<String> fileNameInput = new Input<>("fileName", "File to write the learned weights to when they " +
+            "are fixed");
+
+    private EpidemiologicalPartitionedTree tree;
+    private Integer adaptFor;
+    private int updateEvery;
+    private double minWeight;
+
+    private List<Operator> scheduled;
+    private double[] xmlWeights;
+    private double[] weights;
+    private double[] cumulativeWeights;
+
+    private long[] counts;
+    private long[] nanos;
+    private double[] jumps;
+    private long[] infectorChanges;
+
+    private long selections = 0;
+    private boolean frozen = false;
+    private boolean resumed = false;
+
+    //the operator selected last time, and what the chain looked like then
+    private int lastIndex = -1;
+    private long lastTime;
+    private double[] lastHeights;
+    private int[] lastInfectors;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        tree = treeInput.get();
+        adaptFor = adaptForInput.get();
+        updateEvery = updateEveryInput.get();
+        minWeight = minWeightInput.get();
+        if(adaptFor != null && adaptFor < 0){
+            throw new IllegalArgumentException("adaptFor cannot be negative");
+        }
+        if(updateEvery < 1){
+            throw new IllegalArgumentException("updateEvery must be at least 1");
+        }
+        if(minWeight < 0 || minWeight > 1){
+            throw new IllegalArgumentException("minWeight must be between 0 and 1");
+        }
+        if(tree != null){
+            lastHeights = new double[tree.getNElements()];
+            lastInfectors = new int[tree.getNElements()];
+        }
+    }
+
+    // The operators are added by MCMC after initAndValidate, so everything that depends on them waits for the first
+    // selection
+
+    private void setUp(){
+        scheduled = getOperators();
+        int count = scheduled.size();
+        xmlWeights = new double[count];
+        weights = new double[count];
+        for(int i=0; i<count; i++){
+            xmlWeights[i] = scheduled.get(i).getWeight();
+            weights[i] = xmlWeights[i];
+        }
+        cumulativeWeights = new double[count];
+        updateCumulativeWeights();
+
+        counts = new long[count];
+        nanos = new long[count];
+        jumps = new double[count];
+        infectorChanges = new long[count];
+
+        //MCMC selects one operator per state, starting at -preBurnin
+        MCMC mcmc = null;
+        for(BEASTInterface output : getOutputs()){
+            if(output instanceof MCMC){
+                mcmc = (MCMC)output;
+            }
+        }
+        if(mcmc != null){
+            int preBurnin = mcmc.burnInInput.get();
+            if(adaptFor == null){
+                adaptFor = preBurnin;
+            } else if(adaptFor > preBurnin){
+                throw new IllegalArgumentException("adaptFor is " + adaptFor + " but the weights have to be fixed " +
+                        "by the end of the preBurnin, which is " + preBurnin);
+            }
+        } else if(adaptFor == null){
+            throw new IllegalArgumentException("AdaptiveOperatorSchedule is not in an MCMC, so it needs adaptFor");
+        }
+
+        //not freeze(), which would write the XML weights over the learned ones in fileName
+        if(resumed){
+            frozen = true;
+        }
+    }
+
+    // MCMC calls this before the first selection when it resumes from a state file
+
+    @Override
+    public void restoreFromFile() {
+        super.restoreFromFile();
+        resumed = true;
+    }
+
+    @Override
+    public Operator selectOperator() {
+        if(scheduled == null){
+            setUp();
+        }
+
+        if(!frozen){
+            long now = System.nanoTime();
+            if(lastIndex != -1){
+                measure(lastIndex, now);
+            } else if(tree != null){
+                snapshot();
+            }
+
+            selections++;
+            if(selections > adaptFor){
+                reweight();
+                freeze();
+            } else if(selections % updateEvery == 0){
+                reweight();
+            }
+        }
+
+        double draw = Randomizer.nextDouble()*cumulativeWeights[cumulativeWeights.length-1];
+        int index = cumulativeWeights.length-1;
+        for(int i=0; i<cumulativeWeights.length; i++){
+            if(draw < cumulativeWeights[i]){
+                index = i;
+                break;
+            }
+        }
+
+        if(!frozen){
+            lastIndex = index;
+            //the time taken to get here counts against nobody
+            lastTime = System.nanoTime();
+        }
+        return scheduled.get(index);
+    }
+
+    private void measure(int index, long now){
+        counts[index]++;
+        nanos[index] += now - lastTime;
+        if(tree != null){
+            GuideTreeSummary summary = tree.getGuideTreeSummary();
+            double jump = 0;
+            for(int i=0; i<lastHeights.length; i++){
+                double difference = summary.getInfectionHeightByNr(i) - lastHeights[i];
+                jump += difference*difference;
+                if(summary.getAncestorPartitionElement(i) != lastInfectors[i]){
+                    infectorChanges[index]++;
+                }
+            }
+            jumps[index] += jump;
+            snapshot();
+        }
+    }
+
+    private void snapshot(){
+        GuideTreeSummary summary = tree.getGuideTreeSummary();
+        for(int i=0; i<lastHeights.length; i++){
+            lastHeights[i] = summary.getInfectionHeightByNr(i);
+            lastInfectors[i] = summary.getAncestorPartitionElement(i);
+        }
+    }
+
+    // Jump per second for every operator that has jumped at all; the others keep their weights from the XML, and
+    // operators that haven't been tried yet keep whatever they have
+
+    private void reweight(){
+        double tunedXMLWeight = 0;
+        double totalScore = 0;
+        double[] scores = new double[weights.length];
+        for(int i=0; i<weights.length; i++){
+            if(jumps[i] > 0 && nanos[i] > 0){
+                scores[i] = jumps[i]/(nanos[i]/1E9);
+                tunedXMLWeight += xmlWeights[i];
+                totalScore += scores[i];
+            }
+        }
+        if(totalScore == 0){
+            return;
+        }
+
+        double floored = 0;
+        for(int i=0; i<weights.length; i++){
+            if(scores[i] > 0){
+                weights[i] = Math.max(tunedXMLWeight*scores[i]/totalScore, minWeight*xmlWeights[i]);
+                floored += weights[i];
+            }
+        }
+        //the floors can take the total over what it was, so scale back down
+        for(int i=0; i<weights.length; i++){
+            if(scores[i] > 0){
+                weights[i] *= tunedXMLWeight/floored;
+            }
+        }
+        updateCumulativeWeights();
+    }
+
+    private void updateCumulativeWeights(){
+        double total = 0;
+        for(int i=0; i<weights.length; i++){
+            total += weights[i];
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    private void freeze(){
+        frozen = true;
+        lastIndex = -1;
+
+        String fileName = fileNameInput.get();
+        if(fileName != null && fileName.length() > 0){
+            try (PrintStream out = new PrintStream(fileName)) {
+                writeWeights(out);
+            } catch (FileNotFoundException e){
+                throw new RuntimeException("Could not write operator weights to " + fileName);
+            }
+        }
+    }
+
+    private void writeWeights(PrintStream out){
+        out.println("Operator\tXMLWeight\tLearnedWeight\tProposals\tMillisecondsPerProposal\tMeanSquaredJump\t" +
+                "InfectorChangesPerProposal");
+        for(int i=0; i<weights.length; i++){
+            double perProposal = counts[i] == 0 ? Double.NaN : 1.0/counts[i];
+            out.println(scheduled.get(i).getID() + "\t" + xmlWeights[i] + "\t" + weights[i] + "\t" + counts[i]
+                    + "\t" + (nanos[i]/1E6)*perProposal + "\t" + jumps[i]*perProposal + "\t"
+                    + infectorChanges[i]*perProposal);
+        }
+    }
+
+    /**
+     * @return the current weights, in the order of getOperators(); once the schedule is frozen these don't change
+     */
+    public double[] getWeights(){
+        return weights == null ? null : weights.clone();
+    }
+
+    public boolean isFrozen(){
+        return frozen;
+    }
+
+    @Override
+    public void showOperatorRates(PrintStream out) {
+        super.showOperatorRates(out);
+        if(scheduled != null){
+            out.println();
+            out.println(frozen ? "Learned operator weights:" : "Operator weights (still adapting):");
+            writeWeights(out);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+* File ConvergingMCMC.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.core;
+
+import beastlier.util.ESSMonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * MCMC that stops early, as if chainLength had been reached, once every ESSMonitor among its loggers says that its
+ * target has been met. The loggers are closed and the state is saved as at the end of any other run. chainLength is
+ * still the most that will be done.
+ */
+
+@Description("MCMC that stops once the effective sample sizes followed by its ESSMonitors are big enough")
+public class ConvergingMCMC extends MCMC {
+
+    public Input<Integer> minChainLengthInput = new Input<>("minChainLength", "Never stop before this many states",
+            0);
+
+    private List<ESSMonitor> monitors;
+    private int minChainLength;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        monitors = new ArrayList<>();
+        for(Logger logger : loggersInput.get()){
+            if(logger instanceof ESSMonitor){
+                monitors.add((ESSMonitor)logger);
+            }
+        }
+        if(monitors.isEmpty()){
+            throw new IllegalArgumentException("ConvergingMCMC needs at least one ESSMonitor among its loggers");
+        }
+        minChainLength = minChainLengthInput.get();
+    }
+
+    @Override
+    protected void callUserFunction(final int sample) {
+        super.callUserFunction(sample);
+
+        if(sample < minChainLength || sample >= chainLength){
+            return;
+        }
+        for(ESSMonitor monitor : monitors){
+            if(!monitor.isTargetReached()){
+                return;
+            }
+        }
+
+        System.out.println("All effective sample sizes have reached their targets at state " + sample
+                + "; stopping.");
+        //the main loop finishes after this state, and does everything it would at the end of chainLength
+        chainLength = sample;
+    }
+
+}
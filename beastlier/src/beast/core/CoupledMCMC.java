@@ -0,0 +1,306 @@
+/*
+* File CoupledMCMC.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.core;
+
+import beast.util.Randomizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Metropolis-coupled MCMC. The run itself is the cold chain; each replica is a heated chain whose posterior is raised
+ * to the power 1/(1 + i*deltaTemperature). Every swapEvery states, a swap of the states of two of the chains, chosen
+ * at random, is proposed. Only the cold chain is logged.
+ *
+ * A swap copies every state node across in both directions and then recalculates both posteriors from scratch, so
+ * the transmission trees, the phylogenies they guide and everything cached in the models are rebuilt for the new
+ * state. Each replica needs its own state and posterior; the outbreak, alignments and distances can be shared.
+ *
+ * The chains move in step, one proposal each per state. Every proposal and every acceptance draw is made on the run's
+ * own thread, in the order of the chains, and only the heated posteriors are calculated on threads of their own
+ * (while the cold chain takes its step). A run can therefore be repeated exactly from its seed, as long as nothing in
+ * the posteriors draws random numbers.
+ */
+
+@Description("Metropolis-coupled MCMC with heated posteriors calculated in parallel")
+public class CoupledMCMC extends MCMC {
+
+    public Input<List<MCMCReplica>> replicasInput = new Input<>("replica", "The heated chains, in order of " +
+            "increasing temperature", new ArrayList<>());
+    public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "Temperature difference between " +
+            "successive chains", 0.1);
+    public Input<Integer> swapEveryInput = new Input<>("swapEvery", "Number of states between swap proposals", 100);
+
+    //a heated chain; the cold one is the run itself and only has an entry here for its temperature and counts
+    private static class Chain {
+        final State state;
+        final Distribution posterior;
+        final List<Operator> operators;
+        final double[] cumulativeWeights;
+        final double beta;
+
+        double logP;
+        long proposed = 0;
+        long accepted = 0;
+        long swapsProposed = 0;
+        long swapsAccepted = 0;
+
+        //the step in progress
+        Operator operator;
+        double logHastingsRatio;
+        double newLogP;
+
+        Chain(State state, Distribution posterior, List<Operator> operators, double beta){
+            this.state = state;
+            this.posterior = posterior;
+            this.operators = operators;
+            this.beta = beta;
+
+            cumulativeWeights = new double[operators.size()];
+            double total = 0;
+            for(int i=0; i<operators.size(); i++){
+                total += operators.get(i).getWeight();
+                cumulativeWeights[i] = total;
+            }
+        }
+
+        Operator selectOperator(){
+            double draw = Randomizer.nextDouble()*cumulativeWeights[cumulativeWeights.length-1];
+            for(int i=0; i<cumulativeWeights.length; i++){
+                if(draw < cumulativeWeights[i]){
+                    return operators.get(i);
+                }
+            }
+            return operators.get(operators.size()-1);
+        }
+
+        // One step of ordinary MCMC on the tempered posterior, in three parts: propose() and decide() draw random
+        // numbers and so run on the run's own thread, evaluate() doesn't and can run on another
+
+        boolean propose(){
+            operator = selectOperator();
+            state.store(-1);
+            logHastingsRatio = operator.proposal();
+            proposed++;
+            return logHastingsRatio != Double.NEGATIVE_INFINITY;
+        }
+
+        void evaluate(){
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            newLogP = posterior.calculateLogP();
+        }
+
+        void decide(){
+            double logAlpha = Double.NEGATIVE_INFINITY;
+            if(logHastingsRatio != Double.NEGATIVE_INFINITY){
+                logAlpha = beta*(newLogP - logP) + logHastingsRatio;
+
+                if(logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)){
+                    logP = newLogP;
+                    state.acceptCalculationNodes();
+                    operator.accept();
+                    accepted++;
+                } else {
+                    operator.reject(newLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+                    state.restore();
+                    state.restoreCalculationNodes();
+                }
+                state.setEverythingDirty(false);
+            } else {
+                operator.reject(-2);
+                state.restore();
+            }
+            operator.optimize(logAlpha);
+        }
+    }
+
+    //the cold chain is the first
+    private List<Chain> chains;
+    private int swapEvery;
+    private ExecutorService executor;
+
+    private boolean chainsReady = false;
+    private final List<Future<?>> evaluating = new ArrayList<>();
+    private int statesSinceSwap = 0;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        List<MCMCReplica> replicas = replicasInput.get();
+        if(replicas.isEmpty()){
+            throw new IllegalArgumentException("CoupledMCMC needs at least one heated chain");
+        }
+        if(deltaTemperatureInput.get() <= 0){
+            throw new IllegalArgumentException("deltaTemperature must be positive");
+        }
+        swapEvery = swapEveryInput.get();
+        if(swapEvery < 1){
+            throw new IllegalArgumentException("swapEvery must be at least 1");
+        }
+
+        State mainState = startStateInput.get();
+        chains = new ArrayList<>();
+        chains.add(new Chain(mainState, posteriorInput.get(), operatorsInput.get(), 1.0));
+
+        for(int i=0; i<replicas.size(); i++){
+            MCMCReplica replica = replicas.get(i);
+            if(replica.getPosterior() == posteriorInput.get()){
+                throw new IllegalArgumentException("Replica " + replica.getID() + " must have its own posterior");
+            }
+            replica.checkStateMatches(mainState);
+            for(Operator operator : replica.getOperators()){
+                //the heated chains have no schedule and no evaluator to offer
+                if(!operator.requiresStateInitialisation() || operator.getEvaluatorDistribution() != null){
+                    throw new IllegalArgumentException("Operator " + operator.getID() + " of replica "
+                            + replica.getID() + " can't be used in a heated chain");
+                }
+            }
+            double beta = 1.0/(1.0 + (i+1)*deltaTemperatureInput.get());
+            chains.add(new Chain(replica.getState(), replica.getPosterior(), replica.getOperators(), beta));
+        }
+
+        executor = Executors.newFixedThreadPool(replicas.size(), runnable -> {
+            Thread thread = new Thread(runnable, "CoupledMCMC");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    protected Operator propagateState(final int sample) {
+        if(!chainsReady){
+            //the main state has been initialised by now, but the heated chains have not; they all start where it does
+            Chain cold = chains.get(0);
+            for(int i=1; i<chains.size(); i++){
+                Chain chain = chains.get(i);
+                chain.state.initialise();
+                chain.state.setPosterior(chain.posterior);
+                for(int j=0; j<cold.state.getNrOfStateNodes(); j++){
+                    chain.state.getStateNode(j).assignFromFragile(cold.state.getStateNode(j));
+                }
+                chain.logP = chain.state.robustlyCalcPosterior(chain.posterior);
+            }
+            chainsReady = true;
+        }
+
+        for(int i=1; i<chains.size(); i++){
+            Chain chain = chains.get(i);
+            if(chain.propose()){
+                evaluating.add(executor.submit(chain::evaluate));
+            }
+        }
+
+        Operator operator = super.propagateState(sample);
+        chains.get(0).proposed++;
+
+        waitForChains();
+        for(int i=1; i<chains.size(); i++){
+            chains.get(i).decide();
+        }
+
+        statesSinceSwap++;
+        if(statesSinceSwap == swapEvery){
+            proposeSwap();
+            statesSinceSwap = 0;
+        }
+
+        return operator;
+    }
+
+    private void waitForChains(){
+        try {
+            for(Future<?> future : evaluating){
+                future.get();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the heated chains");
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            evaluating.clear();
+        }
+    }
+
+    private void proposeSwap(){
+        chains.get(0).logP = oldLogLikelihood;
+
+        int i = Randomizer.nextInt(chains.size());
+        int j = Randomizer.nextInt(chains.size()-1);
+        if(j >= i){
+            j++;
+        }
+        Chain first = chains.get(i);
+        Chain second = chains.get(j);
+        first.swapsProposed++;
+        second.swapsProposed++;
+
+        double logAlpha = (first.beta - second.beta)*(second.logP - first.logP);
+        if(logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)){
+            swapStates(first, second);
+            first.swapsAccepted++;
+            second.swapsAccepted++;
+            oldLogLikelihood = chains.get(0).logP;
+        }
+    }
+
+    private void swapStates(Chain first, Chain second){
+        for(int k=0; k<first.state.getNrOfStateNodes(); k++){
+            StateNode a = first.state.getStateNode(k);
+            StateNode b = second.state.getStateNode(k);
+            //copy() leaves a tree without its node arrays, which assignFrom builds
+            StateNode temp = a.copy();
+            temp.assignFrom(a);
+            a.assignFromFragile(b);
+            b.assignFromFragile(temp);
+        }
+        first.logP = first.state.robustlyCalcPosterior(first.posterior);
+        second.logP = second.state.robustlyCalcPosterior(second.posterior);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        super.close();
+        System.out.println("Coupled MCMC:");
+        for(int i=0; i<chains.size(); i++){
+            Chain chain = chains.get(i);
+            System.out.println("  chain " + i + " (beta " + chain.beta + "): "
+                    + (i == 0 ? chain.proposed + " states" : chain.accepted + " of " + chain.proposed
+                    + " proposals accepted")
+                    + ", " + chain.swapsAccepted + " of " + chain.swapsProposed + " swaps accepted");
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+* File DelayedAcceptanceMCMC.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.core;
+
+import beast.core.util.CompoundDistribution;
+import beast.util.Randomizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Two-stage delayed acceptance MCMC (Christen and Fox, 2005). Part of the posterior - typically the between-host model
+ * and the priors - is named as the screen. A proposal is first accepted or rejected as if the screen were the whole
+ * posterior; only if it passes is the rest calculated, and it is then accepted with probability
+ * min(1, exp(rest(new) - rest(old))). Because the screen is a factor of the posterior, that is the whole of the
+ * second-stage correction, and the chain has the same stationary distribution as ordinary MCMC.
+ *
+ * The screen must be made of distributions inside the posterior (directly, or inside compound distributions within
+ * it), and none may be inside another. Operators that do their own state initialisation, or that want an evaluator,
+ * are put through a single stage as usual.
+ */
+
+@Description("MCMC that only calculates the expensive part of the posterior for proposals that the cheap part accepts")
+public class DelayedAcceptanceMCMC extends MCMC {
+
+    public Input<List<Distribution>> screenInput = new Input<>("screen", "The cheap parts of the posterior, which " +
+            "decide the first stage", new ArrayList<>());
+
+    private List<Distribution> screen;
+
+    private long firstStageRejections = 0;
+    private long secondStageProposals = 0;
+    private long secondStageRejections = 0;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        screen = screenInput.get();
+        if(screen.isEmpty()){
+            throw new IllegalArgumentException("DelayedAcceptanceMCMC needs at least one screen distribution");
+        }
+        Distribution posterior = posteriorInput.get();
+        for(Distribution distribution : screen){
+            if(distribution == posterior || !contains(posterior, distribution)){
+                throw new IllegalArgumentException("Screen distribution " + distribution.getID() + " must be part " +
+                        "of the posterior, and not the whole of it");
+            }
+            for(Distribution other : screen){
+                if(other != distribution && contains(other, distribution)){
+                    throw new IllegalArgumentException("Screen distribution " + distribution.getID() + " is " +
+                            "already part of " + other.getID());
+                }
+            }
+        }
+    }
+
+    private static boolean contains(Distribution outer, Distribution inner){
+        if(outer instanceof CompoundDistribution){
+            for(Distribution child : ((CompoundDistribution)outer).pDistributions.get()){
+                if(child == inner || contains(child, inner)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private double getScreenLogP(boolean calculate){
+        double logP = 0;
+        for(Distribution distribution : screen){
+            logP += calculate && distribution.isDirtyCalculation() ? distribution.calculateLogP()
+                    : distribution.getCurrentLogP();
+            if(logP == Double.NEGATIVE_INFINITY){
+                return logP;
+            }
+        }
+        return logP;
+    }
+
+    @Override
+    protected Operator propagateState(final int sample) {
+        state.store(sample);
+
+        final Operator operator = operatorSchedule.selectOperator();
+
+        if(!operator.requiresStateInitialisation() || operator.getEvaluatorDistribution() != null){
+            return singleStage(sample, operator);
+        }
+
+        final double oldScreenLogP = getScreenLogP(false);
+
+        final double logHastingsRatio = operator.proposal();
+
+        if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+
+            // first stage, on the screen alone
+
+            final double newScreenLogP = getScreenLogP(true);
+            final double logAlpha1 = newScreenLogP - oldScreenLogP + logHastingsRatio;
+
+            if (logAlpha1 >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha1)) {
+
+                // second stage, on the rest
+
+                secondStageProposals++;
+                newLogLikelihood = posterior.calculateLogP();
+                final double logAlpha2 = (newLogLikelihood - newScreenLogP) - (oldLogLikelihood - oldScreenLogP);
+
+                //for tuning, the overall acceptance probability
+                logAlpha = Math.min(logAlpha1, 0) + Math.min(logAlpha2, 0);
+
+                if (logAlpha2 >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha2)) {
+                    accept(sample, operator);
+                } else {
+                    secondStageRejections++;
+                    reject(sample, operator, newLogLikelihood);
+                }
+            } else {
+                firstStageRejections++;
+                logAlpha = logAlpha1;
+                reject(sample, operator, newScreenLogP);
+            }
+            state.setEverythingDirty(false);
+        } else {
+            directReject(sample, operator);
+        }
+        log(sample);
+        return operator;
+    }
+
+    // The usual Metropolis-Hastings step, as in MCMC, for operators that the two stages don't suit
+
+    private Operator singleStage(final int sample, final Operator operator){
+        final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+        Evaluator evaluator = null;
+
+        if (evaluatorDistribution != null) {
+            evaluator = () -> {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+                double logP = evaluatorDistribution.calculateLogP();
+                state.restore();
+                state.store(sample);
+                return logP;
+            };
+        }
+        final double logHastingsRatio = operator.proposal(evaluator);
+
+        if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+            if (operator.requiresStateInitialisation()) {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+            }
+
+            newLogLikelihood = posterior.calculateLogP();
+            logAlpha = newLogLikelihood - oldLogLikelihood + logHastingsRatio;
+
+            if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+                accept(sample, operator);
+            } else {
+                reject(sample, operator, newLogLikelihood);
+            }
+            state.setEverythingDirty(false);
+        } else {
+            directReject(sample, operator);
+        }
+        log(sample);
+        return operator;
+    }
+
+    private void accept(final int sample, final Operator operator){
+        oldLogLikelihood = newLogLikelihood;
+        state.acceptCalculationNodes();
+        if (sample >= 0) {
+            operator.accept();
+        }
+    }
+
+    private void reject(final int sample, final Operator operator, final double newLogP){
+        if (sample >= 0) {
+            operator.reject(newLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+        }
+        state.restore();
+        state.restoreCalculationNodes();
+    }
+
+    private void directReject(final int sample, final Operator operator){
+        if (sample >= 0) {
+            operator.reject(-2);
+        }
+        state.restore();
+        if (!operator.requiresStateInitialisation()) {
+            state.setEverythingDirty(false);
+            state.restoreCalculationNodes();
+        }
+    }
+
+    public long getFirstStageRejections(){
+        return firstStageRejections;
+    }
+
+    public long getSecondStageProposals(){
+        return secondStageProposals;
+    }
+
+    public long getSecondStageRejections(){
+        return secondStageRejections;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        System.out.println("Delayed acceptance: " + firstStageRejections + " proposals rejected by the screen, "
+                + secondStageProposals + " passed to the full posterior, of which " + secondStageRejections
+                + " were rejected");
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+* File MCMCReplica.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * A second copy of the model of an MCMC run, for SpeculativeMCMC to make and evaluate proposals on while the main copy
+ * does the same, or for CoupledMCMC to run as a heated chain. It needs its own state and everything calculated from
+ * it, and operators on its own state nodes in the same order as those of the run; data that is only read, such as
+ * alignments and the outbreak, can be shared.
+ */
+
+@Description("A copy of the state, posterior and operators of an MCMC run, for speculative proposals or heated chains")
+public class MCMCReplica extends BEASTObject {
+
+    public Input<State> stateInput = new Input<>("state", "The replica's own state, with its state nodes in the " +
+            "same order as in the main one", Input.Validate.REQUIRED);
+    public Input<Distribution> posteriorInput = new Input<>("distribution", "The replica's own posterior",
+            Input.Validate.REQUIRED);
+    public Input<List<Operator>> operatorsInput = new Input<>("operator", "Operators on the replica's state, in " +
+            "the same order as those of the run", new ArrayList<>());
+
+    @Override
+    public void initAndValidate() {
+        if(operatorsInput.get().isEmpty()){
+            throw new IllegalArgumentException("A replica needs the same operators as the run it copies");
+        }
+    }
+
+    public State getState(){
+        return stateInput.get();
+    }
+
+    public Distribution getPosterior(){
+        return posteriorInput.get();
+    }
+
+    public List<Operator> getOperators(){
+        return operatorsInput.get();
+    }
+
+    //States can only be copied between the main model and the replica if their state nodes match up
+
+    void checkStateMatches(State mainState){
+        List<StateNode> mainNodes = mainState.stateNodeInput.get();
+        List<StateNode> replicaNodes = getState().stateNodeInput.get();
+        if(getState() == mainState){
+            throw new IllegalArgumentException("Replica " + getID() + " must have its own state");
+        }
+        if(replicaNodes.size() != mainNodes.size()){
+            throw new IllegalArgumentException("Replica " + getID() + " has a different number of state nodes");
+        }
+        for(int i=0; i<mainNodes.size(); i++){
+            if(replicaNodes.get(i).getClass() != mainNodes.get(i).getClass()){
+                throw new IllegalArgumentException("State node " + i + " of replica " + getID() + " is not of the " +
+                        "same class as in the main state");
+            }
+        }
+    }
+
+    void checkOperatorsMatch(List<Operator> mainOperators){
+        List<Operator> replicaOperators = getOperators();
+        if(replicaOperators.size() != mainOperators.size()){
+            throw new IllegalArgumentException("Replica " + getID() + " has a different number of operators");
+        }
+        for(int i=0; i<mainOperators.size(); i++){
+            if(replicaOperators.get(i).getClass() != mainOperators.get(i).getClass()){
+                throw new IllegalArgumentException("Operator " + i + " of replica " + getID() + " is not of the " +
+                        "same class as in the run");
+            }
+        }
+    }
+
+}
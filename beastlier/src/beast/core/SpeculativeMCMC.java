@@ -0,0 +1,398 @@
+/*
+* File SpeculativeMCMC.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.core;
+
+import beast.util.Randomizer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * MCMC that makes several proposals from the current state at once, one on the main model and one on each replica,
+ * calculates their posteriors at the same time, and then goes through them in order making the usual Metropolis-
+ * Hastings decision for each as a state of the chain. After the first one accepted, the rest were proposed from a
+ * state that the chain has left, so they are thrown away, and every copy of the model is brought up to the new state.
+ *
+ * Each proposal only depends on the state it was made from, and the random numbers for the decisions are drawn after
+ * the proposals, so the chain is exactly the same Markov chain as ordinary MCMC, only with the random numbers drawn
+ * in a different order. It helps most when most proposals are rejected, since then most of the work done in parallel
+ * is used; each acceptance costs a full recalculation of every other copy.
+ *
+ * The proposals themselves are made one after another on this thread, since operators use the shared random number
+ * generator; only the posteriors are calculated in parallel. Operators that do their own state initialisation or
+ * want an evaluator are not speculated on, and are done on the main model on their own.
+ */
+
+@Description("MCMC that evaluates several proposals at once on copies of the model")
+public class SpeculativeMCMC extends MCMC {
+
+    public Input<List<MCMCReplica>> replicasInput = new Input<>("replica", "Copies of the model to make the extra " +
+            "proposals on", new ArrayList<>());
+    public Input<Integer> threadsInput = new Input<>("threads", "Threads used to calculate the posteriors; the " +
+            "default of 0 means one for each copy of the model", 0);
+
+    //a copy of the model, and the proposal waiting on it if there is one
+    private static class Model {
+        final State state;
+        final Distribution posterior;
+        final List<Operator> operators;
+
+        double logP;
+        int operatorIndex;
+        double logHastingsRatio;
+        double newLogP;
+
+        Model(State state, Distribution posterior, List<Operator> operators){
+            this.state = state;
+            this.posterior = posterior;
+            this.operators = operators;
+        }
+    }
+
+    //the main model is the first
+    private List<Model> models;
+    private List<Operator> mainOperators;
+    private final Map<Operator, Integer> operatorIndices = new IdentityHashMap<>();
+    private ExecutorService executor;
+
+    private boolean replicasReady = false;
+    private final List<Model> pending = new ArrayList<>();
+    private int nextPending = 0;
+    //drawn by the schedule while a round was being made up, but not one that can be speculated on
+    private Operator carriedOperator = null;
+
+    private long rounds = 0;
+    private long discarded = 0;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        mainOperators = operatorsInput.get();
+        for(int i=0; i<mainOperators.size(); i++){
+            operatorIndices.put(mainOperators.get(i), i);
+        }
+
+        List<MCMCReplica> replicas = replicasInput.get();
+        if(replicas.isEmpty()){
+            throw new IllegalArgumentException("SpeculativeMCMC needs at least one replica");
+        }
+
+        State mainState = startStateInput.get();
+        models = new ArrayList<>();
+        models.add(new Model(mainState, posteriorInput.get(), mainOperators));
+
+        for(MCMCReplica replica : replicas){
+            if(replica.getPosterior() == posteriorInput.get()){
+                throw new IllegalArgumentException("Replica " + replica.getID() + " must have its own posterior");
+            }
+            replica.checkStateMatches(mainState);
+            replica.checkOperatorsMatch(mainOperators);
+            State replicaState = replica.getState();
+            List<Operator> replicaOperators = replica.getOperators();
+            models.add(new Model(replicaState, replica.getPosterior(), replicaOperators));
+        }
+
+        int threads = threadsInput.get() > 0 ? Math.min(threadsInput.get(), models.size()) : models.size();
+        if(threads > 1){
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "SpeculativeMCMC");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            executor = null;
+        }
+    }
+
+    private static boolean canSpeculate(Operator operator){
+        return operator.requiresStateInitialisation() && operator.getEvaluatorDistribution() == null;
+    }
+
+    @Override
+    protected Operator propagateState(final int sample) {
+        if(!replicasReady){
+            //the main state has been initialised by now, but the replicas have not
+            for(int i=1; i<models.size(); i++){
+                models.get(i).state.initialise();
+                models.get(i).state.setPosterior(models.get(i).posterior);
+            }
+            synchroniseFrom(models.get(0));
+            replicasReady = true;
+        }
+
+        if(nextPending == pending.size()){
+            pending.clear();
+            nextPending = 0;
+            if(!makeRound(sample)){
+                Operator operator = carriedOperator;
+                carriedOperator = null;
+                singleStep(sample, operator);
+                log(sample);
+                return operator;
+            }
+        }
+
+        Model model = pending.get(nextPending++);
+        Operator operator = mainOperators.get(model.operatorIndex);
+
+        if(decide(sample, model, operator)){
+            for(int i=nextPending; i<pending.size(); i++){
+                abandon(pending.get(i));
+                discarded++;
+            }
+            pending.clear();
+            nextPending = 0;
+            synchroniseFrom(model);
+        }
+
+        log(sample);
+        return operator;
+    }
+
+    // Make a proposal on each copy of the model in turn and calculate their posteriors. Returns false if the first
+    // operator drawn can't be speculated on, in which case it is left in carriedOperator.
+
+    private boolean makeRound(final int sample){
+        Operator first = carriedOperator != null ? carriedOperator : operatorSchedule.selectOperator();
+        carriedOperator = null;
+        if(!canSpeculate(first)){
+            carriedOperator = first;
+            return false;
+        }
+
+        models.get(0).logP = oldLogLikelihood;
+
+        for(int i=0; i<models.size(); i++){
+            Operator selected = i == 0 ? first : operatorSchedule.selectOperator();
+            if(!canSpeculate(selected)){
+                carriedOperator = selected;
+                break;
+            }
+
+            Model model = models.get(i);
+            model.operatorIndex = operatorIndices.get(selected);
+            Operator operator = model.operators.get(model.operatorIndex);
+            //the replicas' operators are tuned along with the run's
+            if(i > 0 && !Double.isNaN(selected.getCoercableParameterValue())){
+                operator.setCoercableParameterValue(selected.getCoercableParameterValue());
+            }
+
+            model.state.store(sample);
+            model.logHastingsRatio = operator.proposal();
+            if(model.logHastingsRatio != Double.NEGATIVE_INFINITY){
+                model.state.storeCalculationNodes();
+                model.state.checkCalculationNodesDirtiness();
+            }
+            pending.add(model);
+        }
+
+        List<Callable<Double>> tasks = new ArrayList<>();
+        List<Model> evaluated = new ArrayList<>();
+        for(Model model : pending){
+            if(model.logHastingsRatio != Double.NEGATIVE_INFINITY){
+                tasks.add(model.posterior::calculateLogP);
+                evaluated.add(model);
+            }
+        }
+        List<Double> results = runAll(tasks);
+        for(int i=0; i<evaluated.size(); i++){
+            evaluated.get(i).newLogP = results.get(i);
+        }
+
+        rounds++;
+        return true;
+    }
+
+    // The Metropolis-Hastings decision for a proposal that has already been evaluated; counts go to the run's
+    // operator
+
+    private boolean decide(final int sample, final Model model, final Operator operator){
+        if(model.logHastingsRatio == Double.NEGATIVE_INFINITY){
+            if(sample >= 0){
+                operator.reject(-2);
+            }
+            model.state.restore();
+            return false;
+        }
+
+        logAlpha = model.newLogP - model.logP + model.logHastingsRatio;
+        if(model == models.get(0)){
+            newLogLikelihood = model.newLogP;
+        }
+
+        if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+            model.logP = model.newLogP;
+            model.state.acceptCalculationNodes();
+            if (sample >= 0) {
+                operator.accept();
+            }
+            model.state.setEverythingDirty(false);
+            return true;
+        } else {
+            if (sample >= 0) {
+                operator.reject(model.newLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+            }
+            model.state.restore();
+            model.state.restoreCalculationNodes();
+            model.state.setEverythingDirty(false);
+            return false;
+        }
+    }
+
+    private void abandon(final Model model){
+        model.state.restore();
+        if(model.logHastingsRatio != Double.NEGATIVE_INFINITY){
+            model.state.restoreCalculationNodes();
+            model.state.setEverythingDirty(false);
+        }
+    }
+
+    // Copy the state of one model into all the others and recalculate them from scratch
+
+    private void synchroniseFrom(final Model source){
+        List<Callable<Double>> tasks = new ArrayList<>();
+        List<Model> targets = new ArrayList<>();
+        for(Model model : models){
+            if(model == source){
+                continue;
+            }
+            for(int i=0; i<source.state.getNrOfStateNodes(); i++){
+                model.state.getStateNode(i).assignFromFragile(source.state.getStateNode(i));
+            }
+            tasks.add(() -> model.state.robustlyCalcPosterior(model.posterior));
+            targets.add(model);
+        }
+        List<Double> results = runAll(tasks);
+        for(int i=0; i<targets.size(); i++){
+            targets.get(i).logP = results.get(i);
+        }
+        oldLogLikelihood = models.get(0).logP;
+    }
+
+    // A step of ordinary MCMC on the main model, for operators that can't be speculated on
+
+    private void singleStep(final int sample, final Operator operator){
+        final State state = models.get(0).state;
+        state.store(sample);
+
+        final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+        Evaluator evaluator = null;
+        if (evaluatorDistribution != null) {
+            evaluator = () -> {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+                double logP = evaluatorDistribution.calculateLogP();
+                state.restore();
+                state.store(sample);
+                return logP;
+            };
+        }
+        final double logHastingsRatio = operator.proposal(evaluator);
+
+        boolean accepted = false;
+        if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+            if (operator.requiresStateInitialisation()) {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+            }
+            newLogLikelihood = posterior.calculateLogP();
+            logAlpha = newLogLikelihood - oldLogLikelihood + logHastingsRatio;
+
+            if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+                oldLogLikelihood = newLogLikelihood;
+                state.acceptCalculationNodes();
+                if (sample >= 0) {
+                    operator.accept();
+                }
+                accepted = true;
+            } else {
+                if (sample >= 0) {
+                    operator.reject(newLogLikelihood == Double.NEGATIVE_INFINITY ? -1 : 0);
+                }
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        } else {
+            if (sample >= 0) {
+                operator.reject(-2);
+            }
+            state.restore();
+            if (!operator.requiresStateInitialisation()) {
+                state.setEverythingDirty(false);
+                state.restoreCalculationNodes();
+            }
+        }
+
+        models.get(0).logP = oldLogLikelihood;
+        if(accepted){
+            synchroniseFrom(models.get(0));
+        }
+    }
+
+    private List<Double> runAll(List<Callable<Double>> tasks){
+        List<Double> out = new ArrayList<>();
+        try {
+            if(executor == null || tasks.size() < 2){
+                for(Callable<Double> task : tasks){
+                    out.add(task.call());
+                }
+            } else {
+                for(Future<Double> future : executor.invokeAll(tasks)){
+                    out.add(future.get());
+                }
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while calculating posteriors");
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e){
+            throw e;
+        } catch (Exception e){
+            throw new RuntimeException(e);
+        }
+        return out;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        System.out.println("Speculation: " + rounds + " rounds of up to " + models.size() + " proposals, "
+                + discarded + " proposals thrown away after an earlier acceptance");
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+* File AncestralCorridor.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The part of a guided phylogeny taking place in the transmission chain leading to a single element, as a view over
+ * the nodes of the phylogeny itself. This is the same tree that GuidedPartitionedTree.extractAncestralCorridor copies
+ * out, but nothing is copied: a branch that leaves the chain ends in a virtual tip, which is the original node at the
+ * bottom of that branch given the height of the transmission that took it out of the chain.
+ *
+ * Whether a node is in the corridor is worked out the first time it is asked about and then remembered, so the view
+ * keeps its shape if nodes are moved around while it is in use, just as a copy would. Nodes should only be reached by
+ * moving around the view from its root; the descendants of virtual tips are not part of it.
+ */
+
+public class AncestralCorridor {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte INSIDE = 1;
+    private static final byte VIRTUAL_TIP = 2;
+
+    private final GuidedPartitionedTree tree;
+    private final GuideTreeSummary guide;
+    private final int elementNo;
+    private final List<Integer> chain;
+    private final BitSet chainSet;
+
+    private final byte[] status;
+    private final double[] virtualTipHeights;
+    private final int[] virtualTipElements;
+
+    private List<PartitionedTreeNode> nodeList;
+
+    AncestralCorridor(GuidedPartitionedTree tree, int elementNo, BitSet chainSet){
+        this.tree = tree;
+        this.guide = tree.getGuideTree().getGuideTreeSummary();
+        this.elementNo = elementNo;
+        this.chain = guide.getAncestralChain(elementNo);
+        this.chainSet = chainSet;
+
+        int nodeCount = tree.getNodeCount();
+        status = new byte[nodeCount];
+        virtualTipHeights = new double[nodeCount];
+        virtualTipElements = new int[nodeCount];
+    }
+
+    public int getElementNo(){
+        return elementNo;
+    }
+
+    public GuidedPartitionedTree getTree(){
+        return tree;
+    }
+
+    public PartitionedTreeNode getRoot(){
+        return (PartitionedTreeNode)tree.getRoot();
+    }
+
+    public boolean isVirtualTip(PartitionedTreeNode node){
+        return getStatus(node) == VIRTUAL_TIP;
+    }
+
+    public boolean isLeaf(PartitionedTreeNode node){
+        return isVirtualTip(node) || node.isLeaf();
+    }
+
+    public double getHeight(PartitionedTreeNode node){
+        return isVirtualTip(node) ? virtualTipHeights[node.getNr()] : node.getHeight();
+    }
+
+    public double getLength(PartitionedTreeNode node){
+        return node.isRoot() ? 0 : node.getParent().getHeight() - getHeight(node);
+    }
+
+    public int getPartitionElementNumber(PartitionedTreeNode node){
+        return isVirtualTip(node) ? virtualTipElements[node.getNr()] : node.getPartitionElementNumber();
+    }
+
+    public int getChildCount(PartitionedTreeNode node){
+        return isVirtualTip(node) ? 0 : node.getChildCount();
+    }
+
+    public PartitionedTreeNode getChild(PartitionedTreeNode node, int index){
+        if(isVirtualTip(node)){
+            throw new IllegalArgumentException("Virtual tips have no children");
+        }
+        return (PartitionedTreeNode)node.getChild(index);
+    }
+
+    public String getID(PartitionedTreeNode node){
+        if(isVirtualTip(node)){
+            int infectedElement = virtualTipElements[node.getNr()];
+            return chainSet.get(node.getPartitionElementNumber()+1) ? "To_"+infectedElement
+                    : "Continued_"+infectedElement;
+        }
+        return node.getID();
+    }
+
+    // The nodes, real and virtual, in pre-order. This is built the first time it's needed and not after, so call it
+    // before changing anything if the numbering matters.
+
+    public int getNodeCount(){
+        return getNodeList().size();
+    }
+
+    public PartitionedTreeNode getNode(int index){
+        return getNodeList().get(index);
+    }
+
+    private List<PartitionedTreeNode> getNodeList(){
+        if(nodeList == null){
+            nodeList = new ArrayList<>();
+            List<PartitionedTreeNode> stack = new ArrayList<>();
+            stack.add(getRoot());
+            while(!stack.isEmpty()){
+                PartitionedTreeNode node = stack.remove(stack.size()-1);
+                nodeList.add(node);
+                for(int i=getChildCount(node)-1; i>=0; i--){
+                    stack.add(getChild(node, i));
+                }
+            }
+        }
+        return nodeList;
+    }
+
+    //the same decision that copyDown makes
+
+    private byte getStatus(PartitionedTreeNode node){
+        int nr = node.getNr();
+
+        if(status[nr] == UNKNOWN){
+            double heightInGuideTree = tree.guideTreeHeight(node.getHeight());
+
+            int position = 0;
+            int currentElt = chain.get(position);
+            while(guide.getInfectionHeightByNr(currentElt) < heightInGuideTree){
+                position++;
+                currentElt = chain.get(position);
+            }
+
+            int nodeElt = node.getPartitionElementNumber();
+
+            if(currentElt == nodeElt){
+                status[nr] = INSIDE;
+            } else {
+                int infectedElement = chainSet.get(nodeElt+1) ? nodeElt : currentElt;
+
+                virtualTipElements[nr] = infectedElement;
+                virtualTipHeights[nr] = tree.thisTreeHeight(guide.getInfectionHeightByNr(infectedElement));
+                status[nr] = VIRTUAL_TIP;
+            }
+        }
+
+        return status[nr];
+    }
+
+    public String toNewick(){
+        StringBuilder sb = new StringBuilder();
+        toNewick(getRoot(), sb);
+        return sb.toString();
+    }
+
+    private void toNewick(PartitionedTreeNode node, StringBuilder sb){
+        if(isLeaf(node)){
+            sb.append(getID(node));
+        } else {
+            sb.append("(");
+            for(int i=0; i<getChildCount(node); i++){
+                if(i>0){
+                    sb.append(",");
+                }
+                toNewick(getChild(node, i), sb);
+            }
+            sb.append(")");
+        }
+        sb.append("[&").append(tree.getElementLabel()).append("=").append(getPartitionElementNumber(node))
+                .append("]");
+        if(!node.isRoot()){
+            sb.append(":").append(getLength(node));
+        }
+    }
+
+}
@@ -0,0 +1,503 @@
+/*
+* File BranchIntervalIndex.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree;
+
+import java.util.Arrays;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The branches of a tree in the order of a walk that takes the children in order, for finding the branches in a
+ * subtree that span a given height. Each node has two entries, one before and one after those of its descendants, so
+ * every subtree is a run of consecutive entries. The entries are kept in a treap (a binary search tree on position,
+ * balanced by pseudo-random priorities) in which each entry knows the lowest node height beneath it.
+ *
+ * In a subtree whose top is above the height, the nodes below it come in runs, one per spanning branch, that start
+ * at the bottom of the branch and cover its subtree. A query finds the first node below the height, skips to the end
+ * of its subtree and repeats, so it costs O(log n) per branch found and O((k+1) log n) in all, however much of the
+ * subtree is above the height.
+ *
+ * The tree says which nodes have moved or changed height, and the index puts them back in place the next time it is
+ * asked something, in O(log n) for each: a moved node's subtree moves as one run. Nodes changed since store() are
+ * put back again after restore(). Anything that changes the tree without saying which nodes it touched must call
+ * invalidate(), and the index is then rebuilt in O(n) on its next use.
+ *
+ * Only trees in which no node has more than two children can be indexed.
+ */
+
+public class BranchIntervalIndex {
+
+    /**
+     * What the index needs to know about the tree, by node number; the root's parent is -1
+     */
+    public interface Shape {
+        int getNodeCount();
+        int getRootNr();
+        int getParentNr(int nr);
+        int getChildCount(int nr);
+        int getChildNr(int nr, int index);
+        double getHeight(int nr);
+    }
+
+    private static final int NONE = -1;
+
+    private final Shape shape;
+    private final int nodeCount;
+
+    //entry 2*nr comes before node nr's descendants and entry 2*nr+1 after them; the key of the first is the node's
+    //height and of the second infinity, so that only the first can be found below a height
+    private final int[] left;
+    private final int[] right;
+    private final int[] up;
+    private final int[] sizes;
+    private final int[] priorities;
+    private final double[] keys;
+    private final double[] minKeys;
+
+    //results of split()
+    private int splitLeft;
+    private int splitRight;
+
+    private boolean valid = false;
+    private boolean invalidatedSinceStore = false;
+
+    private final int[] pending;
+    private final boolean[] isPending;
+    private int pendingCount = 0;
+    private final int[] touched;
+    private final boolean[] isTouched;
+    private int touchedCount = 0;
+
+    private int[] found = new int[16];
+
+    public BranchIntervalIndex(Shape shape){
+        this.shape = shape;
+        nodeCount = shape.getNodeCount();
+
+        int entryCount = 2*nodeCount;
+        left = new int[entryCount];
+        right = new int[entryCount];
+        up = new int[entryCount];
+        sizes = new int[entryCount];
+        priorities = new int[entryCount];
+        keys = new double[entryCount];
+        minKeys = new double[entryCount];
+        for(int entry=0; entry<entryCount; entry++){
+            priorities[entry] = priority(entry);
+        }
+
+        pending = new int[nodeCount];
+        isPending = new boolean[nodeCount];
+        touched = new int[nodeCount];
+        isTouched = new boolean[nodeCount];
+    }
+
+    //a fixed scramble of the entry number (the finaliser of SplitMix64); the index must not draw from Randomizer, or
+    //using it would change the chain
+
+    private static int priority(int entry){
+        long z = (entry + 1)*0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+        return (int)(z ^ (z >>> 31));
+    }
+
+    public int getNodeCount(){
+        return nodeCount;
+    }
+
+    // Changes to the tree
+
+    /**
+     * The node has a new parent, a new place among its parent's children or a new height
+     */
+    public void changed(int nr){
+        if(!isPending[nr]){
+            isPending[nr] = true;
+            pending[pendingCount++] = nr;
+        }
+        if(!isTouched[nr]){
+            isTouched[nr] = true;
+            touched[touchedCount++] = nr;
+        }
+    }
+
+    public void invalidate(){
+        valid = false;
+        invalidatedSinceStore = true;
+    }
+
+    public void store(){
+        clearTouched();
+        invalidatedSinceStore = false;
+    }
+
+    public void restore(){
+        if(invalidatedSinceStore){
+            valid = false;
+        }
+        for(int i=0; i<touchedCount; i++){
+            int nr = touched[i];
+            if(!isPending[nr]){
+                isPending[nr] = true;
+                pending[pendingCount++] = nr;
+            }
+        }
+        clearTouched();
+        invalidatedSinceStore = false;
+    }
+
+    private void clearTouched(){
+        for(int i=0; i<touchedCount; i++){
+            isTouched[touched[i]] = false;
+        }
+        touchedCount = 0;
+    }
+
+    private void clearPending(){
+        for(int i=0; i<pendingCount; i++){
+            isPending[pending[i]] = false;
+        }
+        pendingCount = 0;
+    }
+
+    // Queries
+
+    /**
+     * Finds the branches in the subtree rooted at the node, including the node's own, whose bottom is below the
+     * height and whose top is at or above it. The numbers of the nodes at their bottoms are then given by
+     * getFound(0), getFound(1)..., in the order that a walk taking the children in order would find them.
+     *
+     * @return the number of branches found, or -1 if the tree can't be indexed as it stands (part of it is detached
+     * from the root, as it can be in the middle of a proposal)
+     */
+    public int find(int nr, double height){
+        if(!update()){
+            return -1;
+        }
+
+        int parentNr = shape.getParentNr(nr);
+        if(parentNr != NONE && shape.getHeight(parentNr) < height){
+            return 0;
+        }
+
+        int root = rootOf(2*nr);
+        int from = rank(2*nr);
+        int to = rank(2*nr+1);
+        int count = 0;
+        while(from < to){
+            int entry = findFirstBelow(root, 0, from, to, height);
+            if(entry == NONE){
+                break;
+            }
+            if(count == found.length){
+                found = Arrays.copyOf(found, 2*count);
+            }
+            found[count++] = entry/2;
+            from = rank(entry+1) + 1;
+        }
+        return count;
+    }
+
+    public int getFound(int i){
+        return found[i];
+    }
+
+    // the first entry at a position from first to last, in the subtree of the treap rooted at entry (whose first
+    // entry is at position offset), with a key below the height; O(log n), since only subtrees that straddle an end
+    // of the range are searched without the answer being known to be there
+
+    private int findFirstBelow(int entry, int offset, int first, int last, double height){
+        if(entry == NONE || minKeys[entry] >= height || offset > last || offset + sizes[entry] <= first){
+            return NONE;
+        }
+        int inLeft = findFirstBelow(left[entry], offset, first, last, height);
+        if(inLeft != NONE){
+            return inLeft;
+        }
+        int position = offset + size(left[entry]);
+        if(position >= first && position <= last && keys[entry] < height){
+            return entry;
+        }
+        return findFirstBelow(right[entry], position + 1, first, last, height);
+    }
+
+    // Bringing the index up to date
+
+    private boolean update(){
+        if(!valid){
+            return rebuild();
+        }
+        if(pendingCount == 0){
+            return true;
+        }
+
+        for(int i=0; i<pendingCount; i++){
+            int nr = pending[i];
+            setKey(2*nr, shape.getHeight(nr));
+        }
+
+        //take every changed node out with its subtree, then put each back under its parent; the ones that haven't
+        //changed keep their places, so this works whatever order the changes were made in
+        for(int i=0; i<pendingCount; i++){
+            cut(pending[i]);
+        }
+        int rootNr = shape.getRootNr();
+        for(int i=0; i<pendingCount; i++){
+            int nr = pending[i];
+            int parentNr = shape.getParentNr(nr);
+            if(parentNr == NONE){
+                if(nr != rootNr){
+                    return rebuild();
+                }
+                continue;
+            }
+            int childIndex = childIndex(parentNr, nr);
+            if(childIndex == NONE || rootOf(2*nr) == rootOf(2*parentNr)){
+                return rebuild();
+            }
+            if(childIndex == 0){
+                insert(rootOf(2*nr), 2*parentNr, rank(2*parentNr) + 1);
+            } else if(childIndex == shape.getChildCount(parentNr) - 1){
+                insert(rootOf(2*nr), 2*parentNr, rank(2*parentNr+1));
+            } else {
+                return rebuild();
+            }
+        }
+        clearPending();
+
+        //anything that hasn't been put back means the changes didn't add up
+        if(sizes[rootOf(2*rootNr)] != 2*nodeCount){
+            return rebuild();
+        }
+        return true;
+    }
+
+    private int childIndex(int parentNr, int nr){
+        int childCount = shape.getChildCount(parentNr);
+        if(childCount > 2){
+            return NONE;
+        }
+        for(int i=0; i<childCount; i++){
+            if(shape.getChildNr(parentNr, i) == nr){
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    //lists the entries in walk order and builds the treap over them in one pass, keeping its right spine on a stack
+
+    private boolean rebuild(){
+        clearPending();
+        valid = false;
+
+        int[] spine = new int[2*nodeCount+1];
+        int spineSize = 0;
+        int[] stack = new int[2*nodeCount+1];
+        int[] nextChild = new int[nodeCount];
+        int stackSize = 0;
+        int entryCount = 0;
+
+        int rootNr = shape.getRootNr();
+        stack[stackSize++] = rootNr;
+        int entry = 2*rootNr;
+        while(true){
+            keys[entry] = entry % 2 == 0 ? shape.getHeight(entry/2) : Double.POSITIVE_INFINITY;
+            left[entry] = NONE;
+            right[entry] = NONE;
+            int last = NONE;
+            while(spineSize > 0 && priorities[spine[spineSize-1]] < priorities[entry]){
+                last = spine[--spineSize];
+                pull(last);
+            }
+            left[entry] = last;
+            if(last != NONE){
+                up[last] = entry;
+            }
+            if(spineSize > 0){
+                right[spine[spineSize-1]] = entry;
+                up[entry] = spine[spineSize-1];
+            } else {
+                up[entry] = NONE;
+            }
+            spine[spineSize++] = entry;
+            entryCount++;
+            if(entryCount > 2*nodeCount){
+                return false;
+            }
+
+            //the next entry in walk order
+            if(stackSize == 0){
+                break;
+            }
+            int nr = stack[stackSize-1];
+            int childCount = shape.getChildCount(nr);
+            if(childCount > 2){
+                return false;
+            }
+            if(nextChild[nr] < childCount){
+                int child = shape.getChildNr(nr, nextChild[nr]++);
+                stack[stackSize++] = child;
+                entry = 2*child;
+            } else {
+                nextChild[nr] = 0;
+                stackSize--;
+                entry = 2*nr+1;
+            }
+        }
+        while(spineSize > 0){
+            pull(spine[--spineSize]);
+        }
+
+        valid = entryCount == 2*nodeCount;
+        return valid;
+    }
+
+    // The treap
+
+    private int size(int entry){
+        return entry == NONE ? 0 : sizes[entry];
+    }
+
+    private double minKey(int entry){
+        return entry == NONE ? Double.POSITIVE_INFINITY : minKeys[entry];
+    }
+
+    private void pull(int entry){
+        sizes[entry] = 1 + size(left[entry]) + size(right[entry]);
+        minKeys[entry] = Math.min(keys[entry], Math.min(minKey(left[entry]), minKey(right[entry])));
+    }
+
+    private void setKey(int entry, double key){
+        keys[entry] = key;
+        for(int current = entry; current != NONE; current = up[current]){
+            pull(current);
+        }
+    }
+
+    private int rootOf(int entry){
+        while(up[entry] != NONE){
+            entry = up[entry];
+        }
+        return entry;
+    }
+
+    private int rank(int entry){
+        int out = size(left[entry]);
+        while(up[entry] != NONE){
+            int parent = up[entry];
+            if(right[parent] == entry){
+                out += size(left[parent]) + 1;
+            }
+            entry = parent;
+        }
+        return out;
+    }
+
+    private int merge(int a, int b){
+        if(a == NONE){
+            return b;
+        }
+        if(b == NONE){
+            return a;
+        }
+        if(priorities[a] > priorities[b]){
+            int merged = merge(right[a], b);
+            right[a] = merged;
+            up[merged] = a;
+            pull(a);
+            return a;
+        } else {
+            int merged = merge(a, left[b]);
+            left[b] = merged;
+            up[merged] = b;
+            pull(b);
+            return b;
+        }
+    }
+
+    //the first count entries to splitLeft and the rest to splitRight
+
+    private void split(int entry, int count){
+        if(entry == NONE){
+            splitLeft = NONE;
+            splitRight = NONE;
+            return;
+        }
+        if(size(left[entry]) < count){
+            split(right[entry], count - size(left[entry]) - 1);
+            right[entry] = splitLeft;
+            if(splitLeft != NONE){
+                up[splitLeft] = entry;
+            }
+            pull(entry);
+            splitLeft = entry;
+        } else {
+            split(left[entry], count);
+            left[entry] = splitRight;
+            if(splitRight != NONE){
+                up[splitRight] = entry;
+            }
+            pull(entry);
+            splitRight = entry;
+        }
+    }
+
+    private void detach(int entry){
+        if(entry != NONE){
+            up[entry] = NONE;
+        }
+    }
+
+    //takes the node's subtree out of whatever sequence it is in, leaving it as a sequence of its own
+
+    private void cut(int nr){
+        int root = rootOf(2*nr);
+        int first = rank(2*nr);
+        int last = rank(2*nr+1);
+
+        split(root, last + 1);
+        int after = splitRight;
+        detach(after);
+        split(splitLeft, first);
+        int before = splitLeft;
+        int subtree = splitRight;
+        detach(before);
+        detach(subtree);
+
+        detach(merge(before, after));
+    }
+
+    //puts a whole sequence in at the given position of the sequence containing the entry
+
+    private void insert(int sequence, int entry, int position){
+        split(rootOf(entry), position);
+        int before = splitLeft;
+        int after = splitRight;
+        detach(before);
+        detach(after);
+        detach(merge(merge(before, sequence), after));
+    }
+
+}
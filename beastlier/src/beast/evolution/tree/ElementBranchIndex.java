@@ -0,0 +1,181 @@
+/*
+* File ElementBranchIndex.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The branches of a guided phylogeny, cut into the pieces that lie in a single partition element and indexed by
+ * height. Used to find the bundle for an element at a given height without walking the tree.
+ */
+
+public class ElementBranchIndex {
+
+    //everything is stored at elementNo+1, so that the unsampled element -1 has a slot
+
+    //the node at the bottom of the branch that each piece belongs to
+    private final PartitionedTreeNode[][] pieceNodes;
+    //the pieces cover (lowerHeights, upperHeights], sorted by their lower heights
+    private final double[][] lowerHeights;
+    private final double[][] upperHeights;
+    //a binary heap over the sorted pieces, each entry the largest upper height beneath it
+    private final double[][] maxUpperHeights;
+    private final int[] heapSizes;
+
+    public ElementBranchIndex(PartitionedTreeNode root, int elementCount){
+
+        List<List<PartitionedTreeNode>> nodeLists = new ArrayList<>();
+        List<List<double[]>> boundLists = new ArrayList<>();
+
+        for(int i=0; i<elementCount+1; i++){
+            nodeLists.add(new ArrayList<>());
+            boundLists.add(new ArrayList<>());
+        }
+
+        //walk from the root; nodes that are temporarily detached from the tree mid-proposal are not included
+
+        List<PartitionedTreeNode> stack = new ArrayList<>();
+        stack.add(root);
+
+        while(!stack.isEmpty()){
+            PartitionedTreeNode node = stack.remove(stack.size()-1);
+
+            int[] branchElements = (int[])node.getMetaData(GuidedPartitionedTree.elementBranchString);
+            double[] transitionHeights = (double[])node.getMetaData(GuidedPartitionedTree.heightBranchString);
+
+            double lower = node.getHeight();
+
+            for(int piece = 0; piece < branchElements.length; piece++){
+                double upper = transitionHeights[piece];
+                if(upper > lower){
+                    nodeLists.get(branchElements[piece]+1).add(node);
+                    boundLists.get(branchElements[piece]+1).add(new double[]{lower, upper});
+                    lower = upper;
+                }
+            }
+
+            for(int i=node.getChildCount()-1; i>=0; i--){
+                stack.add((PartitionedTreeNode)node.getChild(i));
+            }
+        }
+
+        pieceNodes = new PartitionedTreeNode[elementCount+1][];
+        lowerHeights = new double[elementCount+1][];
+        upperHeights = new double[elementCount+1][];
+        maxUpperHeights = new double[elementCount+1][];
+        heapSizes = new int[elementCount+1];
+
+        for(int slot = 0; slot < elementCount+1; slot++){
+            List<PartitionedTreeNode> nodes = nodeLists.get(slot);
+            List<double[]> bounds = boundLists.get(slot);
+            int count = nodes.size();
+
+            Integer[] order = new Integer[count];
+            for(int i=0; i<count; i++){
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(bounds.get(a)[0], bounds.get(b)[0]));
+
+            pieceNodes[slot] = new PartitionedTreeNode[count];
+            lowerHeights[slot] = new double[count];
+            upperHeights[slot] = new double[count];
+
+            for(int i=0; i<count; i++){
+                pieceNodes[slot][i] = nodes.get(order[i]);
+                lowerHeights[slot][i] = bounds.get(order[i])[0];
+                upperHeights[slot][i] = bounds.get(order[i])[1];
+            }
+
+            int heapSize = 1;
+            while(heapSize < count){
+                heapSize *= 2;
+            }
+            heapSizes[slot] = heapSize;
+
+            double[] heap = new double[2*heapSize];
+            Arrays.fill(heap, Double.NEGATIVE_INFINITY);
+            System.arraycopy(upperHeights[slot], 0, heap, heapSize, count);
+            for(int i=heapSize-1; i>=1; i--){
+                heap[i] = Math.max(heap[2*i], heap[2*i+1]);
+            }
+            maxUpperHeights[slot] = heap;
+        }
+    }
+
+    // Counts (and adds to twigs, if it is not null) the branches that are in the given element at the given height.
+    // Only pieces starting below the height are candidates, and of those the heap skips every run that ends below it,
+    // so the cost is proportional to the size of the answer rather than of the tree
+
+    public int getBundle(double height, int elementNo, List<PartitionedTreeNode> twigs){
+        int slot = elementNo+1;
+
+        if(slot >= lowerHeights.length){
+            return 0;
+        }
+
+        double[] lowers = lowerHeights[slot];
+
+        //the number of pieces that start strictly below the height
+
+        int low = 0;
+        int high = lowers.length;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(lowers[mid] < height){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        if(low == 0){
+            return 0;
+        }
+
+        return collect(slot, 1, 0, heapSizes[slot], low, height, twigs);
+    }
+
+    private int collect(int slot, int heapIndex, int rangeStart, int rangeEnd, int limit, double height,
+                        List<PartitionedTreeNode> twigs){
+        if(rangeStart >= limit || maxUpperHeights[slot][heapIndex] < height){
+            return 0;
+        }
+
+        if(rangeEnd - rangeStart == 1){
+            if(twigs != null){
+                twigs.add(pieceNodes[slot][rangeStart]);
+            }
+            return 1;
+        }
+
+        int rangeMiddle = (rangeStart + rangeEnd) >>> 1;
+
+        return collect(slot, 2*heapIndex, rangeStart, rangeMiddle, limit, height, twigs)
+                + collect(slot, 2*heapIndex+1, rangeMiddle, rangeEnd, limit, height, twigs);
+    }
+
+}
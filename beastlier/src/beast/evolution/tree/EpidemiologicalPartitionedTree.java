@@ -32,6 +32,7 @@ import beastlier.outbreak.Outbreak;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -59,6 +60,8 @@ public class EpidemiologicalPartitionedTree extends PartitionedTree {
     private Double[] infectionHeights;
     private Double[] storedInfectionHeights;
 
+    private GuideTreeSummary guideTreeSummary;
+
     public void initAndValidate(){
 
         outbreak = outbreakInput.get();
@@ -153,6 +156,77 @@ public class EpidemiologicalPartitionedTree extends PartitionedTree {
         }
     }
 
+    //Everything that the phylogenies guided by this tree need to know about it, computed once per state and shared
+    //between them. Synchronized because the phylogenies may ask for it from several threads at once.
+
+    public synchronized GuideTreeSummary getGuideTreeSummary(){
+        if(guideTreeSummary == null || !isCurrent(guideTreeSummary)){
+            guideTreeSummary = summarise();
+        }
+        return guideTreeSummary;
+    }
+
+    private boolean isCurrent(GuideTreeSummary summary){
+        if(summary.partitionVersion != getPartitionVersion() || summary.rootBranchLength != getRootBranchLength()){
+            return false;
+        }
+        if(summary.qValues != null){
+            for(int i=0; i<summary.qValues.length; i++){
+                if(summary.qValues[i] != q.getValue(i)){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private GuideTreeSummary summarise(){
+        int elementCount = elementList.size();
+
+        double[] heights = new double[elementCount];
+        int[] infectorNos = new int[elementCount];
+
+        for(int i=0; i<elementCount; i++){
+            heights[i] = getInfectionHeightByNr(i);
+            infectorNos[i] = getAncestorPartitionElement(i);
+        }
+
+        List<List<Integer>> chains = null;
+
+        //the same chains that getAncestralChain would find, but by following the infectors rather than walking up
+        //from a tip
+
+        if(rules != Rules.UNRESTRICTED){
+            chains = new ArrayList<>();
+            chains.add(Collections.singletonList(-1));
+
+            for(int i=0; i<elementCount; i++){
+                List<Integer> chain = new ArrayList<>();
+                int current = i;
+                while(current != -1){
+                    if(chain.size() > elementCount){
+                        throw new RuntimeException("Infection history contains a cycle");
+                    }
+                    chain.add(current);
+                    current = infectorNos[current];
+                }
+                chain.add(-1);
+                chains.add(Collections.unmodifiableList(chain));
+            }
+        }
+
+        double[] qValues = null;
+        if(rules == Rules.DIDELOT){
+            qValues = new double[q.getDimension()];
+            for(int i=0; i<qValues.length; i++){
+                qValues[i] = q.getValue(i);
+            }
+        }
+
+        return new GuideTreeSummary(getPartitionVersion(), getRootBranchLength(), qValues, heights, infectorNos,
+                chains);
+    }
+
     public double getInfectionTime(ClinicalCase aCase){
 
         if(aCase.wasEverInfected()) {
@@ -171,6 +245,15 @@ public class EpidemiologicalPartitionedTree extends PartitionedTree {
         return q.getValue(index);
     }
 
+    /**
+     * @return the derivative of the infection height of this element with respect to its q, which is the length of
+     * the branch that the infection is on
+     */
+    public double getInfectionHeightQDerivative(int elementNo){
+        PartitionedTreeNode earliestNode = getEarliestNodeInPartition(elementNo);
+        return earliestNode.isRoot() ? getRootBranchLength() : earliestNode.getLength();
+    }
+
     public ClinicalCase getInfector(ClinicalCase aCase){
         if(aCase.wasEverInfected()) {
             String ancestorElement = getAncestorPartitionElement(aCase.getID());
@@ -271,6 +354,36 @@ public class EpidemiologicalPartitionedTree extends PartitionedTree {
 //        }
 //    }
 
+    //The elements whose infection time or infector may have changed since the state was last stored: those with a
+    //partition-dirty node or a changed q, and the root element if the root branch length has changed. Unlike
+    //identifyChangedTreelets this changes nothing.
+
+    public boolean[] getDirtyElements(){
+        boolean[] out = new boolean[getNElements()];
+
+        for (Node node : getNodesAsArray()) {
+            PartitionedTreeNode castNode = (PartitionedTreeNode) node;
+            if (castNode.isPartitionDirty() && castNode.getPartitionElementNumber() != -1) {
+                out[castNode.getPartitionElementNumber()] = true;
+            }
+        }
+
+        if (rules == Rules.DIDELOT) {
+            for (int i = 0; i < q.getDimension(); i++) {
+                if (q.isDirty(i)) {
+                    out[i] = true;
+                }
+            }
+        }
+
+        int rootElementNo = ((PartitionedTreeNode) getRoot()).getPartitionElementNumber();
+        if (rootElementNo != -1 && rootBranchLength.isDirty(0)) {
+            out[rootElementNo] = true;
+        }
+
+        return out;
+    }
+
     public boolean[] identifyChangedTreelets(){
         boolean[] out = new boolean[getNElements()];
 
@@ -0,0 +1,82 @@
+/*
+* File GuideTreeSummary.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree;
+
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The transmission structure of an EpidemiologicalPartitionedTree in a single state: infection heights, infectors and
+ * ancestral chains for every element. Built by the tree itself and shared between all the locus phylogenies that it
+ * guides, so nothing here may be modified.
+ */
+
+public class GuideTreeSummary {
+
+    //the state of the tree that this describes
+    final long partitionVersion;
+    final double rootBranchLength;
+    final double[] qValues;
+
+    private final double[] infectionHeights;
+    private final int[] infectors;
+    private final List<List<Integer>> ancestralChains;
+
+    GuideTreeSummary(long partitionVersion, double rootBranchLength, double[] qValues, double[] infectionHeights,
+                     int[] infectors, List<List<Integer>> ancestralChains){
+        this.partitionVersion = partitionVersion;
+        this.rootBranchLength = rootBranchLength;
+        this.qValues = qValues;
+        this.infectionHeights = infectionHeights;
+        this.infectors = infectors;
+        this.ancestralChains = ancestralChains;
+    }
+
+    public double getInfectionHeightByNr(int elementNo){
+        if(elementNo == -1){
+            return Double.POSITIVE_INFINITY;
+        } else {
+            return infectionHeights[elementNo];
+        }
+    }
+
+    public int getAncestorPartitionElement(int elementNo){
+        if(elementNo == -1){
+            return -1;
+        } else {
+            return infectors[elementNo];
+        }
+    }
+
+    //lists the ancestors of an element, from itself to the root; the list is unmodifiable
+
+    public List<Integer> getAncestralChain(int elementNo){
+        if(ancestralChains == null){
+            throw new RuntimeException("The ancestral chain in this tree may not be consistent.");
+        }
+
+        return ancestralChains.get(elementNo+1);
+    }
+
+}
@@ -23,6 +23,7 @@
 package beast.evolution.tree;
 
 import beast.core.Input;
+import beast.core.StateNode;
 import beast.util.ExtraTreeUtils;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
@@ -48,6 +49,10 @@ public class GuidedPartitionedTree extends PartitionedTree {
     //what must be added to the height in this tree to get the height in the guide tree
     private double heightAdjustment;
 
+    //both of these describe the partitions as of the last call to updatePartitions(), and are rebuilt on demand
+    private ElementBranchIndex branchIndex;
+    private BitSet[] ancestralChainSets;
+
     public void initAndValidate(){
         super.initAndValidate();
 
@@ -133,13 +138,12 @@ public class GuidedPartitionedTree extends PartitionedTree {
 
     public boolean updatePartitions(){
 
-        // tips imply that the host was infected at that time
+        clearPartitionCaches();
 
-        for(Node tip : getExternalNodes()){
-            PartitionedTreeNode castTip = (PartitionedTreeNode)tip;
-            if(tip.getHeight() > tt.getInfectionHeightByNr(castTip.getPartitionElementNumber()) ){
-                return false;
-            }
+        GuideTreeSummary guide = tt.getGuideTreeSummary();
+
+        if(!checkTips(null)){
+            return false;
         }
 
         //this is going to be slow if done like this, but it will catch problems.
@@ -172,7 +176,7 @@ public class GuidedPartitionedTree extends PartitionedTree {
             int elementNo = castNode.getPartitionElementNumber();
 
             if(elementNo!=-1) {
-                List<Integer> ancestralChain = tt.getAncestralChain(elementNo);
+                List<Integer> ancestralChain = guide.getAncestralChain(elementNo);
 
                 List<Double> transitionHeights = new ArrayList<>();
                 List<Integer> infectorsAlongBranch = new ArrayList<>();
@@ -188,7 +192,7 @@ public class GuidedPartitionedTree extends PartitionedTree {
                         // going up the branch from the bottom, the arrays list the heights of the next transition (or
                         // the parent height) and the element number in the interval ending in that height
 
-                        currentHeight = tt.getInfectionHeightByNr(ancestralChain.get(currentPositionInChain));
+                        currentHeight = guide.getInfectionHeightByNr(ancestralChain.get(currentPositionInChain));
                         if (currentHeight < parentHeight) {
                             transitionHeights.add(currentHeight);
                             infectorsAlongBranch.add(ancestralChain.get(currentPositionInChain));
@@ -202,7 +206,7 @@ public class GuidedPartitionedTree extends PartitionedTree {
                     //the root branch stretches to infinity
                     for (int no : ancestralChain) {
                         infectorsAlongBranch.add(no);
-                        transitionHeights.add(tt.getInfectionHeightByNr(no));
+                        transitionHeights.add(guide.getInfectionHeightByNr(no));
                     }
                 }
                 int[] branchElements = Ints.toArray(infectorsAlongBranch);
@@ -229,15 +233,77 @@ public class GuidedPartitionedTree extends PartitionedTree {
     }
 
 
+    // tips imply that the host was infected at that time. This is the first thing that updatePartitions checks and
+    // much the cheapest, so it can also be done on its own, for the given elements only (or all of them if null),
+    // before anything else is calculated.
+
+    public boolean checkTips(boolean[] elements){
+        GuideTreeSummary guide = tt.getGuideTreeSummary();
+
+        for(Node tip : getExternalNodes()){
+            PartitionedTreeNode castTip = (PartitionedTreeNode)tip;
+            int elementNo = castTip.getPartitionElementNumber();
+            if(elements != null && (elementNo == -1 || !elements[elementNo])){
+                continue;
+            }
+            if(tip.getHeight() > guide.getInfectionHeightByNr(elementNo) ){
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean somethingIsDirty(){
         return super.somethingIsDirty() || tt.somethingIsDirty();
     }
 
+    @Override
+    public void restore(){
+        super.restore();
+        //the node objects have been swapped out
+        clearPartitionCaches();
+    }
+
+    @Override
+    public void assignFromFragile(StateNode other){
+        super.assignFromFragile(other);
+        //the node objects stay where they are but not in the same places
+        clearPartitionCaches();
+    }
+
+    private void clearPartitionCaches(){
+        branchIndex = null;
+        ancestralChainSets = null;
+    }
+
+    //The ancestral chain of an element as a set; element e is bit e+1 so that the unsampled element has a place
+
+    private BitSet getAncestralChainSet(int elementNo){
+        if(ancestralChainSets == null){
+            ancestralChainSets = new BitSet[getNElements()+1];
+        }
+        BitSet out = ancestralChainSets[elementNo+1];
+        if(out == null){
+            out = new BitSet(getNElements()+1);
+            for(int ancestor : tt.getGuideTreeSummary().getAncestralChain(elementNo)){
+                out.set(ancestor+1);
+            }
+            ancestralChainSets[elementNo+1] = out;
+        }
+        return out;
+    }
+
+    //the subtree taking place in the transmission chain from here upwards to the root, without copying anything
+
+    public AncestralCorridor getAncestralCorridor(int elementNo){
+        return new AncestralCorridor(this, elementNo, getAncestralChainSet(elementNo));
+    }
+
     //extracts the subtree taking place in the transmission tree from here upwards to the root. Probably
-    //extremely slow.
+    //extremely slow; getAncestralCorridor gives the same tree without the copying.
 
     public PartitionedTree extractAncestralCorridor(int elementNo, HashMap<Node, Node> references){
-        List<Integer> ancestralChain = tt.getAncestralChain(elementNo);
+        List<Integer> ancestralChain = tt.getGuideTreeSummary().getAncestralChain(elementNo);
         PartitionedTreeNode root = (PartitionedTreeNode)getRoot();
 
         PartitionedTreeNode copyRoot = copyDown(root, references, ancestralChain);
@@ -432,12 +498,22 @@ public class GuidedPartitionedTree extends PartitionedTree {
 
 
     // The bundle is the set of branches that are in the given element at the given height (even if neither node is
-    // in it); more efficient to borrow the intersectingEdges trick from operators, which also helps if some subtrees
-    // are temporarily disconnected mid-proposal
+    // in it). From the root this is a lookup in the branch index; from anywhere else borrow the intersectingEdges
+    // trick from operators, which also helps if some subtrees are temporarily disconnected mid-proposal
 
     public int getBundle(PartitionedTreeNode node, double height, int elementNo, List<PartitionedTreeNode> twigs){
+        if(node == getRoot()){
+            if(branchIndex == null){
+                branchIndex = new ElementBranchIndex(node, getNElements());
+            }
+            return branchIndex.getBundle(height, elementNo, twigs);
+        }
+
+        return getBundle(node, height, elementNo, getAncestralChainSet(elementNo), twigs);
+    }
 
-        List<Integer> ancestralChain = tt.getAncestralChain(elementNo);
+    private int getBundle(PartitionedTreeNode node, double height, int elementNo, BitSet ancestralChain,
+                          List<PartitionedTreeNode> twigs){
 
         final PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
 
@@ -447,42 +523,39 @@ public class GuidedPartitionedTree extends PartitionedTree {
         //chain. There's no way a lineage can re-enter the required element subsequently.
 
         if((parent != null && parent.getHeight() < height) ||
-                (node.getHeight() > height && !(ancestralChain.contains(node.getPartitionElementNumber())))){
+                (node.getHeight() > height && !ancestralChain.get(node.getPartitionElementNumber()+1))){
             return 0;
         }
 
-        if(parent!=null && !(ancestralChain.contains(parent.getPartitionElementNumber()))){
+        if(parent!=null && !ancestralChain.get(parent.getPartitionElementNumber()+1)){
             throw new RuntimeException("The bundle function is not working");
         }
 
         if (node.getHeight() < height) {
-            if(parent == null || ancestralChain.contains(parent.getPartitionElementNumber())){
-                int[] branchElements = (int[])node.getMetaData(elementBranchString);
-                double[] transitionHeights = (double[])node.getMetaData(heightBranchString);
-
-                double currentHeight = node.getHeight();
-                int currentIndex = -1;
-                int currentElement = node.getPartitionElementNumber();
-
-                while(currentHeight < height){
-                    currentIndex ++;
-                    currentHeight = transitionHeights[currentIndex];
-                    currentElement = branchElements[currentIndex];
-                }
+            int[] branchElements = (int[])node.getMetaData(elementBranchString);
+            double[] transitionHeights = (double[])node.getMetaData(heightBranchString);
 
-                if(currentElement == elementNo){
-                    if(twigs != null) {
-                        twigs.add(node);
-                    }
-                    return 1;
-                }
+            double currentHeight = node.getHeight();
+            int currentIndex = -1;
+            int currentElement = node.getPartitionElementNumber();
+
+            while(currentHeight < height){
+                currentIndex ++;
+                currentHeight = transitionHeights[currentIndex];
+                currentElement = branchElements[currentIndex];
+            }
 
+            if(currentElement == elementNo){
+                if(twigs != null) {
+                    twigs.add(node);
+                }
+                return 1;
             }
         }
 
         int count = 0;
         for (int i = 0; i < node.getChildCount(); i++) {
-            count += getBundle((PartitionedTreeNode)node.getChild(i), height, elementNo, twigs);
+            count += getBundle((PartitionedTreeNode)node.getChild(i), height, elementNo, ancestralChain, twigs);
         }
         return count;
     }
@@ -502,43 +575,31 @@ public class GuidedPartitionedTree extends PartitionedTree {
         getBundle((PartitionedTreeNode)getRoot(), height, elementNo, laterNodes);
 
         //but this isn't quite it; if any two nodes in that set coalesce with each other before they coalesce
-        //which nodes from elsewhere in the tree, then the hook extends from their ancestor, not them.
+        //which nodes from elsewhere in the tree, then the hook extends from their ancestor, not them. Whenever both
+        //children of a node are in the set, replace them with it, and check that node in turn.
 
-        //dear God is this method inefficient right now
+        LinkedHashSet<PartitionedTreeNode> hookEnds = new LinkedHashSet<>(laterNodes);
+        Deque<PartitionedTreeNode> toCheck = new ArrayDeque<>(laterNodes);
 
-        boolean satisfied = false;
+        while(!toCheck.isEmpty()){
+            PartitionedTreeNode node = toCheck.pop();
+            PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
 
-        while(!satisfied){
-            Set<PartitionedTreeNode> parents = new HashSet<>();
-            boolean rootIsIn = false;
-            for(PartitionedTreeNode child : laterNodes){
-                if(child.getParent() != null){
-                    parents.add((PartitionedTreeNode)child.getParent());
-                } else {
-                    rootIsIn = true;
-                }
+            if(parent == null || !hookEnds.contains(node)){
+                continue;
             }
-            //if all the parents are distinct then you can stop.
-            if((rootIsIn && parents.size() == laterNodes.size()-1)
-                    || (!(rootIsIn) && parents.size() == laterNodes.size())){
-                satisfied = true;
-            } else {
-                outer_loop:
-                for(PartitionedTreeNode node1 : laterNodes){
-                    for(PartitionedTreeNode node2 : laterNodes){
-                        if(node1!=node2){
-                            if(node1.getParent() == node2.getParent()){
-                                laterNodes.remove(node1);
-                                laterNodes.remove(node2);
-                                laterNodes.add((PartitionedTreeNode)node1.getParent());
-                                break outer_loop;
-                            }
-                        }
-                    }
-                }
+
+            PartitionedTreeNode sibling = (PartitionedTreeNode)sibling(node);
+
+            if(sibling != null && hookEnds.contains(sibling)){
+                hookEnds.remove(node);
+                hookEnds.remove(sibling);
+                hookEnds.add(parent);
+                toCheck.push(parent);
             }
         }
-        return laterNodes;
+
+        return new ArrayList<>(hookEnds);
     }
 
     public Tree getFlattenedTree() {
@@ -31,6 +31,7 @@ import beast.core.StateNodeInitialiser;
 import beast.core.parameter.RealParameter;
 import beast.util.TreeParser;
 import beastlier.outbreak.ClinicalCase;
+import beastlier.util.Profiler;
 import com.google.common.collect.Lists;
 
 import java.io.PrintStream;
@@ -98,6 +99,17 @@ public class PartitionedTree extends Tree {
     private Integer[] infectors;
     private Integer[] storedInfectors;
 
+    //goes up every time a node is made partition-dirty, so anything derived from the partition can tell whether it is
+    //still current without checking every node
+    private long partitionVersion = 0;
+
+    //the branches by height, for the operators that look for the branches spanning a height; made when first asked
+    //for, and told by the nodes about every change of parent, place or height. Nothing is reported while the nodes
+    //are copied into the stored ones.
+    private BranchIntervalIndex branchIntervals;
+    private boolean copyingNodes = false;
+    private final SpanningBranches spanningBranches = new SpanningBranches();
+
     //saves time - tip numbers for each element.
     private ArrayList<ArrayList<Integer>> tipsPerElement = new ArrayList<>();
 
@@ -416,6 +428,7 @@ public class PartitionedTree extends Tree {
     @Override
     protected final void initArrays() {
         // initialise tree-as-array representation + its stored variant
+        branchIntervals = null;
         m_nodes = new PartitionedTreeNode[nodeCount];
         listNodes((PartitionedTreeNode)root, (PartitionedTreeNode[])m_nodes);
         m_storedNodes = new PartitionedTreeNode[nodeCount];
@@ -479,6 +492,7 @@ public class PartitionedTree extends Tree {
         internalNodeCount = pTree.internalNodeCount;
         leafNodeCount = pTree.leafNodeCount;
         initArrays();
+        partitionsChanged();
     }
 
     /**
@@ -513,6 +527,11 @@ public class PartitionedTree extends Tree {
             root.setRight(null);
         }
         assignFromFragileHelper(iRoot + 1, nodeCount, otherNodes);
+        //heights are copied without marking anything, so none of the per-element caches can be trusted
+        setEverythingDirty(true);
+        if(branchIntervals != null){
+            branchIntervals.invalidate();
+        }
     }
 
     /**
@@ -610,6 +629,14 @@ public class PartitionedTree extends Tree {
     /////////////////////////////////////////////////
     @Override
     protected void store() {
+        long start = Profiler.start();
+        //copying into the stored nodes makes them partition-dirty, but nothing has actually changed
+        long version = partitionVersion;
+        copyingNodes = true;
+        if(branchIntervals != null){
+            branchIntervals.store();
+        }
+
         if(rules == DIDELOT) {
             allTreeletsRequireExtraction(false);
 //            storedElementsAsTrees = new HashMap<>(elementsAsTrees);
@@ -639,17 +666,29 @@ public class PartitionedTree extends Tree {
         mtStoredRoot.partitionElementNumber = ((PartitionedTreeNode)m_nodes[iRoot]).partitionElementNumber;
 
         storeNodes(iRoot+1, nodeCount);
+
+        copyingNodes = false;
+        partitionVersion = version;
+        Profiler.stop(Profiler.Section.TREE_STORE, start);
     }
 
     @Override
     public void restore(){
+        long start = Profiler.start();
         if(rules == DIDELOT) {
             allTreeletsRequireExtraction(false);
 //            elementsAsTrees = storedElementsAsTrees;
         }
         elementEarliestNodes = storedElementEarliestNodes;
         infectors = storedInfectors;
+        copyingNodes = true;
         super.restore();
+        copyingNodes = false;
+        if(branchIntervals != null){
+            branchIntervals.restore();
+        }
+        partitionsChanged();
+        Profiler.stop(Profiler.Section.TREE_RESTORE, start);
     }
 
     /**
@@ -1233,6 +1272,128 @@ public class PartitionedTree extends Tree {
         if(rules == DIDELOT) {
             allTreeletsRequireExtraction(isDirty);
         }
+        if(isDirty) {
+            partitionsChanged();
+        }
+    }
+
+    void partitionsChanged(){
+        partitionVersion++;
+    }
+
+    void branchChanged(int nodeNr){
+        if(branchIntervals != null && !copyingNodes){
+            branchIntervals.changed(nodeNr);
+        }
+    }
+
+    // Tree.setRoot keeps the root last in the node array by swapping numbers with the node that was there, which
+    // neither node reports; to the branch index both numbers, and their children, have moved
+
+    @Override
+    public void setRoot(final Node root){
+        int oldNr = root.getNr();
+        super.setRoot(root);
+        if(root.getNr() != oldNr && m_nodes != null){
+            for(int nr : new int[]{oldNr, root.getNr()}){
+                branchChanged(nr);
+                for(Node child : m_nodes[nr].getChildren()){
+                    branchChanged(child.getNr());
+                }
+            }
+        }
+    }
+
+    private final BranchIntervalIndex.Shape branchShape = new BranchIntervalIndex.Shape() {
+        @Override
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        @Override
+        public int getRootNr() {
+            return root.getNr();
+        }
+
+        @Override
+        public int getParentNr(int nr) {
+            Node parent = m_nodes[nr].getParent();
+            return parent == null ? -1 : parent.getNr();
+        }
+
+        @Override
+        public int getChildCount(int nr) {
+            return m_nodes[nr].getChildCount();
+        }
+
+        @Override
+        public int getChildNr(int nr, int index) {
+            return m_nodes[nr].getChild(index).getNr();
+        }
+
+        @Override
+        public double getHeight(int nr) {
+            return m_nodes[nr].getHeight();
+        }
+    };
+
+    /**
+     * The branches in the subtree rooted at node, including node's own, whose bottom is below the height and whose
+     * top is at or above it, in the order that a recursive walk taking the children in order would find them. If
+     * branches is null they are only counted.
+     *
+     * @return the number of branches found
+     */
+    public int findSpanningBranches(Node node, double height, List<? super PartitionedTreeNode> branches){
+        int found = findInBranchIntervals(node, height);
+        if(found == -1){
+            return spanningBranches.find((PartitionedTreeNode)node, height, branches);
+        }
+        for(int i=0; branches != null && i<found; i++){
+            branches.add((PartitionedTreeNode)m_nodes[branchIntervals.getFound(i)]);
+        }
+        return found;
+    }
+
+    /**
+     * As above, but only branches whose top is in the given element, and only through nodes whose parent is in it.
+     * The nodes in an element are connected, so if node's parent is in it these are the branches above whose tops
+     * are in it.
+     */
+    public int findSpanningBranches(Node node, double height, int elementNo,
+                                    List<? super PartitionedTreeNode> branches){
+        int found = findInBranchIntervals(node, height);
+        if(found == -1){
+            return spanningBranches.find((PartitionedTreeNode)node, height, elementNo, branches);
+        }
+        PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
+        if(parent == null || parent.getPartitionElementNumber() != elementNo){
+            return 0;
+        }
+        int count = 0;
+        for(int i=0; i<found; i++){
+            PartitionedTreeNode branch = (PartitionedTreeNode)m_nodes[branchIntervals.getFound(i)];
+            if(((PartitionedTreeNode)branch.getParent()).getPartitionElementNumber() == elementNo){
+                if(branches != null){
+                    branches.add(branch);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //-1 if part of the tree is detached mid-proposal, in which case the walk is the only way
+
+    private int findInBranchIntervals(Node node, double height){
+        if(branchIntervals == null){
+            branchIntervals = new BranchIntervalIndex(branchShape);
+        }
+        return branchIntervals.find(node.getNr(), height);
+    }
+
+    public long getPartitionVersion(){
+        return partitionVersion;
     }
 
     public List<Node> ancestorsAtHeight(List<PartitionedTreeNode> nodes, double height){
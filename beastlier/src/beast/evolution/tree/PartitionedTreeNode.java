@@ -65,6 +65,9 @@ public class PartitionedTreeNode extends Node {
      */
     public void setPartitionElementNumber(int partitionElementNumber) {
         this.partitionElementNumber = partitionElementNumber;
+        if(m_tree instanceof PartitionedTree){
+            ((PartitionedTree)m_tree).partitionsChanged();
+        }
     }
 
     /**
@@ -161,6 +164,7 @@ public class PartitionedTreeNode extends Node {
 
     void setParent(final Node parent, final boolean inOperator) {
         super.setParent(parent, inOperator);
+        branchChanged();
         setPartitionDirty(true);
         if(parent!=null) {
             ((PartitionedTreeNode) parent).setPartitionDirty(true);
@@ -169,6 +173,7 @@ public class PartitionedTreeNode extends Node {
 
     public void setChild(final int childIndex, final Node node) {
         super.setChild(childIndex, node);
+        ((PartitionedTreeNode)node).branchChanged();
         setPartitionDirty(true);
         ((PartitionedTreeNode)node).setPartitionDirty(true);
     }
@@ -176,6 +181,7 @@ public class PartitionedTreeNode extends Node {
 
     public void setLeft(final Node m_left) {
         super.setLeft(m_left);
+        ((PartitionedTreeNode)m_left).branchChanged();
         setPartitionDirty(true);
         ((PartitionedTreeNode)m_left).setPartitionDirty(true);
     }
@@ -183,12 +189,14 @@ public class PartitionedTreeNode extends Node {
 
     public void setRight(final Node m_right) {
         super.setRight(m_right);
+        ((PartitionedTreeNode)m_right).branchChanged();
         setPartitionDirty(true);
         ((PartitionedTreeNode)m_right).setPartitionDirty(true);
     }
 
     public void setHeight(final double height) {
         super.setHeight(height);
+        branchChanged();
         setPartitionDirty(true);
         PartitionedTreeNode parent = (PartitionedTreeNode)getParent();
         if(parent != null){
@@ -210,11 +218,23 @@ public class PartitionedTreeNode extends Node {
             ((PartitionedTreeNode) getParent()).setPartitionDirty(true);
         }
         setPartitionDirty(true);
+        branchChanged();
         super.scale(scale);
     }
 
+    //tells the tree's branch interval index that this node has a new parent, place or height
+
+    private void branchChanged(){
+        if(m_tree instanceof PartitionedTree){
+            ((PartitionedTree)m_tree).branchChanged(getNr());
+        }
+    }
+
     public void setPartitionDirty(boolean value){
         partitionDirty = value;
+        if(value && m_tree instanceof PartitionedTree){
+            ((PartitionedTree)m_tree).partitionsChanged();
+        }
     }
 
     public boolean isPartitionDirty() {
@@ -0,0 +1,124 @@
+/*
+* File SpanningBranches.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Finds the branches in a subtree that span a given height by walking down from its top. The walk only goes below
+ * nodes that are themselves above the height. It visits the k branches it finds and every node in the subtree above
+ * the height, so it is O(k + m), where m is the number of those nodes. m is not bounded by k: a clade of tips older
+ * than the height has to be walked through even though nothing in it spans the height.
+ *
+ * For a PartitionedTree, findSpanningBranches asks a BranchIntervalIndex instead, which doesn't pay for m, and only
+ * falls back on this walk when part of the tree is detached mid-proposal. An ancestral corridor is made afresh for
+ * each proposal, so there is no state to index, and GuidedSubtreeLeapA walks it with this. One instance keeps one
+ * stack between calls, so an operator that holds its own instance does not allocate a new stack for every query.
+ *
+ * Branches are added in the order that a recursive walk taking the children in order would find them, so that a
+ * uniform choice from the list picks the same branch as the walks that these replace did.
+ */
+
+public class SpanningBranches {
+
+    private static final int ANY_ELEMENT = Integer.MIN_VALUE;
+
+    private final List<Node> stack = new ArrayList<>();
+
+    /**
+     * The branches in the subtree rooted at node, including node's own, whose bottom is below the height and whose top
+     * is at or above it. If branches is null they are only counted.
+     *
+     * @return the number of branches found
+     */
+    public <T extends Node> int find(T node, double height, List<? super T> branches){
+        return find(node, height, ANY_ELEMENT, branches);
+    }
+
+    /**
+     * As above, but only branches whose top is in the given element, and only through nodes whose parent is in it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Node> int find(T node, double height, int elementNo, List<? super T> branches){
+        int count = 0;
+        stack.clear();
+        stack.add(node);
+        while(!stack.isEmpty()){
+            Node current = stack.remove(stack.size()-1);
+            Node parent = current.getParent();
+
+            if(parent != null && parent.getHeight() < height){
+                continue;
+            }
+            if(elementNo != ANY_ELEMENT &&
+                    (parent == null || ((PartitionedTreeNode)parent).getPartitionElementNumber() != elementNo)){
+                continue;
+            }
+            if(current.getHeight() < height){
+                if(branches != null){
+                    branches.add((T)current);
+                }
+                count++;
+                continue;
+            }
+            for(int i=current.getChildCount()-1; i>=0; i--){
+                stack.add(current.getChild(i));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * As the first, but in an ancestral corridor, where a virtual tip spans everything between its parent and the
+     * height of the transmission that ends it.
+     */
+    public int find(AncestralCorridor corridor, PartitionedTreeNode node, double height,
+                    List<PartitionedTreeNode> branches){
+        int count = 0;
+        stack.clear();
+        stack.add(node);
+        while(!stack.isEmpty()){
+            PartitionedTreeNode current = (PartitionedTreeNode)stack.remove(stack.size()-1);
+            Node parent = current.getParent();
+
+            if(parent != null && parent.getHeight() < height){
+                continue;
+            }
+            if(corridor.getHeight(current) < height){
+                if(branches != null){
+                    branches.add(current);
+                }
+                count++;
+                continue;
+            }
+            for(int i=corridor.getChildCount(current)-1; i>=0; i--){
+                stack.add(corridor.getChild(current, i));
+            }
+        }
+        return count;
+    }
+
+}
@@ -27,10 +27,12 @@ import beast.core.Input;
 import beast.evolution.tree.*;
 import beast.util.HeapSort;
 import beastlier.util.PartitionedTreeLogger;
+import beastlier.util.Profiler;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -84,6 +86,13 @@ public class ForestIntervals extends CalculationNode {
         private int storedSampleCount;
         private double totalLength;
 
+        //the elements that this one infected, and the boundary between intervals at which each of their lineages
+        //joins this treelet, counting the start of the first interval as boundary 0
+        private int[] infectedElements = new int[0];
+        private int[] infectionBoundaries = new int[0];
+        private int[] storedInfectedElements = new int[0];
+        private int[] storedInfectionBoundaries = new int[0];
+
         private PartitionIntervals(PartitionedTree tree, int elementNo){
             this.elementNo = elementNo;
             this.tree = tree;
@@ -106,14 +115,44 @@ public class ForestIntervals extends CalculationNode {
             return totalLength;
         }
 
+        public int getInfectedElementCount(){
+            if(!intervalsKnown){
+                calculateIntervals();
+            }
+            return infectedElements.length;
+        }
+
+        public int getInfectedElement(int index){
+            if(!intervalsKnown){
+                calculateIntervals();
+            }
+            return infectedElements[index];
+        }
+
+        public int getInfectionBoundary(int index){
+            if(!intervalsKnown){
+                calculateIntervals();
+            }
+            return infectionBoundaries[index];
+        }
+
         public void store(){
             super.store();
             storedSampleCount = sampleCount;
+            storedInfectedElements = infectedElements.clone();
+            storedInfectionBoundaries = infectionBoundaries.clone();
         }
 
         public void restore(){
             super.restore();
             sampleCount = storedSampleCount;
+
+            int[] temp = infectedElements;
+            infectedElements = storedInfectedElements;
+            storedInfectedElements = temp;
+            temp = infectionBoundaries;
+            infectionBoundaries = storedInfectionBoundaries;
+            storedInfectionBoundaries = temp;
         }
 
         /**
@@ -121,6 +160,7 @@ public class ForestIntervals extends CalculationNode {
          */
         @SuppressWarnings("unchecked")
         protected void calculateIntervals() {
+            long profileStart = Profiler.start();
 
             int nodeCount = tree.countNodesInPartition(elementNo, false, true);
 
@@ -128,8 +168,22 @@ public class ForestIntervals extends CalculationNode {
 
             double[] times = new double[nodeCount + 1];
             int[] childCounts = new int[nodeCount + 1];
+            int[] infected = new int[nodeCount + 1];
+
+            ForestIntervals.collectTimes(tree, times, childCounts, infected, elementNo);
 
-            ForestIntervals.collectTimes(tree, times, childCounts, elementNo);
+            int infectionCount = 0;
+            for(int element : infected){
+                if(element != -1){
+                    infectionCount++;
+                }
+            }
+            if(infectedElements.length != infectionCount){
+                infectedElements = new int[infectionCount];
+                infectionBoundaries = new int[infectionCount];
+            }
+            int infectionsFound = 0;
+            int infectionsPlaced = 0;
 
             int[] indices = new int[nodeCount + 1];
 
@@ -164,6 +218,10 @@ public class ForestIntervals extends CalculationNode {
                     nodeNo += 1;
                     if (childCount == 0) {
                         lineagesAdded += 1;
+                        if (infected[childIndex] != -1) {
+                            infectedElements[infectionsFound] = infected[childIndex];
+                            infectionsFound++;
+                        }
                     } else {
                         lineagesRemoved += (childCount - 1);
 
@@ -189,6 +247,11 @@ public class ForestIntervals extends CalculationNode {
                     start = finish;
                 }
 
+                // the lineages that have just been added start at the boundary that is now at the end
+                for(; infectionsPlaced < infectionsFound; infectionsPlaced++){
+                    infectionBoundaries[infectionsPlaced] = intervalCount;
+                }
+
                 // add sample event
                 numLines += lineagesAdded;
 
@@ -218,13 +281,21 @@ public class ForestIntervals extends CalculationNode {
             }
 
             intervalsKnown = true;
+            Profiler.stop(Profiler.Section.INTERVALS, profileStart);
         }
 
 
 
     }
 
-    protected static void collectTimes(PartitionedTree tree, double[] times, int[] childCounts, int elementNo) {
+    // Fills times and childCounts with the heights and child counts of everything in the treelet of the element, and
+    // infected with the element whose infection each entry is, or -1 if it is a node or the element's own infection.
+    // Infections along the branches of a GuidedPartitionedTree are not identified.
+
+    protected static void collectTimes(PartitionedTree tree, double[] times, int[] childCounts, int[] infected,
+                                       int elementNo) {
+        Arrays.fill(infected, -1);
+
         if(tree instanceof EpidemiologicalPartitionedTree && tree.rules == PartitionedTree.Rules.DIDELOT){
             int counter = 0;
 
@@ -242,6 +313,7 @@ public class ForestIntervals extends CalculationNode {
                                         .getInfectionHeightByNr(((PartitionedTreeNode) node)
                                                 .getPartitionElementNumber());
                         childCounts[counter] = 0;
+                        infected[counter] = castNode.getPartitionElementNumber();
                         counter++;
                     }
                 }
@@ -285,7 +357,8 @@ public class ForestIntervals extends CalculationNode {
             }
 
             times[counter] =  ((GuidedPartitionedTree) tree)
-                    .thisTreeHeight(((GuidedPartitionedTree)tree).getGuideTree().getInfectionHeightByNr(elementNo));
+                    .thisTreeHeight(((GuidedPartitionedTree)tree).getGuideTree().getGuideTreeSummary()
+                            .getInfectionHeightByNr(elementNo));
             childCounts[counter] = 1;
 
         } else {
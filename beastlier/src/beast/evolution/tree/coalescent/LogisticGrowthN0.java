@@ -50,6 +50,14 @@ public class LogisticGrowthN0 extends PopulationFunction.Abstract {
     final public Input<RealParameter> popSizeParameterInput = new Input<>("popSize",
             "present-day population size (defaults to 1.0). ");
 
+    // everything that depends only on the parameters, worked out once per state
+    private boolean constantsKnown = false;
+    private double N0;
+    private double r;
+    private double T50;
+    private double exp_rT50;
+    private double intensityDenominator;
+
     @Override
     public void initAndValidate() {
         if (popSizeParameterInput.get() != null) {
@@ -88,11 +96,9 @@ public class LogisticGrowthN0 extends PopulationFunction.Abstract {
      * @return the value of the demographic function N(t) at time t.
      */
     public double getPopSize(double t) {
-        double N0 = getN0();
-        double r = getGrowthRate();
-        double T50 = getT50();
+        prepareConstants();
 
-		return N0 * (1 + Math.exp(-r * T50)) / (1 + Math.exp(-r * (T50-t)));
+		return N0 * (1 + exp_rT50) / (1 + Math.exp(-r * (T50-t)));
     }
 
     public double getLogDemographic(double t) {
@@ -104,12 +110,9 @@ public class LogisticGrowthN0 extends PopulationFunction.Abstract {
      * (= integral 1/N(x) dx from 0 to t).
      */
     public double getIntensity(double t) {
-        double N0 = getN0();
-        double r = getGrowthRate();
-        double T50 = getT50();
-		double exp_rT50 = Math.exp(-r*T50);
+        prepareConstants();
 
-		return (t + exp_rT50 * (Math.exp(r * t) - 1)/r) / (N0 * (1 + exp_rT50));
+		return (t + exp_rT50 * (Math.exp(r * t) - 1)/r) / intensityDenominator;
     }
 
     /**
@@ -127,12 +130,12 @@ public class LogisticGrowthN0 extends PopulationFunction.Abstract {
      * and use this instead
      */
     public double getInverseIntensity(double x) {
+        prepareConstants();
 
-        double q = -getGrowthRate();
-        double T50 = getT50();
-        double N0 = getN0();
-        double a = (q/Math.exp(q*T50));
-        double k = N0*(1+Math.exp(q*T50))*x - (1/q)*Math.exp(q*T50);
+        // exp(q*T50) is exp_rT50
+        double q = -r;
+        double a = q/exp_rT50;
+        double k = intensityDenominator*x - (1/q)*exp_rT50;
 
         double lambertInput = q*Math.exp(-q*k)/a;
 
@@ -153,6 +156,68 @@ public class LogisticGrowthN0 extends PopulationFunction.Abstract {
 
     }
 
+    /**
+     * getInverseIntensity for the first n values of x at once, written into out (which can be x itself). The Lambert W
+     * values are found in one batch.
+     */
+    public void getInverseIntensities(double[] x, double[] out, int n) {
+        prepareConstants();
+
+        double q = -r;
+        double a = q/exp_rT50;
+
+        double[] ks = new double[n];
+        double[] lambertValues = new double[n];
+
+        for(int i=0; i<n; i++){
+            ks[i] = intensityDenominator*x[i] - (1/q)*exp_rT50;
+            lambertValues[i] = q*Math.exp(-q*ks[i])/a;
+        }
+
+        LambertW.branch0(lambertValues, lambertValues, n);
+
+        for(int i=0; i<n; i++){
+            double lambertResult = lambertValues[i];
+
+            if(lambertResult == Double.POSITIVE_INFINITY){
+                //the input rounded to infinity; use the asymptote as getInverseIntensity does
+                double logInput = q*T50-q*ks[i];
+                lambertResult = logInput - Math.log(logInput);
+            }
+
+            out[i] = ks[i] + (1/q)*lambertResult;
+        }
+    }
+
+    public double[] getInverseIntensities(double[] x) {
+        double[] out = new double[x.length];
+        getInverseIntensities(x, out, x.length);
+        return out;
+    }
+
+    private void prepareConstants() {
+        if(!constantsKnown) {
+            N0 = getN0();
+            r = getGrowthRate();
+            T50 = getT50();
+            exp_rT50 = Math.exp(-r*T50);
+            intensityDenominator = N0 * (1 + exp_rT50);
+            constantsKnown = true;
+        }
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        constantsKnown = false;
+        return super.requiresRecalculation();
+    }
+
+    @Override
+    protected void restore() {
+        constantsKnown = false;
+        super.restore();
+    }
+
     public double getIntegral(double start, double finish) {
 		return getIntensity(finish) - getIntensity(start);
     }
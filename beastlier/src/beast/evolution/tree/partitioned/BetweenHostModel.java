@@ -24,10 +24,13 @@ package beast.evolution.tree.partitioned;
 
 import beast.core.Input;
 import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTreeNode;
 import beast.evolution.tree.TreeDistribution;
 import beastlier.outbreak.ClinicalCase;
 import beastlier.outbreak.Outbreak;
 import beastlier.util.PartitionedTreeLogger;
+import beastlier.util.Profiler;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
@@ -68,7 +71,11 @@ public abstract class BetweenHostModel extends TreeDistribution {
 
         if(typeOfDirt == IS_FILTHY) {
             infectionTimesMap = null;
+            long start = Profiler.start();
             sortEvents();
+            Profiler.stop(Profiler.Section.SORT_EVENTS, start);
+        } else {
+            Profiler.skip(Profiler.Section.SORT_EVENTS);
         }
 
         return evaluateLogP();
@@ -109,6 +116,72 @@ public abstract class BetweenHostModel extends TreeDistribution {
         }
     }
 
+    //Zero unless the model has latent periods; used instead of getInfectiousTime where the cached infection times may
+    //be out of date
+
+    protected double getLatentPeriod(ClinicalCase aCase){
+        return 0;
+    }
+
+    //Whether anything other than the tree that the constraints depend on has changed; if so they are all checked
+
+    protected boolean periodsHaveChanged(){
+        return false;
+    }
+
+    /**
+     * Looks for the reasons that evaluateLogP would return negative infinity, reading the infection times from the
+     * tree rather than from anything calculated here, so this can be called as soon as the state has changed. If
+     * dirtyOnly is true then only infections where the infected case or the infector is a dirty element of the tree
+     * are checked.
+     *
+     * @return the first violation found, or null if there are none
+     */
+    public ConstraintViolation checkConstraints(boolean dirtyOnly){
+        boolean[] dirtyElements = dirtyOnly && !periodsHaveChanged() ? tree.getDirtyElements() : null;
+        List<String> elementList = tree.getElementList();
+
+        for(Node node : tree.getNodesAsArray()){
+            PartitionedTreeNode castNode = (PartitionedTreeNode)node;
+            PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
+            int elementNo = castNode.getPartitionElementNumber();
+
+            //only the earliest node of each element has an infection above it
+            if(elementNo == -1 || (parent != null && parent.getPartitionElementNumber() == elementNo)){
+                continue;
+            }
+            int infectorNo = parent == null ? -1 : parent.getPartitionElementNumber();
+
+            boolean caseIsDirty = dirtyElements == null || dirtyElements[elementNo];
+            boolean infectorIsDirty = infectorNo != -1 && (dirtyElements == null || dirtyElements[infectorNo]);
+            if(!caseIsDirty && !infectorIsDirty){
+                continue;
+            }
+
+            ClinicalCase aCase = outbreak.getCaseByID(elementList.get(elementNo));
+            double infectionTime = tree.getInfectionTimeByNr(elementNo);
+
+            //the same tests as in evaluateLogP, and in the same order; the index case has no infector to test
+
+            if(infectorNo != -1){
+                ClinicalCase infector = outbreak.getCaseByID(elementList.get(infectorNo));
+                if(infectionTime > aCase.getEndTime()){
+                    return ConstraintViolation.INFECTED_AFTER_END;
+                }
+                if(infector.getEndTime() < infectionTime){
+                    return ConstraintViolation.INFECTOR_ENDED;
+                }
+                if(tree.getInfectionTimeByNr(infectorNo) + getLatentPeriod(infector) > infectionTime){
+                    return ConstraintViolation.INFECTOR_NOT_INFECTIOUS;
+                }
+            }
+            if(hasLatentPeriods && caseIsDirty && infectionTime + getLatentPeriod(aCase) > aCase.getEndTime()){
+                return ConstraintViolation.INFECTIOUS_AFTER_END;
+            }
+        }
+        return null;
+    }
+
     protected class TreeEvent{
 
         private EventType type;
@@ -158,6 +231,17 @@ public abstract class BetweenHostModel extends TreeDistribution {
 //            e.printStackTrace();
 //        }
 
+        sortedTreeEvents = makeSortedEvents(false);
+    }
+
+    //The same events as sortEvents finds, but neither sortedTreeEvents nor the cached infection times are touched, so
+    //this can be used during a proposal without leaving anything for restore() to miss
+
+    protected ArrayList<TreeEvent> getSortedEventsFromTree(){
+        return makeSortedEvents(true);
+    }
+
+    private ArrayList<TreeEvent> makeSortedEvents(boolean fromTree){
         ArrayList<TreeEvent> out = new ArrayList<>();
         for(ClinicalCase aCase : outbreak.getCases()){
             double infectionTime = Double.POSITIVE_INFINITY;
@@ -173,13 +257,14 @@ public abstract class BetweenHostModel extends TreeDistribution {
                 out.add(new TreeEvent(EventType.END, endTime, aCase));
 
                 if (hasLatentPeriods) {
-                    double infectiousnessTime = getInfectiousTime(aCase);
+                    double infectiousnessTime = fromTree ? infectionTime + getLatentPeriod(aCase)
+                            : getInfectiousTime(aCase);
                     out.add(new TreeEvent(EventType.INFECTIOUSNESS, infectiousnessTime, aCase));
                 }
             }
         }
         Collections.sort(out, new EventComparator());
-        sortedTreeEvents = out;
+        return out;
     }
 
     private class EventComparator implements Comparator<TreeEvent> {
@@ -0,0 +1,43 @@
+/*
+* File ConstraintViolation.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree.partitioned;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The reasons that a transmission tree, or a phylogeny guided by one, can be impossible without any likelihood having
+ * to be calculated to find out.
+ */
+
+public enum ConstraintViolation {
+    //a case infected after its own end time
+    INFECTED_AFTER_END,
+    //an infector that had already ended when it infected someone
+    INFECTOR_ENDED,
+    //an infector that was not yet infectious when it infected someone
+    INFECTOR_NOT_INFECTIOUS,
+    //a case that would become infectious only after its end time
+    INFECTIOUS_AFTER_END,
+    //a tip of a guided phylogeny older than the infection of its host
+    TIP_BEFORE_INFECTION
+}
@@ -31,6 +31,9 @@ import beastlier.geography.SpatialKernel;
 import beastlier.outbreak.CategorySet;
 import beastlier.outbreak.ClinicalCase;
 import beastlier.outbreak.GeographicallyLocatedClinicalCase;
+import beastlier.util.GradientProvider;
+import beastlier.util.LogBuffer;
+import beastlier.util.SnapshotLoggable;
 import org.apache.commons.math.FunctionEvaluationException;
 
 import java.io.PrintStream;
@@ -38,12 +41,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.ToDoubleFunction;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
  */
 
-public class IndividualSEIR extends BetweenHostModel {
+public class IndividualSEIR extends BetweenHostModel implements SnapshotLoggable, GradientProvider {
 
     public Input<SpatialKernel> kernelInput = new Input<>("kernel", "The spatial kernel function; if null or absent, " +
             "geography will be ignored", null, Input.Validate.OPTIONAL);
@@ -59,6 +63,12 @@ public class IndividualSEIR extends BetweenHostModel {
             "clinical cases to distributions of infectious periods");
     public Input<CategorySet> latentCategorySetInput = new Input<>("latentCategorySet", "Assignment of clinical " +
             "cases to distributions of periods");
+    public Input<Boolean> logCaseTimingsInput = new Input<>("logCaseTimings", "Log the infection and infectiousness " +
+            "times and periods of every case (turn off for large outbreaks and use a CaseTimingSummaryLogger)", true);
+
+    //the quantities that getCaseTimings gives for each case, in order
+    public static final String[] CASE_TIMINGS = {"infectionTime", "infectiousTime", "infectiousPeriod",
+            "lengthOfInfection"};
 
 
     private SpatialKernel kernel;
@@ -70,6 +80,8 @@ public class IndividualSEIR extends BetweenHostModel {
     private List<DurationDistribution> infectiousCategories;
     private Map<ClinicalCase, DurationDistribution> latentCategoriesMap;
     private Map<ClinicalCase, DurationDistribution> infectiousCategoriesMap;
+    private double[] caseTimings;
+    private final LogBuffer logBuffer = new LogBuffer();
 
     public void initAndValidate(){
         super.initAndValidate();
@@ -265,21 +277,8 @@ public class IndividualSEIR extends BetweenHostModel {
 
         for(DurationDistribution category : infectiousCategories){
             if(category.hasProbability()) {
-                List<ClinicalCase> relevantCases = new ArrayList<>();
-
-                for(ClinicalCase aCase : outbreak.getCases()){
-                    if(getInfectiousCategory(aCase)==category){
-                        relevantCases.add(aCase);
-                    }
-                }
-
-                Double[] infectiousPeriods = new Double[relevantCases.size()];
-
-                for (int i = 0; i < infectiousPeriods.length; i++) {
-                    infectiousPeriods[i] = relevantCases.get(i).getEndTime() - getInfectiousTime(relevantCases.get(i));
-                }
-
-                RealParameter collectionOfValues = new RealParameter(infectiousPeriods);
+                RealParameter collectionOfValues = getInfectiousPeriods(getCasesInCategory(category),
+                        this::getInfectiousTime);
 
                 periodsLogProb += category.getLogProbability(collectionOfValues);
             }
@@ -301,7 +300,176 @@ public class IndividualSEIR extends BetweenHostModel {
         return logP;
     }
 
+    private List<ClinicalCase> getCasesInCategory(DurationDistribution category){
+        List<ClinicalCase> relevantCases = new ArrayList<>();
+
+        for(ClinicalCase aCase : outbreak.getCases()){
+            if(getInfectiousCategory(aCase)==category){
+                relevantCases.add(aCase);
+            }
+        }
+        return relevantCases;
+    }
+
+    private RealParameter getInfectiousPeriods(List<ClinicalCase> relevantCases,
+                                               ToDoubleFunction<ClinicalCase> infectiousTimes){
+        Double[] infectiousPeriods = new Double[relevantCases.size()];
+
+        for (int i = 0; i < infectiousPeriods.length; i++) {
+            infectiousPeriods[i] = relevantCases.get(i).getEndTime()
+                    - infectiousTimes.applyAsDouble(relevantCases.get(i));
+        }
+
+        return new RealParameter(infectiousPeriods);
+    }
+
+    /**
+     * The derivatives of the log probability with respect to the base transmission rate, a parameter of the kernel or
+     * the q parameters of the tree, with the topology held fixed. For q this goes through the infection times: each
+     * one appears in the case's own exposure to everyone infectious before it, in the exposure of everyone after it
+     * to the case (through its infectious time), in the index infection time prior and in the probability of its
+     * infectious period.
+     *
+     * The events and infectious times are read from the tree again, since they may have changed since the last
+     * calculation, but into local copies: this is called during proposals, and the cached ones must be left as they
+     * are for restore(). The checks that evaluateLogP makes are not made here; if the state is impossible, that is
+     * for the density to say.
+     */
+    public double[] getLogPGradient(RealParameter parameter){
+        boolean wrtRate = parameter == baseTransmissionRate;
+        boolean wrtKernel = hasGeography && kernel.getParameterIds().contains(parameter.getID());
+        boolean wrtQ = parameter == tree.getQ();
+
+        if(!wrtRate && !wrtKernel && !wrtQ){
+            return null;
+        }
+
+        List<TreeEvent> events = getSortedEventsFromTree();
+        Map<ClinicalCase, Double> infectiousTimes = new HashMap<>();
+        for(ClinicalCase aCase : outbreak.getCases()){
+            infectiousTimes.put(aCase, tree.getInfectionTime(aCase) + getLatentPeriod(aCase));
+        }
+
+        double rate = baseTransmissionRate.getValue();
+        double[] gradient = new double[parameter.getDimension()];
+
+        //by element number
+        List<String> elementList = tree.getElementList();
+        double[] timeGradient = new double[elementList.size()];
+
+        ArrayList<ClinicalCase> previouslyInfectious = new ArrayList<>();
+        boolean first = true;
+
+        for (TreeEvent event : events) {
+            ClinicalCase thisCase = event.getCase();
+
+            if (event.getType() == EventType.INFECTION) {
+                if (first) {
+                    if (wrtQ && initialInfectionTimePrior != null) {
+                        timeGradient[elementList.indexOf(thisCase.getID())] += GradientProvider.Util
+                                .centralDifference(initialInfectionTimePrior::logDensity, event.getTime());
+                    }
+                    if (!hasLatentPeriods) {
+                        previouslyInfectious.add(thisCase);
+                    }
+
+                    first = false;
+
+                } else {
+
+                    ClinicalCase infector = event.getInfector();
+                    int caseNo = thisCase.wasEverInfected() ? elementList.indexOf(thisCase.getID()) : -1;
+
+                    for (ClinicalCase nonInfector : previouslyInfectious) {
+                        double timeDuringWhichNoInfection = Math.min(nonInfector.getEndTime(), event.getTime())
+                                - infectiousTimes.get(nonInfector);
+                        double kernelValue = getKernelValue(thisCase, nonInfector);
+
+                        if (wrtRate) {
+                            gradient[0] -= kernelValue * timeDuringWhichNoInfection;
+                        }
+                        if (wrtKernel) {
+                            gradient[0] -= rate * kernel.getDerivative((GeographicallyLocatedClinicalCase) thisCase,
+                                    (GeographicallyLocatedClinicalCase) nonInfector, parameter)
+                                    * timeDuringWhichNoInfection;
+                        }
+                        if (wrtQ) {
+                            // the exposure ends at this infection if the other case was still infectious then, and
+                            // always begins at the other case's infectious time
+                            if (caseNo != -1 && nonInfector.getEndTime() >= event.getTime()) {
+                                timeGradient[caseNo] -= rate * kernelValue;
+                            }
+                            timeGradient[elementList.indexOf(nonInfector.getID())] += rate * kernelValue;
+                        }
+                    }
+
+                    if (thisCase.wasEverInfected()) {
+                        if (wrtRate) {
+                            gradient[0] += 1 / rate;
+                        }
+                        if (wrtKernel) {
+                            gradient[0] += kernel.getDerivative((GeographicallyLocatedClinicalCase) thisCase,
+                                    (GeographicallyLocatedClinicalCase) infector, parameter)
+                                    / getKernelValue(thisCase, infector);
+                        }
+                    }
+                    if (!hasLatentPeriods) {
+                        previouslyInfectious.add(thisCase);
+                    }
+                }
+
+            } else if (event.getType() == EventType.INFECTIOUSNESS) {
+                if (event.getTime() < Double.POSITIVE_INFINITY) {
+                    previouslyInfectious.add(thisCase);
+                }
+            }
+        }
+
+        if (wrtQ) {
+            // a later infectious time is a shorter infectious period
+
+            for(DurationDistribution category : infectiousCategories){
+                if(category.hasProbability()) {
+                    List<ClinicalCase> relevantCases = getCasesInCategory(category);
+                    RealParameter collectionOfValues = getInfectiousPeriods(relevantCases, infectiousTimes::get);
+
+                    for (int i = 0; i < relevantCases.size(); i++) {
+                        int caseNo = elementList.indexOf(relevantCases.get(i).getID());
+                        if (caseNo != -1) {
+                            timeGradient[caseNo] -= category.getLogProbabilityDerivative(collectionOfValues, i);
+                        }
+                    }
+                }
+            }
+
+            double dateDerivative = tree.getDate(1) - tree.getDate(0);
+
+            for (int i = 0; i < gradient.length; i++) {
+                gradient[i] = timeGradient[i] * dateDerivative * tree.getInfectionHeightQDerivative(i);
+            }
+        }
+
+        return gradient;
+    }
+
+    private double getKernelValue(ClinicalCase aCase, ClinicalCase otherCase){
+        if (!hasGeography) {
+            return 1;
+        }
+        try {
+            return kernel.getValue((GeographicallyLocatedClinicalCase) aCase,
+                    (GeographicallyLocatedClinicalCase) otherCase);
+        } catch (FunctionEvaluationException e){
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
     public double getInfectiousTime(ClinicalCase aCase){
+        return getInfectionTime(aCase) + getLatentPeriod(aCase);
+    }
+
+    protected double getLatentPeriod(ClinicalCase aCase){
         DurationDistribution category = getLatentCategory(aCase);
         if(category.hasProbability()){
             throw new RuntimeException("Latent periods in this model are fixed");
@@ -309,7 +477,16 @@ public class IndividualSEIR extends BetweenHostModel {
 
         FixedValueDurationDistribution castCategory = (FixedValueDurationDistribution)category;
 
-        return getInfectionTime(aCase) + castCategory.getValue();
+        return castCategory.getValue();
+    }
+
+    protected boolean periodsHaveChanged(){
+        for(DurationDistribution latCat : latentCategories){
+            if(latCat.isDirtyCalculation()){
+                return true;
+            }
+        }
+        return false;
     }
 
     public DurationDistribution getLatentCategory(ClinicalCase aCase){
@@ -321,37 +498,60 @@ public class IndividualSEIR extends BetweenHostModel {
     }
 
     public void init(final PrintStream out){
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print(outbreak.getEverInfectedCases().get(i) + "_infectionTime\t");
-        }
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print(outbreak.getEverInfectedCases().get(i) + "_infectiousTime\t");
-        }
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print(outbreak.getEverInfectedCases().get(i) + "_infectiousPeriod\t");
-        }
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print(outbreak.getEverInfectedCases().get(i) + "_lengthOfInfection\t");
+        if(logCaseTimingsInput.get()) {
+            for (String timing : CASE_TIMINGS) {
+                for (int i = 0; i < outbreak.getEverInfectedCases().size(); i++) {
+                    out.print(outbreak.getEverInfectedCases().get(i) + "_" + timing + "\t");
+                }
+            }
         }
         out.print("bhm_logP" + "\t");
     }
 
     public void log(final int sample, final PrintStream out){
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print(tree.getInfectionTime(outbreak.getEverInfectedCase(i)) + "\t");
-        }
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print(getInfectiousTime(outbreak.getEverInfectedCase(i)) + "\t");
+        logBuffer.clear();
+        logBuffer.setSample(sample);
+        snapshot(sample, logBuffer);
+        format(logBuffer, out);
+    }
+
+    /**
+     * Fills out with the infection time, infectious time, infectious period and length of infection of every
+     * ever-infected case, each quantity for all the cases in turn
+     */
+    public void getCaseTimings(final double[] out){
+        int caseCount = outbreak.getEverInfectedCases().size();
+        for(int i=0; i<caseCount; i++){
+            ClinicalCase aCase = outbreak.getEverInfectedCase(i);
+            double infectionTime = tree.getInfectionTime(aCase);
+            double infectiousTime = getInfectiousTime(aCase);
+
+            out[i] = infectionTime;
+            out[caseCount + i] = infectiousTime;
+            out[2*caseCount + i] = aCase.getEndTime() - infectiousTime;
+            out[3*caseCount + i] = aCase.getEndTime() - infectionTime;
         }
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print((outbreak.getEverInfectedCase(i).getEndTime()
-                    - getInfectiousTime(outbreak.getEverInfectedCase(i))) + "\t");
+    }
+
+    public void snapshot(final int sample, final LogBuffer buffer){
+        if(logCaseTimingsInput.get()) {
+            if (caseTimings == null) {
+                caseTimings = new double[CASE_TIMINGS.length * outbreak.getEverInfectedCases().size()];
+            }
+            getCaseTimings(caseTimings);
+            for (double timing : caseTimings) {
+                buffer.addDouble(timing);
+            }
         }
-        for(int i=0; i<outbreak.getEverInfectedCases().size(); i++){
-            out.print((outbreak.getEverInfectedCase(i).getEndTime()
-                    - tree.getInfectionTime(outbreak.getEverInfectedCase(i))) + "\t");
+        buffer.addDouble(logP);
+    }
+
+    public void format(final LogBuffer buffer, final PrintStream out){
+        //infection times, infectious times, infectious periods, lengths of infection, then logP
+        int columns = logCaseTimingsInput.get() ? CASE_TIMINGS.length*outbreak.getEverInfectedCases().size() : 0;
+        for(int i=0; i<columns+1; i++){
+            out.print(buffer.nextDouble() + "\t");
         }
-        out.print(logP + "\t");
     }
 
     /**
@@ -0,0 +1,229 @@
+/*
+* File TransmissionConstraints.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree.partitioned;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.State;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.GuidedPartitionedTree;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Rejects transmission trees that the between-host model, or the partitioning of a guided phylogeny, would reject,
+ * looking only at the elements that have changed and without calculating anything. Put this first in the posterior
+ * so that nothing after it is calculated for an impossible state; operators that have it as an input check their
+ * own proposals with it and return negative infinity, so that the posterior is not calculated at all.
+ *
+ * Rejections are counted by reason, separately for each operator that asked and for the posterior; the totals are
+ * logged, and the counts for each operator can be written to a file at the end of the run.
+ */
+
+@Description("A check of the transmission tree for impossible states, before any likelihood is calculated")
+public class TransmissionConstraints extends Distribution {
+
+    public Input<BetweenHostModel> modelInput = new Input<>("model", "The between-host model whose constraints " +
+            "are to be checked", Input.Validate.REQUIRED);
+    public Input<List<GuidedPartitionedTree>> phylogeniesInput = new Input<>("phylogeny", "Locus phylogenies " +
+            "guided by the transmission tree, whose tips must be no older than the infections of their hosts",
+            new ArrayList<>());
+    public Input<String> fileNameInput = new Input<>("fileName", "If given, the rejection counts for each operator " +
+            "are written here at the end of the run");
+
+    //the key that checks made by the posterior itself are counted under
+    public static final String POSTERIOR = "posterior";
+
+    private static final ConstraintViolation[] VIOLATIONS = ConstraintViolation.values();
+
+    private BetweenHostModel model;
+    private EpidemiologicalPartitionedTree tree;
+    private List<GuidedPartitionedTree> phylogenies;
+
+    //for each caller, the number of checks and then the number of rejections for each reason
+    private final Map<String, long[]> counts = new LinkedHashMap<>();
+    private final long[] totals = new long[VIOLATIONS.length+1];
+
+    @Override
+    public void initAndValidate() {
+        model = modelInput.get();
+        tree = model.tree;
+        phylogenies = phylogeniesInput.get();
+        for(GuidedPartitionedTree phylogeny : phylogenies){
+            if(phylogeny.getGuideTree() != tree){
+                throw new IllegalArgumentException("Phylogeny " + phylogeny.getID() + " is not guided by the tree " +
+                        "of the between-host model");
+            }
+        }
+    }
+
+    /**
+     * Checks the elements of the tree that have changed since the last store
+     *
+     * @return the first violation found, or null if there are none
+     */
+    public ConstraintViolation check(){
+        ConstraintViolation violation = model.checkConstraints(true);
+
+        if(violation == null && !phylogenies.isEmpty()){
+            boolean[] dirtyElements = tree.getDirtyElements();
+            for(GuidedPartitionedTree phylogeny : phylogenies){
+                if(!phylogeny.checkTips(dirtyElements)){
+                    return ConstraintViolation.TIP_BEFORE_INFECTION;
+                }
+            }
+        }
+
+        return violation;
+    }
+
+    /**
+     * Check the state that an operator has just proposed, counting any rejection against it
+     *
+     * @return false if the state is impossible
+     */
+    public boolean accept(Operator operator){
+        String name = operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName();
+        return record(name, check());
+    }
+
+    /**
+     * For the end of an operator's proposal: the Hastings ratio, or negative infinity if there are constraints and
+     * the proposed state breaks them
+     */
+    public static double filter(TransmissionConstraints constraints, Operator operator, double logHastingsRatio){
+        if(constraints == null || logHastingsRatio == Double.NEGATIVE_INFINITY){
+            return logHastingsRatio;
+        }
+        return constraints.accept(operator) ? logHastingsRatio : Double.NEGATIVE_INFINITY;
+    }
+
+    private synchronized boolean record(String name, ConstraintViolation violation){
+        long[] callerCounts = counts.get(name);
+        if(callerCounts == null){
+            callerCounts = new long[VIOLATIONS.length+1];
+            counts.put(name, callerCounts);
+        }
+        callerCounts[0]++;
+        totals[0]++;
+        if(violation != null){
+            callerCounts[violation.ordinal()+1]++;
+            totals[violation.ordinal()+1]++;
+        }
+        return violation == null;
+    }
+
+    /**
+     * @return the number of checks made by the caller and then the number of rejections for each reason, in the
+     * order of ConstraintViolation, or null if it has made none
+     */
+    public synchronized long[] getCounts(String name){
+        long[] callerCounts = counts.get(name);
+        return callerCounts == null ? null : callerCounts.clone();
+    }
+
+    @Override
+    public double calculateLogP() {
+        logP = record(POSTERIOR, check()) ? 0 : Double.NEGATIVE_INFINITY;
+        return logP;
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        if(tree.somethingIsDirty() || model.isDirtyCalculation()){
+            return true;
+        }
+        for(GuidedPartitionedTree phylogeny : phylogenies){
+            if(phylogeny.somethingIsDirty()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix = getID() != null ? getID() : "constraints";
+        for(ConstraintViolation violation : VIOLATIONS){
+            out.print(prefix + "." + violation + "\t");
+        }
+    }
+
+    @Override
+    public synchronized void log(int sample, PrintStream out) {
+        for(int i=0; i<VIOLATIONS.length; i++){
+            out.print(totals[i+1] + "\t");
+        }
+    }
+
+    @Override
+    public synchronized void close(PrintStream out) {
+        if(fileNameInput.get() == null){
+            return;
+        }
+        try (PrintStream summary = new PrintStream(fileNameInput.get())) {
+            summary.print("caller\tchecks");
+            for(ConstraintViolation violation : VIOLATIONS){
+                summary.print("\t" + violation);
+            }
+            summary.println();
+            for(Map.Entry<String, long[]> entry : counts.entrySet()){
+                summary.print(entry.getKey());
+                for(long count : entry.getValue()){
+                    summary.print("\t" + count);
+                }
+                summary.println();
+            }
+        } catch (FileNotFoundException e){
+            throw new RuntimeException("Could not write constraint rejection counts to " + fileNameInput.get(), e);
+        }
+    }
+
+    @Override
+    public List<String> getArguments() {
+        List<String> out = new ArrayList<>();
+        out.add(tree.getID());
+        return out;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+        throw new UnsupportedOperationException("Constraints cannot be sampled from");
+    }
+
+}
@@ -30,12 +30,14 @@ import beast.evolution.tree.*;
 import beast.evolution.tree.coalescent.*;
 import beast.math.Binomial;
 import beastlier.outbreak.ClinicalCase;
-import beast.util.BigDecimalUtils;
-import beastlier.util.PartitionedTreeLogger;
+import beast.util.LogSpaceUtils;
+import beastlier.util.DiagnosticTreeDumper;
+import beastlier.util.GradientProvider;
+import beastlier.util.LogBuffer;
+import beastlier.util.Profiler;
+import beastlier.util.SnapshotLoggable;
 
-import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -46,7 +48,7 @@ import java.util.List;
  */
 
 @Description("A parameteric within-host coalescent function shared by every clinical case")
-public class WithinHostCoalescent extends WithinHostModel {
+public class WithinHostCoalescent extends WithinHostModel implements SnapshotLoggable, GradientProvider {
 
     public Input<PopulationFunction> functionInput = new Input<>("populationFunction", "The within-host coalescent " +
             "process", Input.Validate.REQUIRED);
@@ -63,6 +65,7 @@ public class WithinHostCoalescent extends WithinHostModel {
     public boolean[] recalculateTreeletLogP;
     private double[] individualWHProbabilities;
     private double[] storedIndividualWHProbabilities;
+    private final LogBuffer logBuffer = new LogBuffer();
     private boolean enforceCoalescence;
     private ForestIntervals forestIntervals;
 
@@ -81,9 +84,7 @@ public class WithinHostCoalescent extends WithinHostModel {
 
 
     public double calculateLogP() {
-
-
-//
+        long start = Profiler.start();
 
         // if the population function has changed, then all treelets need probabilities recalculated but (unless
         // something else has changed) no treelets actually need re-extracting
@@ -93,6 +94,7 @@ public class WithinHostCoalescent extends WithinHostModel {
             Arrays.fill(recalculateTreeletLogP, true);
 
             if(!((GuidedPartitionedTree)tree).updatePartitions()){
+                Profiler.stop(Profiler.Section.WITHIN_HOST, start);
                 return Double.NEGATIVE_INFINITY;
             }
         } else {
@@ -105,14 +107,7 @@ public class WithinHostCoalescent extends WithinHostModel {
             }
         }
 
-        try {
-            PrintStream secondStream = new PrintStream("phy.nex");
-
-            PartitionedTreeLogger.debugLog(tree, 0, true, secondStream);
-
-        } catch (FileNotFoundException e){
-            e.printStackTrace();
-        }
+        DiagnosticTreeDumper.dump("phy.nex", tree, true);
 
         logP = 0;
 
@@ -128,6 +123,7 @@ public class WithinHostCoalescent extends WithinHostModel {
         for (int i=0; i<tree.getNElements(); i++) {
 
             if(recalculateTreeletLogP[i]) {
+                long treeletStart = Profiler.start();
 
                 ForestIntervals.PartitionIntervals intervals = forestIntervals.getIntervals(i);
 
@@ -137,16 +133,20 @@ public class WithinHostCoalescent extends WithinHostModel {
                 individualWHProbabilities[i] = individualLogP;
 
                 logP += individualLogP;
+                Profiler.stop(Profiler.Section.TREELET, treeletStart);
 
             } else {
                 logP += individualWHProbabilities[i];
+                Profiler.skip(Profiler.Section.TREELET);
             }
         }
 
+        Profiler.stop(Profiler.Section.WITHIN_HOST, start);
         return logP;
     }
 
-    //the end of the last interval is now time zero
+    //the end of the last interval is now time zero. The intensity is evaluated once at each interval boundary (and
+    //once at zero) rather than through getIntegral, which would need it twice per area.
 
     public static double calculateTreeletLogLikelihood(IntervalList intervals, PopulationFunction demographicFunction,
                                                        double threshold, double zeroHeight,
@@ -155,8 +155,12 @@ public class WithinHostCoalescent extends WithinHostModel {
         double startTime = -zeroHeight;
         final int n = intervals.getIntervalCount();
 
+        double startIntensity = demographicFunction.getIntensity(startTime);
+
         if(enforceCoalescence) {
 
+            final double zeroIntensity = demographicFunction.getIntensity(0);
+
             //The last interval should _not_ have its probability calculated if you're conditioning on coalescence
             //because the probability of that interval will be 0
 
@@ -177,8 +181,9 @@ public class WithinHostCoalescent extends WithinHostModel {
                     throw new RuntimeException("Investigate please");
                 }
 
-                final double intervalArea = demographicFunction.getIntegral(startTime, finishTime);
-                final double normalisationArea = demographicFunction.getIntegral(startTime, 0);
+                final double finishIntensity = demographicFunction.getIntensity(finishTime);
+                final double intervalArea = finishIntensity - startIntensity;
+                final double normalisationArea = zeroIntensity - startIntensity;
 
                 if (intervalArea == 0 && duration > tolerance) {
                     return Double.NEGATIVE_INFINITY;
@@ -203,29 +208,20 @@ public class WithinHostCoalescent extends WithinHostModel {
                         }
 
                     } else {
-                        double numerator = Math.exp(-kChoose2 * intervalArea) - Math.exp(-kChoose2 * normalisationArea);
-                        logL += Math.log(numerator);
+                        // log(exp(-kChoose2 * intervalArea) - exp(-kChoose2 * normalisationArea))
+                        logL += LogSpaceUtils.logDiffExp(-kChoose2 * intervalArea, -kChoose2 * normalisationArea);
 
                     }
 
                     // normalisation
 
-                    double normExp = Math.exp(-kChoose2 * normalisationArea);
-
-                    double logDenominator;
-
-                    // the denominator has an irritating tendency to round to zero
-
-                    if (normExp != 1) {
-                        logDenominator = Math.log1p(-normExp);
-                    } else {
-                        logDenominator = handleDenominatorUnderflow(-kChoose2 * normalisationArea);
-                    }
+                    // the denominator has an irritating tendency to round to zero, which log1mexp takes care of
 
-                    logL -= logDenominator;
+                    logL -= LogSpaceUtils.log1mexp(-kChoose2 * normalisationArea);
 
                 }
                 startTime = finishTime;
+                startIntensity = finishIntensity;
             }
             return logL;
         } else {
@@ -236,7 +232,8 @@ public class WithinHostCoalescent extends WithinHostModel {
 
                     final double finishTime = startTime + duration;
 
-                    final double intervalArea = demographicFunction.getIntegral(startTime, finishTime);
+                    final double finishIntensity = demographicFunction.getIntensity(finishTime);
+                    final double intervalArea = finishIntensity - startIntensity;
                     if (intervalArea == 0 && duration != 0) {
                         return Double.NEGATIVE_INFINITY;
                     }
@@ -256,6 +253,7 @@ public class WithinHostCoalescent extends WithinHostModel {
                         }
                     }
                     startTime = finishTime;
+                    startIntensity = finishIntensity;
                 }
             }
 
@@ -263,6 +261,149 @@ public class WithinHostCoalescent extends WithinHostModel {
         }
     }
 
+    /**
+     * The derivatives of the log probability with respect to the q parameters of the tree, with the topology held
+     * fixed. Moving the infection of an element up moves time zero of its own treelet with it, so every event in that
+     * treelet (except the infection) is earlier relative to it, and moves the sampling event that the infection
+     * appears as in the treelet of its infector.
+     *
+     * Only for trees with node partitions and an outbreak, and with no rest-of-population function.
+     */
+    public double[] getLogPGradient(RealParameter parameter){
+        if(!(tree instanceof EpidemiologicalPartitionedTree) || parameter != ((EpidemiologicalPartitionedTree) tree)
+                .getQ()){
+            return null;
+        }
+        if(restOfPopFunction != null){
+            throw new RuntimeException("Gradients are not available with a rest-of-population function");
+        }
+
+        EpidemiologicalPartitionedTree epiTree = (EpidemiologicalPartitionedTree) tree;
+        int elementCount = tree.getNElements();
+
+        double[] heightGradient = new double[elementCount];
+
+        for (int i=0; i<elementCount; i++) {
+            ForestIntervals.PartitionIntervals intervals = forestIntervals.getIntervals(i);
+            double zeroHeight = intervals.getTotalLength();
+
+            double[] timeGradient = calculateTreeletLogLikelihoodGradient(intervals, popFunction, zeroHeight,
+                    enforceCoalescence);
+            if(timeGradient == null){
+                double[] out = new double[parameter.getDimension()];
+                Arrays.fill(out, Double.NaN);
+                return out;
+            }
+
+            int lastBoundary = timeGradient.length - 1;
+
+            for(int boundary = 0; boundary < lastBoundary; boundary++){
+                heightGradient[i] -= timeGradient[boundary];
+            }
+
+            // each infection by this element moves the boundary at which its lineage joins this treelet
+
+            for(int k=0; k<intervals.getInfectedElementCount(); k++){
+                heightGradient[intervals.getInfectedElement(k)] += timeGradient[intervals.getInfectionBoundary(k)];
+            }
+        }
+
+        double[] gradient = new double[parameter.getDimension()];
+        for(int i=0; i<gradient.length; i++){
+            gradient[i] = heightGradient[i] * epiTree.getInfectionHeightQDerivative(i);
+        }
+        return gradient;
+    }
+
+    /**
+     * The derivatives of calculateTreeletLogLikelihood (with no threshold) with respect to the times of the interval
+     * boundaries, the start of each interval and then the end of the last one, relative to the infection. The
+     * derivative of the intensity is one over the population size; that of the log population size is by finite
+     * differences, as population functions have no derivatives of their own.
+     *
+     * @return the derivatives, or null if the log likelihood is negative infinity
+     */
+
+    public static double[] calculateTreeletLogLikelihoodGradient(IntervalList intervals,
+                                                                 PopulationFunction demographicFunction,
+                                                                 double zeroHeight, boolean enforceCoalescence) {
+        final int n = intervals.getIntervalCount();
+        double[] times = new double[n + 1];
+        double[] gradient = new double[n + 1];
+
+        times[0] = -zeroHeight;
+        for (int i = 0; i < n; i++) {
+            final double duration = intervals.getInterval(i);
+            times[i + 1] = duration < Double.POSITIVE_INFINITY ? times[i] + duration : times[i];
+        }
+
+        if (enforceCoalescence) {
+
+            final double zeroIntensity = demographicFunction.getIntensity(0);
+
+            for (int i = 0; i < n - 1; i++) {
+                if (times[i + 1] == 0) {
+                    return null;
+                }
+
+                final int lineageCount = intervals.getLineageCount(i);
+
+                if (lineageCount >= 2) {
+                    final double kChoose2 = Binomial.choose2(lineageCount);
+                    final double startIntensity = demographicFunction.getIntensity(times[i]);
+                    final double intervalArea = demographicFunction.getIntensity(times[i + 1]) - startIntensity;
+                    final double normalisationArea = zeroIntensity - startIntensity;
+
+                    double areaDerivative;
+                    double normalisationDerivative;
+
+                    if (intervals.getIntervalType(i) == IntervalType.COALESCENT) {
+                        areaDerivative = -kChoose2;
+                        normalisationDerivative = 0;
+                        gradient[i + 1] -= logPopSizeDerivative(demographicFunction, times[i + 1]);
+                    } else {
+                        final double difference = kChoose2 * (normalisationArea - intervalArea);
+                        areaDerivative = kChoose2 / Math.expm1(-difference);
+                        normalisationDerivative = kChoose2 / Math.expm1(difference);
+                    }
+
+                    normalisationDerivative -= kChoose2 / Math.expm1(kChoose2 * normalisationArea);
+
+                    // intervalArea = finish - start, normalisationArea = zero - start
+
+                    gradient[i] += (-areaDerivative - normalisationDerivative)
+                            / demographicFunction.getPopSize(times[i]);
+                    gradient[i + 1] += areaDerivative / demographicFunction.getPopSize(times[i + 1]);
+                }
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                if (intervals.getInterval(i) < Double.POSITIVE_INFINITY) {
+                    final double kChoose2 = Binomial.choose2(intervals.getLineageCount(i));
+
+                    gradient[i] += kChoose2 / demographicFunction.getPopSize(times[i]);
+                    gradient[i + 1] -= kChoose2 / demographicFunction.getPopSize(times[i + 1]);
+
+                    if (intervals.getIntervalType(i) == IntervalType.COALESCENT) {
+                        gradient[i + 1] -= logPopSizeDerivative(demographicFunction, times[i + 1]);
+                    }
+                }
+            }
+        }
+
+        for (double entry : gradient) {
+            if (Double.isNaN(entry) || Double.isInfinite(entry)) {
+                return null;
+            }
+        }
+
+        return gradient;
+    }
+
+    private static double logPopSizeDerivative(PopulationFunction demographicFunction, double time){
+        return GradientProvider.Util.centralDifference(t -> Math.log(demographicFunction.getPopSize(t)), time);
+    }
+
     @Override
     public void store() {
         storedIndividualWHProbabilities = individualWHProbabilities.clone();
@@ -285,19 +426,24 @@ public class WithinHostCoalescent extends WithinHostModel {
     }
 
     public void log(final int sample, final PrintStream out){
+        logBuffer.clear();
+        logBuffer.setSample(sample);
+        snapshot(sample, logBuffer);
+        format(logBuffer, out);
+    }
+
+    public void snapshot(final int sample, final LogBuffer buffer){
         for(int i=0; i<tree.getElementList().size(); i++){
-            out.print(individualWHProbabilities[i] + "\t");
+            buffer.addDouble(individualWHProbabilities[i]);
         }
-        out.print(logP + "\t");
+        buffer.addDouble(logP);
     }
 
-    private static double handleDenominatorUnderflow(double input){
-        BigDecimal bigDec = new BigDecimal(input);
-        BigDecimal expBigDec = BigDecimalUtils.exp(bigDec, bigDec.scale());
-        BigDecimal one = new BigDecimal(1.0);
-        BigDecimal oneMinusExpBigDec = one.subtract(expBigDec);
-        BigDecimal logOneMinusExpBigDec = BigDecimalUtils.ln(oneMinusExpBigDec, oneMinusExpBigDec.scale());
-        return logOneMinusExpBigDec.doubleValue();
+    public void format(final LogBuffer buffer, final PrintStream out){
+        for(int i=0; i<tree.getElementList().size(); i++){
+            out.print(buffer.nextDouble() + "\t");
+        }
+        out.print(buffer.nextDouble() + "\t");
     }
 
     @Override
@@ -243,6 +243,84 @@ public class LambertW {
 		return result.val;
 	}
 
+	/* Batched principal branch: out[i] = W0(x[i]) for the first n values.
+	 * Uses the same starting points as gsl_sf_lambert_W0_e but at most HALLEY_STEPS Halley steps, stopping early
+	 * only once a step would change nothing, and no error estimates, so there is no allocation; from those starting
+	 * points the cubic convergence of Halley's method reaches double precision well within HALLEY_STEPS. Above
+	 * LARGE_X, w*exp(w) and exp(w)*(w + 1) overflow, so there the step is taken with both divided through by exp(w).
+	 * Values below -1/e give -1, as branch0 does. This saves the per-call allocation of the scalar version, but it
+	 * is no faster.
+	 */
+	static final int HALLEY_STEPS = 5;
+	static final double LARGE_X = 1.0e300;
+
+	static public void branch0(double[] x, double[] out, int n)
+	{
+		final double one_over_E = 1.0/M_E;
+
+		for(int i=0; i<n; i++) {
+			final double xi = x[i];
+			final double q = xi + one_over_E;
+			double w;
+
+			if(xi == 0.0) {
+				out[i] = 0.0;
+				continue;
+			}
+			else if(q <= 0.0) {
+				out[i] = -1.0;
+				continue;
+			}
+			else if(q < 1.0e-03) {
+				out[i] = series_eval(Math.sqrt(q));
+				continue;
+			}
+			else if(xi == Double.POSITIVE_INFINITY) {
+				out[i] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			else if(xi < 1.0) {
+				final double p = Math.sqrt(2.0 * M_E * q);
+				w = -1.0 + p*(1.0 + p*(-1.0/3.0 + p*11.0/72.0));
+			}
+			else {
+				w = Math.log(xi);
+				if(xi > 3.0) w -= Math.log(w);
+			}
+
+			if(xi > LARGE_X) {
+				for(int step=0; step<HALLEY_STEPS; step++) {
+					final double p = w + 1.0;
+					final double t = w - xi*Math.exp(-w);
+					if(t == 0.0) {
+						break;
+					}
+					w -= t / (p - 0.5*(p + 1.0)*t/p);
+				}
+			}
+			else {
+				for(int step=0; step<HALLEY_STEPS; step++) {
+					final double e = Math.exp(w);
+					final double p = w + 1.0;
+					final double t = w*e - xi;
+					if(t == 0.0) {
+						break;
+					}
+					w -= t / (e*p - 0.5*(p + 1.0)*t/p);
+				}
+			}
+
+			out[i] = w;
+		}
+	}
+
+	static public double[] branch0(double[] x)
+	{
+		double[] out = new double[x.length];
+		branch0(x, out, x.length);
+		return out;
+	}
+
 	static public double branchNeg1(double x)
 	{
 		gsl_sf_result result = new gsl_sf_result();
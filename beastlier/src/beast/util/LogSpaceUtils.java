@@ -0,0 +1,138 @@
+/*
+* File LogSpaceUtils.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.util;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Arithmetic on numbers stored as their logarithms, in double precision. These are for the places where exp(x) rounds
+ * to 0 or 1 and BigDecimalUtils would otherwise be needed.
+ */
+
+public class LogSpaceUtils {
+
+    private static final double LOG_HALF = -Math.log(2);
+
+    /**
+     * log(1 - exp(x)) for x <= 0. Chooses between the two forms following Maechler, "Accurately computing
+     * log(1 - exp(-|a|))" (2012); each is accurate on one side of -log(2).
+     */
+    public static double log1mexp(double x){
+        if(x > 0){
+            return Double.NaN;
+        }
+        if(x > LOG_HALF){
+            return Math.log(-Math.expm1(x));
+        } else {
+            return Math.log1p(-Math.exp(x));
+        }
+    }
+
+    /**
+     * log(1 + exp(x))
+     */
+    public static double log1pexp(double x){
+        if(x <= -37){
+            return Math.exp(x);
+        } else if(x <= 18){
+            return Math.log1p(Math.exp(x));
+        } else if(x <= 33.3){
+            return x + Math.exp(-x);
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * log(exp(a) + exp(b))
+     */
+    public static double logSumExp(double a, double b){
+        if(a == Double.NEGATIVE_INFINITY){
+            return b;
+        }
+        if(b == Double.NEGATIVE_INFINITY){
+            return a;
+        }
+        return a > b ? a + log1pexp(b - a) : b + log1pexp(a - b);
+    }
+
+    /**
+     * log of the sum of the exponentials of the values
+     */
+    public static double logSumExp(double[] values){
+        double max = Double.NEGATIVE_INFINITY;
+        for(double value : values){
+            if(value > max){
+                max = value;
+            }
+        }
+        if(max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY){
+            return max;
+        }
+        //one copy of the maximum is left out of the sum, so that log1p keeps the accuracy when the rest are small
+        double sum = 0;
+        boolean maxSkipped = false;
+        for(double value : values){
+            if(value == max && !maxSkipped){
+                maxSkipped = true;
+            } else {
+                sum += Math.exp(value - max);
+            }
+        }
+        return max + Math.log1p(sum);
+    }
+
+    /**
+     * log(exp(a) - exp(b)) for a >= b; negative infinity if they are equal
+     */
+    public static double logDiffExp(double a, double b){
+        if(b > a){
+            return Double.NaN;
+        }
+        if(b == Double.NEGATIVE_INFINITY){
+            return a;
+        }
+        return a + log1mexp(b - a);
+    }
+
+    /**
+     * 1 - exp(x), without the cancellation when x is small
+     */
+    public static double oneMinusExp(double x){
+        return -Math.expm1(x);
+    }
+
+    /**
+     * log(exp(x) - 1) for x > 0
+     */
+    public static double logExpm1(double x){
+        if(x <= 0){
+            return x == 0 ? Double.NEGATIVE_INFINITY : Double.NaN;
+        }
+        if(x > 37){
+            return x + Math.log1p(-Math.exp(-x));
+        }
+        return Math.log(Math.expm1(x));
+    }
+
+}
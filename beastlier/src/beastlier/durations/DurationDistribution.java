@@ -47,4 +47,11 @@ public abstract class DurationDistribution extends CalculationNode {
     public double getLogProbability(Function values){
         return 1;
     }
+
+    // The derivative of getLogProbability with respect to the value with the given index; zero in the base version
+    // as there is nothing to differentiate
+
+    public double getLogProbabilityDerivative(Function values, int index){
+        return 0;
+    }
 }
@@ -26,6 +26,7 @@ import beast.core.Description;
 import beast.core.Function;
 import beast.core.Input;
 import beast.math.distributions.ParametricDistribution;
+import beastlier.util.GradientProvider;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
@@ -51,4 +52,10 @@ public class IndividualPriorDurationDistribution extends DurationDistribution {
         return distribution.calcLogP(values);
     }
 
+    //the values are independent, so only the density of this one matters
+
+    public double getLogProbabilityDerivative(Function values, int index){
+        return GradientProvider.Util.centralDifference(distribution::logDensity, values.getArrayValue(index));
+    }
+
 }
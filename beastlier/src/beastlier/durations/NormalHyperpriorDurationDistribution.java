@@ -85,4 +85,35 @@ public class NormalHyperpriorDurationDistribution extends DurationDistribution {
                 - (count/2)*Math.log(2*Math.PI);
 
     }
+
+    //only beta_n depends on the values
+
+    public double getLogProbabilityDerivative(Function values, int index){
+
+        int count = values.getDimension();
+
+        double mu_0 = distribution.getMu();
+        double lambda_0 = distribution.getLambda();
+        double alpha_0 = distribution.getAlpha();
+        double beta_0 = distribution.getBeta();
+
+        double alpha_n = alpha_0 + count/2;
+        double sum = 0;
+        for (Double infPeriod : values.getDoubleValues()) {
+            sum += infPeriod;
+        }
+        double mean = sum/count;
+
+        double sumOfDifferences = 0;
+        for (Double duration : values.getDoubleValues()) {
+            sumOfDifferences += Math.pow(duration-mean,2);
+        }
+
+        double beta_n = beta_0 + 0.5*sumOfDifferences
+                + lambda_0*count*Math.pow(mean-mu_0, 2)/(2*(lambda_0+count));
+
+        double betaDerivative = (values.getArrayValue(index) - mean) + lambda_0*(mean-mu_0)/(lambda_0+count);
+
+        return -alpha_n*betaDerivative/beta_n;
+    }
 }
@@ -50,6 +50,14 @@ public class ExponentialSpatialKernel extends SpatialKernel {
         return(Math.exp(-distance * alphaValue));
     }
 
+    @Override
+    public double getDerivative(double distance, RealParameter parameter) {
+        if(parameter != alpha){
+            return 0;
+        }
+        return -distance * value(distance);
+    }
+
     @Override
     public List<String> getParameterIds() {
         return Collections.singletonList(alphaInput.get().getID());
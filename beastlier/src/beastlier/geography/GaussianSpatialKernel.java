@@ -50,6 +50,14 @@ public class GaussianSpatialKernel extends SpatialKernel {
         return Math.exp(-Math.pow(distance, 2) * alphaValue);
     }
 
+    @Override
+    public double getDerivative(double distance, RealParameter parameter) {
+        if(parameter != alpha){
+            return 0;
+        }
+        return -Math.pow(distance, 2) * value(distance);
+    }
+
     @Override
     public List<String> getParameterIds() {
         return Collections.singletonList(alphaInput.get().getID());
@@ -55,6 +55,20 @@ public class LogisticSpatialKernel extends SpatialKernel {
         return 1/(1+Math.pow((distance/r0Value), alphaValue));
     }
 
+    @Override
+    public double getDerivative(double distance, RealParameter parameter) {
+        double alphaValue = alpha.getValue();
+        double r0Value = r0.getValue();
+        double power = Math.pow((distance/r0Value), alphaValue);
+
+        if(parameter == alpha){
+            return -power * Math.log(distance/r0Value) / Math.pow(1+power, 2);
+        } else if(parameter == r0){
+            return alphaValue * power / (r0Value * Math.pow(1+power, 2));
+        }
+        return 0;
+    }
+
     @Override
     public List<String> getParameterIds() {
         List<String> out = new ArrayList<>();
@@ -50,6 +50,14 @@ public class PowerLawSpatialKernel extends SpatialKernel {
         return Math.pow(distance, -alphaValue);
     }
 
+    @Override
+    public double getDerivative(double distance, RealParameter parameter) {
+        if(parameter != alpha){
+            return 0;
+        }
+        return -Math.log(distance) * value(distance);
+    }
+
     @Override
     public List<String> getParameterIds() {
         return Collections.singletonList(alphaInput.get().getID());
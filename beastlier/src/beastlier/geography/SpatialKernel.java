@@ -25,6 +25,7 @@ package beastlier.geography;
 
 import beast.core.CalculationNode;
 import beast.core.Description;
+import beast.core.parameter.RealParameter;
 import beastlier.outbreak.GeographicallyLocatedClinicalCase;
 import org.apache.commons.math.FunctionEvaluationException;
 import org.apache.commons.math.analysis.UnivariateRealFunction;
@@ -40,12 +41,23 @@ public abstract class SpatialKernel extends CalculationNode implements Univariat
 
     public abstract List<String> getParameterIds();
 
+    /**
+     * @return the derivative of the value at this distance with respect to parameter, or zero if the kernel does not
+     * depend on it
+     */
+    public abstract double getDerivative(double distance, RealParameter parameter);
+
     public double getValue(GeographicallyLocatedClinicalCase case1, GeographicallyLocatedClinicalCase case2) throws
             FunctionEvaluationException{
         return value(Util.EuclideanDistance(case1.getCoordinates(), case2.getCoordinates()));
 
     }
 
+    public double getDerivative(GeographicallyLocatedClinicalCase case1, GeographicallyLocatedClinicalCase case2,
+                                RealParameter parameter){
+        return getDerivative(Util.EuclideanDistance(case1.getCoordinates(), case2.getCoordinates()), parameter);
+    }
+
     public static class Util{
 
         public static double EuclideanDistance(double[] point1, double[] point2){
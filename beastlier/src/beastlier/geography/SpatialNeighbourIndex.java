@@ -0,0 +1,125 @@
+/*
+* File SpatialNeighbourIndex.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.geography;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * For each of a set of points, the others within a given distance of it and how far away they are, worked out once.
+ * With a finite distance the points are bucketed into a grid of squares of that size, so only the eight squares
+ * around a point's own need to be searched; with an infinite one every point is a neighbour of every other.
+ *
+ * Neighbours are listed in order of their index, and a point is not its own neighbour.
+ */
+
+public class SpatialNeighbourIndex {
+
+    private final int[][] neighbours;
+    private final double[][] distances;
+
+    public SpatialNeighbourIndex(List<double[]> coordinates, double maxDistance){
+        if(!(maxDistance > 0)){
+            throw new IllegalArgumentException("The maximum distance must be positive");
+        }
+
+        int count = coordinates.size();
+        neighbours = new int[count][];
+        distances = new double[count][];
+
+        Map<Long, List<Integer>> grid = null;
+        if(!Double.isInfinite(maxDistance)){
+            grid = new HashMap<>();
+            for(int i=0; i<count; i++){
+                grid.computeIfAbsent(cellKey(cell(coordinates.get(i)[0], maxDistance),
+                        cell(coordinates.get(i)[1], maxDistance)), key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<Integer> found = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            double[] point = coordinates.get(i);
+            found.clear();
+
+            if(grid == null){
+                for(int j=0; j<count; j++){
+                    if(j != i){
+                        found.add(j);
+                    }
+                }
+            } else {
+                long x = cell(point[0], maxDistance);
+                long y = cell(point[1], maxDistance);
+                for(long dx=-1; dx<=1; dx++){
+                    for(long dy=-1; dy<=1; dy++){
+                        List<Integer> bucket = grid.get(cellKey(x+dx, y+dy));
+                        if(bucket != null){
+                            for(int j : bucket){
+                                if(j != i && SpatialKernel.Util.EuclideanDistance(point, coordinates.get(j))
+                                        <= maxDistance){
+                                    found.add(j);
+                                }
+                            }
+                        }
+                    }
+                }
+                found.sort(null);
+            }
+
+            neighbours[i] = new int[found.size()];
+            distances[i] = new double[found.size()];
+            for(int k=0; k<found.size(); k++){
+                neighbours[i][k] = found.get(k);
+                distances[i][k] = SpatialKernel.Util.EuclideanDistance(point, coordinates.get(found.get(k)));
+            }
+        }
+    }
+
+    private static long cell(double coordinate, double size){
+        return (long)Math.floor(coordinate/size);
+    }
+
+    //exact as long as neither cell number needs more than 32 bits
+
+    private static long cellKey(long x, long y){
+        return (x << 32) ^ (y & 0xffffffffL);
+    }
+
+    public int[] getNeighbours(int index){
+        return neighbours[index];
+    }
+
+    public double[] getDistances(int index){
+        return distances[index];
+    }
+
+    public boolean areNeighbours(int index, int other){
+        return Arrays.binarySearch(neighbours[index], other) >= 0;
+    }
+
+}
@@ -26,6 +26,9 @@ import beast.evolution.operators.Exchange;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
@@ -33,6 +36,9 @@ import beast.evolution.tree.PartitionedTreeNode;
 
 public class CottamExchange extends Exchange {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     @Override
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
@@ -43,6 +49,13 @@ public class CottamExchange extends Exchange {
         }
     }
 
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        double logHastingsRatio = TransmissionConstraints.filter(constraintsInput.get(), this, super.proposal());
+        return Profiler.proposed(this, start, logHastingsRatio);
+    }
+
     protected void exchangeNodes(Node i, Node j,
                                  Node p, Node jP) {
         replace(p, i, j);
@@ -26,6 +26,9 @@ import beast.evolution.operators.TreeOperator;
 import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.util.Randomizer;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
@@ -33,6 +36,9 @@ import beast.util.Randomizer;
 
 public class CottamFlipper extends TreeOperator {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
             throw new RuntimeException("This operator is designed for partitioned trees only");
@@ -43,7 +49,13 @@ public class CottamFlipper extends TreeOperator {
     }
 
 
+    @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
 
         //note that in second type trees there's no need to use the partition-dirty flag, as that is used by the
         //within-host model
@@ -0,0 +1,340 @@
+/*
+* File CottamInfectorReassignment.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.operators.TreeOperator;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTree;
+import beast.evolution.tree.PartitionedTreeNode;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beast.util.Randomizer;
+import beastlier.geography.SpatialKernel;
+import beastlier.geography.SpatialNeighbourIndex;
+import beastlier.outbreak.ClinicalCase;
+import beastlier.outbreak.GeographicallyLocatedClinicalCase;
+import beastlier.outbreak.Outbreak;
+import beastlier.util.Profiler;
+import org.apache.commons.math.FunctionEvaluationException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Gives a host a new infector, chosen with probability proportional to the kernel value between the two hosts times
+ * the length of time during which the candidate was infected and not yet at its end time, before the host's first
+ * node. The host's subtree is pruned along with the node above it (which belonged to the old infector), and that
+ * node is put back on a branch whose lower node belongs to the new infector, chosen uniformly, at a height uniform on
+ * that branch. The move is rejected if the other child of the pruned node does not belong to the old infector, since
+ * the move back could not then choose the branch it came from.
+ *
+ * Candidates are the hosts within maxDistance of the host being moved, worked out once at the start; hosts in the
+ * host's own subtree can't be candidates. The weights depend on the infection times of the candidates, which the
+ * move itself can change, so the reverse weights are worked out again afterwards and the Hastings ratio is exact.
+ *
+ * For trees with partition rules of the second type, where a host is infected at the height of the parent of its
+ * earliest node.
+ */
+
+@Description("Infector reassignment proposal with candidates weighted by kernel and infectious time")
+public class CottamInfectorReassignment extends TreeOperator {
+
+    public Input<SpatialKernel> kernelInput = new Input<>("kernel", "The spatial kernel used to weight candidate " +
+            "infectors; if absent, all candidates are weighted equally in space");
+    public Input<Double> maxDistanceInput = new Input<>("maxDistance", "Only hosts this close are candidate " +
+            "infectors (default is no limit)", Double.POSITIVE_INFINITY);
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
+    private EpidemiologicalPartitionedTree tree;
+    private SpatialKernel kernel;
+    private SpatialNeighbourIndex neighbourIndex;
+    private ClinicalCase[] cases;
+
+    @Override
+    public void initAndValidate() {
+        if(!(treeInput.get() instanceof EpidemiologicalPartitionedTree)){
+            throw new RuntimeException("This operator is designed for transmission trees only");
+        }
+        tree = (EpidemiologicalPartitionedTree)treeInput.get();
+        if(tree.rules != PartitionedTree.Rules.COTTAM){
+            throw new RuntimeException("This operator is designed for trees with partition rules of the second type");
+        }
+
+        Outbreak outbreak = tree.outbreakInput.get();
+        kernel = kernelInput.get();
+        if(kernel != null && !outbreak.hasGeography()){
+            throw new IllegalArgumentException("Kernel specified but ClinicalCases have no attached geographical" +
+                    " information");
+        }
+
+        List<String> elements = tree.getElementList();
+        cases = new ClinicalCase[elements.size()];
+        List<double[]> coordinates = new ArrayList<>();
+        for(int i=0; i<elements.size(); i++){
+            cases[i] = outbreak.getCaseByID(elements.get(i));
+            coordinates.add(outbreak.hasGeography()
+                    ? ((GeographicallyLocatedClinicalCase)cases[i]).getCoordinates() : new double[]{0, 0});
+        }
+        if(!outbreak.hasGeography() && !Double.isInfinite(maxDistanceInput.get())){
+            throw new IllegalArgumentException("A maximum distance needs hosts with locations");
+        }
+        neighbourIndex = new SpatialNeighbourIndex(coordinates, maxDistanceInput.get());
+    }
+
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
+        int elementCount = tree.getNElements();
+
+        PartitionedTreeNode[] earliestNodes = findEarliestNodes(elementCount);
+        List<Integer> eligible = getEligibleElements(earliestNodes);
+        if(eligible.isEmpty()){
+            return Double.NEGATIVE_INFINITY;
+        }
+        int oldEligibleCount = eligible.size();
+
+        int moving = eligible.get(Randomizer.nextInt(eligible.size()));
+        PartitionedTreeNode i = earliestNodes[moving];
+        PartitionedTreeNode iP = (PartitionedTreeNode)i.getParent();
+        int oldInfector = iP.getPartitionElementNumber();
+        if(oldInfector == -1 || !neighbourIndex.areNeighbours(moving, oldInfector)){
+            //the reverse move could never choose it
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        //the moving host and everything it infected go with it
+        BitSet subtreeElements = getSubtreeElements(i);
+        double firstNodeDate = tree.getDate(i.getHeight());
+
+        int[] candidates = neighbourIndex.getNeighbours(moving);
+        double[] distances = neighbourIndex.getDistances(moving);
+        double[] forwardWeights = getWeights(candidates, distances, subtreeElements, firstNodeDate,
+                getInfectionHeights(earliestNodes));
+
+        double forwardTotal = 0;
+        for(int k=0; k<candidates.length; k++){
+            if(candidates[k] != oldInfector){
+                forwardTotal += forwardWeights[k];
+            }
+        }
+        if(forwardTotal == 0){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        int newInfectorIndex = -1;
+        double draw = Randomizer.nextDouble()*forwardTotal;
+        for(int k=0; k<candidates.length; k++){
+            if(candidates[k] != oldInfector && forwardWeights[k] > 0){
+                newInfectorIndex = k;
+                draw -= forwardWeights[k];
+                if(draw < 0){
+                    break;
+                }
+            }
+        }
+        int newInfector = candidates[newInfectorIndex];
+
+        // prune; the rest of the tree is the same before and after the move, so the branches to choose from in
+        // both directions are counted in it
+
+        final PartitionedTreeNode CiP = (PartitionedTreeNode)getOtherChild(iP, i);
+        final PartitionedTreeNode PiP = (PartitionedTreeNode)iP.getParent();
+        if(CiP.getPartitionElementNumber() != oldInfector){
+            //the branch the pruned node came from is not one that getBranches would offer for the move back
+            return Double.NEGATIVE_INFINITY;
+        }
+        replace(PiP, iP, CiP);
+
+        List<PartitionedTreeNode> forwardBranches = getBranches(newInfector, i.getHeight());
+        int reverseBranchCount = getBranches(oldInfector, i.getHeight()).size();
+
+        if(forwardBranches.isEmpty()){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        final PartitionedTreeNode j = forwardBranches.get(Randomizer.nextInt(forwardBranches.size()));
+        final PartitionedTreeNode jP = (PartitionedTreeNode)j.getParent();
+
+        double newMinAge = Math.max(i.getHeight(), j.getHeight());
+        double newRange = jP.getHeight() - newMinAge;
+        double oldMinAge = Math.max(i.getHeight(), CiP.getHeight());
+        double oldRange = PiP.getHeight() - oldMinAge;
+        if (oldRange == 0 || newRange == 0) {
+            // as in Wilson-Balding, zero-length branches would make the ratio infinite one way or the other
+            return Double.NEGATIVE_INFINITY;
+        }
+        double newAge = newMinAge + (Randomizer.nextDouble() * newRange);
+
+        // re-attach
+        replace(iP, CiP, j);
+        replace(jP, j, iP);
+        iP.setHeight(newAge);
+        iP.setPartitionElementNumber(newInfector);
+        iP.setPartitionDirty(true);
+
+        // the reverse move, from the new state
+
+        PartitionedTreeNode[] newEarliestNodes = findEarliestNodes(elementCount);
+        int newEligibleCount = getEligibleElements(newEarliestNodes).size();
+        double[] reverseWeights = getWeights(candidates, distances, subtreeElements, firstNodeDate,
+                getInfectionHeights(newEarliestNodes));
+
+        double reverseTotal = 0;
+        double reverseWeight = 0;
+        for(int k=0; k<candidates.length; k++){
+            if(candidates[k] == oldInfector){
+                reverseWeight = reverseWeights[k];
+            } else if(candidates[k] != newInfector){
+                reverseTotal += reverseWeights[k];
+            }
+        }
+        if(reverseWeight == 0){
+            return Double.NEGATIVE_INFINITY;
+        }
+        reverseTotal += reverseWeight;
+
+        double logHastingsRatio = Math.log((double)oldEligibleCount/newEligibleCount);
+        logHastingsRatio += Math.log(reverseWeight/reverseTotal) - Math.log(forwardWeights[newInfectorIndex]
+                /forwardTotal);
+        logHastingsRatio += Math.log((double)forwardBranches.size()/reverseBranchCount);
+        logHastingsRatio += Math.log(newRange/oldRange);
+
+        return logHastingsRatio;
+    }
+
+    private PartitionedTreeNode[] findEarliestNodes(int elementCount){
+        PartitionedTreeNode[] out = new PartitionedTreeNode[elementCount];
+        for(Node node : tree.getNodesAsArray()){
+            PartitionedTreeNode castNode = (PartitionedTreeNode)node;
+            int elementNo = castNode.getPartitionElementNumber();
+            if(elementNo != -1 && (node.isRoot()
+                    || ((PartitionedTreeNode)node.getParent()).getPartitionElementNumber() != elementNo)){
+                out[elementNo] = castNode;
+            }
+        }
+        return out;
+    }
+
+    //hosts with an infector in the tree that isn't at its root; nothing can be moved above the root
+
+    private List<Integer> getEligibleElements(PartitionedTreeNode[] earliestNodes){
+        List<Integer> out = new ArrayList<>();
+        for(int e=0; e<earliestNodes.length; e++){
+            PartitionedTreeNode node = earliestNodes[e];
+            if(node != null && !node.isRoot() && !node.getParent().isRoot()){
+                out.add(e);
+            }
+        }
+        return out;
+    }
+
+    //infection heights worked out from the nodes rather than the tree's caches, which may not know about the move
+
+    private double[] getInfectionHeights(PartitionedTreeNode[] earliestNodes){
+        double[] out = new double[earliestNodes.length];
+        for(int e=0; e<earliestNodes.length; e++){
+            PartitionedTreeNode node = earliestNodes[e];
+            if(node == null){
+                out[e] = Double.NEGATIVE_INFINITY;
+            } else if(node.isRoot()){
+                out[e] = node.getHeight() + tree.getRootBranchLength();
+            } else {
+                out[e] = node.getParent().getHeight();
+            }
+        }
+        return out;
+    }
+
+    private BitSet getSubtreeElements(PartitionedTreeNode top){
+        BitSet out = new BitSet();
+        List<Node> stack = new ArrayList<>();
+        stack.add(top);
+        while(!stack.isEmpty()){
+            PartitionedTreeNode node = (PartitionedTreeNode)stack.remove(stack.size()-1);
+            if(node.getPartitionElementNumber() != -1){
+                out.set(node.getPartitionElementNumber());
+            }
+            stack.addAll(node.getChildren());
+        }
+        return out;
+    }
+
+    // Kernel value times the time during which the candidate was infected, had not reached its end time, and the
+    // moving host had not yet reached its first node
+
+    private double[] getWeights(int[] candidates, double[] distances, BitSet excluded, double firstNodeDate,
+                                double[] infectionHeights){
+        double[] out = new double[candidates.length];
+        for(int k=0; k<candidates.length; k++){
+            int candidate = candidates[k];
+            if(excluded.get(candidate) || infectionHeights[candidate] == Double.NEGATIVE_INFINITY){
+                continue;
+            }
+            double overlap = Math.min(cases[candidate].getEndTime(), firstNodeDate)
+                    - tree.getDate(infectionHeights[candidate]);
+            if(overlap <= 0){
+                continue;
+            }
+            double kernelValue = 1;
+            if(kernel != null){
+                try {
+                    kernelValue = kernel.value(distances[k]);
+                } catch (FunctionEvaluationException e){
+                    throw new RuntimeException("Could not evaluate the kernel at distance " + distances[k]);
+                }
+            }
+            out[k] = kernelValue*overlap;
+        }
+        return out;
+    }
+
+    // The branches in the tree from the root down (so not the pruned subtree) that the pruned node could go on and
+    // belong to the given host: those whose bottom is in it, and whose top is above the subtree. A branch with only its
+    // top in the host leads to another host, whose infection time would move to the new node.
+
+    private List<PartitionedTreeNode> getBranches(int elementNo, double minHeight){
+        List<PartitionedTreeNode> out = new ArrayList<>();
+        List<Node> stack = new ArrayList<>();
+        stack.add(tree.getRoot());
+        while(!stack.isEmpty()){
+            PartitionedTreeNode node = (PartitionedTreeNode)stack.remove(stack.size()-1);
+            PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
+            if(parent != null && parent.getHeight() > minHeight && node.getPartitionElementNumber() == elementNo){
+                out.add(node);
+            }
+            stack.addAll(node.getChildren());
+        }
+        return out;
+    }
+
+}
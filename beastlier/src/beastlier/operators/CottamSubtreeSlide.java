@@ -28,6 +28,9 @@ import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -40,6 +43,9 @@ import java.util.List;
 
 public class CottamSubtreeSlide extends SubtreeSlide {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     double size;
     double limit;
 
@@ -56,6 +62,11 @@ public class CottamSubtreeSlide extends SubtreeSlide {
 
     @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
         double logq;
@@ -151,7 +162,7 @@ public class CottamSubtreeSlide extends SubtreeSlide {
                 p.setHeight(newHeight);
 
                 // 3.1.3 count the hypothetical sources of this destination.
-                final int possibleSources = intersectingEdges(newChild, oldHeight, null);
+                final int possibleSources = tree.findSpanningBranches(newChild, oldHeight, null);
                 //System.out.println("possible sources = " + possibleSources);
 
                 logq = -Math.log(possibleSources);
@@ -174,7 +185,7 @@ public class CottamSubtreeSlide extends SubtreeSlide {
             if (CiP.getHeight() > newHeight) {
 
                 final List<Node> newChildren = new ArrayList<>();
-                final int possibleDestinations = intersectingEdges(CiP, newHeight, newChildren);
+                final int possibleDestinations = tree.findSpanningBranches(CiP, newHeight, newChildren);
 
                 // if no valid destinations then return a failure
                 if (newChildren.size() == 0) {
@@ -260,25 +271,6 @@ public class CottamSubtreeSlide extends SubtreeSlide {
         return logq;
     }
 
-    private int intersectingEdges(Node node, double height, List<Node> directChildren) {
-        final Node parent = node.getParent();
-
-        if (parent.getHeight() < height) return 0;
-
-        if (node.getHeight() < height) {
-            if (directChildren != null) directChildren.add(node);
-            return 1;
-        }
-
-        if (node.isLeaf()) {
-            return 0;
-        } else {
-            final int count = intersectingEdges(node.getLeft(), height, directChildren) +
-                    intersectingEdges(node.getRight(), height, directChildren);
-            return count;
-        }
-    }
-
     private double getDelta() {
         if (!gaussianInput.get()) {
             return (Randomizer.nextDouble() * size) - (size / 2.0);
@@ -28,6 +28,9 @@ import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
@@ -35,6 +38,9 @@ import beast.util.Randomizer;
 
 public class CottamWilsonBalding extends WilsonBalding {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     @Override
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
@@ -47,6 +53,11 @@ public class CottamWilsonBalding extends WilsonBalding {
 
     @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
         PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
         double oldMinAge, newMinAge, newRange, oldRange, newAge, hastingsRatio;
@@ -30,6 +30,9 @@ import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
 import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -42,6 +45,9 @@ import java.util.List;
         "is unchanged")
 public class DidelotExchangeA extends TreeOperator {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     @Override
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
@@ -52,13 +58,18 @@ public class DidelotExchangeA extends TreeOperator {
         }
     }
 
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
     /**
      * override this for proposals,
      *
      * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
      */
-    @Override
-    public double proposal() {
+    private double propose() {
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
         double fLogHastingsRatio = 0;
@@ -30,6 +30,9 @@ import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
 import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.util.ArrayList;
 
@@ -40,6 +43,9 @@ import java.util.ArrayList;
         "beast/evolution/tree")
 public class DidelotExchangeB extends TreeOperator {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
 
     @Override
     public void initAndValidate() {
@@ -51,13 +57,18 @@ public class DidelotExchangeB extends TreeOperator {
         }
     }
 
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
     /**
      * override this for proposals,
      *
      * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
      */
-    @Override
-    public double proposal() {
+    private double propose() {
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
         double fLogHastingsRatio = 0;
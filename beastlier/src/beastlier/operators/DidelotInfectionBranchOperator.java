@@ -28,6 +28,9 @@ import beast.evolution.tree.Node;
 import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.util.Randomizer;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.util.ArrayList;
 
@@ -37,6 +40,9 @@ import java.util.ArrayList;
 
 public class DidelotInfectionBranchOperator extends TreeOperator{
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
             throw new RuntimeException("This operator is designed for partitioned trees only");
@@ -47,7 +53,13 @@ public class DidelotInfectionBranchOperator extends TreeOperator{
     }
 
 
+    @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
 
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
@@ -0,0 +1,343 @@
+/*
+* File DidelotPartitionGibbsOperator.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.operators;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Evaluator;
+import beast.core.Input;
+import beast.evolution.operators.TreeOperator;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTree;
+import beast.evolution.tree.PartitionedTreeNode;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beast.util.Randomizer;
+import beastlier.util.Profiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Gibbs sampling of the partition over a block of the tree. An internal node is picked uniformly, and the block is
+ * the internal nodes down to depth generations below it. Every assignment of the nodes in the block that leaves each
+ * element connected (which implies the rules that PartitionedTree.isValid checks) is listed, working down from the
+ * top of the block; a node can only take its parent's element or one found below it. The posterior is calculated for
+ * each, and one is drawn in proportion.
+ *
+ * The block depends only on the topology, which this doesn't change, and the list of assignments only on what is
+ * around the block, so the move is a Gibbs update and is always accepted. It costs one posterior calculation for
+ * every assignment, so the depth should be kept small; if there are more than maxAssignments the move is rejected.
+ *
+ * For trees with partition rules of the third type, and no unsampled hosts.
+ */
+
+@Description("Gibbs update of the partition of a block of nodes, for trees with third-type rules")
+public class DidelotPartitionGibbsOperator extends TreeOperator {
+
+    public Input<Distribution> evaluatorInput = new Input<>("evaluator", "The posterior, which is calculated for " +
+            "every assignment", Input.Validate.REQUIRED);
+    public Input<Integer> depthInput = new Input<>("depth", "Number of generations of internal nodes in a block",
+            3);
+    public Input<Integer> maxAssignmentsInput = new Input<>("maxAssignments", "The move is rejected if a block " +
+            "has more assignments than this", 1000);
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, assignments " +
+            "that break these are given no weight without calculating the posterior");
+
+    private int depth;
+    private int maxAssignments;
+
+    @Override
+    public void initAndValidate() {
+        if(!(treeInput.get() instanceof PartitionedTree)){
+            throw new RuntimeException("This operator is designed for partitioned trees only");
+        }
+        if(!(((PartitionedTree) treeInput.get()).rules == PartitionedTree.Rules.DIDELOT)){
+            throw new RuntimeException("This operator is designed for trees with partition rules of the third type");
+        }
+        depth = depthInput.get();
+        maxAssignments = maxAssignmentsInput.get();
+        if(depth < 1){
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+    }
+
+    @Override
+    public Distribution getEvaluatorDistribution() {
+        return evaluatorInput.get();
+    }
+
+    @Override
+    public double proposal() {
+        throw new RuntimeException("DidelotPartitionGibbsOperator needs an evaluator");
+    }
+
+    @Override
+    public double proposal(Evaluator evaluator) {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, propose(evaluator));
+    }
+
+    // Nodes are referred to by number throughout, since each call to the evaluator restores the tree, and that
+    // swaps its node objects for the stored ones
+
+    private double propose(Evaluator evaluator) {
+        final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
+
+        int top = tree.getLeafNodeCount() + Randomizer.nextInt(tree.getInternalNodeCount());
+
+        // the block in pre-order, with the position of each node's parent in it (-1 for the top)
+
+        List<Integer> block = new ArrayList<>();
+        List<Integer> blockParents = new ArrayList<>();
+        List<Integer> levels = new ArrayList<>();
+        Map<Integer, Integer> positions = new HashMap<>();
+        List<Integer> stack = new ArrayList<>();
+        List<Integer> stackParents = new ArrayList<>();
+        List<Integer> stackLevels = new ArrayList<>();
+        stack.add(top);
+        stackParents.add(-1);
+        stackLevels.add(0);
+        while(!stack.isEmpty()){
+            int last = stack.size()-1;
+            int nr = stack.remove(last);
+            int parentPosition = stackParents.remove(last);
+            int level = stackLevels.remove(last);
+
+            positions.put(nr, block.size());
+            block.add(nr);
+            blockParents.add(parentPosition);
+            levels.add(level);
+
+            Node node = tree.getNode(nr);
+            for(int c=node.getChildCount()-1; c>=0; c--){
+                Node child = node.getChild(c);
+                if(!child.isLeaf() && level+1 < depth){
+                    stack.add(child.getNr());
+                    stackParents.add(positions.get(nr));
+                    stackLevels.add(level+1);
+                }
+            }
+        }
+        int blockSize = block.size();
+
+        Node topNode = tree.getNode(top);
+        int upperElement = topNode.isRoot() ? -2
+                : ((PartitionedTreeNode)topNode.getParent()).getPartitionElementNumber();
+        if(upperElement == -1){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // the elements that each node could take from below, working up from the bottom of the block
+
+        List<Set<Integer>> fromBelow = new ArrayList<>();
+        for(int p=0; p<blockSize; p++){
+            fromBelow.add(new LinkedHashSet<>());
+        }
+        Set<Integer> affected = new LinkedHashSet<>();
+        for(int p=blockSize-1; p>=0; p--){
+            Node node = tree.getNode(block.get(p));
+            int element = ((PartitionedTreeNode)node).getPartitionElementNumber();
+            if(element == -1){
+                return Double.NEGATIVE_INFINITY;
+            }
+            affected.add(element);
+            for(Node child : node.getChildren()){
+                Integer childPosition = positions.get(child.getNr());
+                if(childPosition != null){
+                    fromBelow.get(p).addAll(fromBelow.get(childPosition));
+                } else {
+                    int childElement = ((PartitionedTreeNode)child).getPartitionElementNumber();
+                    if(childElement == -1){
+                        return Double.NEGATIVE_INFINITY;
+                    }
+                    fromBelow.get(p).add(childElement);
+                    affected.add(childElement);
+                }
+            }
+        }
+        if(upperElement >= 0){
+            affected.add(upperElement);
+        }
+
+        // nodes and same-element branches of each affected element outside the block; the element is connected if
+        // nodes minus branches is one
+
+        Map<Integer, Integer> outsideNodes = new HashMap<>();
+        Map<Integer, Integer> outsideBranches = new HashMap<>();
+        for(int element : affected){
+            outsideNodes.put(element, 0);
+            outsideBranches.put(element, 0);
+        }
+        for(Node node : tree.getNodesAsArray()){
+            if(positions.containsKey(node.getNr())){
+                continue;
+            }
+            int element = ((PartitionedTreeNode)node).getPartitionElementNumber();
+            if(outsideNodes.containsKey(element)){
+                outsideNodes.put(element, outsideNodes.get(element)+1);
+                Node parent = node.getParent();
+                if(parent != null && !positions.containsKey(parent.getNr())
+                        && ((PartitionedTreeNode)parent).getPartitionElementNumber() == element){
+                    outsideBranches.put(element, outsideBranches.get(element)+1);
+                }
+            }
+        }
+
+        // list the assignments
+
+        List<int[]> assignments = new ArrayList<>();
+        int[] current = new int[blockSize];
+        if(!enumerate(tree, 0, current, block, blockParents, positions, fromBelow, upperElement, affected,
+                outsideNodes, outsideBranches, assignments)){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // weigh them
+
+        TransmissionConstraints constraints = constraintsInput.get();
+        double[] logPs = new double[assignments.size()];
+        double maxLogP = Double.NEGATIVE_INFINITY;
+        for(int a=0; a<assignments.size(); a++){
+            assign(tree, block, assignments.get(a));
+            if(constraints != null && !constraints.accept(this)){
+                logPs[a] = Double.NEGATIVE_INFINITY;
+            } else {
+                logPs[a] = evaluator.evaluate();
+            }
+            maxLogP = Math.max(maxLogP, logPs[a]);
+        }
+        if(maxLogP == Double.NEGATIVE_INFINITY){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double total = 0;
+        double[] weights = new double[logPs.length];
+        for(int a=0; a<logPs.length; a++){
+            weights[a] = Math.exp(logPs[a] - maxLogP);
+            total += weights[a];
+        }
+        int chosen = -1;
+        double draw = Randomizer.nextDouble()*total;
+        for(int a=0; a<weights.length; a++){
+            if(weights[a] > 0){
+                chosen = a;
+                draw -= weights[a];
+                if(draw < 0){
+                    break;
+                }
+            }
+        }
+
+        assign(tree, block, assignments.get(chosen));
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    // Depth-first through the block in pre-order. Returns false if there are too many assignments.
+
+    private boolean enumerate(PartitionedTree tree, int position, int[] current, List<Integer> block,
+                              List<Integer> blockParents, Map<Integer, Integer> positions,
+                              List<Set<Integer>> fromBelow, int upperElement, Set<Integer> affected,
+                              Map<Integer, Integer> outsideNodes, Map<Integer, Integer> outsideBranches,
+                              List<int[]> assignments){
+        if(position == block.size()){
+            if(isConnected(tree, current, block, blockParents, positions, upperElement, affected, outsideNodes,
+                    outsideBranches)){
+                if(assignments.size() == maxAssignments){
+                    return false;
+                }
+                assignments.add(current.clone());
+            }
+            return true;
+        }
+
+        int parentElement = blockParents.get(position) == -1 ? upperElement : current[blockParents.get(position)];
+
+        Set<Integer> options = new LinkedHashSet<>(fromBelow.get(position));
+        if(parentElement >= 0){
+            options.add(parentElement);
+        }
+        for(int element : options){
+            current[position] = element;
+            if(!enumerate(tree, position+1, current, block, blockParents, positions, fromBelow, upperElement,
+                    affected, outsideNodes, outsideBranches, assignments)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isConnected(PartitionedTree tree, int[] current, List<Integer> block, List<Integer> blockParents,
+                                Map<Integer, Integer> positions, int upperElement, Set<Integer> affected,
+                                Map<Integer, Integer> outsideNodes, Map<Integer, Integer> outsideBranches){
+        Map<Integer, Integer> nodes = new HashMap<>(outsideNodes);
+        Map<Integer, Integer> branches = new HashMap<>(outsideBranches);
+
+        for(int p=0; p<block.size(); p++){
+            int element = current[p];
+            nodes.put(element, nodes.get(element)+1);
+
+            int parentElement = blockParents.get(p) == -1 ? upperElement : current[blockParents.get(p)];
+            if(parentElement == element){
+                branches.put(element, branches.get(element)+1);
+            }
+            for(Node child : tree.getNode(block.get(p)).getChildren()){
+                if(!positions.containsKey(child.getNr())
+                        && ((PartitionedTreeNode)child).getPartitionElementNumber() == element){
+                    branches.put(element, branches.get(element)+1);
+                }
+            }
+        }
+
+        for(int element : affected){
+            if(nodes.get(element) - branches.get(element) != 1){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void assign(PartitionedTree tree, List<Integer> block, int[] assignment){
+        for(int p=0; p<block.size(); p++){
+            PartitionedTreeNode node = (PartitionedTreeNode)tree.getNode(block.get(p));
+            if(node.getPartitionElementNumber() != assignment[p]){
+                node.setPartitionElementNumber(assignment[p]);
+                node.setMetaData(tree.getElementLabel(), tree.getElementString(assignment[p]));
+                node.setPartitionDirty(true);
+                if(node.getParent() != null){
+                    ((PartitionedTreeNode)node.getParent()).setPartitionDirty(true);
+                }
+                for(Node child : node.getChildren()){
+                    ((PartitionedTreeNode)child).setPartitionDirty(true);
+                }
+            }
+        }
+    }
+
+}
@@ -29,6 +29,8 @@ import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -39,6 +41,9 @@ import java.util.List;
  */
 public class DidelotSubtreeSlideA extends TreeOperator {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     final public Input<Double> sizeInput = new Input<>("size", "size of the slide, default 1.0", 1.0);
     final public Input<Boolean> gaussianInput = new Input<>("gaussian", "Gaussian (=true=default) or uniform delta",
             true);
@@ -62,13 +67,18 @@ public class DidelotSubtreeSlideA extends TreeOperator {
         limit = limitInput.get();
     }
 
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
     /**
      * Do a probabilistic subtree slide move.
      *
      * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
      */
-    @Override
-    public double proposal() {
+    private double propose() {
 
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
@@ -134,7 +144,7 @@ public class DidelotSubtreeSlideA extends TreeOperator {
                 iP.setHeight(newHeight);
 
                 // 3.1.3 count the hypothetical sources of this destination.
-                final int possibleSources = intersectingEdges(newChild, oldHeight, iPCase, null);
+                final int possibleSources = tree.findSpanningBranches(newChild, oldHeight, iPCase, null);
 
                 logq -= Math.log(possibleSources);
 
@@ -158,8 +168,8 @@ public class DidelotSubtreeSlideA extends TreeOperator {
             if (CiP.getHeight() > newHeight) {
 
                 List<PartitionedTreeNode> newChildren = new ArrayList<>();
-                final int possibleDestinations = intersectingEdges(CiP, newHeight, iP.getPartitionElementNumber(),
-                        newChildren);
+                final int possibleDestinations = tree.findSpanningBranches(CiP, newHeight,
+                        iP.getPartitionElementNumber(), newChildren);
 
                 // if no valid destinations then return a failure
                 if (newChildren.size() == 0) {
@@ -229,27 +239,6 @@ public class DidelotSubtreeSlideA extends TreeOperator {
                 || parent.getPartitionElementNumber() == sibling.getPartitionElementNumber()));
     }
 
-    //intersectingEdges here is modified to count only possible sources for this special case of the operator - i.e.
-    //only branches which have one end in the relevant partition
-
-    private int intersectingEdges(PartitionedTreeNode node, double height, int elementNo,
-                                  List<PartitionedTreeNode> directChildren) {
-        final PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
-        if (parent.getHeight() < height || parent.getPartitionElementNumber() != elementNo) return 0;
-        if (node.getHeight() < height) {
-            if (directChildren != null){
-                directChildren.add(node);
-            }
-            return 1;
-        }
-        int count = 0;
-        for (int i = 0; i < node.getChildCount(); i++) {
-            count += intersectingEdges((PartitionedTreeNode)node.getChild(i), height, elementNo, directChildren);
-        }
-        return count;
-    }
-
-
     private double getDelta() {
         if (!gaussianInput.get()) {
             return (Randomizer.nextDouble() * size) - (size / 2.0);
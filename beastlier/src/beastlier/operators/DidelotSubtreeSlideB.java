@@ -30,6 +30,8 @@ import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -41,6 +43,9 @@ import java.util.List;
 
 public class DidelotSubtreeSlideB extends TreeOperator {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     final public Input<Double> sizeInput = new Input<>("size", "size of the slide, default 1.0", 1.0);
     final public Input<Boolean> gaussianInput = new Input<>("gaussian", "Gaussian (=true=default) or uniform delta",
             true);
@@ -64,7 +69,13 @@ public class DidelotSubtreeSlideB extends TreeOperator {
         limit = limitInput.get();
     }
 
+    @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
 
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
@@ -131,7 +142,7 @@ public class DidelotSubtreeSlideB extends TreeOperator {
 
 
                 // 3.1.3 count the hypothetical sources of this destination.
-                final int possibleSources = intersectingEdges(newChild, oldHeight, null);
+                final int possibleSources = tree.findSpanningBranches(newChild, oldHeight, null);
 
                 logq = -Math.log(possibleSources);
 
@@ -181,7 +192,7 @@ public class DidelotSubtreeSlideB extends TreeOperator {
             if (CiP.getHeight() > newHeight) {
 
                 List<Node> newChildren = new ArrayList<>();
-                final int possibleDestinations = intersectingEdges(CiP, newHeight, newChildren);
+                final int possibleDestinations = tree.findSpanningBranches(CiP, newHeight, newChildren);
 
                 // if no valid destinations then return a failure
                 if (newChildren.size() == 0) {
@@ -258,25 +269,6 @@ public class DidelotSubtreeSlideB extends TreeOperator {
                 != node.getPartitionElementNumber());
     }
 
-    //intersectingEdges is the same as in normal STS, since there's no additional restriction in this case regarding
-    // where nodes can go, and the move does not modify eligibility for itself
-
-    private int intersectingEdges(Node node, double height, List<Node> directChildren) {
-        final Node parent = node.getParent();
-        if (parent.getHeight() < height) return 0;
-        if (node.getHeight() < height) {
-            if (directChildren != null) directChildren.add(node);
-            return 1;
-        }
-        if (node.isLeaf()) {
-            return 0;
-        } else {
-            final int count = intersectingEdges(node.getLeft(), height, directChildren) +
-                    intersectingEdges(node.getRight(), height, directChildren);
-            return count;
-        }
-    }
-
     private double getDelta() {
         if (!gaussianInput.get()) {
             return (Randomizer.nextDouble() * size) - (size / 2.0);
@@ -29,6 +29,9 @@ import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -39,6 +42,9 @@ import java.util.List;
 
 public class DidelotWilsonBaldingA extends TreeOperator{
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     @Override
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
@@ -49,7 +55,13 @@ public class DidelotWilsonBaldingA extends TreeOperator{
         }
     }
 
+    @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
 
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
@@ -27,6 +27,9 @@ import beast.evolution.operators.TreeOperator;
 import beast.evolution.tree.PartitionedTree;
 import beast.evolution.tree.PartitionedTreeNode;
 import beast.util.Randomizer;
+import beast.core.Input;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
@@ -34,6 +37,9 @@ import beast.util.Randomizer;
 
 public class DidelotWilsonBaldingB extends TreeOperator {
 
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
     @Override
     public void initAndValidate() {
         if(!(treeInput.get() instanceof PartitionedTree)){
@@ -44,7 +50,13 @@ public class DidelotWilsonBaldingB extends TreeOperator {
         }
     }
 
+    @Override
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
 
         final PartitionedTree tree = (PartitionedTree)treeInput.get(this);
 
@@ -26,11 +26,10 @@ import beast.core.Input;
 import beast.evolution.operators.TreeOperator;
 import beast.evolution.tree.*;
 import beast.util.Randomizer;
-import beastlier.util.PartitionedTreeLogger;
+import beastlier.util.DiagnosticTreeDumper;
+import beastlier.util.Profiler;
 import com.google.common.collect.Lists;
 
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
 import java.util.*;
 
 /**
@@ -47,6 +46,7 @@ public class GuidedSubtreeLeapA extends TreeOperator {
 
     private PartitionedTree tt;
     private double size;
+    private final SpanningBranches spanningBranches = new SpanningBranches();
 
 
     public void initAndValidate(){
@@ -62,102 +62,76 @@ public class GuidedSubtreeLeapA extends TreeOperator {
     }
 
     public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, propose());
+    }
 
-        try {
-            PartitionedTreeLogger.debugLog(tt, 0, false, new PrintStream("tt_before.nex"));
-
-            PartitionedTreeLogger.debugLog((PartitionedTree)treeInput.get(), 0, true, new PrintStream("phyl_before.nex"));
+    private double propose() {
 
-        } catch (FileNotFoundException e){
-            e.printStackTrace();
-        }
+        DiagnosticTreeDumper.dump("tt_before.nex", tt, false);
+        DiagnosticTreeDumper.dump("phyl_before.nex", (PartitionedTree)treeInput.get(), true);
 
 
         //this move works only within the transmission chain leading to some clinical case
 
         int endOfChain = Randomizer.nextInt(tt.getNElements());
-        HashMap<Node, Node> references = new HashMap<>();
         GuidedPartitionedTree originalTree = (GuidedPartitionedTree)treeInput.get();
-        PartitionedTree prunedSubtree = originalTree.extractAncestralCorridor(endOfChain, references);
-
-
-        //*screams into paper bag*
-        prunedSubtree.getInternalNodeCount();
-        prunedSubtree.getLeafNodeCount();
-
-        prunedSubtree = new PartitionedTree(prunedSubtree.getRoot());
-
-        try {
-            PrintStream ps = new PrintStream("phyl_pruned.nex");
-            prunedSubtree.init(ps);
-            prunedSubtree.log(0, ps);
-            prunedSubtree.close(ps);
+        AncestralCorridor corridor = originalTree.getAncestralCorridor(endOfChain);
 
-        } catch (FileNotFoundException e){
-            e.printStackTrace();
+        if(DiagnosticTreeDumper.isEnabled()) {
+            DiagnosticTreeDumper.dump("phyl_pruned.nex", "#NEXUS\nBegin trees;\ntree STATE_0 = "
+                    + corridor.toNewick() + ";\nEnd;\n");
         }
 
-        //todo are heights actually recalculated?
-        double differenceInRootHeights = originalTree.getRoot().getHeight() - prunedSubtree.getRoot().getHeight();
-        if(differenceInRootHeights < 0){
-            throw new RuntimeException("Pruning must have failed");
-        }
+        //the corridor is a view on the phylogeny itself, so moving its nodes moves them in the phylogeny too. Its
+        //shape is fixed as soon as it is first explored, which the node count below does.
 
         double logq;
 
         final double delta = getDelta();
 
-        final Node root = prunedSubtree.getRoot();
+        final PartitionedTreeNode root = corridor.getRoot();
 
-        Node node;
+        PartitionedTreeNode node;
 
         do {
-            // choose a random node avoiding root. I _think_ that nodes that don't exist in the original tree are
-            // OK, since it's their _parents_ that get moved.
-            node = prunedSubtree.getNode(Randomizer.nextInt(prunedSubtree.getNodeCount()));
+            // choose a random node avoiding root. Virtual tips are OK, since it's their _parents_ that get moved.
+            node = corridor.getNode(Randomizer.nextInt(corridor.getNodeCount()));
 
         } while (node == root);
 
         // get its parent - this is the node we will prune/graft
-        final Node parent = node.getParent();
+        final PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
 
         // get the node's sibling
-        final Node sibling = getOtherChild(parent, node);
+        final PartitionedTreeNode sibling = (PartitionedTreeNode)getOtherChild(parent, node);
 
         // and its grand parent
-        final Node grandParent = parent.getParent();
+        final PartitionedTreeNode grandParent = (PartitionedTreeNode)parent.getParent();
 
-        final Map<Node, Double> destinations = getDestinations(node, parent, sibling, delta);
-        List<Node> destinationNodes = Lists.newArrayList(destinations.keySet());
+        final Map<PartitionedTreeNode, Double> destinations = getDestinations(corridor, node, parent, sibling, delta);
+        List<PartitionedTreeNode> destinationNodes = Lists.newArrayList(destinations.keySet());
 
         // pick uniformly from this list
         int r = Randomizer.nextInt(destinations.size());
 
         double forwardProbability = 1.0 / destinations.size();
 
-        final Node j = destinationNodes.get(r);
+        final PartitionedTreeNode j = destinationNodes.get(r);
 
         final double newHeight = destinations.get(j);
 
 
-        final Node jParent = j.getParent();
+        final PartitionedTreeNode jParent = (PartitionedTreeNode)j.getParent();
 
         if (jParent != null && newHeight > jParent.getHeight()) {
             throw new IllegalArgumentException("height error");
         }
 
-        if (newHeight < j.getHeight()) {
+        if (newHeight < corridor.getHeight(j)) {
             throw new IllegalArgumentException("height error");
         }
 
-        //all operations have to be done to both the copy (for HR purposes) and the original tree. This is annoying.
-
-        Node originalParent = references.get(parent);
-        Node originalSibling = references.get(sibling);
-        Node originalGrandparent = grandParent != null ? references.get(grandParent) : null;
-        Node originalJ = references.get(j);
-        Node originalJParent = jParent != null ? references.get(jParent) : null;
-
         if (j == parent || jParent == parent) {
             // the subtree is not actually moving but the height will change
         } else {
@@ -166,30 +140,19 @@ public class GuidedSubtreeLeapA extends TreeOperator {
                 // the root.
                 parent.removeChild(sibling);
                 sibling.setParent(null);
-                prunedSubtree.setRoot(sibling);
-
-                originalParent.removeChild(originalSibling);
-                originalSibling.setParent(null);
-                originalTree.setRoot(originalSibling);
+                originalTree.setRoot(sibling);
 
             } else {
                 // remove the parent of node by connecting its sibling to its grandparent.
                 parent.removeChild(sibling);
                 grandParent.removeChild(parent);
                 grandParent.addChild(sibling);
-
-                originalParent.removeChild(originalSibling);
-                originalGrandparent.removeChild(originalParent);
-                originalGrandparent.addChild(originalSibling);
             }
 
             if (jParent == null) {
                 // adding the node to the root of the tree
                 parent.addChild(j);
-                prunedSubtree.setRoot(parent);
-
-                originalParent.addChild(originalJ);
-                originalTree.setRoot(originalParent);
+                originalTree.setRoot(parent);
             } else {
                 // remove destination edge j from its parent
                 jParent.removeChild(j);
@@ -199,31 +162,29 @@ public class GuidedSubtreeLeapA extends TreeOperator {
 
                 // and add the parent of i as a child of the former parent of j
                 jParent.addChild(parent);
-
-                originalJParent.removeChild(originalJ);
-                originalParent.addChild(originalJ);
-                originalJParent.addChild(originalParent);
             }
         }
 
         parent.setHeight(newHeight);
-        originalParent.setHeight(newHeight + differenceInRootHeights);
 
         if (parent.getParent() != null && newHeight > parent.getParent().getHeight()) {
             throw new IllegalArgumentException("height error");
         }
 
-        if (newHeight < node.getHeight()) {
+        if (newHeight < corridor.getHeight(node)) {
             throw new IllegalArgumentException("height error");
         }
 
-        if (newHeight < getOtherChild(parent, node).getHeight()) {
+        final PartitionedTreeNode newSibling = (PartitionedTreeNode)getOtherChild(parent, node);
+
+        if (newHeight < corridor.getHeight(newSibling)) {
             throw new IllegalArgumentException("height error");
         }
 
 
 
-        final Map<Node, Double> reverseDestinations = getDestinations(node, parent, getOtherChild(parent, node), delta);
+        final Map<PartitionedTreeNode, Double> reverseDestinations = getDestinations(corridor, node, parent,
+                newSibling, delta);
 
         double reverseProbability = 1.0 / reverseDestinations.size();
 
@@ -234,54 +195,54 @@ public class GuidedSubtreeLeapA extends TreeOperator {
         return logq;
     }
 
-    private Map<Node, Double> getDestinations(Node node, Node parent, Node sibling, double delta) {
+    private Map<PartitionedTreeNode, Double> getDestinations(AncestralCorridor corridor, PartitionedTreeNode node,
+                                                             PartitionedTreeNode parent, PartitionedTreeNode sibling,
+                                                             double delta) {
 
-        final Map<Node, Double> destinations = new LinkedHashMap<>();
+        final Map<PartitionedTreeNode, Double> destinations = new LinkedHashMap<>();
+        final List<PartitionedTreeNode> edges = new ArrayList<PartitionedTreeNode>();
 
         // get the parent's height
         final double height = parent.getHeight();
 
         final double heightBelow = height - delta;
 
-        if (heightBelow > node.getHeight()) {
+        if (heightBelow > corridor.getHeight(node)) {
             // the destination height below the parent is compatible with the node
             // see if there are any destinations on the sibling's branch
-            final List<Node> edges = new ArrayList<Node>();
-
-            getIntersectingEdges(sibling, heightBelow, edges);
+            spanningBranches.find(corridor, sibling, heightBelow, edges);
 
             // add the intersecting edges and the height
-            for (Node n : edges) {
+            for (PartitionedTreeNode n : edges) {
                 destinations.put(n, heightBelow);
             }
         }
 
         final double heightAbove = height + delta;
 
-        Node node1 = parent;
+        PartitionedTreeNode node1 = parent;
 
         // walk up to root
         boolean done = false;
         while (!done) {
-            Node parent1 = node1.getParent();
+            PartitionedTreeNode parent1 = (PartitionedTreeNode)node1.getParent();
 
             if (parent1 != null) {
                 final double height1 = parent1.getHeight();
                 if (height1 < heightAbove) {
                     // haven't reached the height above the original height so go down
                     // the sibling subtree
-                    Node sibling1 = getOtherChild(parent1, node1);
+                    PartitionedTreeNode sibling1 = (PartitionedTreeNode)getOtherChild(parent1, node1);
 
                     double heightBelow1 = height1 - (heightAbove - height1);
 
-                    if (heightBelow1 > node.getHeight()) {
-
-                        final List<Node> edges = new ArrayList<Node>();
+                    if (heightBelow1 > corridor.getHeight(node)) {
 
-                        getIntersectingEdges(sibling1, heightBelow1, edges);
+                        edges.clear();
+                        spanningBranches.find(corridor, sibling1, heightBelow1, edges);
 
                         // add the intersecting edges and the height
-                        for (Node n : edges) {
+                        for (PartitionedTreeNode n : edges) {
                             destinations.put(n, heightBelow1);
                         }
                     }
@@ -306,23 +267,4 @@ public class GuidedSubtreeLeapA extends TreeOperator {
         return Math.abs(Randomizer.nextGaussian() * size);
     }
 
-    private int getIntersectingEdges(Node node, double height, List<Node> edges) {
-
-        final Node parent = node.getParent();
-
-        if (parent.getHeight() < height) return 0;
-
-        if (node.getHeight() < height) {
-            edges.add(node);
-            return 1;
-        }
-
-        int count = 0;
-        for (int i = 0; i <  node.getChildCount(); i++) {
-            count += getIntersectingEdges(node.getChild(i), height, edges);
-        }
-        return count;
-    }
-
-
 }
@@ -25,12 +25,14 @@ package beastlier.operators;
 import beast.core.Input;
 import beast.evolution.operators.TreeOperator;
 import beast.evolution.tree.*;
+import beast.util.MersenneTwisterFast;
 import beast.util.Randomizer;
-import beastlier.util.PartitionedTreeLogger;
+import beastlier.util.DiagnosticTreeDumper;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beastlier.util.Profiler;
 
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Matthew Hall <mdhall@ic.ac.uk>
@@ -42,9 +44,15 @@ public class GuidedSubtreeLeapB extends TreeOperator {
     public Input<List<GuidedPartitionedTree>> phylogeniesInput = new Input<>("phylogeny", "All the locus " +
             "phylogenies", new ArrayList<>());
     public Input<Double> sizeInput = new Input<>("size", "");
+    public Input<Integer> threadsInput = new Input<>("threads", "Number of threads used to rewire the locus " +
+            "phylogenies; the default of 1 rewires them one after another", 1);
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
 
     private List<GuidedPartitionedTree> phylogenies;
     private double size;
+    private ExecutorService executor;
+    private List<MersenneTwisterFast> randoms;
 
     public void initAndValidate(){
         if(((PartitionedTree)treeInput.get()).getRules() != PartitionedTree.Rules.COTTAM){
@@ -59,15 +67,48 @@ public class GuidedSubtreeLeapB extends TreeOperator {
         }
 
         size = sizeInput.get();
+
+        //operators are never told that the run is over, so the pool's threads exit whenever they have been idle
+        //for a while, and a pool left over from an earlier initialisation is shut down here
+
+        if(executor != null){
+            executor.shutdown();
+        }
+
+        int threads = Math.min(threadsInput.get(), phylogenies.size());
+        if(threads > 1){
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "GuidedSubtreeLeapB-" + getID());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+
+            randoms = new ArrayList<>();
+            for(int locus=0; locus<phylogenies.size(); locus++){
+                randoms.add(new MersenneTwisterFast());
+            }
+        } else {
+            executor = null;
+            randoms = null;
+        }
     }
 
 
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
     /**
      * Do a subtree leap move.
      *
      * @return the log-transformed hastings ratio
      */
-    public double proposal() {
+    private double propose() {
 
         EpidemiologicalPartitionedTree tTree = (EpidemiologicalPartitionedTree)treeInput.get();
         double logq;
@@ -154,7 +195,9 @@ public class GuidedSubtreeLeapB extends TreeOperator {
     private Map<PartitionedTreeNode, Double> getDestinations(PartitionedTreeNode node, PartitionedTreeNode parent,
                                                  PartitionedTreeNode sibling, double delta) {
 
+        final PartitionedTree tTree = (PartitionedTree)treeInput.get();
         final Map<PartitionedTreeNode, Double> destinations = new LinkedHashMap<>();
+        final List<PartitionedTreeNode> edges = new ArrayList<PartitionedTreeNode>();
 
         // get the parent's height
         final double height = parent.getHeight();
@@ -179,9 +222,7 @@ public class GuidedSubtreeLeapB extends TreeOperator {
         if (heightBelow > minHeight) {
             // the destination height below the parent is compatible with the node
             // see if there are any destinations on the sibling's branch
-            final List<PartitionedTreeNode> edges = new ArrayList<PartitionedTreeNode>();
-
-            getIntersectingEdges(sibling, heightBelow, edges);
+            tTree.findSpanningBranches(sibling, heightBelow, edges);
 
             // add the intersecting edges and the height
             for (PartitionedTreeNode n : edges) {
@@ -209,9 +250,8 @@ public class GuidedSubtreeLeapB extends TreeOperator {
 
                     if (heightBelow1 > node.getHeight()) {
 
-                        final List<PartitionedTreeNode> edges = new ArrayList<PartitionedTreeNode>();
-
-                        getIntersectingEdges(sibling1, heightBelow1, edges);
+                        edges.clear();
+                        tTree.findSpanningBranches(sibling1, heightBelow1, edges);
 
                         // add the intersecting edges and the height
                         for (PartitionedTreeNode n : edges) {
@@ -239,25 +279,6 @@ public class GuidedSubtreeLeapB extends TreeOperator {
         return Math.abs(Randomizer.nextGaussian() * size);
     }
 
-    private int getIntersectingEdges(PartitionedTreeNode node, double height,
-                                     List<PartitionedTreeNode> edges) {
-
-        final PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
-
-        if (parent.getHeight() < height) return 0;
-
-        if (node.getHeight() < height) {
-            edges.add(node);
-            return 1;
-        }
-
-        int count = 0;
-        for (int i = 0; i < node.getChildCount(); i++) {
-            count += getIntersectingEdges((PartitionedTreeNode)node.getChild(i), height, edges);
-        }
-        return count;
-    }
-
     //Do the move and make the respective adjustment to each locus phylogeny. The return value is the adjustment to
     // the HR. This should be called before any attempt to recolour the nodes.
 
@@ -271,13 +292,11 @@ public class GuidedSubtreeLeapB extends TreeOperator {
 
     private double unhookRehook(PartitionedTreeNode i, PartitionedTreeNode j, double newTTheight){
 
-        try {
-            PartitionedTreeLogger.debugLog((PartitionedTree)treeInput.get(), 0, false, new PrintStream("tt_before.nex"));
+        if(DiagnosticTreeDumper.isEnabled()) {
+            DiagnosticTreeDumper.dump("tt_before.nex", (PartitionedTree)treeInput.get(), false);
             for (PartitionedTree phyl : phylogenies) {
-                PartitionedTreeLogger.debugLog(phyl, 0, true, new PrintStream("phyl_before.nex"));
+                DiagnosticTreeDumper.dump("phyl_before.nex", phyl, true);
             }
-        } catch (FileNotFoundException e){
-            e.printStackTrace();
         }
 
         final EpidemiologicalPartitionedTree tt =  (EpidemiologicalPartitionedTree)treeInput.get();
@@ -322,123 +341,7 @@ public class GuidedSubtreeLeapB extends TreeOperator {
             }
         }
 
-        for(GuidedPartitionedTree tree : phylogenies){
-            tree.updatePartitions();
-        }
-
-        for(GuidedPartitionedTree tree : phylogenies){
-            List<Double> heightsToCheck = new ArrayList<>();
-
-            List<PartitionedTreeNode> hooks = tree.getHooks(i.getPartitionElementNumber(),
-                    tree.thisTreeHeight(iP.getHeight()));
-
-            for(PartitionedTreeNode hook : hooks){
-                PartitionedTreeNode hookParent = (PartitionedTreeNode)hook.getParent();
-                if(hookParent != null){
-                    heightsToCheck.add(hookParent.getHeight());
-                    PartitionedTreeNode hookSibling = (PartitionedTreeNode)getOtherChild(hookParent, hook);
-                    PartitionedTreeNode hookGrandparent = (PartitionedTreeNode)hookParent.getParent();
-                    if(hookGrandparent != null){
-                        hookParent.removeChild(hookSibling);
-                        hookGrandparent.removeChild(hookParent);
-                        hookGrandparent.addChild(hookSibling);
-                        hookSibling.setParent(hookGrandparent);
-                    } else {
-                        hookParent.removeChild(hookSibling);
-                        hookSibling.setParent(null);
-                        tree.setRoot(hookSibling);
-                    }
-                } else {
-                    //Actually, I'm reasonably sure this never happens so long as every element is present on every
-                    //tree. Assume that for now.
-                }
-            }
-
-            tree.updatePartitions();
-
-            //this adjusts the HR for the number of places the hook could have been if the move was reversed
-
-            int currentBranchElement = iS.getPartitionElementNumber();
-            for(Double height : heightsToCheck){
-                while(height > tree.thisTreeHeight(tt.getInfectionHeightByNr(currentBranchElement))){
-                    currentBranchElement = tt.getAncestorPartitionElement(currentBranchElement);
-                }
-
-                hrAdjust -= Math.log(tree.getBundle((PartitionedTreeNode)tree.getRoot(), height, currentBranchElement,
-                        new ArrayList<>()));
-            }
-
-            //need to find the bundles before reattaching anything
-
-            Map<PartitionedTreeNode, List<PartitionedTreeNode>> bundlesForHooks = new LinkedHashMap<>();
-            Map<PartitionedTreeNode, Double> newHeights = new LinkedHashMap<>(
-
-
-            );
-            for(PartitionedTreeNode hook : hooks){
-                PartitionedTreeNode hookParent = (PartitionedTreeNode)hook.getParent();
-                double extension = hookParent.getHeight() - tree.thisTreeHeight(iP.getHeight());
-                double newHeight = tree.thisTreeHeight(newTTheight) + extension;
-                newHeights.put(hook, newHeight);
-
-                //at the moment the branch is in the same element as j
-
-                currentBranchElement = j.getPartitionElementNumber();
-
-                while(newHeight > tree.thisTreeHeight(tt.getInfectionHeightByNr(currentBranchElement))){
-                    currentBranchElement = tt.getAncestorPartitionElement(currentBranchElement);
-                }
-
-                List<PartitionedTreeNode> bundle = new ArrayList<>();
-
-                hrAdjust += Math.log(tree.getBundle((PartitionedTreeNode)tree.getRoot(), newHeight,
-                        currentBranchElement, bundle));
-
-                bundlesForHooks.put(hook, bundle);
-
-            }
-
-            for(PartitionedTreeNode hook : hooks){
-                PartitionedTreeNode hookParent = (PartitionedTreeNode)hook.getParent();
-                if(hookParent != null){
-                    double newHeight = newHeights.get(hook);
-                    List<PartitionedTreeNode> bundle = bundlesForHooks.get(hook);
-
-                    PartitionedTreeNode newChild = bundle.get(Randomizer.nextInt(bundle.size()));
-                    PartitionedTreeNode newParent = (PartitionedTreeNode)newChild.getParent();
-
-                    if(newParent != null){
-                        newParent.removeChild(newChild);
-                        newParent.addChild(hookParent);
-                        hookParent.setParent(newParent);
-                        hookParent.addChild(newChild);
-                        newChild.setParent(hookParent);
-                        hookParent.setHeight(newHeight);
-                    } else {
-                        hookParent.addChild(newChild);
-                        newChild.setParent(hookParent);
-                        tree.setRoot(hookParent);
-                        hookParent.setParent(null);
-                    }
-
-                    //The bundle may need to change because of the reinsertion; the branch at that height may have
-                    //changed
-                    bundlesForHooks.remove(hook);
-
-                    for(PartitionedTreeNode remainingHook : bundlesForHooks.keySet()){
-                        List<PartitionedTreeNode> remainingBundle = bundlesForHooks.get(remainingHook);
-                        for(PartitionedTreeNode twig : remainingBundle){
-                            if(twig == newChild && newHeights.get(remainingHook) > hookParent.getHeight()){
-                                remainingBundle.set(remainingBundle.indexOf(twig), hookParent);
-                            }
-                        }
-                    }
-
-                } else {
-                    //again, shouldn't happen
-                }
-            }
-        }
+        hrAdjust += rewireLoci(i, iP, iS, j, newTTheight);
 
         if (jP == null) {
             // adding the node to the root of the tree
@@ -474,23 +377,211 @@ public class GuidedSubtreeLeapB extends TreeOperator {
         }
 
 
-        for(GuidedPartitionedTree tree : phylogenies){
-            tree.updatePartitions();
+        if(executor == null){
+            for(GuidedPartitionedTree tree : phylogenies){
+                tree.updatePartitions();
+            }
+        } else {
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for(GuidedPartitionedTree tree : phylogenies){
+                tasks.add(() -> {
+                    tree.updatePartitions();
+                    return 0.0;
+                });
+            }
+            runAll(tasks);
         }
 
-        try {
-            PartitionedTreeLogger.debugLog((PartitionedTree)treeInput.get(), 0, false, new PrintStream("tt_after.nex"));
+        if(DiagnosticTreeDumper.isEnabled()) {
+            DiagnosticTreeDumper.dump("tt_after.nex", (PartitionedTree)treeInput.get(), false);
             for (PartitionedTree phyl : phylogenies) {
-                PartitionedTreeLogger.debugLog(phyl, 0, true, new PrintStream("phyl_after.nex"));
+                DiagnosticTreeDumper.dump("phyl_after.nex", phyl, true);
             }
-        } catch (FileNotFoundException e){
-            e.printStackTrace();
         }
 
 
         return hrAdjust;
 
     }
-}
 
+    //The rewiring of each locus phylogeny only reads the transmission tree, so if threads are available the loci can
+    //be done at the same time. Each locus then gets its own random number stream, reseeded here in locus order from
+    //the main one, so that the result doesn't depend on the order in which the threads finish; the HR adjustments
+    //are summed afterwards, again in locus order. With one thread everything is drawn from the main stream as before.
 
+    private double rewireLoci(PartitionedTreeNode i, PartitionedTreeNode iP, PartitionedTreeNode iS,
+                              PartitionedTreeNode j, double newTTheight){
+
+        double hrAdjust = 0;
+
+        if(executor == null){
+            for(GuidedPartitionedTree tree : phylogenies){
+                tree.updatePartitions();
+            }
+
+            for(GuidedPartitionedTree tree : phylogenies){
+                hrAdjust += rewireLocus(tree, i, iP, iS, j, newTTheight, null);
+            }
+        } else {
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for(int locus=0; locus<phylogenies.size(); locus++){
+                final GuidedPartitionedTree tree = phylogenies.get(locus);
+                final MersenneTwisterFast random = randoms.get(locus);
+                random.setSeed(Randomizer.nextLong());
+                tasks.add(() -> {
+                    tree.updatePartitions();
+                    return rewireLocus(tree, i, iP, iS, j, newTTheight, random);
+                });
+            }
+
+            for(double locusAdjust : runAll(tasks)){
+                hrAdjust += locusAdjust;
+            }
+        }
+
+        return hrAdjust;
+    }
+
+    //Unhook and rehook a single locus phylogeny; if random is null, the main random number generator is used
+
+    private double rewireLocus(GuidedPartitionedTree tree, PartitionedTreeNode i, PartitionedTreeNode iP,
+                               PartitionedTreeNode iS, PartitionedTreeNode j, double newTTheight,
+                               MersenneTwisterFast random){
+
+        final EpidemiologicalPartitionedTree tt =  (EpidemiologicalPartitionedTree)treeInput.get();
+
+        double hrAdjust = 0;
+
+        List<Double> heightsToCheck = new ArrayList<>();
+
+        List<PartitionedTreeNode> hooks = tree.getHooks(i.getPartitionElementNumber(),
+                tree.thisTreeHeight(iP.getHeight()));
+
+        for(PartitionedTreeNode hook : hooks){
+            PartitionedTreeNode hookParent = (PartitionedTreeNode)hook.getParent();
+            if(hookParent != null){
+                heightsToCheck.add(hookParent.getHeight());
+                PartitionedTreeNode hookSibling = (PartitionedTreeNode)getOtherChild(hookParent, hook);
+                PartitionedTreeNode hookGrandparent = (PartitionedTreeNode)hookParent.getParent();
+                if(hookGrandparent != null){
+                    hookParent.removeChild(hookSibling);
+                    hookGrandparent.removeChild(hookParent);
+                    hookGrandparent.addChild(hookSibling);
+                    hookSibling.setParent(hookGrandparent);
+                } else {
+                    hookParent.removeChild(hookSibling);
+                    hookSibling.setParent(null);
+                    tree.setRoot(hookSibling);
+                }
+            } else {
+                //Actually, I'm reasonably sure this never happens so long as every element is present on every
+                //tree. Assume that for now.
+            }
+        }
+
+        tree.updatePartitions();
+
+        final GuideTreeSummary guide = tt.getGuideTreeSummary();
+
+        //this adjusts the HR for the number of places the hook could have been if the move was reversed
+
+        int currentBranchElement = iS.getPartitionElementNumber();
+        for(Double height : heightsToCheck){
+            while(height > tree.thisTreeHeight(guide.getInfectionHeightByNr(currentBranchElement))){
+                currentBranchElement = guide.getAncestorPartitionElement(currentBranchElement);
+            }
+
+            hrAdjust -= Math.log(tree.getBundle((PartitionedTreeNode)tree.getRoot(), height, currentBranchElement,
+                    new ArrayList<>()));
+        }
+
+        //need to find the bundles before reattaching anything
+
+        Map<PartitionedTreeNode, List<PartitionedTreeNode>> bundlesForHooks = new LinkedHashMap<>();
+        Map<PartitionedTreeNode, Double> newHeights = new LinkedHashMap<>();
+        for(PartitionedTreeNode hook : hooks){
+            PartitionedTreeNode hookParent = (PartitionedTreeNode)hook.getParent();
+            double extension = hookParent.getHeight() - tree.thisTreeHeight(iP.getHeight());
+            double newHeight = tree.thisTreeHeight(newTTheight) + extension;
+            newHeights.put(hook, newHeight);
+
+            //at the moment the branch is in the same element as j
+
+            currentBranchElement = j.getPartitionElementNumber();
+
+            while(newHeight > tree.thisTreeHeight(guide.getInfectionHeightByNr(currentBranchElement))){
+                currentBranchElement = guide.getAncestorPartitionElement(currentBranchElement);
+            }
+
+            List<PartitionedTreeNode> bundle = new ArrayList<>();
+
+            hrAdjust += Math.log(tree.getBundle((PartitionedTreeNode)tree.getRoot(), newHeight,
+                    currentBranchElement, bundle));
+
+            bundlesForHooks.put(hook, bundle);
+
+        }
+
+        for(PartitionedTreeNode hook : hooks){
+            PartitionedTreeNode hookParent = (PartitionedTreeNode)hook.getParent();
+            if(hookParent != null){
+                double newHeight = newHeights.get(hook);
+                List<PartitionedTreeNode> bundle = bundlesForHooks.get(hook);
+
+                PartitionedTreeNode newChild = bundle.get(random == null ? Randomizer.nextInt(bundle.size())
+                            : random.nextInt(bundle.size()));
+                PartitionedTreeNode newParent = (PartitionedTreeNode)newChild.getParent();
+
+                if(newParent != null){
+                    newParent.removeChild(newChild);
+                    newParent.addChild(hookParent);
+                    hookParent.setParent(newParent);
+                    hookParent.addChild(newChild);
+                    newChild.setParent(hookParent);
+                    hookParent.setHeight(newHeight);
+                } else {
+                    hookParent.addChild(newChild);
+                    newChild.setParent(hookParent);
+                    tree.setRoot(hookParent);
+                    hookParent.setParent(null);
+                }
+
+                //The bundle may need to change because of the reinsertion; the branch at that height may have
+                //changed
+                bundlesForHooks.remove(hook);
+
+                for(PartitionedTreeNode remainingHook : bundlesForHooks.keySet()){
+                    List<PartitionedTreeNode> remainingBundle = bundlesForHooks.get(remainingHook);
+                    for(PartitionedTreeNode twig : remainingBundle){
+                        if(twig == newChild && newHeights.get(remainingHook) > hookParent.getHeight()){
+                            remainingBundle.set(remainingBundle.indexOf(twig), hookParent);
+                        }
+                    }
+                }
+
+            } else {
+                //again, shouldn't happen
+            }
+        }
+
+        return hrAdjust;
+    }
+
+    private List<Double> runAll(List<Callable<Double>> tasks){
+        List<Double> out = new ArrayList<>();
+        try {
+            for(Future<Double> future : executor.invokeAll(tasks)){
+                out.add(future.get());
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while rewiring the locus phylogenies");
+        } catch (ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return out;
+    }
+}
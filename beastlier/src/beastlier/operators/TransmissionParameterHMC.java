@@ -0,0 +1,331 @@
+/*
+* File TransmissionParameterHMC.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.partitioned.TransmissionConstraints;
+import beast.util.Randomizer;
+import beastlier.util.GradientProvider;
+import beastlier.util.Profiler;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Hamiltonian Monte Carlo on a block of continuous parameters of the transmission model (the base transmission rate,
+ * the kernel parameters and the q parameters of the tree, typically), with the topology held fixed. Each proposal
+ * draws standard normal momenta and follows a leapfrog trajectory guided by the gradients of the given densities,
+ * with a number of steps drawn uniformly up to the maximum so that the trajectories don't keep returning to where
+ * they started. The step size is tuned towards an acceptance probability of 0.65.
+ *
+ * Parameters with both bounds finite are moved on the logit scale between them, and those with only a lower bound
+ * on the log scale above it; the Jacobians are part of both the gradients and the Hastings ratio.
+ *
+ * Any leapfrog trajectory is reversible and preserves volume whatever the gradients are, and the chain accepts or
+ * rejects on the whole posterior at the end, so densities (priors, say) that give no gradient only make the
+ * trajectories less well aimed. The path length is randomised rather than chosen by a no-U-turn rule, as the chain
+ * calculates the posterior only at the end of the trajectory.
+ */
+
+@Description("Hamiltonian Monte Carlo on a block of continuous transmission model parameters")
+public class TransmissionParameterHMC extends Operator {
+
+    public Input<List<RealParameter>> parametersInput = new Input<>("parameter", "The parameters to be moved " +
+            "together", new ArrayList<>(), Input.Validate.REQUIRED);
+    public Input<List<GradientProvider>> gradientsInput = new Input<>("gradient", "The densities whose gradients " +
+            "guide the trajectories; usually the between- and within-host models", new ArrayList<>());
+    public Input<Double> stepSizeInput = new Input<>("stepSize", "The size of each leapfrog step", 0.01);
+    public Input<Integer> stepsInput = new Input<>("steps", "The maximum number of leapfrog steps in a proposal",
+            10);
+    public Input<Boolean> optimiseInput = new Input<>("optimise", "flag to indicate that the step size is " +
+            "automatically changed in order to achieve a good acceptance rate (default true)", true);
+    public Input<TransmissionConstraints> constraintsInput = new Input<>("constraints", "If given, proposals " +
+            "that break these are rejected before any likelihood is calculated");
+
+    private enum Transform {
+        NONE,
+        LOG,
+        LOGIT
+    }
+
+    private List<RealParameter> parameters;
+    private Transform[] transforms;
+    private double[] lowers;
+    private double[] uppers;
+    private int dimension;
+    private double stepSize;
+
+    @Override
+    public void initAndValidate() {
+        parameters = parametersInput.get();
+        stepSize = stepSizeInput.get();
+        if(stepsInput.get() < 1){
+            throw new IllegalArgumentException("There must be at least one leapfrog step");
+        }
+        if(gradientsInput.get().isEmpty()){
+            throw new IllegalArgumentException("At least one density must give the gradients");
+        }
+
+        transforms = new Transform[parameters.size()];
+        lowers = new double[parameters.size()];
+        uppers = new double[parameters.size()];
+        dimension = 0;
+
+        for(int p=0; p<parameters.size(); p++){
+            RealParameter parameter = parameters.get(p);
+            lowers[p] = parameter.getLower();
+            uppers[p] = parameter.getUpper();
+            if(Double.isInfinite(lowers[p])){
+                transforms[p] = Transform.NONE;
+            } else if(Double.isInfinite(uppers[p])){
+                transforms[p] = Transform.LOG;
+            } else {
+                transforms[p] = Transform.LOGIT;
+            }
+            dimension += parameter.getDimension();
+        }
+    }
+
+    @Override
+    public double proposal() {
+        long start = Profiler.start();
+        return Profiler.proposed(this, start, TransmissionConstraints.filter(constraintsInput.get(), this, propose()));
+    }
+
+    private double propose() {
+        double[] positions = new double[dimension];
+        double[] momenta = new double[dimension];
+        double[] gradient = new double[dimension];
+
+        int index = 0;
+        for(int p=0; p<parameters.size(); p++){
+            RealParameter parameter = parameters.get(p);
+            for(int i=0; i<parameter.getDimension(); i++){
+                positions[index] = toUnbounded(p, parameter.getValue(i));
+                index++;
+            }
+        }
+
+        double logJacobianBefore = logJacobian(positions);
+        double kineticBefore = 0;
+        for(int i=0; i<dimension; i++){
+            momenta[i] = Randomizer.nextGaussian();
+            kineticBefore += 0.5*momenta[i]*momenta[i];
+        }
+
+        if(!fillGradient(positions, gradient)){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        int steps = 1 + Randomizer.nextInt(stepsInput.get());
+
+        for(int step=0; step<steps; step++){
+            for(int i=0; i<dimension; i++){
+                momenta[i] += 0.5*stepSize*gradient[i];
+                positions[i] += stepSize*momenta[i];
+            }
+            if(!setValues(positions) || !fillGradient(positions, gradient)){
+                return Double.NEGATIVE_INFINITY;
+            }
+            for(int i=0; i<dimension; i++){
+                momenta[i] += 0.5*stepSize*gradient[i];
+            }
+        }
+
+        double kineticAfter = 0;
+        for(int i=0; i<dimension; i++){
+            kineticAfter += 0.5*momenta[i]*momenta[i];
+        }
+
+        return kineticBefore - kineticAfter + logJacobian(positions) - logJacobianBefore;
+    }
+
+    // false if anything is out of bounds
+
+    private boolean setValues(double[] positions){
+        int index = 0;
+        for(int p=0; p<parameters.size(); p++){
+            RealParameter parameter = parameters.get(p);
+            for(int i=0; i<parameter.getDimension(); i++){
+                double value = fromUnbounded(p, positions[index]);
+                if(!(value >= lowers[p] && value <= uppers[p])){
+                    return false;
+                }
+                parameter.setValue(i, value);
+                index++;
+            }
+        }
+        return true;
+    }
+
+    // The gradient of the log posterior with respect to the positions, as far as the densities given can say, and
+    // false if it isn't finite
+
+    private boolean fillGradient(double[] positions, double[] out){
+        int index = 0;
+        for(int p=0; p<parameters.size(); p++){
+            RealParameter parameter = parameters.get(p);
+            double[] total = new double[parameter.getDimension()];
+
+            for(GradientProvider provider : gradientsInput.get()){
+                double[] partial = provider.getLogPGradient(parameter);
+                if(partial != null){
+                    for(int i=0; i<total.length; i++){
+                        total[i] += partial[i];
+                    }
+                }
+            }
+
+            for(int i=0; i<total.length; i++){
+                out[index] = total[i]*valueDerivative(p, positions[index]) + logJacobianDerivative(p, positions[index]);
+                if(Double.isNaN(out[index]) || Double.isInfinite(out[index])){
+                    return false;
+                }
+                index++;
+            }
+        }
+        return true;
+    }
+
+    private double toUnbounded(int p, double value){
+        switch (transforms[p]){
+            case LOG:
+                return Math.log(value - lowers[p]);
+            case LOGIT:
+                return Math.log((value - lowers[p])/(uppers[p] - value));
+            default:
+                return value;
+        }
+    }
+
+    private double fromUnbounded(int p, double position){
+        switch (transforms[p]){
+            case LOG:
+                return lowers[p] + Math.exp(position);
+            case LOGIT:
+                return lowers[p] + (uppers[p] - lowers[p])/(1 + Math.exp(-position));
+            default:
+                return position;
+        }
+    }
+
+    private double valueDerivative(int p, double position){
+        switch (transforms[p]){
+            case LOG:
+                return Math.exp(position);
+            case LOGIT:
+                double logistic = 1/(1 + Math.exp(-position));
+                return (uppers[p] - lowers[p])*logistic*(1 - logistic);
+            default:
+                return 1;
+        }
+    }
+
+    private double logJacobianDerivative(int p, double position){
+        switch (transforms[p]){
+            case LOG:
+                return 1;
+            case LOGIT:
+                return 1 - 2/(1 + Math.exp(-position));
+            default:
+                return 0;
+        }
+    }
+
+    private double logJacobian(double[] positions){
+        double out = 0;
+        int index = 0;
+        for(int p=0; p<parameters.size(); p++){
+            for(int i=0; i<parameters.get(p).getDimension(); i++){
+                double position = positions[index];
+                switch (transforms[p]){
+                    case LOG:
+                        out += position;
+                        break;
+                    case LOGIT:
+                        out += Math.log(uppers[p] - lowers[p]) - Math.log1p(Math.exp(-position))
+                                - Math.log1p(Math.exp(position));
+                        break;
+                    default:
+                        break;
+                }
+                index++;
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public double getTargetAcceptanceProbability() {
+        return 0.65;
+    }
+
+    /**
+     * automatic parameter tuning *
+     */
+    @Override
+    public void optimize(final double logAlpha) {
+        if (optimiseInput.get()) {
+            double delta = calcDelta(logAlpha);
+            delta += Math.log(stepSize);
+            stepSize = Math.exp(delta);
+        }
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return stepSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(final double value) {
+        stepSize = value;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        final double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+        final double targetProb = getTargetAcceptanceProbability();
+
+        double ratio = prob / targetProb;
+
+        if (ratio > 2.0) ratio = 2.0;
+        if (ratio < 0.5) ratio = 0.5;
+
+        final double newStepSize = stepSize * ratio;
+
+        final DecimalFormat formatter = new DecimalFormat("#.###");
+        if (prob < 0.4) {
+            return "Try decreasing stepSize to about " + formatter.format(newStepSize);
+        } else if (prob > 0.85) {
+            return "Try increasing stepSize to about " + formatter.format(newStepSize);
+        } else return "";
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+* File AsyncLogger.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * A file logger that does as little as possible on the MCMC thread. For each sample, anything that is a
+ * SnapshotLoggable copies its numbers into a LogBuffer taken from a fixed pool, and a background thread turns the
+ * buffers into lines of text, compresses them if asked and writes them to the file. Other loggables still have to be
+ * written out as text on the MCMC thread, but the file is only touched by the background thread.
+ *
+ * There are only as many buffers as bufferCount; if they are all waiting to be written, the chain waits for the
+ * writer rather than using up more memory. The file is only flushed when the writer has caught up, so a slow disk
+ * gets fewer and larger writes.
+ *
+ * The file is opened by Logger.init, so the checks against overwriting an existing log and the resuming of one are
+ * the same as for any other logger, and so is the output (sortMode should be left at none, as the columns are written
+ * in the order given). A compressed log is written again from the start once those checks have passed, and can't be
+ * resumed.
+ */
+
+@Description("Logger that copies the state on the MCMC thread and formats and writes it on another")
+public class AsyncLogger extends Logger {
+
+    public Input<Boolean> compressInput = new Input<>("compress", "Gzip the log as it is written", false);
+    public Input<Integer> bufferCountInput = new Input<>("bufferCount", "How many samples can be waiting to be " +
+            "written; after that the chain waits for the writer", 16);
+
+    //put on the queue by close() to stop the writer
+    private static final LogBuffer END = new LogBuffer();
+
+    private List<Loggable> loggables;
+    private boolean treeMode;
+    private int every;
+
+    private PrintStream fileOut;
+    private BlockingQueue<LogBuffer> freeBuffers;
+    private BlockingQueue<LogBuffer> fullBuffers;
+    private Thread writer;
+    private volatile Throwable writerFailure = null;
+    private boolean closed = false;
+
+    //for loggables that can't be snapshotted; only used by the MCMC thread
+    private final ByteArrayOutputStream textBytes = new ByteArrayOutputStream();
+    private final PrintStream textStream = new PrintStream(textBytes);
+
+    //only used by the writer
+    private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+    private final PrintStream lineStream = new PrintStream(lineBytes);
+
+    @Override
+    public void initAndValidate() {
+        loggables = new ArrayList<>();
+        treeMode = true;
+        for(BEASTObject object : loggersInput.get()){
+            if(!(object instanceof Loggable)){
+                throw new IllegalArgumentException(object.getID() + " is not a Loggable");
+            }
+            loggables.add((Loggable)object);
+            if(!(object instanceof Tree || object instanceof PartitionedTreeLogger)){
+                treeMode = false;
+            }
+        }
+
+        //Logger writes the header, and wouldn't know a partitioned tree log for a tree log by itself
+        if(treeMode){
+            modeInput.setValue(LOGMODE.tree, this);
+        }
+
+        super.initAndValidate();
+
+        if(fileNameInput.get() == null || fileNameInput.get().length() == 0){
+            throw new IllegalArgumentException("AsyncLogger needs a file to write to");
+        }
+        if(bufferCountInput.get() < 1){
+            throw new IllegalArgumentException("bufferCount must be at least 1");
+        }
+        every = everyInput.get();
+    }
+
+    @Override
+    public void init() throws IOException {
+        //Logger.init refuses to overwrite a log unless told to, and when resuming reads the existing one to find
+        //sampleOffset and opens it for appending; otherwise it writes the header
+        super.init();
+        boolean resuming = sampleOffset >= 0;
+
+        String fileName = fileNameInput.get();
+        if(fileName.contains("$(seed)")){
+            fileName = fileName.replace("$(seed)", Long.toString(Randomizer.getSeed()));
+        }
+
+        if(compressInput.get()){
+            if(resuming){
+                throw new IllegalArgumentException("A compressed log can't be resumed: " + fileName);
+            }
+
+            //start the file again, compressed, header and all
+            m_out.close();
+            OutputStream stream = new GZIPOutputStream(new FileOutputStream(fileName, false), true);
+            fileOut = new PrintStream(new BufferedOutputStream(stream, 1 << 16));
+
+            lineBytes.reset();
+            if(!treeMode){
+                lineStream.print("Sample\t");
+            }
+            for(Loggable loggable : loggables){
+                loggable.init(lineStream);
+            }
+            lineStream.flush();
+            fileOut.println(lineBytes.toString().trim());
+        } else {
+            m_out.flush();
+            fileOut = new PrintStream(new BufferedOutputStream(m_out, 1 << 16));
+        }
+
+        int bufferCount = bufferCountInput.get();
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for(int i=0; i<bufferCount; i++){
+            freeBuffers.add(new LogBuffer());
+        }
+        //room for every buffer and END
+        fullBuffers = new ArrayBlockingQueue<>(bufferCount+1);
+
+        writer = new Thread(this::writeLoop, "AsyncLogger-" + fileName);
+        writer.setDaemon(true);
+        writer.start();
+
+        //if the run is killed, write whatever has been logged so far
+        Runtime.getRuntime().addShutdownHook(new Thread(this::finish));
+    }
+
+    @Override
+    public void log(int sample) {
+        if(sample < 0 || sample % every > 0){
+            return;
+        }
+        if(sampleOffset >= 0){
+            if(sample == 0){
+                //this has already been logged in the run that's being resumed
+                return;
+            }
+            sample += sampleOffset;
+        }
+
+        checkWriter();
+
+        LogBuffer buffer;
+        try {
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        buffer.clear();
+        buffer.setSample(sample);
+        for(Loggable loggable : loggables){
+            if(loggable instanceof SnapshotLoggable){
+                ((SnapshotLoggable)loggable).snapshot(sample, buffer);
+            } else {
+                textBytes.reset();
+                loggable.log(sample, textStream);
+                textStream.flush();
+                buffer.addString(textBytes.toString());
+            }
+        }
+
+        fullBuffers.add(buffer);
+    }
+
+    private void writeLoop(){
+        try {
+            LogBuffer buffer;
+            while((buffer = fullBuffers.take()) != END){
+                if(writerFailure == null){
+                    try {
+                        writeLine(buffer);
+                    } catch (RuntimeException e){
+                        writerFailure = e;
+                    }
+                }
+                //the chain may be waiting for this, so it goes back even if nothing could be written
+                freeBuffers.add(buffer);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLine(LogBuffer buffer){
+        buffer.rewind();
+        lineBytes.reset();
+        if(!treeMode){
+            lineStream.print(buffer.getSample() + "\t");
+        }
+        for(Loggable loggable : loggables){
+            if(loggable instanceof SnapshotLoggable){
+                ((SnapshotLoggable)loggable).format(buffer, lineStream);
+            } else {
+                lineStream.print(buffer.nextString());
+            }
+        }
+        lineStream.flush();
+        fileOut.println(lineBytes.toString().trim());
+
+        if(fullBuffers.isEmpty()){
+            fileOut.flush();
+        }
+        if(fileOut.checkError()){
+            throw new RuntimeException("Error writing to " + fileNameInput.get());
+        }
+    }
+
+    private void checkWriter(){
+        if(writerFailure != null){
+            throw new RuntimeException("AsyncLogger failed to write to " + fileNameInput.get(), writerFailure);
+        }
+    }
+
+    @Override
+    public void close() {
+        finish();
+        checkWriter();
+    }
+
+    private synchronized void finish(){
+        if(closed || writer == null){
+            return;
+        }
+        closed = true;
+
+        fullBuffers.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+
+        for(Loggable loggable : loggables){
+            loggable.close(fileOut);
+        }
+        fileOut.close();
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+* File BatchMeansESS.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Effective sample size of a stream of values by batch means, in constant memory. The values are split into batches
+ * of equal size and the variance of the batch means, times the batch size, estimates the asymptotic variance of the
+ * mean. There are never more than maxBatches batches: when there would be, neighbouring batches are merged and the
+ * batch size doubles, so once there are enough values there are always between maxBatches/2 and maxBatches of them.
+ */
+
+public class BatchMeansESS {
+
+    private final int maxBatches;
+    private final double[] batchSums;
+    private int batchCount = 0;
+    private long batchSize = 1;
+
+    private double currentSum = 0;
+    private long currentCount = 0;
+
+    private final RunningMoments moments = new RunningMoments();
+
+    public BatchMeansESS(int maxBatches){
+        if(maxBatches < 4 || maxBatches % 2 != 0){
+            throw new IllegalArgumentException("The number of batches must be even and at least 4");
+        }
+        this.maxBatches = maxBatches;
+        batchSums = new double[maxBatches];
+    }
+
+    public void add(double value){
+        moments.add(value);
+        currentSum += value;
+        currentCount++;
+
+        if(currentCount == batchSize){
+            batchSums[batchCount++] = currentSum;
+            currentSum = 0;
+            currentCount = 0;
+
+            if(batchCount == maxBatches){
+                for(int i=0; i<maxBatches/2; i++){
+                    batchSums[i] = batchSums[2*i] + batchSums[2*i+1];
+                }
+                batchCount = maxBatches/2;
+                batchSize *= 2;
+            }
+        }
+    }
+
+    public long getCount(){
+        return moments.getCount();
+    }
+
+    /**
+     * @return the ESS, or 0 if there are not yet maxBatches/2 batches to estimate it from
+     */
+    public double getESS(){
+        if(batchCount < maxBatches/2){
+            return 0;
+        }
+        double variance = moments.getVariance();
+        if(variance == 0){
+            //constant so far; there is no telling
+            return 0;
+        }
+
+        double meanOfMeans = 0;
+        for(int i=0; i<batchCount; i++){
+            meanOfMeans += batchSums[i]/batchSize;
+        }
+        meanOfMeans /= batchCount;
+
+        double batchVariance = 0;
+        for(int i=0; i<batchCount; i++){
+            double difference = batchSums[i]/batchSize - meanOfMeans;
+            batchVariance += difference*difference;
+        }
+        batchVariance /= batchCount - 1;
+
+        if(batchVariance == 0){
+            return moments.getCount();
+        }
+        return moments.getCount()*variance/(batchSize*batchVariance);
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+* File BinaryPartitionedTreeLog.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Reads the files written by BinaryPartitionedTreeLogger, and defines what is in them.
+ *
+ * A file is a header followed by one fixed length record per sample, so sample i starts at headerLength +
+ * i*recordLength and can be read without looking at any of the others. Everything is big-endian. The header is:
+ *
+ *   int magic, version, headerLength, recordLength
+ *   int nodeCount, leafCount, elementCount, qCount, flags
+ *   double date of height zero, direction of time (the date of a height h is date0 + direction*h)
+ *   string element label
+ *   leafCount strings: the taxa, in node number order
+ *   nodeCount bytes: 1 if the node has an ID (which internal nodes normally don't)
+ *   elementCount strings: the elements
+ *   int caseCount, then for each case a string ID, a byte that is 1 if it was ever infected and its end time as a
+ *   double (NaN if it wasn't)
+ *
+ * where a string is an int byte count followed by UTF-8, and the header is padded to a multiple of eight bytes.
+ * Each record is:
+ *
+ *   long sample, int root node number, int unused, double root branch length
+ *   nodeCount doubles: node heights
+ *   qCount doubles: q values
+ *   elementCount doubles: infection heights, only if the tree was epidemiological
+ *   nodeCount ints: the number of the parent of each node, -1 for the root
+ *   nodeCount ints: the element of each node
+ *   elementCount ints: the infector of each element, -1 for the index case
+ *
+ * again padded to eight bytes. The file is memory mapped a block of records at a time, and reading is by absolute
+ * position only, so different threads can read different records at once.
+ */
+
+public class BinaryPartitionedTreeLog implements Closeable {
+
+    public static final int MAGIC = 0x424C5054;
+    public static final int VERSION = 1;
+    public static final int EPIDEMIOLOGICAL = 1;
+
+    //the longest a single mapping can be
+    private static final long MAX_BLOCK = Integer.MAX_VALUE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final int headerLength;
+    private final int recordLength;
+    private final int nodeCount;
+    private final int leafCount;
+    private final int elementCount;
+    private final int qCount;
+    private final boolean epidemiological;
+    private final double date0;
+    private final double timeDirection;
+
+    private final String elementLabel;
+    private final List<String> taxa;
+    private final boolean[] hasID;
+    private final List<String> elements;
+    private final List<String> caseIDs;
+    private final boolean[] everInfected;
+    private final double[] caseEndTimes;
+
+    private final long sampleCount;
+    private final int recordsPerBlock;
+    private final AtomicReferenceArray<MappedByteBuffer> blocks;
+
+    /**
+     * One record, read back into arrays; make one per thread and reuse it
+     */
+    public static class Sample {
+        public long sample;
+        public int rootNr;
+        public double rootBranchLength;
+        public double[] heights;
+        public double[] qValues;
+        public double[] infectionHeights;
+        public int[] parents;
+        public int[] elements;
+        public int[] infectors;
+
+        public Sample(BinaryPartitionedTreeLog log){
+            heights = new double[log.nodeCount];
+            qValues = new double[log.qCount];
+            infectionHeights = new double[log.epidemiological ? log.elementCount : 0];
+            parents = new int[log.nodeCount];
+            elements = new int[log.nodeCount];
+            infectors = new int[log.elementCount];
+        }
+    }
+
+    public BinaryPartitionedTreeLog(File fileName) throws IOException {
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+
+        ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 12));
+        if(fixed.limit() < 12 || fixed.getInt() != MAGIC){
+            throw new IOException(fileName + " is not a binary partitioned tree log");
+        }
+        int version = fixed.getInt();
+        if(version != VERSION){
+            throw new IOException(fileName + " is version " + version + " of the binary log format; this only reads "
+                    + "version " + VERSION);
+        }
+        headerLength = fixed.getInt();
+
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerLength);
+        header.position(12);
+        recordLength = header.getInt();
+        nodeCount = header.getInt();
+        leafCount = header.getInt();
+        elementCount = header.getInt();
+        qCount = header.getInt();
+        epidemiological = (header.getInt() & EPIDEMIOLOGICAL) != 0;
+        date0 = header.getDouble();
+        timeDirection = header.getDouble();
+
+        elementLabel = readString(header);
+        List<String> taxonList = new ArrayList<>();
+        for(int i=0; i<leafCount; i++){
+            taxonList.add(readString(header));
+        }
+        taxa = Collections.unmodifiableList(taxonList);
+        hasID = new boolean[nodeCount];
+        for(int i=0; i<nodeCount; i++){
+            hasID[i] = header.get() == 1;
+        }
+        List<String> elementList = new ArrayList<>();
+        for(int i=0; i<elementCount; i++){
+            elementList.add(readString(header));
+        }
+        elements = Collections.unmodifiableList(elementList);
+        int caseCount = header.getInt();
+        List<String> caseList = new ArrayList<>();
+        everInfected = new boolean[caseCount];
+        caseEndTimes = new double[caseCount];
+        for(int i=0; i<caseCount; i++){
+            caseList.add(readString(header));
+            everInfected[i] = header.get() == 1;
+            caseEndTimes[i] = header.getDouble();
+        }
+        caseIDs = Collections.unmodifiableList(caseList);
+
+        //a partly written last record (if the run was killed) is ignored
+        sampleCount = (channel.size() - headerLength) / recordLength;
+        recordsPerBlock = (int)Math.max(1, MAX_BLOCK / recordLength);
+        blocks = new AtomicReferenceArray<>((int)((sampleCount + recordsPerBlock - 1) / recordsPerBlock));
+    }
+
+    static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int recordLength(int nodeCount, int elementCount, int qCount, boolean epidemiological){
+        int length = 8 + 4 + 4 + 8
+                + 8*(nodeCount + qCount + (epidemiological ? elementCount : 0))
+                + 4*(2*nodeCount + elementCount);
+        return (length + 7) & ~7;
+    }
+
+    public long getSampleCount(){
+        return sampleCount;
+    }
+
+    public int getNodeCount(){
+        return nodeCount;
+    }
+
+    public int getLeafCount(){
+        return leafCount;
+    }
+
+    public int getElementCount(){
+        return elementCount;
+    }
+
+    public int getQCount(){
+        return qCount;
+    }
+
+    public boolean isEpidemiological(){
+        return epidemiological;
+    }
+
+    public double getDate(double height){
+        return date0 + timeDirection*height;
+    }
+
+    public String getElementLabel(){
+        return elementLabel;
+    }
+
+    public List<String> getTaxa(){
+        return taxa;
+    }
+
+    public boolean hasID(int nodeNr){
+        return hasID[nodeNr];
+    }
+
+    public List<String> getElements(){
+        return elements;
+    }
+
+    public List<String> getCaseIDs(){
+        return caseIDs;
+    }
+
+    public boolean wasEverInfected(int caseNo){
+        return everInfected[caseNo];
+    }
+
+    public double getCaseEndTime(int caseNo){
+        return caseEndTimes[caseNo];
+    }
+
+    private MappedByteBuffer getBlock(int blockNo) throws IOException {
+        MappedByteBuffer block = blocks.get(blockNo);
+        if(block == null){
+            //two threads may both map the same block; only the first mapping is kept and the other is dropped
+            long first = (long)blockNo*recordsPerBlock;
+            long count = Math.min(recordsPerBlock, sampleCount - first);
+            block = channel.map(FileChannel.MapMode.READ_ONLY, headerLength + first*recordLength,
+                    count*recordLength);
+            if(!blocks.compareAndSet(blockNo, null, block)){
+                block = blocks.get(blockNo);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Read sample number index (counting the records in the file, not the states of the chain) into out
+     */
+    public Sample read(long index, Sample out) throws IOException {
+        if(index < 0 || index >= sampleCount){
+            throw new IndexOutOfBoundsException("No sample " + index + " in a log of " + sampleCount);
+        }
+        ByteBuffer block = getBlock((int)(index / recordsPerBlock));
+        int position = (int)(index % recordsPerBlock)*recordLength;
+
+        out.sample = block.getLong(position);
+        out.rootNr = block.getInt(position + 8);
+        out.rootBranchLength = block.getDouble(position + 16);
+        position += 24;
+        for(int i=0; i<nodeCount; i++, position += 8){
+            out.heights[i] = block.getDouble(position);
+        }
+        for(int i=0; i<qCount; i++, position += 8){
+            out.qValues[i] = block.getDouble(position);
+        }
+        for(int i=0; i<out.infectionHeights.length; i++, position += 8){
+            out.infectionHeights[i] = block.getDouble(position);
+        }
+        for(int i=0; i<nodeCount; i++, position += 4){
+            out.parents[i] = block.getInt(position);
+        }
+        for(int i=0; i<nodeCount; i++, position += 4){
+            out.elements[i] = block.getInt(position);
+        }
+        for(int i=0; i<elementCount; i++, position += 4){
+            out.infectors[i] = block.getInt(position);
+        }
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
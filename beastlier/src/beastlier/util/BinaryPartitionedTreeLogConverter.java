@@ -0,0 +1,136 @@
+/*
+* File BinaryPartitionedTreeLogConverter.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Turns a log written by BinaryPartitionedTreeLogger back into the Nexus file that PartitionedTreeLogger would have
+ * written, with or without the infections as degree two nodes.
+ *
+ * Usage: BinaryPartitionedTreeLogConverter [-fancy] input output
+ */
+
+public class BinaryPartitionedTreeLogConverter {
+
+    public static void main(String[] args) throws IOException {
+        boolean fancy = false;
+        int argIndex = 0;
+        if(args.length > 0 && args[0].equals("-fancy")){
+            fancy = true;
+            argIndex++;
+        }
+        if(args.length - argIndex != 2){
+            System.err.println("Usage: BinaryPartitionedTreeLogConverter [-fancy] input output");
+            System.exit(1);
+        }
+
+        try (BinaryPartitionedTreeLog log = new BinaryPartitionedTreeLog(new File(args[argIndex]));
+             PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(args[argIndex+1]),
+                     1 << 16))) {
+            convert(log, fancy, out);
+        }
+    }
+
+    public static void convert(BinaryPartitionedTreeLog log, boolean fancy, PrintStream out) throws IOException {
+        if(fancy && !log.isEpidemiological()){
+            throw new IllegalArgumentException("Fancy trees need the infection heights, which are only logged for " +
+                    "EpidemiologicalPartitionedTrees");
+        }
+
+        writeHeader(log, out);
+
+        PartitionedNewickWriter writer = new PartitionedNewickWriter();
+        writer.setElementStrings(log.getElementLabel(), log.getElements());
+        BinaryPartitionedTreeLog.Sample sample = new BinaryPartitionedTreeLog.Sample(log);
+        LogBuffer buffer = new LogBuffer();
+
+        for(long i=0; i<log.getSampleCount(); i++){
+            log.read(i, sample);
+            buffer.clear();
+            toBuffer(log, sample, fancy, buffer);
+
+            out.print("tree STATE_" + sample.sample + " = ");
+            out.print(writer.write(buffer));
+            out.println(";");
+        }
+
+        out.println("End;");
+    }
+
+    // The same as PartitionedTree.init, as it comes out of a Logger
+
+    private static void writeHeader(BinaryPartitionedTreeLog log, PrintStream out){
+        out.println("#NEXUS\n");
+        out.println("Begin taxa;");
+        out.println("\tDimensions ntax=" + log.getLeafCount() + ";");
+        out.println("\t\tTaxlabels");
+        for(String taxon : log.getTaxa()){
+            out.println("\t\t\t" + taxon);
+        }
+        out.println("\t\t\t;");
+        out.println("End;");
+
+        out.println("Begin trees;");
+        out.println("\tTranslate");
+        for(int i=0; i<log.getLeafCount(); i++){
+            out.print("\t\t\t" + (i+1) + " " + log.getTaxa().get(i));
+            if(i<log.getLeafCount()-1){
+                out.print(",");
+            }
+            out.print("\n");
+        }
+        out.println("\t\t\t;");
+    }
+
+    // In the layout that PartitionedNewickWriter.snapshot uses
+
+    private static void toBuffer(BinaryPartitionedTreeLog log, BinaryPartitionedTreeLog.Sample sample, boolean fancy,
+                                 LogBuffer buffer){
+        buffer.addInt(log.getNodeCount());
+        buffer.addInt(sample.rootNr);
+        buffer.addInt(fancy ? 1 : 0);
+
+        for(int nr=0; nr<log.getNodeCount(); nr++){
+            int parent = sample.parents[nr];
+            int elementNo = sample.elements[nr];
+
+            buffer.addInt(parent);
+            buffer.addInt(elementNo);
+            buffer.addInt(log.hasID(nr) ? 1 : 0);
+            buffer.addDouble(sample.heights[nr]);
+
+            if(fancy){
+                boolean infectionAbove = elementNo != -1 && (parent == -1 || sample.elements[parent] != elementNo);
+                buffer.addDouble(infectionAbove ? sample.infectionHeights[elementNo] : Double.NaN);
+            }
+        }
+    }
+
+}
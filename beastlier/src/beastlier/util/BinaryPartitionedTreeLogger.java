@@ -0,0 +1,278 @@
+/*
+* File BinaryPartitionedTreeLogger.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Logger;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.GuideTreeSummary;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTree;
+import beast.evolution.tree.PartitionedTreeNode;
+import beast.util.Randomizer;
+import beastlier.outbreak.ClinicalCase;
+import beastlier.outbreak.Outbreak;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Logs a partitioned tree, its transmission structure and its q values in the binary format described in
+ * BinaryPartitionedTreeLog, instead of as Nexus. The single thing to log should be the tree itself. Use
+ * BinaryPartitionedTreeLogConverter to get a Nexus file back.
+ */
+
+@Description("Logger for partitioned trees in a compact binary format")
+public class BinaryPartitionedTreeLogger extends Logger {
+
+    private PartitionedTree pTree;
+    private EpidemiologicalPartitionedTree ePTree;
+    private int every;
+    private int nodeCount;
+    private int elementCount;
+    private int qCount;
+
+    private FileChannel channel;
+    private ByteBuffer record;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        List<BEASTObject> loggers = loggersInput.get();
+        if(loggers.size() != 1 || !(loggers.get(0) instanceof PartitionedTree)){
+            throw new IllegalArgumentException("BinaryPartitionedTreeLogger logs a single PartitionedTree and " +
+                    "nothing else");
+        }
+        if(fileNameInput.get() == null || fileNameInput.get().length() == 0){
+            throw new IllegalArgumentException("BinaryPartitionedTreeLogger needs a file to write to");
+        }
+
+        pTree = (PartitionedTree)loggers.get(0);
+        ePTree = pTree instanceof EpidemiologicalPartitionedTree ? (EpidemiologicalPartitionedTree)pTree : null;
+        every = everyInput.get();
+
+        nodeCount = pTree.getNodeCount();
+        elementCount = pTree.getNElements();
+        qCount = ePTree != null && ePTree.getQ() != null ? ePTree.getQ().getDimension() : 0;
+
+        record = ByteBuffer.allocate(BinaryPartitionedTreeLog.recordLength(nodeCount, elementCount, qCount,
+                ePTree != null));
+    }
+
+    @Override
+    public void init() throws IOException {
+        String fileName = fileNameInput.get();
+        if(fileName.contains("$(seed)")){
+            fileName = fileName.replace("$(seed)", Long.toString(Randomizer.getSeed()));
+        }
+
+        //Logger.init reads an existing log as text to resume it, so its file modes are followed here instead
+        File file = new File(fileName);
+        boolean resuming = false;
+        if(file.exists()){
+            switch(FILE_MODE){
+                case overwrite:
+                    break;
+                case resume:
+                    resuming = true;
+                    break;
+                case only_new_or_exit:
+                    System.err.println("Trying to write file " + fileName + " but the file already exists. " +
+                            "Exiting now.");
+                    System.exit(0);
+                default:
+                    throw new RuntimeException("Trying to write file " + fileName + " but the file already " +
+                            "exists; use -overwrite or -resume");
+            }
+        }
+
+        if(resuming){
+            findLastSample(file);
+        }
+
+        channel = new FileOutputStream(fileName, resuming).getChannel();
+        if(!resuming){
+            channel.write(ByteBuffer.wrap(makeHeader()));
+        }
+    }
+
+    //sets sampleOffset to the last sample in an existing log, dropping a record that was only partly written
+    //when the run being resumed stopped
+
+    private void findLastSample(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "rw")) {
+            if(in.length() < 16 || in.readInt() != BinaryPartitionedTreeLog.MAGIC){
+                throw new RuntimeException("Cannot resume " + file + ": not a binary partitioned tree log");
+            }
+            in.readInt();
+            long headerLength = in.readInt();
+            int recordLength = in.readInt();
+            if(recordLength != record.capacity()){
+                throw new RuntimeException("Cannot resume " + file + ": it was written for a different tree");
+            }
+
+            long records = Math.max(0, (in.length() - headerLength) / recordLength);
+            in.setLength(headerLength + records * recordLength);
+            if(records > 0){
+                in.seek(headerLength + (records - 1) * recordLength);
+                sampleOffset = (int)in.readLong();
+            }
+        }
+    }
+
+    private byte[] makeHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(BinaryPartitionedTreeLog.MAGIC);
+        out.writeInt(BinaryPartitionedTreeLog.VERSION);
+        //header length, filled in at the end
+        out.writeInt(0);
+        out.writeInt(record.capacity());
+        out.writeInt(nodeCount);
+        out.writeInt(pTree.getLeafNodeCount());
+        out.writeInt(elementCount);
+        out.writeInt(qCount);
+        out.writeInt(ePTree != null ? BinaryPartitionedTreeLog.EPIDEMIOLOGICAL : 0);
+        out.writeDouble(pTree.getDate(0));
+        out.writeDouble(pTree.getDate(1) - pTree.getDate(0));
+
+        writeString(out, pTree.getElementLabel());
+        Node[] nodes = pTree.getNodesAsArray();
+        for(int i=0; i<pTree.getLeafNodeCount(); i++){
+            writeString(out, nodes[i].getID());
+        }
+        for(Node node : nodes){
+            out.writeByte(node.getID() != null ? 1 : 0);
+        }
+        for(String element : pTree.getElementList()){
+            writeString(out, element);
+        }
+
+        Outbreak outbreak = ePTree != null ? ePTree.outbreakInput.get() : null;
+        if(outbreak == null){
+            out.writeInt(0);
+        } else {
+            out.writeInt(outbreak.getCases().size());
+            for(ClinicalCase aCase : outbreak.getCases()){
+                writeString(out, aCase.getID());
+                out.writeByte(aCase.wasEverInfected() ? 1 : 0);
+                out.writeDouble(aCase.wasEverInfected() ? aCase.getEndTime() : Double.NaN);
+            }
+        }
+
+        while(out.size() % 8 != 0){
+            out.writeByte(0);
+        }
+        out.flush();
+
+        byte[] header = bytes.toByteArray();
+        ByteBuffer.wrap(header).putInt(8, header.length);
+        return header;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void log(int sample) {
+        if(sample < 0 || sample % every > 0){
+            return;
+        }
+        if(sampleOffset >= 0){
+            if(sample == 0){
+                //this has already been logged in the run that's being resumed
+                return;
+            }
+            sample += sampleOffset;
+        }
+
+        //the guide tree summary is cached by the tree, so this is free if a likelihood has already asked for it
+        GuideTreeSummary summary = ePTree != null ? ePTree.getGuideTreeSummary() : null;
+        Node[] nodes = pTree.getNodesAsArray();
+
+        record.clear();
+        record.putLong(sample);
+        record.putInt(pTree.getRoot().getNr());
+        record.putInt(0);
+        record.putDouble(pTree.getRootBranchLength());
+        for(Node node : nodes){
+            record.putDouble(node.getHeight());
+        }
+        for(int i=0; i<qCount; i++){
+            record.putDouble(ePTree.getQ(i));
+        }
+        if(summary != null){
+            for(int i=0; i<elementCount; i++){
+                record.putDouble(summary.getInfectionHeightByNr(i));
+            }
+        }
+        for(Node node : nodes){
+            record.putInt(node.isRoot() ? -1 : node.getParent().getNr());
+        }
+        for(Node node : nodes){
+            record.putInt(((PartitionedTreeNode)node).getPartitionElementNumber());
+        }
+        for(int i=0; i<elementCount; i++){
+            record.putInt(summary != null ? summary.getAncestorPartitionElement(i)
+                    : pTree.getAncestorPartitionElement(i));
+        }
+        record.position(record.capacity());
+        record.flip();
+
+        try {
+            while(record.hasRemaining()){
+                channel.write(record);
+            }
+        } catch (IOException e){
+            throw new RuntimeException("Error writing to " + fileNameInput.get(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(channel != null){
+                channel.close();
+            }
+        } catch (IOException e){
+            throw new RuntimeException("Error closing " + fileNameInput.get(), e);
+        }
+    }
+
+}
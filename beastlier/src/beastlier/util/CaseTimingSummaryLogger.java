@@ -0,0 +1,198 @@
+/*
+* File CaseTimingSummaryLogger.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.evolution.tree.partitioned.IndividualSEIR;
+import beast.util.Randomizer;
+import beastlier.outbreak.Outbreak;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Summarises the infection and infectiousness times and periods of every case in an IndividualSEIR model during the
+ * run, instead of logging them all (set logCaseTimings="false" on the model). For each case and quantity, keeps
+ * running moments and a QuantileSketch of the values in every sample after the burn-in, and every checkpointEvery
+ * counted samples, and at the end, writes the mean, standard deviation, range and requested quantiles to fileName.
+ *
+ * The burn-in is in states. Summaries are not carried over when a run is resumed.
+ */
+
+@Description("Credible intervals and means of case infection and infectiousness timings, summarised during the run")
+public class CaseTimingSummaryLogger extends Logger {
+
+    public Input<Integer> burninInput = new Input<>("burnin", "Number of states to ignore at the start of the run",
+            0);
+    public Input<Integer> checkpointEveryInput = new Input<>("checkpointEvery", "Write the summaries after this many " +
+            "samples have been counted (as well as at the end); 0 for only at the end", 100);
+    public Input<String> quantilesInput = new Input<>("quantiles", "Comma-separated probabilities of the quantiles " +
+            "to report", "0.025,0.5,0.975");
+    public Input<Integer> sketchSizeInput = new Input<>("sketchSize", "Size of the quantile sketches; the error in " +
+            "rank is roughly the number of samples divided by this. Up to about three times this many values are " +
+            "kept for each case and quantity", 200);
+
+    private IndividualSEIR model;
+    private Outbreak outbreak;
+    private int every;
+    private int burnin;
+    private int checkpointEvery;
+    private double[] quantiles;
+    private File file;
+
+    private double[] timings;
+    private RunningMoments[] moments;
+    private QuantileSketch[] sketches;
+    private long sinceCheckpoint = 0;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        List<BEASTObject> loggers = loggersInput.get();
+        if(loggers.size() != 1 || !(loggers.get(0) instanceof IndividualSEIR)){
+            throw new IllegalArgumentException("CaseTimingSummaryLogger takes a single IndividualSEIR and nothing " +
+                    "else");
+        }
+        if(fileNameInput.get() == null || fileNameInput.get().length() == 0){
+            throw new IllegalArgumentException("CaseTimingSummaryLogger needs a file to write to");
+        }
+        if(checkpointEveryInput.get() < 0){
+            throw new IllegalArgumentException("checkpointEvery cannot be negative");
+        }
+
+        model = (IndividualSEIR)loggers.get(0);
+        outbreak = model.outbreakInput.get();
+        every = everyInput.get();
+        burnin = burninInput.get();
+        checkpointEvery = checkpointEveryInput.get();
+
+        String[] values = quantilesInput.get().split(",");
+        quantiles = new double[values.length];
+        for(int i=0; i<values.length; i++){
+            quantiles[i] = Double.parseDouble(values[i].trim());
+            if(quantiles[i] < 0 || quantiles[i] > 1 || (i > 0 && quantiles[i] < quantiles[i-1])){
+                throw new IllegalArgumentException("Quantiles must be increasing probabilities");
+            }
+        }
+
+        timings = new double[IndividualSEIR.CASE_TIMINGS.length*outbreak.getEverInfectedCases().size()];
+        moments = new RunningMoments[timings.length];
+        sketches = new QuantileSketch[timings.length];
+        for(int i=0; i<timings.length; i++){
+            moments[i] = new RunningMoments();
+            sketches[i] = new QuantileSketch(sketchSizeInput.get());
+        }
+    }
+
+    @Override
+    public void init() throws IOException {
+        String fileName = fileNameInput.get();
+        if(fileName.contains("$(seed)")){
+            fileName = fileName.replace("$(seed)", Long.toString(Randomizer.getSeed()));
+        }
+        file = new File(fileName);
+    }
+
+    @Override
+    public void log(int sample) {
+        if(sample < 0 || sample % every > 0){
+            return;
+        }
+        if(sampleOffset >= 0){
+            sample += sampleOffset;
+        }
+        if(sample < burnin){
+            return;
+        }
+
+        model.getCaseTimings(timings);
+        for(int i=0; i<timings.length; i++){
+            moments[i].add(timings[i]);
+            sketches[i].add(timings[i]);
+        }
+
+        sinceCheckpoint++;
+        if(checkpointEvery > 0 && sinceCheckpoint >= checkpointEvery){
+            writeSummaries();
+        }
+    }
+
+    @Override
+    public void close() {
+        writeSummaries();
+    }
+
+    public RunningMoments getMoments(int caseNo, int timing){
+        return moments[timing*outbreak.getEverInfectedCases().size() + caseNo];
+    }
+
+    public QuantileSketch getSketch(int caseNo, int timing){
+        return sketches[timing*outbreak.getEverInfectedCases().size() + caseNo];
+    }
+
+    private void writeSummaries(){
+        sinceCheckpoint = 0;
+        if(moments.length == 0 || moments[0].getCount() == 0){
+            return;
+        }
+
+        int caseCount = outbreak.getEverInfectedCases().size();
+
+        try {
+            TransmissionNetworkAccumulator.writeAtomically(file, out -> {
+                out.print("case\tquantity\tcount\tmean\tsd\tmin\tmax");
+                for(double quantile : quantiles){
+                    out.print("\tq" + quantile);
+                }
+                out.println();
+
+                for(int caseNo=0; caseNo<caseCount; caseNo++){
+                    for(int timing=0; timing<IndividualSEIR.CASE_TIMINGS.length; timing++){
+                        RunningMoments caseMoments = getMoments(caseNo, timing);
+                        out.print(outbreak.getEverInfectedCase(caseNo).getID() + "\t"
+                                + IndividualSEIR.CASE_TIMINGS[timing] + "\t"
+                                + caseMoments.getCount() + "\t"
+                                + caseMoments.getMean() + "\t"
+                                + caseMoments.getStandardDeviation() + "\t"
+                                + caseMoments.getMin() + "\t"
+                                + caseMoments.getMax());
+                        for(double value : getSketch(caseNo, timing).getQuantiles(quantiles)){
+                            out.print("\t" + value);
+                        }
+                        out.println();
+                    }
+                }
+            });
+        } catch (IOException e){
+            throw new RuntimeException("Error writing case timing summaries", e);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+* File DiagnosticTreeDumper.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.tree.PartitionedTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Debugging dumps of trees from inside likelihoods and operators. Nothing happens unless one of these is present in
+ * the XML; if it is, dumps are sampled, the trees are written out as text on the calling thread (they will have
+ * changed by the time anything else gets to them) and the files are written by a background thread from a bounded
+ * buffer. If the buffer fills up, the oldest dumps are thrown away rather than holding up the chain.
+ *
+ * Each dump overwrites the file of the same name, so what is left is the most recent one written.
+ */
+
+@Description("Diagnostic dumps of trees from inside the MCMC loop, off unless present")
+public class DiagnosticTreeDumper extends BEASTObject {
+
+    public Input<String> directoryInput = new Input<>("directory", "Where the dumps go (default is the working " +
+            "directory)", ".");
+    public Input<Integer> sampleEveryInput = new Input<>("sampleEvery", "Only write every nth dump of each name",
+            1);
+    public Input<Integer> capacityInput = new Input<>("capacity", "How many dumps can be waiting to be written",
+            64);
+
+    private static volatile DiagnosticTreeDumper active = null;
+
+    private File directory;
+    private int sampleEvery;
+    private BlockingQueue<Dump> buffer;
+    private final Map<String, Long> requestCounts = new HashMap<>();
+    private long dropped = 0;
+    //separate from the lock on this, so that the chain never waits for the disk
+    private final Object writeLock = new Object();
+
+    private static class Dump {
+        final String fileName;
+        final byte[] contents;
+
+        Dump(String fileName, byte[] contents){
+            this.fileName = fileName;
+            this.contents = contents;
+        }
+    }
+
+    @Override
+    public void initAndValidate() {
+        directory = new File(directoryInput.get());
+        sampleEvery = sampleEveryInput.get();
+        if(sampleEvery < 1){
+            throw new IllegalArgumentException("sampleEvery must be at least 1");
+        }
+        if(capacityInput.get() < 1){
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        buffer = new ArrayBlockingQueue<>(capacityInput.get());
+
+        Thread writer = new Thread(this::writeLoop, "DiagnosticTreeDumper");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+
+        active = this;
+    }
+
+    public static boolean isEnabled(){
+        return active != null;
+    }
+
+    /**
+     * Dump a tree, in the same format as PartitionedTreeLogger.debugLog
+     */
+    public static void dump(String fileName, PartitionedTree tree, boolean fancy){
+        DiagnosticTreeDumper dumper = active;
+        if(dumper != null && dumper.sample(fileName)){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream stream = new PrintStream(bytes);
+            PartitionedTreeLogger.debugLog(tree, 0, fancy, stream);
+            stream.flush();
+            dumper.enqueue(new Dump(fileName, bytes.toByteArray()));
+        }
+    }
+
+    /**
+     * Dump some text that has already been put together
+     */
+    public static void dump(String fileName, String contents){
+        DiagnosticTreeDumper dumper = active;
+        if(dumper != null && dumper.sample(fileName)){
+            dumper.enqueue(new Dump(fileName, contents.getBytes()));
+        }
+    }
+
+    private synchronized boolean sample(String fileName){
+        Long count = requestCounts.get(fileName);
+        count = count == null ? 0 : count + 1;
+        requestCounts.put(fileName, count);
+        return count % sampleEvery == 0;
+    }
+
+    private void enqueue(Dump dump){
+        while(!buffer.offer(dump)){
+            if(buffer.poll() != null){
+                synchronized (this) {
+                    dropped++;
+                }
+            }
+        }
+    }
+
+    public synchronized long getDroppedCount(){
+        return dropped;
+    }
+
+    private void writeLoop(){
+        try {
+            while(true){
+                write(buffer.take());
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //whatever is left when the JVM exits
+
+    private void drain(){
+        try {
+            Dump dump;
+            while((dump = buffer.poll(10, TimeUnit.MILLISECONDS)) != null){
+                write(dump);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Dump dump){
+        synchronized (writeLock) {
+            try (FileOutputStream out = new FileOutputStream(new File(directory, dump.fileName))) {
+                out.write(dump.contents);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
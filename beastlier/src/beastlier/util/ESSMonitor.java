@@ -0,0 +1,245 @@
+/*
+* File ESSMonitor.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.GuideTreeSummary;
+import beast.evolution.tree.PartitionedTree;
+import beast.util.Randomizer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Estimates effective sample sizes as the run goes, by batch means, for everything it is given to log: every
+ * dimension of a Function (such as the logP of an IndividualSEIR or WithinHostCoalescent), and the infector of every
+ * host in a PartitionedTree (see InfectorBatchMeansESS; the smallest over the hosts is what counts). Samples are
+ * taken every logEvery states after the burn-in. A host that has only ever had one infector has an ESS of 0, since
+ * a chain stuck on one network is exactly what this should catch; hosts whose infector really is fixed can be left
+ * out with fixedInfectors.
+ *
+ * If a file name is given, the estimates are written to it at every sample. Under a ConvergingMCMC, the run stops
+ * once every estimate has reached the target.
+ */
+
+@Description("Online effective sample size estimates, optionally used to stop the run")
+public class ESSMonitor extends Logger {
+
+    public Input<Double> targetInput = new Input<>("target", "ESS that every quantity should reach", 200.0);
+    public Input<Integer> burninInput = new Input<>("burnin", "Number of states to ignore at the start of the run",
+            0);
+    public Input<Integer> maxBatchesInput = new Input<>("maxBatches", "Maximum number of batches for the batch " +
+            "means", 64);
+    public Input<String> fixedInfectorsInput = new Input<>("fixedInfectors", "Comma-separated hosts whose infector " +
+            "cannot change; they are left out of the smallest infector ESS, which would otherwise stay at 0");
+
+    private int every;
+    private int burnin;
+    private double target;
+
+    private final List<Function> functions = new ArrayList<>();
+    private final List<Integer> dimensions = new ArrayList<>();
+    private final List<BatchMeansESS> functionESSs = new ArrayList<>();
+    private final List<String> functionNames = new ArrayList<>();
+
+    private final List<PartitionedTree> trees = new ArrayList<>();
+    private final List<InfectorBatchMeansESS> treeESSs = new ArrayList<>();
+    private int[] network;
+
+    private PrintStream out;
+    private volatile boolean targetReached = false;
+
+    @Override
+    public void initAndValidate() {
+        //the file is a table of estimates whatever is being followed, so Logger shouldn't treat a lone tree as a
+        //tree log when it checks or resumes it
+        modeInput.setValue(LOGMODE.compound, this);
+        super.initAndValidate();
+
+        every = everyInput.get();
+        burnin = burninInput.get();
+        target = targetInput.get();
+        int maxBatches = maxBatchesInput.get();
+
+        for(BEASTObject object : loggersInput.get()){
+            if(object instanceof PartitionedTree){
+                PartitionedTree tree = (PartitionedTree)object;
+                trees.add(tree);
+                treeESSs.add(new InfectorBatchMeansESS(tree.getNElements(), maxBatches));
+                excludeFixedInfectors(tree, treeESSs.get(treeESSs.size()-1));
+            } else if(object instanceof Function){
+                Function function = (Function)object;
+                for(int i=0; i<function.getDimension(); i++){
+                    functions.add(function);
+                    dimensions.add(i);
+                    functionESSs.add(new BatchMeansESS(maxBatches));
+                    functionNames.add(function.getDimension() == 1 ? object.getID() : object.getID() + "." + (i+1));
+                }
+            } else {
+                throw new IllegalArgumentException("ESSMonitor can only follow Functions and PartitionedTrees, not "
+                        + object.getID());
+            }
+        }
+    }
+
+    private void excludeFixedInfectors(PartitionedTree tree, InfectorBatchMeansESS ess){
+        if(fixedInfectorsInput.get() == null){
+            return;
+        }
+        for(String host : fixedInfectorsInput.get().split(",")){
+            int elementNo = tree.getElementFromString(host.trim());
+            if(elementNo == -1){
+                throw new IllegalArgumentException("Host " + host.trim() + " in fixedInfectors is not in tree "
+                        + tree.getID());
+            }
+            ess.exclude(elementNo);
+        }
+    }
+
+    @Override
+    public void init() throws IOException {
+        String fileName = fileNameInput.get();
+        if(fileName == null || fileName.length() == 0){
+            return;
+        }
+        if(fileName.contains("$(seed)")){
+            fileName = fileName.replace("$(seed)", Long.toString(Randomizer.getSeed()));
+        }
+
+        //Logger.init refuses to overwrite a file unless told to, and when resuming reads the existing one to find
+        //sampleOffset and opens it for appending
+        super.init();
+        boolean resuming = sampleOffset >= 0;
+
+        if(resuming){
+            out = m_out;
+        } else {
+            //Logger has written the headers of the things being followed; this file has its own
+            m_out.close();
+            out = new PrintStream(new FileOutputStream(fileName, false));
+            out.print("Sample");
+            for(String name : functionNames){
+                out.print("\tESS_" + name);
+            }
+            for(PartitionedTree tree : trees){
+                out.print("\tESS_" + tree.getID() + "_infectors_min");
+            }
+            out.println();
+        }
+    }
+
+    @Override
+    public void log(int sample) {
+        if(sample < 0 || sample % every > 0){
+            return;
+        }
+        if(sampleOffset >= 0){
+            sample += sampleOffset;
+        }
+        if(sample < burnin){
+            return;
+        }
+
+        for(int i=0; i<functions.size(); i++){
+            functionESSs.get(i).add(functions.get(i).getArrayValue(dimensions.get(i)));
+        }
+        for(int i=0; i<trees.size(); i++){
+            treeESSs.get(i).add(getNetwork(trees.get(i)));
+        }
+
+        double[] estimates = getESSs();
+        boolean allReached = estimates.length > 0;
+        for(double estimate : estimates){
+            allReached &= estimate >= target;
+        }
+        targetReached = allReached;
+
+        if(out != null){
+            out.print(sample);
+            for(double estimate : estimates){
+                out.print("\t" + estimate);
+            }
+            out.println();
+        }
+    }
+
+    private int[] getNetwork(PartitionedTree tree){
+        if(network == null || network.length != tree.getNElements()){
+            network = new int[tree.getNElements()];
+        }
+        GuideTreeSummary summary = tree instanceof EpidemiologicalPartitionedTree
+                ? ((EpidemiologicalPartitionedTree)tree).getGuideTreeSummary() : null;
+        for(int i=0; i<network.length; i++){
+            network[i] = summary != null ? summary.getAncestorPartitionElement(i) : tree.getAncestorPartitionElement(i);
+        }
+        return network;
+    }
+
+    /**
+     * @return the current estimates, for the functions (dimension by dimension) and then the trees, in order
+     */
+    public double[] getESSs(){
+        double[] out = new double[functionESSs.size() + treeESSs.size()];
+        for(int i=0; i<functionESSs.size(); i++){
+            out[i] = functionESSs.get(i).getESS();
+        }
+        for(int i=0; i<treeESSs.size(); i++){
+            out[functionESSs.size() + i] = treeESSs.get(i).getMinESS();
+        }
+        return out;
+    }
+
+    public List<String> getNames(){
+        List<String> names = new ArrayList<>(functionNames);
+        for(PartitionedTree tree : trees){
+            names.add(tree.getID() + "_infectors_min");
+        }
+        return names;
+    }
+
+    public boolean isTargetReached(){
+        return targetReached;
+    }
+
+    public double getTarget(){
+        return target;
+    }
+
+    @Override
+    public void close() {
+        if(out != null){
+            out.close();
+        }
+    }
+
+}
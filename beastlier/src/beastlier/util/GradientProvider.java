@@ -0,0 +1,56 @@
+/*
+* File GradientProvider.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.parameter.RealParameter;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Something with a log density that can give its derivatives with respect to continuous parameters, with the
+ * transmission tree's topology (which node is in which element) held fixed. The derivatives are worked out from the
+ * current values of everything, not from what was there at the last calculation of the density, so they can be asked
+ * for in the middle of a proposal.
+ */
+
+public interface GradientProvider {
+
+    /**
+     * @return the derivative of the log density with respect to each dimension of parameter, or null if the density
+     * does not depend on it. Any entry may be NaN if the current state is impossible.
+     */
+    double[] getLogPGradient(RealParameter parameter);
+
+    class Util{
+
+        //for the odd one-dimensional density that has no derivative of its own
+
+        public static double centralDifference(DoubleUnaryOperator function, double x){
+            double step = 1E-6*Math.max(1, Math.abs(x));
+            return (function.applyAsDouble(x + step) - function.applyAsDouble(x - step))/(2*step);
+        }
+
+    }
+}
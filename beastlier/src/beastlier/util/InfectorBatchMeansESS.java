@@ -0,0 +1,152 @@
+/*
+* File InfectorBatchMeansESS.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Effective sample sizes for who infected whom. For each host, the quantity is the indicator that its infector is
+ * the one it has had most often so far. Which one that is can change during the run, so rather than the indicators
+ * themselves, each batch keeps InfectorCounts and the batch means are worked out when they are needed. Batches are
+ * merged as in BatchMeansESS.
+ */
+
+public class InfectorBatchMeansESS {
+
+    private final int hostCount;
+    private final int maxBatches;
+    private final InfectorCounts[] batches;
+    private int batchCount = 0;
+    private long batchSize = 1;
+
+    private InfectorCounts current;
+    private final InfectorCounts total;
+
+    //hosts left out of getMinESS
+    private final boolean[] excluded;
+
+    public InfectorBatchMeansESS(int hostCount, int maxBatches){
+        if(maxBatches < 4 || maxBatches % 2 != 0){
+            throw new IllegalArgumentException("The number of batches must be even and at least 4");
+        }
+        this.hostCount = hostCount;
+        this.maxBatches = maxBatches;
+        batches = new InfectorCounts[maxBatches];
+        current = new InfectorCounts(hostCount);
+        total = new InfectorCounts(hostCount);
+        excluded = new boolean[hostCount];
+    }
+
+    //for hosts whose infector cannot change, which would otherwise keep getMinESS at 0 for ever
+
+    public void exclude(int host){
+        excluded[host] = true;
+    }
+
+    public void add(int[] network){
+        total.add(network);
+        current.add(network);
+
+        if(current.getTotal() == batchSize){
+            batches[batchCount++] = current;
+            current = new InfectorCounts(hostCount);
+
+            if(batchCount == maxBatches){
+                for(int i=0; i<maxBatches/2; i++){
+                    InfectorCounts merged = batches[2*i];
+                    merged.add(batches[2*i+1]);
+                    batches[i] = merged;
+                }
+                for(int i=maxBatches/2; i<maxBatches; i++){
+                    batches[i] = null;
+                }
+                batchCount = maxBatches/2;
+                batchSize *= 2;
+            }
+        }
+    }
+
+    public long getCount(){
+        return total.getTotal();
+    }
+
+    public int getModalInfector(int host){
+        int best = total.getInfector(host, 0);
+        for(int i=1; i<total.getDistinctInfectorCount(host); i++){
+            int infector = total.getInfector(host, i);
+            if(total.getCount(host, infector) > total.getCount(host, best)){
+                best = infector;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the ESS of the host's indicator, or 0 if there are not yet enough batches or the host has only ever had
+     * one infector (as for a constant value in BatchMeansESS, there is no telling yet)
+     */
+    public double getESS(int host){
+        if(batchCount < maxBatches/2){
+            return 0;
+        }
+        if(total.getDistinctInfectorCount(host) == 1){
+            return 0;
+        }
+
+        int modal = getModalInfector(host);
+        long n = total.getTotal();
+        double p = total.getProbability(host, modal);
+        double variance = p*(1-p)*n/(n-1);
+
+        double meanOfMeans = 0;
+        for(int i=0; i<batchCount; i++){
+            meanOfMeans += (double)batches[i].getCount(host, modal)/batchSize;
+        }
+        meanOfMeans /= batchCount;
+
+        double batchVariance = 0;
+        for(int i=0; i<batchCount; i++){
+            double difference = (double)batches[i].getCount(host, modal)/batchSize - meanOfMeans;
+            batchVariance += difference*difference;
+        }
+        batchVariance /= batchCount - 1;
+
+        if(batchVariance == 0){
+            return n;
+        }
+        return n*variance/(batchSize*batchVariance);
+    }
+
+    //the smallest over all the hosts that are not excluded
+
+    public double getMinESS(){
+        double min = Double.POSITIVE_INFINITY;
+        for(int host=0; host<hostCount; host++){
+            if(!excluded[host]){
+                min = Math.min(min, getESS(host));
+            }
+        }
+        return min;
+    }
+
+}
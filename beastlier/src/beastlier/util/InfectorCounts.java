@@ -0,0 +1,159 @@
+/*
+* File InfectorCounts.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import java.util.Arrays;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * How many times each host has had each infector, over a set of sampled transmission networks. A network is an
+ * array giving the infector of each host, with -1 for the index case. Most hosts only ever have a few infectors, so
+ * the counts are kept as a short list per host rather than a full host by host matrix.
+ *
+ * The parent credibility of a network is the product over hosts of the proportion of networks in which that host
+ * had the same infector, as in beast1/MPCTree.py.
+ */
+
+public class InfectorCounts {
+
+    /**
+     * A network as a map key; the array must not be changed once this has been made
+     */
+    public static class Network {
+        public final int[] infectors;
+        private final int hashCode;
+
+        public Network(int[] infectors){
+            this.infectors = infectors;
+            this.hashCode = Arrays.hashCode(infectors);
+        }
+
+        @Override
+        public int hashCode(){
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            return o instanceof Network && Arrays.equals(infectors, ((Network)o).infectors);
+        }
+    }
+
+    private final int hostCount;
+    private final int[][] infectors;
+    private final long[][] counts;
+    private final int[] distinctInfectors;
+    private long total = 0;
+
+    public InfectorCounts(int hostCount){
+        this.hostCount = hostCount;
+        infectors = new int[hostCount][4];
+        counts = new long[hostCount][4];
+        distinctInfectors = new int[hostCount];
+    }
+
+    public int getHostCount(){
+        return hostCount;
+    }
+
+    public long getTotal(){
+        return total;
+    }
+
+    public void add(int[] network){
+        if(network.length != hostCount){
+            throw new IllegalArgumentException("Network has " + network.length + " hosts; expected " + hostCount);
+        }
+        for(int host=0; host<hostCount; host++){
+            increment(host, network[host], 1);
+        }
+        total++;
+    }
+
+    //for combining counts made separately
+
+    public void add(InfectorCounts other){
+        if(other.hostCount != hostCount){
+            throw new IllegalArgumentException("Counts are for different numbers of hosts");
+        }
+        for(int host=0; host<hostCount; host++){
+            for(int i=0; i<other.distinctInfectors[host]; i++){
+                increment(host, other.infectors[host][i], other.counts[host][i]);
+            }
+        }
+        total += other.total;
+    }
+
+    private void increment(int host, int infector, long by){
+        int index = indexOf(host, infector);
+        if(index == -1){
+            index = distinctInfectors[host];
+            if(index == infectors[host].length){
+                infectors[host] = Arrays.copyOf(infectors[host], 2*index);
+                counts[host] = Arrays.copyOf(counts[host], 2*index);
+            }
+            infectors[host][index] = infector;
+            distinctInfectors[host]++;
+        }
+        counts[host][index] += by;
+    }
+
+    private int indexOf(int host, int infector){
+        int[] hostInfectors = infectors[host];
+        for(int i=0; i<distinctInfectors[host]; i++){
+            if(hostInfectors[i] == infector){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The infectors that a host has had, in the order in which they were first seen
+
+    public int getDistinctInfectorCount(int host){
+        return distinctInfectors[host];
+    }
+
+    public int getInfector(int host, int index){
+        return infectors[host][index];
+    }
+
+    public long getCount(int host, int infector){
+        int index = indexOf(host, infector);
+        return index == -1 ? 0 : counts[host][index];
+    }
+
+    public double getProbability(int host, int infector){
+        return (double)getCount(host, infector)/total;
+    }
+
+    public double getLogParentCredibility(int[] network){
+        double logCredibility = 0;
+        for(int host=0; host<hostCount; host++){
+            logCredibility += Math.log(getProbability(host, network[host]));
+        }
+        return logCredibility;
+    }
+
+}
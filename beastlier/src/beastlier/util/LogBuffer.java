@@ -0,0 +1,116 @@
+/*
+* File LogBuffer.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The state needed to write one line of a log, copied out on the MCMC thread so that it can be formatted somewhere
+ * else. Values are read back in the order they were added. Buffers are meant to be cleared and reused rather than
+ * thrown away, so the arrays only ever grow.
+ */
+
+public class LogBuffer {
+
+    private int sample;
+
+    private int[] ints = new int[16];
+    private int intCount = 0;
+    private int intPosition = 0;
+
+    private double[] doubles = new double[16];
+    private int doubleCount = 0;
+    private int doublePosition = 0;
+
+    //for loggables that can only give us their output as text
+    private final List<String> strings = new ArrayList<>();
+    private int stringPosition = 0;
+
+    public void clear(){
+        sample = 0;
+        intCount = 0;
+        doubleCount = 0;
+        strings.clear();
+        rewind();
+    }
+
+    //go back to the start for reading
+
+    public void rewind(){
+        intPosition = 0;
+        doublePosition = 0;
+        stringPosition = 0;
+    }
+
+    public int getSample(){
+        return sample;
+    }
+
+    public void setSample(int sample){
+        this.sample = sample;
+    }
+
+    public void addInt(int value){
+        if(intCount == ints.length){
+            ints = Arrays.copyOf(ints, 2*ints.length);
+        }
+        ints[intCount++] = value;
+    }
+
+    public void addDouble(double value){
+        if(doubleCount == doubles.length){
+            doubles = Arrays.copyOf(doubles, 2*doubles.length);
+        }
+        doubles[doubleCount++] = value;
+    }
+
+    public void addString(String value){
+        strings.add(value);
+    }
+
+    public int nextInt(){
+        if(intPosition == intCount){
+            throw new RuntimeException("Read past the end of the integers in a log buffer");
+        }
+        return ints[intPosition++];
+    }
+
+    public double nextDouble(){
+        if(doublePosition == doubleCount){
+            throw new RuntimeException("Read past the end of the doubles in a log buffer");
+        }
+        return doubles[doublePosition++];
+    }
+
+    public String nextString(){
+        if(stringPosition == strings.size()){
+            throw new RuntimeException("Read past the end of the strings in a log buffer");
+        }
+        return strings.get(stringPosition++);
+    }
+
+}
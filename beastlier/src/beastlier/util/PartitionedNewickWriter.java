@@ -0,0 +1,281 @@
+/*
+* File PartitionedNewickWriter.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTree;
+import beast.evolution.tree.PartitionedTreeNode;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Writes a partitioned tree in the same Newick form as setting every metaDataString and calling toSortedNewick, or
+ * in fancy mode as doing the same to getFlattenedTree(), but straight from the nodes of the tree into a buffer that
+ * is kept between calls.
+ *
+ * In fancy mode the infection events are written as degree two nodes above the earliest node of each element; their
+ * numbers are the node count plus the element number, as getFlattenedTree gives them.
+ *
+ * The tree is first copied into a LogBuffer and written from that, so the copy can be made on the MCMC thread and the
+ * writing done on another. Only the element names are taken from the tree itself, and those don't change.
+ */
+
+public class PartitionedNewickWriter {
+
+    private final StringBuilder buffer = new StringBuilder();
+    private final LogBuffer copy = new LogBuffer();
+
+    //the tree as read back from a LogBuffer, by node number
+    private int[] parents = new int[0];
+    private int[] firstChildren = new int[0];
+    private int[] secondChildren = new int[0];
+    private int[] elements = new int[0];
+    private boolean[] hasIDs = new boolean[0];
+    private double[] heights = new double[0];
+    private double[] infectionHeights = new double[0];
+    //the lowest tip number in the subtree below each node, which is what toSortedNewick orders children by
+    private int[] lowestTip = new int[0];
+
+    private String elementLabel;
+    //the metadata for each element, at elementNo+1; in fancy mode the unsampled element is "start"
+    private String[] quotedElements = new String[0];
+    private String quotedStart;
+
+    /**
+     * @return the buffer, holding only the Newick string for the tree; it will be overwritten by the next call
+     */
+    public CharSequence write(PartitionedTree tree, boolean fancy){
+        copy.clear();
+        snapshot(tree, fancy, copy);
+        return write(copy);
+    }
+
+    /**
+     * Copy what write() needs from the tree into the buffer
+     */
+    public void snapshot(PartitionedTree tree, boolean fancy, LogBuffer out){
+        prepareElementStrings(tree);
+
+        Node[] nodes = tree.getNodesAsArray();
+        out.addInt(nodes.length);
+        out.addInt(tree.getRoot().getNr());
+        out.addInt(fancy ? 1 : 0);
+
+        for(Node node : nodes){
+            PartitionedTreeNode pNode = (PartitionedTreeNode)node;
+            PartitionedTreeNode parent = (PartitionedTreeNode)node.getParent();
+            int elementNo = pNode.getPartitionElementNumber();
+
+            out.addInt(parent == null ? -1 : parent.getNr());
+            out.addInt(elementNo);
+            out.addInt(node.getID() != null ? 1 : 0);
+            out.addDouble(node.getHeight());
+
+            if(fancy){
+                //as in getFlattenedTree, the unsampled element has no infection
+                boolean infectionAbove = elementNo != -1
+                        && (parent == null || parent.getPartitionElementNumber() != elementNo);
+                out.addDouble(infectionAbove
+                        ? ((EpidemiologicalPartitionedTree)tree).getInfectionHeightByNr(elementNo) : Double.NaN);
+            }
+        }
+    }
+
+    /**
+     * Write a tree copied by snapshot(), reading it from the buffer's current position
+     *
+     * @return the buffer, holding only the Newick string for the tree; it will be overwritten by the next call
+     */
+    public CharSequence write(LogBuffer in){
+        buffer.setLength(0);
+
+        int nodeCount = in.nextInt();
+        int rootNr = in.nextInt();
+        boolean fancy = in.nextInt() == 1;
+
+        if(parents.length < nodeCount){
+            parents = new int[nodeCount];
+            firstChildren = new int[nodeCount];
+            secondChildren = new int[nodeCount];
+            elements = new int[nodeCount];
+            hasIDs = new boolean[nodeCount];
+            heights = new double[nodeCount];
+            infectionHeights = new double[nodeCount];
+            lowestTip = new int[nodeCount];
+        }
+        Arrays.fill(firstChildren, 0, nodeCount, -1);
+        Arrays.fill(secondChildren, 0, nodeCount, -1);
+
+        for(int nr=0; nr<nodeCount; nr++){
+            parents[nr] = in.nextInt();
+            elements[nr] = in.nextInt();
+            hasIDs[nr] = in.nextInt() == 1;
+            heights[nr] = in.nextDouble();
+            infectionHeights[nr] = fancy ? in.nextDouble() : Double.NaN;
+        }
+        for(int nr=0; nr<nodeCount; nr++){
+            int parent = parents[nr];
+            if(parent != -1){
+                if(firstChildren[parent] == -1){
+                    firstChildren[parent] = nr;
+                } else {
+                    secondChildren[parent] = nr;
+                }
+            }
+        }
+
+        findLowestTips(rootNr);
+
+        if(fancy){
+            writeFancy(rootNr, nodeCount);
+        } else {
+            writePlain(rootNr);
+        }
+
+        return buffer;
+    }
+
+    // The metadata strings only change if the element list does, which it doesn't during a run
+
+    private void prepareElementStrings(PartitionedTree tree){
+        if(quotedElements.length != tree.getNElements()+1 || !tree.getElementLabel().equals(elementLabel)){
+            setElementStrings(tree.getElementLabel(), tree.getElementList());
+        }
+    }
+
+    /**
+     * For writing trees that didn't come from a PartitionedTree in this run, such as ones read back from a binary log
+     */
+    public void setElementStrings(String label, List<String> elementNames){
+        elementLabel = label;
+        String[] newElements = new String[elementNames.size()+1];
+        newElements[0] = "[&" + label + "=\"unsampled\"]";
+        for(int i=0; i<elementNames.size(); i++){
+            newElements[i+1] = "[&" + label + "=\"" + elementNames.get(i) + "\"]";
+        }
+        quotedStart = "[&" + label + "=\"start\"]";
+        quotedElements = newElements;
+    }
+
+    private boolean isLeaf(int nr){
+        return firstChildren[nr] == -1;
+    }
+
+    private double getLength(int nr){
+        return parents[nr] == -1 ? 0 : heights[parents[nr]] - heights[nr];
+    }
+
+    private int findLowestTips(int nr){
+        int lowest;
+        if(isLeaf(nr)){
+            lowest = nr;
+        } else {
+            lowest = findLowestTips(firstChildren[nr]);
+            if(secondChildren[nr] != -1){
+                lowest = Math.min(lowest, findLowestTips(secondChildren[nr]));
+            }
+        }
+        lowestTip[nr] = lowest;
+        return lowest;
+    }
+
+    private void writeLabel(int nr, boolean fancy, int nodeCount){
+        if(!isLeaf(nr)){
+            buffer.append('(');
+            writeChildren(nr, fancy, nodeCount);
+            buffer.append(')');
+            if(hasIDs[nr]){
+                buffer.append(nr+1);
+            }
+        } else {
+            buffer.append(nr+1);
+        }
+    }
+
+    private void writePlain(int nr){
+        writeLabel(nr, false, 0);
+        buffer.append(quotedElements[elements[nr]+1]);
+        buffer.append(':').append(getLength(nr));
+    }
+
+    private void writeChildren(int nr, boolean fancy, int nodeCount){
+        int first = firstChildren[nr];
+        int second = secondChildren[nr];
+
+        if(second != -1 && lowestTip[first] > lowestTip[second]){
+            int temp = first;
+            first = second;
+            second = temp;
+        }
+
+        writeChild(first, fancy, nodeCount);
+        if(second != -1){
+            buffer.append(',');
+            writeChild(second, fancy, nodeCount);
+        }
+    }
+
+    private void writeChild(int nr, boolean fancy, int nodeCount){
+        if(fancy){
+            writeFancy(nr, nodeCount);
+        } else {
+            writePlain(nr);
+        }
+    }
+
+    // Writes the node, and if it is the earliest in its element the infection above it as well
+
+    private void writeFancy(int nr, int nodeCount){
+        int elementNo = elements[nr];
+        int parent = parents[nr];
+
+        double infectionHeight = infectionHeights[nr];
+        boolean infectionAbove = !Double.isNaN(infectionHeight);
+
+        if(infectionAbove){
+            buffer.append('(');
+        }
+
+        writeLabel(nr, true, nodeCount);
+        buffer.append(elementNo == -1 ? quotedStart : quotedElements[elementNo+1]);
+        buffer.append(':').append(infectionAbove ? infectionHeight - heights[nr] : getLength(nr));
+
+        if(infectionAbove){
+            buffer.append(')');
+            buffer.append(nodeCount + elementNo + 1);
+            if(parent == -1){
+                buffer.append(quotedStart);
+                buffer.append(':').append(0.0);
+            } else {
+                int parentElementNo = elements[parent];
+                buffer.append(parentElementNo == -1 ? quotedStart : quotedElements[parentElementNo+1]);
+                buffer.append(':').append(heights[parent] - infectionHeight);
+            }
+        }
+    }
+
+}
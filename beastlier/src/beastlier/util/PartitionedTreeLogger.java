@@ -24,7 +24,6 @@ package beastlier.util;
 
 import beast.core.BEASTObject;
 import beast.core.Input;
-import beast.core.Loggable;
 import beast.evolution.tree.*;
 
 import java.io.PrintStream;
@@ -33,7 +32,7 @@ import java.io.PrintStream;
  * @author Matthew Hall <mdhall@ic.ac.uk>
  */
 
-public class PartitionedTreeLogger extends BEASTObject implements Loggable {
+public class PartitionedTreeLogger extends BEASTObject implements SnapshotLoggable {
 
     public Input<PartitionedTree> partitionedTreeInput = new Input<>("partitionedTree", "Node-partitioned tree to log.",
             Input.Validate.REQUIRED);
@@ -42,6 +41,7 @@ public class PartitionedTreeLogger extends BEASTObject implements Loggable {
 
     PartitionedTree pTree;
     boolean fancy;
+    private final PartitionedNewickWriter writer = new PartitionedNewickWriter();
 
     @Override
     public void initAndValidate() {
@@ -60,47 +60,21 @@ public class PartitionedTreeLogger extends BEASTObject implements Loggable {
 
     @Override
     public void log(int nSample, PrintStream out) {
+        out.print("tree STATE_" + nSample + " = ");
+        out.print(writer.write(pTree, fancy));
+        out.print(";");
+    }
 
-        if(fancy){
-            EpidemiologicalPartitionedTree epTree = (EpidemiologicalPartitionedTree)pTree;
-
-            Tree fancyTree = epTree.getFlattenedTree();
-
-            for (Node node : fancyTree.getNodesAsArray()) {
-                PartitionedTreeNode pNode = (PartitionedTreeNode) node;
-                if(pNode.getPartitionElementNumber()==-1){
-                    pNode.metaDataString = pTree.getElementLabel()
-                            + "=\""
-                            + "start"
-                            + "\"";
-
-                } else {
-                    pNode.metaDataString = pTree.getElementLabel()
-                            + "=\""
-                            + pTree.getElementString(pNode.getPartitionElementNumber())
-                            + "\"";
-                }
-            }
-
-            out.print("tree STATE_" + nSample + " = ");
-            out.print(fancyTree.getRoot().toSortedNewick(new int[1], true));
-            out.print(";");
-
-
-        } else {
-
-            for (Node node : pTree.getNodesAsArray()) {
-                PartitionedTreeNode pNode = (PartitionedTreeNode) node;
-                pNode.metaDataString = pTree.getElementLabel()
-                        + "=\""
-                        + pTree.getElementString(pNode.getPartitionElementNumber())
-                        + "\"";
-            }
+    @Override
+    public void snapshot(int nSample, LogBuffer buffer) {
+        writer.snapshot(pTree, fancy, buffer);
+    }
 
-            out.print("tree STATE_" + nSample + " = ");
-            out.print(pTree.getRoot().toSortedNewick(new int[1], true));
-            out.print(";");
-        }
+    @Override
+    public void format(LogBuffer buffer, PrintStream out) {
+        out.print("tree STATE_" + buffer.getSample() + " = ");
+        out.print(writer.write(buffer));
+        out.print(";");
     }
 
     public static void debugLog(PartitionedTree tree, int nSample, boolean fancy, PrintStream stream){
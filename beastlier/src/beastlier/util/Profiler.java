@@ -0,0 +1,208 @@
+/*
+* File Profiler.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Counters and timers for where the time in a step goes: proposals by operator, storing and restoring the trees,
+ * sorting the between-host events, building the within-host intervals and the treelet calculations. For each section
+ * there is a count of calls, the time spent in them, and a count of the times the work was skipped because nothing
+ * it depended on had changed.
+ *
+ * Nothing is recorded unless one of these is present in the XML; until then every call here is one test of a static
+ * flag. If it is, the totals can be logged like anything else (with columns for the operators given to it) and a
+ * report of everything is printed when the JVM exits. The counters can be updated from several threads at once.
+ */
+
+@Description("Counters and timers for the parts of an MCMC step, off unless present")
+public class Profiler extends BEASTObject implements SnapshotLoggable {
+
+    public Input<List<Operator>> operatorsInput = new Input<>("operator", "Operators to have columns in the log; " +
+            "all of them are in the report", new ArrayList<>());
+
+    public enum Section {
+        TREE_STORE,
+        TREE_RESTORE,
+        SORT_EVENTS,
+        INTERVALS,
+        WITHIN_HOST,
+        TREELET
+    }
+
+    private static final int SECTION_COUNT = Section.values().length;
+
+    //set before the chain starts and not after, so it needn't be volatile
+    private static boolean enabled = false;
+
+    private static final AtomicLongArray calls = new AtomicLongArray(SECTION_COUNT);
+    private static final AtomicLongArray nanos = new AtomicLongArray(SECTION_COUNT);
+    private static final AtomicLongArray skips = new AtomicLongArray(SECTION_COUNT);
+
+    //proposals and nanoseconds for each operator
+    private static final Map<Operator, AtomicLongArray> operatorTimes = new ConcurrentHashMap<>();
+
+    private static boolean reportAdded = false;
+
+    private final LogBuffer logBuffer = new LogBuffer();
+
+    @Override
+    public void initAndValidate() {
+        enabled = true;
+        synchronized (Profiler.class) {
+            if(!reportAdded){
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> report(System.out)));
+                reportAdded = true;
+            }
+        }
+    }
+
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * @return the time now if profiling, for passing to stop() or proposed() at the end of the section
+     */
+    public static long start(){
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Section section, long start){
+        if(enabled){
+            long elapsed = System.nanoTime() - start;
+            calls.incrementAndGet(section.ordinal());
+            nanos.addAndGet(section.ordinal(), elapsed);
+        }
+    }
+
+    public static void skip(Section section){
+        if(enabled){
+            skips.incrementAndGet(section.ordinal());
+        }
+    }
+
+    /**
+     * Record a proposal that began at start
+     *
+     * @return logHastingsRatio, so that an operator can return the result of this
+     */
+    public static double proposed(Operator operator, long start, double logHastingsRatio){
+        if(enabled){
+            long elapsed = System.nanoTime() - start;
+            AtomicLongArray times = operatorTimes.computeIfAbsent(operator, key -> new AtomicLongArray(2));
+            times.incrementAndGet(0);
+            times.addAndGet(1, elapsed);
+        }
+        return logHastingsRatio;
+    }
+
+    private static double toMillis(long nanoseconds){
+        return nanoseconds/1E6;
+    }
+
+    private static String name(Operator operator){
+        return operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for(Section section : Section.values()){
+            String name = section.name().toLowerCase();
+            out.print(name + "_calls\t" + name + "_ms\t" + name + "_skipped\t");
+        }
+        for(Operator operator : operatorsInput.get()){
+            out.print(name(operator) + "_proposals\t" + name(operator) + "_ms\t");
+        }
+    }
+
+    @Override
+    public void log(int sample, PrintStream out) {
+        logBuffer.clear();
+        logBuffer.setSample(sample);
+        snapshot(sample, logBuffer);
+        format(logBuffer, out);
+    }
+
+    @Override
+    public void snapshot(int sample, LogBuffer buffer) {
+        for(int i=0; i<SECTION_COUNT; i++){
+            buffer.addDouble(calls.get(i));
+            buffer.addDouble(nanos.get(i));
+            buffer.addDouble(skips.get(i));
+        }
+        for(Operator operator : operatorsInput.get()){
+            AtomicLongArray times = operatorTimes.get(operator);
+            buffer.addDouble(times == null ? 0 : times.get(0));
+            buffer.addDouble(times == null ? 0 : times.get(1));
+        }
+    }
+
+    @Override
+    public void format(LogBuffer buffer, PrintStream out) {
+        for(int i=0; i<SECTION_COUNT; i++){
+            out.print((long)buffer.nextDouble() + "\t");
+            out.print(toMillis((long)buffer.nextDouble()) + "\t");
+            out.print((long)buffer.nextDouble() + "\t");
+        }
+        for(int i=0; i<operatorsInput.get().size(); i++){
+            out.print((long)buffer.nextDouble() + "\t");
+            out.print(toMillis((long)buffer.nextDouble()) + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        //nothing to do
+    }
+
+    public static void report(PrintStream out){
+        out.println("Profile (calls, total ms, ms per call, skipped):");
+        for(Section section : Section.values()){
+            int i = section.ordinal();
+            long count = calls.get(i);
+            out.println("  " + section.name().toLowerCase() + "\t" + count + "\t" + toMillis(nanos.get(i)) + "\t"
+                    + (count == 0 ? 0 : toMillis(nanos.get(i))/count) + "\t" + skips.get(i));
+        }
+        out.println("Proposals (count, total ms, ms per proposal):");
+        for(Map.Entry<Operator, AtomicLongArray> entry : operatorTimes.entrySet()){
+            long count = entry.getValue().get(0);
+            double millis = toMillis(entry.getValue().get(1));
+            out.println("  " + name(entry.getKey()) + "\t" + count + "\t" + millis + "\t"
+                    + (count == 0 ? 0 : millis/count));
+        }
+    }
+
+}
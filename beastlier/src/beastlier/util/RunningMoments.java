@@ -0,0 +1,88 @@
+/*
+* File RunningMoments.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Mean, variance and range of a stream of values, updated one at a time by Welford's method; two of these can be
+ * merged as in Chan, Golub and LeVeque (1979).
+ */
+
+public class RunningMoments {
+
+    private long count = 0;
+    private double mean = 0;
+    private double sumOfSquares = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public void add(double value){
+        count++;
+        double delta = value - mean;
+        mean += delta/count;
+        sumOfSquares += delta*(value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(RunningMoments other){
+        if(other.count == 0){
+            return;
+        }
+        long newCount = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta*other.count/newCount;
+        sumOfSquares += other.sumOfSquares + delta*delta*((double)count*other.count/newCount);
+        count = newCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    public double getMean(){
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    //the sample variance, with n-1
+
+    public double getVariance(){
+        return count < 2 ? Double.NaN : sumOfSquares/(count - 1);
+    }
+
+    public double getStandardDeviation(){
+        return Math.sqrt(getVariance());
+    }
+
+    public double getMin(){
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax(){
+        return count == 0 ? Double.NaN : max;
+    }
+
+}
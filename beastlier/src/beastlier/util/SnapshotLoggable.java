@@ -0,0 +1,47 @@
+/*
+* File SnapshotLoggable.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.Loggable;
+
+import java.io.PrintStream;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * A Loggable whose log() can be split in two: copying the numbers out of the current state, which has to happen on
+ * the MCMC thread, and turning them into text, which can happen on any thread once the copy is made. AsyncLogger
+ * uses this to get the formatting and writing out of the way of the chain.
+ *
+ * format() must print exactly what log() would have done for the same state, and must not look at anything that
+ * can change during the run. log() is still needed for ordinary Loggers; it can go through snapshot() and format()
+ * with a LogBuffer kept by the loggable and cleared each time, so that nothing is allocated per sample.
+ */
+
+public interface SnapshotLoggable extends Loggable {
+
+    void snapshot(int sample, LogBuffer buffer);
+
+    void format(LogBuffer buffer, PrintStream out);
+
+}
@@ -0,0 +1,264 @@
+/*
+* File TransmissionNetworkAccumulator.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.GuideTreeSummary;
+import beast.evolution.tree.PartitionedTree;
+import beast.util.Randomizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Does what TransmissionTreeStructureLogger followed by beast1/MPCTree.py does, during the run: counts the infectors of
+ * each host in every sample after the burn-in and keeps each distinct transmission network that has been seen. At the
+ * end it writes the maximum parent credibility network to fileName in the same form as MPCTree.py, and the posterior
+ * probability of every infector of every host to infectorFileName. The infector probabilities are also written every
+ * checkpointEvery counted samples. The search for the MPC network goes through every network that has been seen, so
+ * it is only done at the end.
+ *
+ * The burn-in is in states, as with MPCTree.py -t. Ties between networks go to the one seen first, as in the script.
+ * Counts are not carried over when a run is resumed.
+ */
+
+@Description("Accumulates infector probabilities and the maximum parent credibility transmission network during the " +
+        "run")
+public class TransmissionNetworkAccumulator extends Logger {
+
+    public Input<Integer> burninInput = new Input<>("burnin", "Number of states to ignore at the start of the run",
+            0);
+    public Input<Integer> checkpointEveryInput = new Input<>("checkpointEvery", "Write the infector probabilities " +
+            "after this many samples have been counted (as well as at the end); 0 for only at the end", 10000);
+    public Input<String> infectorFileNameInput = new Input<>("infectorFileName", "Where to write the infector " +
+            "probabilities (default is fileName with _infectors before the extension)");
+
+    private PartitionedTree pTree;
+    private EpidemiologicalPartitionedTree ePTree;
+    private int every;
+    private int burnin;
+    private int checkpointEvery;
+    private File mpcFile;
+    private File infectorFile;
+
+    private InfectorCounts counts;
+    //each distinct network, in the order first seen, with how many times it has been
+    private final Map<InfectorCounts.Network, long[]> networks = new LinkedHashMap<>();
+    private int[] network;
+    private long sinceCheckpoint = 0;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        List<BEASTObject> loggers = loggersInput.get();
+        if(loggers.size() != 1 || !(loggers.get(0) instanceof PartitionedTree)){
+            throw new IllegalArgumentException("TransmissionNetworkAccumulator takes a single PartitionedTree and " +
+                    "nothing else");
+        }
+        if(fileNameInput.get() == null || fileNameInput.get().length() == 0){
+            throw new IllegalArgumentException("TransmissionNetworkAccumulator needs a file to write to");
+        }
+        if(checkpointEveryInput.get() < 0){
+            throw new IllegalArgumentException("checkpointEvery cannot be negative");
+        }
+
+        pTree = (PartitionedTree)loggers.get(0);
+        ePTree = pTree instanceof EpidemiologicalPartitionedTree ? (EpidemiologicalPartitionedTree)pTree : null;
+        every = everyInput.get();
+        burnin = burninInput.get();
+        checkpointEvery = checkpointEveryInput.get();
+
+        counts = new InfectorCounts(pTree.getNElements());
+        network = new int[pTree.getNElements()];
+    }
+
+    @Override
+    public void init() throws IOException {
+        String fileName = fileNameInput.get();
+        if(fileName.contains("$(seed)")){
+            fileName = fileName.replace("$(seed)", Long.toString(Randomizer.getSeed()));
+        }
+        mpcFile = new File(fileName);
+
+        String infectorFileName = infectorFileNameInput.get();
+        if(infectorFileName == null){
+            infectorFileName = siblingFileName(fileName, "_infectors");
+        } else if(infectorFileName.contains("$(seed)")){
+            infectorFileName = infectorFileName.replace("$(seed)", Long.toString(Randomizer.getSeed()));
+        }
+        infectorFile = new File(infectorFileName);
+    }
+
+    // The file name with the suffix put before the extension, if there is one
+
+    static String siblingFileName(String fileName, String suffix){
+        int dot = fileName.lastIndexOf('.');
+        return dot > fileName.lastIndexOf(File.separatorChar)
+                ? fileName.substring(0, dot) + suffix + fileName.substring(dot)
+                : fileName + suffix;
+    }
+
+    @Override
+    public void log(int sample) {
+        if(sample < 0 || sample % every > 0){
+            return;
+        }
+        if(sampleOffset >= 0){
+            sample += sampleOffset;
+        }
+        if(sample < burnin){
+            return;
+        }
+
+        GuideTreeSummary summary = ePTree != null ? ePTree.getGuideTreeSummary() : null;
+        for(int i=0; i<network.length; i++){
+            network[i] = summary != null ? summary.getAncestorPartitionElement(i)
+                    : pTree.getAncestorPartitionElement(i);
+        }
+
+        counts.add(network);
+        InfectorCounts.Network key = new InfectorCounts.Network(network);
+        long[] seen = networks.get(key);
+        if(seen == null){
+            networks.put(key, new long[]{1});
+            //the key keeps this array, so start a new one
+            network = new int[network.length];
+        } else {
+            seen[0]++;
+        }
+
+        sinceCheckpoint++;
+        if(checkpointEvery > 0 && sinceCheckpoint >= checkpointEvery){
+            sinceCheckpoint = 0;
+            writeInfectors();
+        }
+    }
+
+    @Override
+    public void close() {
+        writeInfectors();
+        writeMPCNetwork();
+    }
+
+    public InfectorCounts getCounts(){
+        return counts;
+    }
+
+    /**
+     * @return the network with the highest parent credibility out of those seen so far, or null if none have been
+     */
+    public int[] getMPCNetwork(){
+        int[] best = null;
+        double bestLogCredibility = Double.NEGATIVE_INFINITY;
+        for(InfectorCounts.Network candidate : networks.keySet()){
+            double logCredibility = counts.getLogParentCredibility(candidate.infectors);
+            if(best == null || logCredibility > bestLogCredibility){
+                best = candidate.infectors;
+                bestLogCredibility = logCredibility;
+            }
+        }
+        return best;
+    }
+
+    private void writeMPCNetwork(){
+        if(counts.getTotal() == 0){
+            return;
+        }
+
+        List<String> hosts = pTree.getElementList();
+        int[] mpc = getMPCNetwork();
+
+        try {
+            writeAtomically(mpcFile, out -> {
+                out.println("Child,Parent,MPC credibility");
+                for(int host=0; host<hosts.size(); host++){
+                    out.println(hosts.get(host) + "," + infectorName(mpc[host]) + ","
+                            + counts.getProbability(host, mpc[host]));
+                }
+            });
+        } catch (IOException e){
+            throw new RuntimeException("Error writing the MPC transmission network", e);
+        }
+    }
+
+    private void writeInfectors(){
+        if(counts.getTotal() == 0){
+            return;
+        }
+
+        List<String> hosts = pTree.getElementList();
+
+        try {
+            writeAtomically(infectorFile, out -> {
+                out.println("Child,Infector,Probability");
+                for(int host=0; host<hosts.size(); host++){
+                    for(int i=0; i<counts.getDistinctInfectorCount(host); i++){
+                        int infector = counts.getInfector(host, i);
+                        out.println(hosts.get(host) + "," + infectorName(infector) + ","
+                                + counts.getProbability(host, infector));
+                    }
+                }
+            });
+        } catch (IOException e){
+            throw new RuntimeException("Error writing infector probabilities", e);
+        }
+    }
+
+    private String infectorName(int infector){
+        return infector == -1 ? "start" : pTree.getElementString(infector);
+    }
+
+    interface Contents {
+        void write(PrintStream out);
+    }
+
+    // Write to a temporary file and move it into place, so a run that is killed never leaves half a summary
+
+    static void writeAtomically(File file, Contents contents) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (PrintStream out = new PrintStream(new FileOutputStream(temp))) {
+            contents.write(out);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
@@ -24,7 +24,6 @@ package beastlier.util;
 
 import beast.core.BEASTObject;
 import beast.core.Input;
-import beast.core.Loggable;
 import beast.evolution.tree.PartitionedTree;
 
 import java.io.PrintStream;
@@ -33,12 +32,13 @@ import java.io.PrintStream;
  * @author Matthew Hall <mdhall@ic.ac.uk>
  */
 
-public class TransmissionTreeStructureLogger extends BEASTObject implements Loggable {
+public class TransmissionTreeStructureLogger extends BEASTObject implements SnapshotLoggable {
 
     public Input<PartitionedTree> partitionedTreeInput = new Input<>("partitionedTree", "Node-partitioned tree to log.",
             Input.Validate.REQUIRED);
 
     PartitionedTree pTree;
+    private final LogBuffer logBuffer = new LogBuffer();
 
     @Override
     public void initAndValidate() {
@@ -54,10 +54,25 @@ public class TransmissionTreeStructureLogger extends BEASTObject implements Logg
 
     @Override
     public void log(int sample, PrintStream out) {
-        for(String elementName : pTree.getElementList()){
+        logBuffer.clear();
+        logBuffer.setSample(sample);
+        snapshot(sample, logBuffer);
+        format(logBuffer, out);
+    }
+
+    @Override
+    public void snapshot(int sample, LogBuffer buffer) {
+        for(int i=0; i<pTree.getNElements(); i++){
             //element number
-            String infector = pTree.getAncestorPartitionElement(elementName);
-            out.print((infector==null ? "start" : infector) + "\t");
+            buffer.addInt(pTree.getAncestorPartitionElement(i));
+        }
+    }
+
+    @Override
+    public void format(LogBuffer buffer, PrintStream out) {
+        for(int i=0; i<pTree.getNElements(); i++){
+            int infector = buffer.nextInt();
+            out.print((infector==-1 ? "start" : pTree.getElementString(infector)) + "\t");
         }
     }
 
@@ -0,0 +1,643 @@
+/*
+* File TransmissionTreeSummariser.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * A replacement for beast1/MPCTree.py for big logs. The network log (as written by TransmissionTreeStructureLogger,
+ * or BEAST 1) is memory mapped and cut into chunks at line breaks, and the chunks are read in parallel. The outputs
+ * are:
+ *
+ *   output: the maximum parent credibility network, exactly as MPCTree.py writes it
+ *   output with _infectors before the extension: the posterior probability of every infector of every host
+ *   output with _infectionTimes before the extension: quantiles of the infection time of every host, if a binary tree
+ *   log from BinaryPartitionedTreeLogger is given with -trees
+ *
+ * The burn-in works as in the script: in lines by default, in states with -t. In lines, the first burnin-1 samples
+ * are dropped. The same burn-in is applied to the tree log, counting records as lines.
+ *
+ * Usage: TransmissionTreeSummariser [-b burnin] [-t] [-threads n] [-trees binaryLog] [-quantiles p1,p2,...]
+ *        networkLog output
+ */
+
+public class TransmissionTreeSummariser {
+
+    //the largest piece of the file that one thread reads at once
+    private static final long MAX_CHUNK = 1L << 28;
+
+    private final long burnin;
+    private final boolean burninInLines;
+    private final int threads;
+    private final ExecutorService pool;
+
+    private List<String> hosts;
+    private Map<String, Integer> hostNumbers;
+    //names that appear as infectors but are not hosts ("Start" or "start"), with numbers -1, -2, ...
+    private final List<String> otherInfectors = new ArrayList<>();
+    private final Map<String, Integer> otherInfectorNumbers = new HashMap<>();
+
+    private InfectorCounts counts;
+    private int[] mpcNetwork;
+    private double mpcLogCredibility;
+
+    private List<String> timedHosts;
+    private double[][] infectionTimeQuantiles;
+
+    public TransmissionTreeSummariser(long burnin, boolean burninInLines, int threads){
+        if(threads < 1){
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.burnin = burnin;
+        this.burninInLines = burninInLines;
+        this.threads = threads;
+        pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        long burnin = 1000;
+        boolean burninInLines = true;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String treeLog = null;
+        double[] quantiles = {0.025, 0.5, 0.975};
+        List<String> positional = new ArrayList<>();
+
+        for(int i=0; i<args.length; i++){
+            switch (args[i]) {
+                case "-b":
+                case "--burnin":
+                    burnin = Long.parseLong(args[++i]);
+                    break;
+                case "-t":
+                case "--burninInStates":
+                    burninInLines = false;
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-trees":
+                    treeLog = args[++i];
+                    break;
+                case "-quantiles":
+                    String[] values = args[++i].split(",");
+                    quantiles = new double[values.length];
+                    for(int j=0; j<values.length; j++){
+                        quantiles[j] = Double.parseDouble(values[j]);
+                    }
+                    break;
+                default:
+                    positional.add(args[i]);
+            }
+        }
+        if(positional.size() != 2){
+            System.err.println("Usage: TransmissionTreeSummariser [-b burnin] [-t] [-threads n] [-trees binaryLog] " +
+                    "[-quantiles p1,p2,...] networkLog output");
+            System.exit(1);
+        }
+
+        String output = positional.get(1);
+        TransmissionTreeSummariser summariser = new TransmissionTreeSummariser(burnin, burninInLines, threads);
+
+        System.out.println("Reading " + positional.get(0));
+        summariser.readNetworkLog(new File(positional.get(0)));
+        System.out.println("Maximum parent credibility network has credibility exp("
+                + summariser.mpcLogCredibility + ") (output to " + output + ")");
+        summariser.writeMPCNetwork(new File(output));
+        summariser.writeInfectorProbabilities(new File(TransmissionNetworkAccumulator.siblingFileName(output,
+                "_infectors")));
+
+        if(treeLog != null){
+            System.out.println("Reading " + treeLog);
+            try (BinaryPartitionedTreeLog log = new BinaryPartitionedTreeLog(new File(treeLog))) {
+                summariser.readTreeLog(log, quantiles);
+            }
+            summariser.writeInfectionTimeQuantiles(new File(TransmissionNetworkAccumulator.siblingFileName(output,
+                    "_infectionTimes")), quantiles);
+        }
+
+        summariser.pool.shutdown();
+    }
+
+    /////////////////////////////////////////////////
+    // Network log                                 //
+    /////////////////////////////////////////////////
+
+    private static class Chunk {
+        final long start;
+        final long end;
+        //the line number (counting from one, as MPCTree.py does) of the first line in this chunk
+        long firstLine;
+
+        Chunk(long start, long end){
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class ChunkResult {
+        InfectorCounts counts;
+        //each distinct network in the chunk and the first line it was on
+        final Map<InfectorCounts.Network, Long> networks = new LinkedHashMap<>();
+    }
+
+    public void readNetworkLog(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+
+            long dataStart = readHeader(channel);
+            List<Chunk> chunks = makeChunks(channel, dataStart);
+
+            //first pass: count the lines, so that each chunk knows where it is for the burn-in
+            List<Callable<Long>> lineCounts = new ArrayList<>();
+            for(Chunk chunk : chunks){
+                lineCounts.add(() -> countLines(map(channel, chunk)));
+            }
+            List<Long> lines = runAll(lineCounts);
+            long line = 1;
+            for(int i=0; i<chunks.size(); i++){
+                chunks.get(i).firstLine = line;
+                line += lines.get(i);
+            }
+
+            //second pass: the counts
+            List<Callable<ChunkResult>> reads = new ArrayList<>();
+            for(Chunk chunk : chunks){
+                reads.add(() -> readChunk(map(channel, chunk), chunk.firstLine));
+            }
+            List<ChunkResult> results = runAll(reads);
+
+            counts = new InfectorCounts(hosts.size());
+            for(ChunkResult result : results){
+                counts.add(result.counts);
+            }
+            if(counts.getTotal() == 0){
+                throw new RuntimeException("No states left after the burn-in");
+            }
+
+            //third pass, over the distinct networks only: the one with the highest credibility, going to the
+            //earliest in the case of ties
+            List<Callable<Object[]>> searches = new ArrayList<>();
+            for(ChunkResult result : results){
+                searches.add(() -> findMPCNetwork(result));
+            }
+            long bestLine = Long.MAX_VALUE;
+            mpcLogCredibility = Double.NEGATIVE_INFINITY;
+            for(Object[] best : runAll(searches)){
+                if(best == null){
+                    continue;
+                }
+                double logCredibility = (Double)best[1];
+                long firstLine = (Long)best[2];
+                if(mpcNetwork == null || logCredibility > mpcLogCredibility
+                        || (logCredibility == mpcLogCredibility && firstLine < bestLine)){
+                    mpcNetwork = (int[])best[0];
+                    mpcLogCredibility = logCredibility;
+                    bestLine = firstLine;
+                }
+            }
+        }
+    }
+
+    // Comment lines, then the header, which is "state" and then the hosts, possibly with "_infector" on the end
+
+    private long readHeader(FileChannel channel) throws IOException {
+        long position = 0;
+        while(true){
+            long end = findLineEnd(channel, position);
+            if(end == position && end >= channel.size()){
+                throw new IOException("No header line in the network log");
+            }
+            ByteBuffer lineBuffer = ByteBuffer.allocate((int)(end - position));
+            channel.read(lineBuffer, position);
+            String line = new String(lineBuffer.array(), StandardCharsets.UTF_8);
+            if(line.endsWith("\r")){
+                line = line.substring(0, line.length()-1);
+            }
+            position = end + 1;
+
+            if(!line.startsWith("#")){
+                hosts = new ArrayList<>(Arrays.asList(line.split("\t")));
+                //"state" from BEAST 1, "Sample" from BEAST 2
+                hosts.remove(0);
+                hostNumbers = new HashMap<>();
+                for(int i=0; i<hosts.size(); i++){
+                    if(hosts.get(i).endsWith("_infector")){
+                        hosts.set(i, hosts.get(i).substring(0, hosts.get(i).length() - 9));
+                    }
+                    hostNumbers.put(hosts.get(i), i);
+                }
+                return position;
+            }
+        }
+    }
+
+    //the position of the next line break at or after this one, or the end of the file
+
+    private static long findLineEnd(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long size = channel.size();
+        while(position < size){
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for(int i=0; i<read; i++){
+                if(buffer.get(i) == '\n'){
+                    return position + i;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private List<Chunk> makeChunks(FileChannel channel, long dataStart) throws IOException {
+        long size = channel.size();
+        long chunkLength = Math.min(MAX_CHUNK, Math.max(1, (size - dataStart)/threads + 1));
+
+        List<Chunk> chunks = new ArrayList<>();
+        long start = dataStart;
+        while(start < size){
+            long end = start + chunkLength >= size ? size : Math.min(size, findLineEnd(channel, start + chunkLength)
+                    + 1);
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, Chunk chunk) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+    }
+
+    private static long countLines(ByteBuffer buffer){
+        long lines = 0;
+        boolean empty = true;
+        for(int i=0; i<buffer.limit(); i++){
+            byte b = buffer.get(i);
+            if(b == '\n'){
+                if(!empty){
+                    lines++;
+                }
+                empty = true;
+            } else if(b != '\r'){
+                empty = false;
+            }
+        }
+        return empty ? lines : lines+1;
+    }
+
+    private ChunkResult readChunk(ByteBuffer buffer, long firstLine){
+        ChunkResult result = new ChunkResult();
+        result.counts = new InfectorCounts(hosts.size());
+
+        int[] network = new int[hosts.size()];
+        byte[] field = new byte[64];
+        long line = firstLine;
+        int limit = buffer.limit();
+        int position = 0;
+
+        while(position < limit){
+            int lineEnd = position;
+            while(lineEnd < limit && buffer.get(lineEnd) != '\n'){
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > position && buffer.get(lineEnd-1) == '\r' ? lineEnd-1 : lineEnd;
+
+            if(contentEnd > position){
+                int column = 0;
+                int fieldStart = position;
+                boolean burningIn = burninInLines && line < burnin;
+
+                for(int i=position; i<=contentEnd && !burningIn; i++){
+                    if(i == contentEnd || buffer.get(i) == '\t'){
+                        int length = i - fieldStart;
+                        if(field.length < length){
+                            field = new byte[2*length];
+                        }
+                        for(int j=0; j<length; j++){
+                            field[j] = buffer.get(fieldStart + j);
+                        }
+                        String value = new String(field, 0, length, StandardCharsets.UTF_8);
+
+                        if(column == 0){
+                            burningIn = !burninInLines && Long.parseLong(value) < burnin;
+                        } else if(column <= network.length){
+                            network[column-1] = infectorNumber(value);
+                        }
+                        column++;
+                        fieldStart = i+1;
+                    }
+                }
+
+                if(!burningIn){
+                    if(column != network.length + 1){
+                        throw new RuntimeException("Line " + line + " of the network log has " + column
+                                + " columns; expected " + (network.length + 1));
+                    }
+                    result.counts.add(network);
+                    InfectorCounts.Network key = new InfectorCounts.Network(network);
+                    if(!result.networks.containsKey(key)){
+                        result.networks.put(key, line);
+                        network = new int[hosts.size()];
+                    }
+                }
+                line++;
+            }
+            position = lineEnd + 1;
+        }
+        return result;
+    }
+
+    private int infectorNumber(String name){
+        Integer number = hostNumbers.get(name);
+        if(number != null){
+            return number;
+        }
+        synchronized (otherInfectorNumbers) {
+            number = otherInfectorNumbers.get(name);
+            if(number == null){
+                otherInfectors.add(name);
+                number = -otherInfectors.size();
+                otherInfectorNumbers.put(name, number);
+            }
+            return number;
+        }
+    }
+
+    private String infectorName(int number){
+        if(number >= 0){
+            return hosts.get(number);
+        }
+        synchronized (otherInfectorNumbers) {
+            return otherInfectors.get(-number-1);
+        }
+    }
+
+    private Object[] findMPCNetwork(ChunkResult result){
+        Object[] best = null;
+        double bestLogCredibility = Double.NEGATIVE_INFINITY;
+        for(Map.Entry<InfectorCounts.Network, Long> entry : result.networks.entrySet()){
+            double logCredibility = counts.getLogParentCredibility(entry.getKey().infectors);
+            //the networks are in the order they first appear, so only a strict improvement counts
+            if(best == null || logCredibility > bestLogCredibility){
+                best = new Object[]{entry.getKey().infectors, logCredibility, entry.getValue()};
+                bestLogCredibility = logCredibility;
+            }
+        }
+        return best;
+    }
+
+    public InfectorCounts getCounts(){
+        return counts;
+    }
+
+    public int[] getMPCNetwork(){
+        return mpcNetwork;
+    }
+
+    public List<String> getHosts(){
+        return hosts;
+    }
+
+    /////////////////////////////////////////////////
+    // Tree log                                    //
+    /////////////////////////////////////////////////
+
+    public void readTreeLog(BinaryPartitionedTreeLog log, double[] quantiles) throws IOException {
+        if(!log.isEpidemiological()){
+            throw new IllegalArgumentException("Infection times are only logged for EpidemiologicalPartitionedTrees");
+        }
+
+        //the burn-in is at the start, so the samples that count are a run at the end
+        long first;
+        if(burninInLines){
+            first = Math.max(0, burnin - 1);
+        } else {
+            BinaryPartitionedTreeLog.Sample sample = new BinaryPartitionedTreeLog.Sample(log);
+            long low = 0;
+            long high = log.getSampleCount();
+            while(low < high){
+                long middle = (low + high) >>> 1;
+                if(log.read(middle, sample).sample < burnin){
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            first = low;
+        }
+        long total = log.getSampleCount() - first;
+        if(total <= 0){
+            throw new RuntimeException("No trees left after the burn-in");
+        }
+        if(total > Integer.MAX_VALUE){
+            throw new RuntimeException("Too many trees to keep the infection times in memory");
+        }
+
+        int elementCount = log.getElementCount();
+        double[][] times = new double[elementCount][(int)total];
+
+        List<Callable<Object>> reads = new ArrayList<>();
+        long perThread = (total + threads - 1)/threads;
+        for(long start=0; start<total; start+=perThread){
+            long from = start;
+            long to = Math.min(total, start + perThread);
+            reads.add(() -> {
+                BinaryPartitionedTreeLog.Sample sample = new BinaryPartitionedTreeLog.Sample(log);
+                for(long i=from; i<to; i++){
+                    log.read(first + i, sample);
+                    for(int element=0; element<elementCount; element++){
+                        times[element][(int)i] = log.getDate(sample.infectionHeights[element]);
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(reads);
+
+        List<Callable<double[]>> summaries = new ArrayList<>();
+        for(int element=0; element<elementCount; element++){
+            double[] elementTimes = times[element];
+            summaries.add(() -> {
+                Arrays.sort(elementTimes);
+                double[] out = new double[quantiles.length];
+                for(int i=0; i<quantiles.length; i++){
+                    out[i] = quantile(elementTimes, quantiles[i]);
+                }
+                return out;
+            });
+        }
+        infectionTimeQuantiles = runAll(summaries).toArray(new double[elementCount][]);
+        timedHosts = log.getElements();
+    }
+
+    //linear interpolation between order statistics, as R's default and numpy's
+
+    static double quantile(double[] sorted, double p){
+        double h = (sorted.length - 1)*p;
+        int lower = (int)Math.floor(h);
+        if(lower >= sorted.length - 1){
+            return sorted[sorted.length - 1];
+        }
+        return sorted[lower] + (h - lower)*(sorted[lower+1] - sorted[lower]);
+    }
+
+    public double[][] getInfectionTimeQuantiles(){
+        return infectionTimeQuantiles;
+    }
+
+    /////////////////////////////////////////////////
+    // Output                                      //
+    /////////////////////////////////////////////////
+
+    // Python's csv module ends lines with \r\n and quotes only when it has to
+
+    private static void writeRow(PrintStream out, String... fields){
+        for(int i=0; i<fields.length; i++){
+            if(i > 0){
+                out.print(',');
+            }
+            String field = fields[i];
+            if(field.indexOf(',') != -1 || field.indexOf('"') != -1 || field.indexOf('\n') != -1
+                    || field.indexOf('\r') != -1){
+                out.print('"' + field.replace("\"", "\"\"") + '"');
+            } else {
+                out.print(field);
+            }
+        }
+        out.print("\r\n");
+    }
+
+    /**
+     * A double as Python 2's str() gives it (twelve significant figures), so the output matches MPCTree.py's
+     */
+    static String pythonString(double value){
+        if(Double.isNaN(value)){
+            return "nan";
+        }
+        if(Double.isInfinite(value)){
+            return value > 0 ? "inf" : "-inf";
+        }
+        if(value == 0){
+            return 1/value < 0 ? "-0.0" : "0.0";
+        }
+
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(12, RoundingMode.HALF_EVEN));
+        int exponent = rounded.precision() - rounded.scale() - 1;
+
+        if(exponent < -4 || exponent >= 12){
+            String mantissa = rounded.movePointLeft(exponent).stripTrailingZeros().toPlainString();
+            int absExponent = Math.abs(exponent);
+            return mantissa + "e" + (exponent < 0 ? "-" : "+") + (absExponent < 10 ? "0" : "") + absExponent;
+        }
+
+        String plain = rounded.stripTrailingZeros().toPlainString();
+        return plain.contains(".") ? plain : plain + ".0";
+    }
+
+    public void writeMPCNetwork(File file) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+            writeRow(out, "Child", "Parent", "MPC credibility");
+            for(int host=0; host<hosts.size(); host++){
+                writeRow(out, hosts.get(host), infectorName(mpcNetwork[host]),
+                        pythonString(counts.getProbability(host, mpcNetwork[host])));
+            }
+        }
+    }
+
+    public void writeInfectorProbabilities(File file) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+            writeRow(out, "Child", "Infector", "Probability");
+            for(int host=0; host<hosts.size(); host++){
+                for(int i=0; i<counts.getDistinctInfectorCount(host); i++){
+                    int infector = counts.getInfector(host, i);
+                    writeRow(out, hosts.get(host), infectorName(infector),
+                            pythonString(counts.getProbability(host, infector)));
+                }
+            }
+        }
+    }
+
+    public void writeInfectionTimeQuantiles(File file, double[] quantiles) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+            String[] header = new String[quantiles.length + 1];
+            header[0] = "Host";
+            for(int i=0; i<quantiles.length; i++){
+                header[i+1] = "q" + quantiles[i];
+            }
+            writeRow(out, header);
+
+            for(int host=0; host<timedHosts.size(); host++){
+                String[] row = new String[quantiles.length + 1];
+                row[0] = timedHosts.get(host);
+                for(int i=0; i<quantiles.length; i++){
+                    row[i+1] = pythonString(infectionTimeQuantiles[host][i]);
+                }
+                writeRow(out, row);
+            }
+        }
+    }
+
+    private <T> List<T> runAll(List<Callable<T>> tasks){
+        try {
+            List<T> out = new ArrayList<>();
+            for(Future<T> future : pool.invokeAll(tasks)){
+                out.add(future.get());
+            }
+            return out;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e){
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+}
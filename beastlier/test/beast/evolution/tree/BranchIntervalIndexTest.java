@@ -0,0 +1,385 @@
+/*
+* File BranchIntervalIndexTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The branch interval index against the recursive walk that it replaces, on random trees with tips at different
+ * heights, through subtree moves made the way the tree operators make them, height changes, and stored states being
+ * restored. Only the nodes that the operators' setters would report are reported to the index.
+ */
+
+public class BranchIntervalIndexTest {
+
+    private static final int TIPS = 40;
+    private static final int NODES = 2*TIPS - 1;
+
+    //a binary tree by node number, with the children in order
+    private static class ArrayTree implements BranchIntervalIndex.Shape {
+        int root;
+        int[] parents = new int[NODES];
+        int[][] children = new int[NODES][2];
+        int[] childCounts = new int[NODES];
+        double[] heights = new double[NODES];
+
+        ArrayTree copy(){
+            ArrayTree out = new ArrayTree();
+            out.root = root;
+            out.parents = parents.clone();
+            for(int i=0; i<NODES; i++){
+                out.children[i] = children[i].clone();
+            }
+            out.childCounts = childCounts.clone();
+            out.heights = heights.clone();
+            return out;
+        }
+
+        @Override
+        public int getNodeCount(){
+            return NODES;
+        }
+
+        @Override
+        public int getRootNr(){
+            return root;
+        }
+
+        @Override
+        public int getParentNr(int nr){
+            return parents[nr];
+        }
+
+        @Override
+        public int getChildCount(int nr){
+            return childCounts[nr];
+        }
+
+        @Override
+        public int getChildNr(int nr, int index){
+            return children[nr][index];
+        }
+
+        @Override
+        public double getHeight(int nr){
+            return heights[nr];
+        }
+
+        //as Node.removeChild, which shifts any later child down a place
+        void removeChild(int nr, int child){
+            if(children[nr][0] == child){
+                children[nr][0] = children[nr][1];
+            }
+            childCounts[nr]--;
+        }
+
+        //as Node.addChild, which puts the child last
+        void addChild(int nr, int child){
+            children[nr][childCounts[nr]++] = child;
+            parents[child] = nr;
+        }
+
+        //as Tree.setRoot, which gives the root the last number and the node that had it the root's old one
+        void setRoot(int nr, BranchIntervalIndex index){
+            root = nr;
+            int last = NODES-1;
+            if(nr == last){
+                return;
+            }
+            for(int i=0; i<NODES; i++){
+                parents[i] = swap(parents[i], nr, last);
+                for(int j=0; j<childCounts[i]; j++){
+                    children[i][j] = swap(children[i][j], nr, last);
+                }
+            }
+            int parent = parents[nr]; parents[nr] = parents[last]; parents[last] = parent;
+            int[] kids = children[nr]; children[nr] = children[last]; children[last] = kids;
+            int count = childCounts[nr]; childCounts[nr] = childCounts[last]; childCounts[last] = count;
+            double height = heights[nr]; heights[nr] = heights[last]; heights[last] = height;
+            root = last;
+
+            //what PartitionedTree.setRoot reports
+            for(int changed : new int[]{nr, last}){
+                index.changed(changed);
+                for(int j=0; j<childCounts[changed]; j++){
+                    index.changed(children[changed][j]);
+                }
+            }
+        }
+
+        private static int swap(int value, int a, int b){
+            return value == a ? b : value == b ? a : value;
+        }
+
+        boolean isAncestor(int ancestor, int nr){
+            for(int current = nr; current != -1; current = parents[current]){
+                if(current == ancestor){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Random random;
+    private ArrayTree tree;
+    private ArrayTree stored;
+    private BranchIntervalIndex index;
+
+    //the index reads whatever tree this points at, as the real one reads the tree's current node array
+    private final BranchIntervalIndex.Shape shape = new BranchIntervalIndex.Shape() {
+        public int getNodeCount(){ return tree.getNodeCount(); }
+        public int getRootNr(){ return tree.getRootNr(); }
+        public int getParentNr(int nr){ return tree.getParentNr(nr); }
+        public int getChildCount(int nr){ return tree.getChildCount(nr); }
+        public int getChildNr(int nr, int index){ return tree.getChildNr(nr, index); }
+        public double getHeight(int nr){ return tree.getHeight(nr); }
+    };
+
+    @Before
+    public void setUp() {
+        random = new Random(7);
+        tree = randomTree();
+        index = new BranchIntervalIndex(shape);
+    }
+
+    // tips at a spread of heights, so that some clades are entirely above a query height, joined at random
+
+    private ArrayTree randomTree(){
+        ArrayTree out = new ArrayTree();
+        Arrays.fill(out.parents, -1);
+        List<Integer> lineages = new ArrayList<>();
+        for(int i=0; i<TIPS; i++){
+            out.heights[i] = random.nextDouble() < 0.5 ? 0 : 3*random.nextDouble();
+            lineages.add(i);
+        }
+        for(int next=TIPS; next<NODES; next++){
+            int a = lineages.remove(random.nextInt(lineages.size()));
+            int b = lineages.remove(random.nextInt(lineages.size()));
+            out.heights[next] = Math.max(out.heights[a], out.heights[b]) + random.nextDouble();
+            out.addChild(next, a);
+            out.addChild(next, b);
+            lineages.add(next);
+        }
+        out.root = NODES-1;
+        return out;
+    }
+
+    private int[] walk(int nr, double height){
+        List<Integer> out = new ArrayList<>();
+        walk(nr, height, out);
+        int[] array = new int[out.size()];
+        for(int i=0; i<array.length; i++){
+            array[i] = out.get(i);
+        }
+        return array;
+    }
+
+    private void walk(int nr, double height, List<Integer> out){
+        int parent = tree.parents[nr];
+        if(parent != -1 && tree.heights[parent] < height){
+            return;
+        }
+        if(tree.heights[nr] < height){
+            out.add(nr);
+            return;
+        }
+        for(int i=0; i<tree.childCounts[nr]; i++){
+            walk(tree.children[nr][i], height, out);
+        }
+    }
+
+    private int[] find(int nr, double height){
+        int count = index.find(nr, height);
+        int[] out = new int[count];
+        for(int i=0; i<count; i++){
+            out[i] = index.getFound(i);
+        }
+        return out;
+    }
+
+    private void checkQueries(int queries){
+        double top = tree.heights[tree.root];
+        for(int q=0; q<queries; q++){
+            int nr = random.nextInt(NODES);
+            double height = random.nextDouble()*(top + 0.5);
+            assertArrayEquals(walk(nr, height), find(nr, height));
+        }
+        //ties with node heights
+        for(int nr=0; nr<NODES; nr++){
+            double height = tree.heights[random.nextInt(NODES)];
+            assertArrayEquals(walk(nr, height), find(nr, height));
+        }
+    }
+
+    // The subtree slide: the parent of a random node is taken out from between its own parent and its other child,
+    // and put in on another branch at a new height. replace() reports only the replacement; the new root, if there is
+    // one, reports its parent being set to null
+
+    private void slide(){
+        int i;
+        do {
+            i = random.nextInt(NODES);
+        } while(i == tree.root);
+        int p = tree.parents[i];
+        int sibling = tree.children[p][0] == i ? tree.children[p][1] : tree.children[p][0];
+        int grandparent = tree.parents[p];
+
+        //somewhere outside p's subtree, and not where it is already
+        List<Integer> destinations = new ArrayList<>();
+        for(int nr=0; nr<NODES; nr++){
+            if(!tree.isAncestor(p, nr) && !(nr == sibling && grandparent == -1)){
+                destinations.add(nr);
+            }
+        }
+        if(destinations.isEmpty()){
+            return;
+        }
+        int j = destinations.get(random.nextInt(destinations.size()));
+
+        int newRoot = -1;
+        if(grandparent == -1){
+            tree.removeChild(p, sibling);
+            tree.parents[sibling] = -1;
+            tree.root = sibling;
+            index.changed(sibling);
+            newRoot = sibling;
+        } else {
+            tree.removeChild(grandparent, p);
+            tree.addChild(grandparent, sibling);
+            index.changed(sibling);
+            tree.removeChild(p, sibling);
+        }
+
+        int newParent = tree.parents[j];
+        tree.addChild(p, j);
+        index.changed(j);
+        if(newParent == -1){
+            tree.parents[p] = -1;
+            tree.root = p;
+            newRoot = p;
+        } else {
+            tree.removeChild(newParent, j);
+            tree.addChild(newParent, p);
+        }
+        index.changed(p);
+
+        double bottom = Math.max(tree.heights[i], tree.heights[j]);
+        double top = newParent == -1 ? bottom + 1 : tree.heights[newParent];
+        tree.heights[p] = bottom + random.nextDouble()*(top - bottom);
+
+        if(newRoot != -1){
+            tree.setRoot(newRoot, index);
+        }
+    }
+
+    private void changeHeight(){
+        int nr = TIPS + random.nextInt(NODES - TIPS);
+        double bottom = Math.max(tree.heights[tree.children[nr][0]], tree.heights[tree.children[nr][1]]);
+        double top = tree.parents[nr] == -1 ? bottom + 1 : tree.heights[tree.parents[nr]];
+        tree.heights[nr] = bottom + random.nextDouble()*(top - bottom);
+        index.changed(nr);
+    }
+
+    @Test
+    public void testStatic() {
+        checkQueries(500);
+    }
+
+    @Test
+    public void testMoves() {
+        checkQueries(50);
+        for(int step=0; step<500; step++){
+            if(random.nextBoolean()){
+                slide();
+            } else {
+                changeHeight();
+            }
+            checkQueries(20);
+        }
+    }
+
+    @Test
+    public void testSeveralMovesBetweenQueries() {
+        checkQueries(50);
+        for(int step=0; step<200; step++){
+            for(int move=0; move<3; move++){
+                slide();
+                changeHeight();
+            }
+            checkQueries(20);
+        }
+    }
+
+    @Test
+    public void testRestore() {
+        checkQueries(50);
+        for(int step=0; step<300; step++){
+            stored = tree.copy();
+            index.store();
+            slide();
+            changeHeight();
+            checkQueries(5);
+            if(random.nextBoolean()){
+                //as Tree.restore, which swaps the node arrays back without calling any setters
+                tree = stored;
+                index.restore();
+            }
+            checkQueries(10);
+        }
+    }
+
+    @Test
+    public void testInvalidate() {
+        checkQueries(20);
+        tree = randomTree();
+        index.invalidate();
+        checkQueries(50);
+    }
+
+    @Test
+    public void testDetached() {
+        //mid-proposal, with a node taken out and not yet put back
+        int p = tree.parents[0];
+        tree.removeChild(p, 0);
+        tree.parents[0] = -1;
+        index.changed(0);
+        assertEquals(-1, index.find(tree.root, 1.0));
+
+        tree.addChild(p, 0);
+        index.changed(0);
+        checkQueries(50);
+    }
+
+}
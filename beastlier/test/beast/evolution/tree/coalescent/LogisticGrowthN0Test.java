@@ -0,0 +1,85 @@
+/*
+* File LogisticGrowthN0Test.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree.coalescent;
+
+import beast.core.parameter.RealParameter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The batched inverse intensity against the scalar one, including intensities large enough that the Lambert W input
+ * rounds to infinity and the asymptote is used.
+ */
+
+public class LogisticGrowthN0Test {
+
+    private static LogisticGrowthN0 function(double popSize, double growthRate, double t50){
+        LogisticGrowthN0 function = new LogisticGrowthN0();
+        function.initByName("popSize", new RealParameter(Double.toString(popSize)),
+                "growthRate", new RealParameter(Double.toString(growthRate)),
+                "t50", new RealParameter(Double.toString(t50)));
+        return function;
+    }
+
+    @Test
+    public void testBatchMatchesScalar() {
+        double[][] settings = {{1, 0.5, 2}, {10, 2, -1}, {0.1, 0.05, 5}, {3, 10, 0.5}};
+
+        for(double[] setting : settings){
+            LogisticGrowthN0 function = function(setting[0], setting[1], setting[2]);
+
+            double[] x = new double[400];
+            for(int i = 0; i < x.length; i++){
+                x[i] = Math.pow(10, -8 + i*0.04);
+            }
+
+            double[] batch = function.getInverseIntensities(x);
+
+            for(int i = 0; i < x.length; i++){
+                double scalar = function.getInverseIntensity(x[i]);
+                assertEquals("inverse intensity of " + x[i], scalar, batch[i], 1E-12*Math.max(Math.abs(scalar), 1));
+                //and it is the inverse, where k and W/q are small enough not to cancel away the precision
+                if(x[i] <= 100){
+                    assertEquals("intensity of the inverse of " + x[i], x[i], function.getIntensity(batch[i]),
+                            1E-8*Math.max(x[i], 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchInPlace() {
+        LogisticGrowthN0 function = function(2, 1, 1);
+        double[] x = {0.01, 0.1, 1, 10};
+        double[] expected = function.getInverseIntensities(x);
+
+        function.getInverseIntensities(x, x, x.length);
+        for(int i = 0; i < x.length; i++){
+            assertEquals(expected[i], x[i], 0);
+        }
+    }
+
+}
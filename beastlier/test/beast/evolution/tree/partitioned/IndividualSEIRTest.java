@@ -0,0 +1,245 @@
+/*
+* File IndividualSEIRTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree.partitioned;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.math.distributions.NormalGamma;
+import beastlier.durations.FixedValueDurationDistribution;
+import beastlier.durations.NormalHyperpriorDurationDistribution;
+import beastlier.geography.ExponentialSpatialKernel;
+import beastlier.outbreak.CategorySet;
+import beastlier.outbreak.ClinicalCase;
+import beastlier.outbreak.GeographicallyLocatedClinicalCase;
+import beastlier.outbreak.Outbreak;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The gradient of IndividualSEIR with respect to the transmission rate, the kernel parameter and the q parameters,
+ * against central differences of its log probability. A is the index case and infects B and C, C infects D, and E is
+ * never infected but is exposed to all of them. The tree is only its transmission structure, with the infection
+ * height of each host linear in its q as under third-type rules, and every evaluation is of a model built afresh.
+ */
+
+public class IndividualSEIRTest {
+
+    private static final String[] HOSTS = {"A", "B", "C", "D"};
+    private static final String[] INFECTORS = {null, "A", "A", "C"};
+    private static final double[] END_TIMES = {6, 7, 8, 9};
+    private static final double[][] LOCATIONS = {{0, 0}, {1, 0.5}, {-0.5, 2}, {0.3, 2.8}, {1.5, 1.5}};
+
+    // infection height = BASES[i] + q[i]*BRANCHES[i], and infection time = ORIGIN - infection height
+
+    private static final double ORIGIN = 10;
+    private static final double[] BASES = {9, 7.25, 6.5, 4.6};
+    private static final double[] BRANCHES = {2, 1.5, 1, 0.8};
+
+    private static final double RATE = 0.4;
+    private static final double ALPHA = 0.8;
+    private static final double[] Q = {0.5, 0.5, 0.5, 0.5};
+
+    private static final double STEP = 1E-6;
+
+    @Test
+    public void testRateGradient() {
+        IndividualSEIR model = model(RATE, ALPHA, Q);
+        double[] gradient = model.getLogPGradient(model.baseTransmissionRateInput.get());
+
+        double difference = (logP(RATE + STEP, ALPHA, Q) - logP(RATE - STEP, ALPHA, Q)) / (2*STEP);
+        assertEquals(difference, gradient[0], 1E-6*Math.max(1, Math.abs(difference)));
+    }
+
+    @Test
+    public void testKernelGradient() {
+        IndividualSEIR model = model(RATE, ALPHA, Q);
+        double[] gradient = model.getLogPGradient(((ExponentialSpatialKernel)model.kernelInput.get()).alphaInput
+                .get());
+
+        double difference = (logP(RATE, ALPHA + STEP, Q) - logP(RATE, ALPHA - STEP, Q)) / (2*STEP);
+        assertEquals(difference, gradient[0], 1E-6*Math.max(1, Math.abs(difference)));
+    }
+
+    @Test
+    public void testQGradient() {
+        IndividualSEIR model = model(RATE, ALPHA, Q);
+        double[] gradient = model.getLogPGradient(((EpidemiologicalPartitionedTree)model.treeInput.get()).getQ());
+        assertEquals(Q.length, gradient.length);
+
+        for(int i=0; i<Q.length; i++){
+            double[] up = Q.clone();
+            double[] down = Q.clone();
+            up[i] += STEP;
+            down[i] -= STEP;
+
+            double difference = (logP(RATE, ALPHA, up) - logP(RATE, ALPHA, down)) / (2*STEP);
+            assertEquals("q of " + HOSTS[i], difference, gradient[i], 1E-6*Math.max(1, Math.abs(difference)));
+        }
+    }
+
+    // The gradient is worked out during proposals, so it must leave the log probability where it was
+
+    @Test
+    public void testGradientLeavesModelAlone() {
+        IndividualSEIR model = model(RATE, ALPHA, Q);
+        double before = model.calculateLogP();
+        model.getLogPGradient(((EpidemiologicalPartitionedTree)model.treeInput.get()).getQ());
+
+        assertEquals(before, model.evaluateLogP(), 0);
+    }
+
+    private static double logP(double rate, double alpha, double[] q){
+        double logP = model(rate, alpha, q).calculateLogP();
+        assertTrue(logP > Double.NEGATIVE_INFINITY);
+        return logP;
+    }
+
+    private static IndividualSEIR model(double rate, double alpha, double[] q){
+        List<Object> caseInputs = new ArrayList<>();
+        for(int i=0; i<LOCATIONS.length; i++){
+            GeographicallyLocatedClinicalCase aCase = new GeographicallyLocatedClinicalCase();
+            boolean infected = i < HOSTS.length;
+            aCase.setID(infected ? HOSTS[i] : "E");
+            if(infected){
+                aCase.initByName("endOfInfectiousTime", new RealParameter(Double.toString(END_TIMES[i])),
+                        "longitude", new RealParameter(Double.toString(LOCATIONS[i][0])),
+                        "latitude", new RealParameter(Double.toString(LOCATIONS[i][1])));
+            } else {
+                aCase.initByName("wasEverInfected", false,
+                        "longitude", new RealParameter(Double.toString(LOCATIONS[i][0])),
+                        "latitude", new RealParameter(Double.toString(LOCATIONS[i][1])));
+            }
+            caseInputs.add("clinicalCase");
+            caseInputs.add(aCase);
+        }
+        caseInputs.add("hasGeography");
+        caseInputs.add(true);
+        Outbreak outbreak = new Outbreak();
+        outbreak.initByName(caseInputs.toArray());
+
+        RealParameter qParameter = new RealParameter(Arrays.stream(q).boxed().toArray(Double[]::new));
+        qParameter.setID("q");
+        TransmissionStructure tree = new TransmissionStructure(outbreak, qParameter);
+
+        FixedValueDurationDistribution latent = new FixedValueDurationDistribution();
+        latent.setID("latent");
+        latent.initByName("length", new RealParameter("0.5"));
+        CategorySet latentCategories = new CategorySet();
+        latentCategories.initByName("durationName", "latent", "outbreak", outbreak, "durationDistribution", latent);
+
+        NormalGamma normalGamma = new NormalGamma();
+        normalGamma.initByName("mu", new RealParameter("4"), "lambda", new RealParameter("1"),
+                "alpha", new RealParameter("2"), "beta", new RealParameter("3"));
+        NormalHyperpriorDurationDistribution infectious = new NormalHyperpriorDurationDistribution();
+        infectious.setID("infectious");
+        infectious.initByName("NormalGamma", normalGamma);
+        CategorySet infectiousCategories = new CategorySet();
+        infectiousCategories.initByName("durationName", "infectious", "outbreak", outbreak,
+                "durationDistribution", infectious);
+
+        RealParameter alphaParameter = new RealParameter(Double.toString(alpha));
+        alphaParameter.setID("alpha");
+        ExponentialSpatialKernel kernel = new ExponentialSpatialKernel();
+        kernel.initByName("alpha", alphaParameter);
+
+        RealParameter rateParameter = new RealParameter(Double.toString(rate));
+        rateParameter.setID("rate");
+
+        IndividualSEIR model = new IndividualSEIR();
+        model.initByName("tree", tree, "outbreak", outbreak, "kernel", kernel, "baseTransmissionRate", rateParameter,
+                "latent", latent, "latentCategorySet", latentCategories,
+                "infectious", infectious, "infectiousCategorySet", infectiousCategories,
+                "logCaseTimings", false);
+        return model;
+    }
+
+    // Just the transmission structure of a tree, which is all that IndividualSEIR asks of it
+
+    private static class TransmissionStructure extends EpidemiologicalPartitionedTree {
+
+        private final Outbreak outbreak;
+        private final RealParameter q;
+        private final Map<String, String> infectors = new HashMap<>();
+
+        TransmissionStructure(Outbreak outbreak, RealParameter q){
+            this.outbreak = outbreak;
+            this.q = q;
+            for(int i=0; i<HOSTS.length; i++){
+                infectors.put(HOSTS[i], INFECTORS[i]);
+            }
+        }
+
+        @Override
+        public List<String> getElementList() {
+            return Arrays.asList(HOSTS);
+        }
+
+        @Override
+        public int getNElements() {
+            return HOSTS.length;
+        }
+
+        @Override
+        public RealParameter getQ() {
+            return q;
+        }
+
+        @Override
+        public double getDate(double height) {
+            return ORIGIN - height;
+        }
+
+        @Override
+        public double getInfectionHeight(ClinicalCase aCase) {
+            int i = getElementList().indexOf(aCase.getID());
+            return BASES[i] + q.getValue(i)*BRANCHES[i];
+        }
+
+        @Override
+        public double getInfectionTime(ClinicalCase aCase) {
+            return aCase.wasEverInfected() ? getDate(getInfectionHeight(aCase)) : Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public double getInfectionHeightQDerivative(int elementNo) {
+            return BRANCHES[elementNo];
+        }
+
+        @Override
+        public ClinicalCase getInfector(ClinicalCase aCase) {
+            String infector = aCase.wasEverInfected() ? infectors.get(aCase.getID()) : null;
+            return infector == null ? null : outbreak.getCaseByID(infector);
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+* File TransmissionConstraintsTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree.partitioned;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTreeNode;
+import beast.math.distributions.NormalGamma;
+import beastlier.durations.FixedValueDurationDistribution;
+import beastlier.durations.NormalHyperpriorDurationDistribution;
+import beastlier.outbreak.CategorySet;
+import beastlier.outbreak.ClinicalCase;
+import beastlier.outbreak.Outbreak;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * TransmissionConstraints, and the checkConstraints of the between-host model behind it, against IndividualSEIR's
+ * own evaluateLogP. A is the index case and infects B and C, and C infects D; every host has a latent period of 0.5.
+ * Each test moves one infection time to break one constraint, and checkConstraints must name that constraint exactly
+ * when a model built afresh on the same tree gives a log probability of negative infinity.
+ */
+
+public class TransmissionConstraintsTest {
+
+    private static final String[] HOSTS = {"A", "B", "C", "D"};
+    private static final int[] INFECTORS = {-1, 0, 0, 2};
+    private static final double[] END_TIMES = {6, 5, 8, 9};
+    private static final double[] INFECTION_TIMES = {0, 2, 1.5, 3};
+
+    private static final double LATENT = 0.5;
+
+    @Test
+    public void testNoViolation() {
+        assertViolation(null, INFECTION_TIMES);
+    }
+
+    @Test
+    public void testInfectedAfterEnd() {
+        assertViolation(ConstraintViolation.INFECTED_AFTER_END, times(1, 5.5));
+    }
+
+    @Test
+    public void testInfectorEnded() {
+        assertViolation(ConstraintViolation.INFECTOR_ENDED, times(3, 8.5));
+    }
+
+    @Test
+    public void testInfectorNotInfectious() {
+        // C becomes infectious at 2
+        assertViolation(ConstraintViolation.INFECTOR_NOT_INFECTIOUS, times(3, 1.8));
+    }
+
+    @Test
+    public void testInfectiousAfterEnd() {
+        // B is infected before it ends, but would only become infectious after
+        assertViolation(ConstraintViolation.INFECTIOUS_AFTER_END, times(1, 4.8));
+    }
+
+    // A broken infection of D is only looked at if D or its infector C is dirty
+
+    @Test
+    public void testDirtyOnly() {
+        double[] times = times(3, 8.5);
+
+        BetweenHostModel model = model(times, new boolean[]{true, true, false, false});
+        assertNull(model.checkConstraints(true));
+        assertEquals(ConstraintViolation.INFECTOR_ENDED, model.checkConstraints(false));
+
+        model = model(times, new boolean[]{false, false, true, false});
+        assertEquals(ConstraintViolation.INFECTOR_ENDED, model.checkConstraints(true));
+
+        model = model(times, new boolean[]{false, false, false, true});
+        assertEquals(ConstraintViolation.INFECTOR_ENDED, model.checkConstraints(true));
+    }
+
+    // Every check is counted against its caller, and every rejection against its reason as well
+
+    @Test
+    public void testCounts() {
+        TransmissionConstraints constraints = constraints(model(times(3, 1.8), null));
+        constraints.calculateLogP();
+        constraints.calculateLogP();
+
+        long[] counts = constraints.getCounts(TransmissionConstraints.POSTERIOR);
+        assertEquals(ConstraintViolation.values().length + 1, counts.length);
+        assertEquals(2, counts[0]);
+        assertEquals(2, counts[ConstraintViolation.INFECTOR_NOT_INFECTIOUS.ordinal() + 1]);
+        assertNull(constraints.getCounts("someOperator"));
+    }
+
+    private static void assertViolation(ConstraintViolation expected, double[] times){
+        BetweenHostModel model = model(times, null);
+        assertEquals(expected, model.checkConstraints(false));
+
+        TransmissionConstraints constraints = constraints(model);
+        assertEquals(expected, constraints.check());
+        assertEquals(expected == null ? 0 : Double.NEGATIVE_INFINITY, constraints.calculateLogP(), 0);
+
+        double logP = model(times, null).calculateLogP();
+        if(expected == null){
+            assertTrue(logP > Double.NEGATIVE_INFINITY);
+        } else {
+            assertEquals(Double.NEGATIVE_INFINITY, logP, 0);
+        }
+    }
+
+    private static double[] times(int host, double time){
+        double[] out = INFECTION_TIMES.clone();
+        out[host] = time;
+        return out;
+    }
+
+    private static TransmissionConstraints constraints(BetweenHostModel model){
+        TransmissionConstraints constraints = new TransmissionConstraints();
+        constraints.initByName("model", model);
+        return constraints;
+    }
+
+    // With no dirty elements given, all of them are dirty
+
+    private static IndividualSEIR model(double[] times, boolean[] dirtyElements){
+        List<Object> caseInputs = new ArrayList<>();
+        for(int i=0; i<HOSTS.length; i++){
+            ClinicalCase aCase = new ClinicalCase();
+            aCase.setID(HOSTS[i]);
+            aCase.initByName("endOfInfectiousTime", new RealParameter(Double.toString(END_TIMES[i])));
+            caseInputs.add("clinicalCase");
+            caseInputs.add(aCase);
+        }
+        Outbreak outbreak = new Outbreak();
+        outbreak.initByName(caseInputs.toArray());
+
+        boolean[] dirty = dirtyElements;
+        if(dirty == null){
+            dirty = new boolean[HOSTS.length];
+            Arrays.fill(dirty, true);
+        }
+        TransmissionStructure tree = new TransmissionStructure(outbreak, times, dirty);
+
+        FixedValueDurationDistribution latent = new FixedValueDurationDistribution();
+        latent.setID("latent");
+        latent.initByName("length", new RealParameter(Double.toString(LATENT)));
+        CategorySet latentCategories = new CategorySet();
+        latentCategories.initByName("durationName", "latent", "outbreak", outbreak, "durationDistribution", latent);
+
+        NormalGamma normalGamma = new NormalGamma();
+        normalGamma.initByName("mu", new RealParameter("4"), "lambda", new RealParameter("1"),
+                "alpha", new RealParameter("2"), "beta", new RealParameter("3"));
+        NormalHyperpriorDurationDistribution infectious = new NormalHyperpriorDurationDistribution();
+        infectious.setID("infectious");
+        infectious.initByName("NormalGamma", normalGamma);
+        CategorySet infectiousCategories = new CategorySet();
+        infectiousCategories.initByName("durationName", "infectious", "outbreak", outbreak,
+                "durationDistribution", infectious);
+
+        IndividualSEIR model = new IndividualSEIR();
+        model.initByName("tree", tree, "outbreak", outbreak, "baseTransmissionRate", new RealParameter("0.4"),
+                "latent", latent, "latentCategorySet", latentCategories,
+                "infectious", infectious, "infectiousCategorySet", infectiousCategories,
+                "logCaseTimings", false);
+        return model;
+    }
+
+    // Just the transmission structure of a tree: one node per host, below the node of its infector
+
+    private static class TransmissionStructure extends EpidemiologicalPartitionedTree {
+
+        private final Outbreak outbreak;
+        private final double[] times;
+        private final boolean[] dirtyElements;
+        private final PartitionedTreeNode[] nodes;
+
+        TransmissionStructure(Outbreak outbreak, double[] times, boolean[] dirtyElements){
+            this.outbreak = outbreak;
+            this.times = times;
+            this.dirtyElements = dirtyElements;
+            nodes = new PartitionedTreeNode[HOSTS.length];
+            for(int i=0; i<HOSTS.length; i++){
+                nodes[i] = new PartitionedTreeNode();
+                nodes[i].setNr(i);
+                nodes[i].setPartitionElementNumber(i);
+            }
+            for(int i=0; i<HOSTS.length; i++){
+                if(INFECTORS[i] != -1){
+                    nodes[i].setParent(nodes[INFECTORS[i]]);
+                }
+            }
+        }
+
+        @Override
+        public Node[] getNodesAsArray() {
+            return nodes;
+        }
+
+        @Override
+        public List<String> getElementList() {
+            return Arrays.asList(HOSTS);
+        }
+
+        @Override
+        public int getNElements() {
+            return HOSTS.length;
+        }
+
+        @Override
+        public boolean[] getDirtyElements() {
+            return dirtyElements.clone();
+        }
+
+        @Override
+        public double getInfectionTimeByNr(int elementNo) {
+            return elementNo == -1 ? Double.NEGATIVE_INFINITY : times[elementNo];
+        }
+
+        @Override
+        public double getInfectionTime(ClinicalCase aCase) {
+            return times[getElementList().indexOf(aCase.getID())];
+        }
+
+        @Override
+        public ClinicalCase getInfector(ClinicalCase aCase) {
+            int infector = INFECTORS[getElementList().indexOf(aCase.getID())];
+            return infector == -1 ? null : outbreak.getCaseByID(HOSTS[infector]);
+        }
+    }
+
+}
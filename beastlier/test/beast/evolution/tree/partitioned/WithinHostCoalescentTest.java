@@ -0,0 +1,209 @@
+/*
+* File WithinHostCoalescentTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.evolution.tree.partitioned;
+
+import beast.evolution.tree.coalescent.IntervalList;
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.evolution.tree.coalescent.PopulationFunction;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The treelet gradient against central differences of the treelet log likelihood, boundary by boundary, with and
+ * without coalescence enforced. getLogPGradient adds the entry for a boundary to the infection whose lineage starts
+ * there, so each entry has to be the derivative for moving that boundary alone, even when another is very close to
+ * it.
+ */
+
+public class WithinHostCoalescentTest {
+
+    private static final double STEP = 1E-6;
+
+    // A first tip, a second, a coalescence, a child infection, another tip, two coalescences and the infection itself
+
+    private static final double[] TIMES = {-5.0, -4.2, -3.1, -2.5, -2.0, -1.2, -0.6, 0};
+    private static final int[] LINEAGES = {1, 2, 1, 2, 3, 2, 1};
+    private static final IntervalType[] TYPES = {IntervalType.SAMPLE, IntervalType.COALESCENT, IntervalType.SAMPLE,
+            IntervalType.SAMPLE, IntervalType.COALESCENT, IntervalType.COALESCENT, IntervalType.NOTHING};
+
+    @Test
+    public void testGradientEnforced() {
+        checkGradient(TIMES, new ExponentialGrowth(2, 0.7), true);
+        checkGradient(TIMES, new ExponentialGrowth(0.5, -0.3), true);
+    }
+
+    @Test
+    public void testGradientNotEnforced() {
+        checkGradient(TIMES, new ExponentialGrowth(2, 0.7), false);
+        checkGradient(TIMES, new ExponentialGrowth(0.5, -0.3), false);
+    }
+
+    // Two child infections a ten-thousandth apart; matching infections to boundaries by height could give either one
+    // the other's entry
+
+    @Test
+    public void testCloseBoundaries() {
+        double[] times = TIMES.clone();
+        times[4] = times[3] + 1E-4;
+
+        checkGradient(times, new ExponentialGrowth(2, 0.7), true);
+        checkGradient(times, new ExponentialGrowth(2, 0.7), false);
+    }
+
+    private static void checkGradient(double[] times, PopulationFunction function, boolean enforceCoalescence){
+        double[] gradient = WithinHostCoalescent.calculateTreeletLogLikelihoodGradient(new Treelet(times), function,
+                -times[0], enforceCoalescence);
+        assertNotNull(gradient);
+        assertEquals(times.length, gradient.length);
+
+        for(int boundary = 0; boundary < times.length; boundary++){
+            double[] up = times.clone();
+            double[] down = times.clone();
+            up[boundary] += STEP;
+            down[boundary] -= STEP;
+
+            double difference = (logLikelihood(up, function, enforceCoalescence)
+                    - logLikelihood(down, function, enforceCoalescence)) / (2*STEP);
+
+            assertEquals("boundary " + boundary + (enforceCoalescence ? ", enforced" : ""), difference,
+                    gradient[boundary], 1E-5*Math.max(1, Math.abs(difference)));
+        }
+    }
+
+    private static double logLikelihood(double[] times, PopulationFunction function, boolean enforceCoalescence){
+        return WithinHostCoalescent.calculateTreeletLogLikelihood(new Treelet(times), function, 0, -times[0],
+                enforceCoalescence);
+    }
+
+    // The intervals between the given times, relative to the infection, with the lineage counts and types above
+
+    private static class Treelet implements IntervalList {
+
+        private final double[] times;
+
+        Treelet(double[] times){
+            this.times = times;
+        }
+
+        public int getIntervalCount() {
+            return times.length - 1;
+        }
+
+        public int getSampleCount() {
+            int count = 1;
+            for(IntervalType type : TYPES){
+                if(type == IntervalType.SAMPLE){
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public double getInterval(int i) {
+            return times[i+1] - times[i];
+        }
+
+        public int getLineageCount(int i) {
+            return LINEAGES[i];
+        }
+
+        public int getCoalescentEvents(int i) {
+            return TYPES[i] == IntervalType.COALESCENT ? 1 : TYPES[i] == IntervalType.SAMPLE ? -1 : 0;
+        }
+
+        public IntervalType getIntervalType(int i) {
+            return TYPES[i];
+        }
+
+        public double getTotalDuration() {
+            return times[times.length-1] - times[0];
+        }
+
+        public boolean isBinaryCoalescent() {
+            return true;
+        }
+
+        public boolean isCoalescentOnly() {
+            return false;
+        }
+    }
+
+    // N(t) = N0 exp(rt), with the intensity from zero in closed form
+
+    private static class ExponentialGrowth extends PopulationFunction.Abstract {
+
+        private final double n0;
+        private final double r;
+
+        ExponentialGrowth(double n0, double r){
+            this.n0 = n0;
+            this.r = r;
+        }
+
+        public void initAndValidate() {}
+
+        public List<String> getParameterIds() {
+            return new ArrayList<>();
+        }
+
+        public double getPopSize(double t) {
+            return n0*Math.exp(r*t);
+        }
+
+        public double getIntensity(double t) {
+            return -Math.expm1(-r*t)/(n0*r);
+        }
+
+        public double getInverseIntensity(double x) {
+            return -Math.log1p(-x*n0*r)/r;
+        }
+
+        public int getNumArguments() {
+            return 2;
+        }
+
+        public String getArgumentName(int n) {
+            return n == 0 ? "N0" : "r";
+        }
+
+        public double getArgument(int n) {
+            return n == 0 ? n0 : r;
+        }
+
+        public double getLowerBound(int n) {
+            return n == 0 ? 0 : Double.NEGATIVE_INFINITY;
+        }
+
+        public double getUpperBound(int n) {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+}
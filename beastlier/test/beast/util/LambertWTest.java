@@ -0,0 +1,159 @@
+/*
+* File LambertWTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The batched principal branch of the Lambert W function against the scalar one, over the whole domain and
+ * especially near the branch point at -1/e and at the top of the double range.
+ */
+
+public class LambertWTest {
+
+    private static final double TOLERANCE = 1E-14;
+
+    private static double[] domain(){
+        List<Double> values = new ArrayList<>();
+
+        //approaching -1/e from above, on both sides of the switch to the series at q = 1E-3
+        for(int exponent = -16; exponent <= 0; exponent++){
+            for(double multiple : new double[]{1, 2, 5}){
+                values.add(-1/Math.E + multiple*Math.pow(10, exponent));
+            }
+        }
+        values.add(-1/Math.E + 0.999E-3);
+        values.add(-1/Math.E + 1.001E-3);
+
+        //the rest of the negative half, then up through the switch to the asymptotic start at 1 and 3
+        for(int i = 1; i < 1000; i++){
+            values.add(-1/Math.E + i*(1/Math.E)/1000);
+        }
+        for(double x = -1E-300; x > -1E-3; x *= 1000){
+            values.add(x);
+            values.add(-x);
+        }
+        for(double x = 1E-3; x < 10; x += 1E-3){
+            values.add(x);
+        }
+        for(int exponent = 1; exponent <= 300; exponent++){
+            values.add(Math.pow(10, exponent));
+        }
+        values.add(0.0);
+        values.add(-1/Math.E);
+
+        double[] out = new double[values.size()];
+        for(int i = 0; i < out.length; i++){
+            out[i] = values.get(i);
+        }
+        return out;
+    }
+
+    @Test
+    public void testBatchMatchesScalar() {
+        double[] x = domain();
+        double[] batch = new double[x.length];
+        LambertW.branch0(x, batch, x.length);
+
+        //the scalar version stops on an absolute tolerance when W0 is small, so the comparison is absolute there;
+        //testBatchSatisfiesDefinition checks the relative accuracy of the batch on its own
+        for(int i = 0; i < x.length; i++){
+            double scalar = LambertW.branch0(x[i]);
+            assertEquals("W0(" + x[i] + ")", scalar, batch[i], TOLERANCE*Math.max(Math.abs(scalar), 1));
+        }
+    }
+
+    @Test
+    public void testBatchSatisfiesDefinition() {
+        double[] x = domain();
+        double[] w = new double[x.length];
+        LambertW.branch0(x, w, x.length);
+
+        for(int i = 0; i < x.length; i++){
+            if(x[i] > -1/Math.E + 1E-10 && x[i] < 1E300){
+                double product = w[i]*Math.exp(w[i]);
+                //the derivative of w*exp(w) is exp(w)(1 + w), so allow for the rounding of w itself
+                double allowed = 1E-14*Math.max(Math.abs(x[i]), Math.exp(w[i])*Math.abs(w[i]*(1 + w[i])));
+                assertEquals("W0(" + x[i] + ")exp(W0(" + x[i] + "))", x[i], product,
+                        Math.max(allowed, Double.MIN_NORMAL));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchEdges() {
+        double[] x = {Double.POSITIVE_INFINITY, -1, -1/Math.E - 1E-10, 0};
+        double[] out = new double[x.length];
+        LambertW.branch0(x, out, x.length);
+
+        assertEquals(Double.POSITIVE_INFINITY, out[0], 0);
+        assertEquals(-1, out[1], 0);
+        assertEquals(-1, out[2], 0);
+        assertEquals(0, out[3], 0);
+
+        //only the first n are written
+        double[] partial = {1, 1};
+        LambertW.branch0(partial, partial, 1);
+        assertEquals(LambertW.branch0(1), partial[0], 0);
+        assertEquals(1, partial[1], 0);
+    }
+
+    //near the top of the double range w*exp(w) itself overflows, so the definition is checked as log(w) + w = log(x),
+    //whose derivative in w is 1 + 1/w
+
+    @Test
+    public void testBatchNearOverflow() {
+        List<Double> values = new ArrayList<>();
+        for(double x = 1E290; x < 1E308; x *= 1.5){
+            values.add(x);
+        }
+        values.add(5.5E307);
+        values.add(1E308);
+        values.add(Double.MAX_VALUE/2);
+        values.add(Double.MAX_VALUE);
+
+        double[] x = new double[values.size()];
+        for(int i = 0; i < x.length; i++){
+            x[i] = values.get(i);
+        }
+        double[] w = new double[x.length];
+        LambertW.branch0(x, w, x.length);
+
+        for(int i = 0; i < x.length; i++){
+            double residual = (Math.log(w[i]) + w[i] - Math.log(x[i]))/(1 + 1/w[i]);
+            assertEquals("W0(" + x[i] + ")", 0, residual/w[i], TOLERANCE);
+            if(x[i] < Double.MAX_VALUE/2){
+                double scalar = LambertW.branch0(x[i]);
+                assertEquals("W0(" + x[i] + ")", scalar, w[i], TOLERANCE*scalar);
+            }
+        }
+    }
+
+}
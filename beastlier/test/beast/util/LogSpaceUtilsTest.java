@@ -0,0 +1,129 @@
+/*
+* File LogSpaceUtilsTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beast.util;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The log-space functions against the same quantities worked out with BigDecimalUtils, concentrating on where exp(x)
+ * rounds to 1 in double precision (the region that the BigDecimal fallback in the treelet likelihood used to cover)
+ * and where it rounds to 0.
+ */
+
+public class LogSpaceUtilsTest {
+
+    private static final int SCALE = 60;
+    private static final double TOLERANCE = 1E-14;
+
+    //from -1E-18 (where exp(x) is exactly 1 in double precision) to -100 (beyond which exp(x) has too few digits at
+    //this scale to be a reference)
+
+    private static final double[] NEGATIVE_ARGUMENTS = {-1E-18, -1E-16, -1E-12, -1E-8, -1E-5, -1E-3, -0.1, -0.5,
+            -Math.log(2) + 1E-12, -Math.log(2), -Math.log(2) - 1E-12, -1, -5, -20, -36.9, -37.1, -100};
+
+    private static BigDecimal exp(double x){
+        return BigDecimalUtils.exp(new BigDecimal(x), SCALE);
+    }
+
+    private static double ln(BigDecimal x){
+        return BigDecimalUtils.ln(x, SCALE).doubleValue();
+    }
+
+    private static void assertClose(String message, double expected, double actual){
+        assertClose(message, expected, actual, Math.abs(expected));
+    }
+
+    private static void assertClose(String message, double expected, double actual, double scale){
+        assertEquals(message, expected, actual, TOLERANCE*Math.max(scale, Double.MIN_NORMAL));
+    }
+
+    @Test
+    public void testLog1mexp() {
+        for(double x : NEGATIVE_ARGUMENTS){
+            double expected = ln(BigDecimal.ONE.subtract(exp(x)));
+            assertClose("log1mexp(" + x + ")", expected, LogSpaceUtils.log1mexp(x));
+        }
+        assertTrue(Double.isNaN(LogSpaceUtils.log1mexp(1)));
+        assertEquals(Double.NEGATIVE_INFINITY, LogSpaceUtils.log1mexp(0), 0);
+    }
+
+    @Test
+    public void testLogSumExp() {
+        assertClose("logSumExp of three", Math.log(3) - 40, LogSpaceUtils.logSumExp(new double[]{-40, -40, -40}));
+
+        double[] bases = {0, -50, -800, 500};
+        for(double a : bases){
+            for(double x : NEGATIVE_ARGUMENTS){
+                double b = a + x;
+                //exp(a) + exp(b) = exp(a)(1 + exp(b - a)), which keeps the reference inside BigDecimal's range
+                double expected = a + ln(BigDecimal.ONE.add(exp(x)));
+                assertClose("logSumExp(" + a + ", " + b + ")", expected, LogSpaceUtils.logSumExp(a, b));
+                assertClose("logSumExp(" + b + ", " + a + ")", expected, LogSpaceUtils.logSumExp(b, a));
+                assertClose("logSumExp({" + a + ", " + b + "})", expected,
+                        LogSpaceUtils.logSumExp(new double[]{a, b}));
+            }
+            assertEquals(a, LogSpaceUtils.logSumExp(a, Double.NEGATIVE_INFINITY), 0);
+        }
+    }
+
+    @Test
+    public void testLogDiffExp() {
+        double[] bases = {0, -50, -800, 500};
+        for(double a : bases){
+            for(double x : NEGATIVE_ARGUMENTS){
+                double b = a + x;
+                if(b - a != x){
+                    //x was lost in rounding a + x, so the difference isn't the one intended
+                    continue;
+                }
+                double expected = a + ln(BigDecimal.ONE.subtract(exp(x)));
+                assertClose("logDiffExp(" + a + ", " + b + ")", expected, LogSpaceUtils.logDiffExp(a, b));
+            }
+            assertEquals(Double.NEGATIVE_INFINITY, LogSpaceUtils.logDiffExp(a, a), 0);
+            assertEquals(a, LogSpaceUtils.logDiffExp(a, Double.NEGATIVE_INFINITY), 0);
+            assertTrue(Double.isNaN(LogSpaceUtils.logDiffExp(a, a + 1)));
+        }
+    }
+
+    @Test
+    public void testLogExpm1() {
+        for(double x : NEGATIVE_ARGUMENTS){
+            double positive = -x;
+            double expected = ln(exp(positive).subtract(BigDecimal.ONE));
+            //near log(2) the result is near zero and no formula can do better than the rounding of x itself, so the
+            //error is measured against x there
+            assertClose("logExpm1(" + positive + ")", expected, LogSpaceUtils.logExpm1(positive),
+                    Math.max(Math.abs(expected), positive));
+        }
+        assertEquals(Double.NEGATIVE_INFINITY, LogSpaceUtils.logExpm1(0), 0);
+        assertTrue(Double.isNaN(LogSpaceUtils.logExpm1(-1)));
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+* File BatchMeansESSTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Batch means ESSs of AR(1) series, x[t] = phi*x[t-1] + e[t], whose ESS is n(1-phi)/(1+phi), averaged over several
+ * series because one estimate from 32 to 64 batches is only good to about a quarter. The ESS goes as one over the
+ * variance of the batch means, so with that few batches it comes out a few percent high on average.
+ */
+
+public class BatchMeansESSTest {
+
+    private static final int N = 100000;
+    private static final int SERIES = 50;
+
+    private double meanRatio(double phi, long seed){
+        Random random = new Random(seed);
+        double expected = N*(1 - phi)/(1 + phi);
+        double total = 0;
+        for(int series=0; series<SERIES; series++){
+            BatchMeansESS ess = new BatchMeansESS(64);
+            //start from the stationary distribution
+            double x = random.nextGaussian()/Math.sqrt(1 - phi*phi);
+            for(int t=0; t<N; t++){
+                ess.add(x);
+                x = phi*x + random.nextGaussian();
+            }
+            assertEquals(N, ess.getCount());
+            total += ess.getESS()/expected;
+        }
+        return total/SERIES;
+    }
+
+    @Test
+    public void testIndependent() {
+        double ratio = meanRatio(0, 1);
+        assertTrue("mean ratio " + ratio, ratio > 0.9 && ratio < 1.2);
+    }
+
+    @Test
+    public void testPositivelyCorrelated() {
+        double ratio = meanRatio(0.9, 2);
+        assertTrue("mean ratio " + ratio, ratio > 0.9 && ratio < 1.2);
+    }
+
+    @Test
+    public void testNegativelyCorrelated() {
+        //more effective samples than samples
+        double ratio = meanRatio(-0.5, 3);
+        assertTrue("mean ratio " + ratio, ratio > 0.9 && ratio < 1.2);
+    }
+
+    @Test
+    public void testTooFewBatches() {
+        BatchMeansESS ess = new BatchMeansESS(64);
+        Random random = new Random(4);
+        for(int i=0; i<31; i++){
+            ess.add(random.nextGaussian());
+        }
+        assertEquals(0, ess.getESS(), 0);
+        ess.add(random.nextGaussian());
+        assertTrue(ess.getESS() > 0);
+    }
+
+    @Test
+    public void testConstant() {
+        BatchMeansESS ess = new BatchMeansESS(64);
+        for(int i=0; i<1000; i++){
+            ess.add(2.5);
+        }
+        assertEquals(0, ess.getESS(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddBatches() {
+        new BatchMeansESS(10 + 1);
+    }
+
+}
@@ -0,0 +1,285 @@
+/*
+* File BinaryPartitionedTreeLogTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import beast.core.Logger;
+import beast.evolution.tree.EpidemiologicalPartitionedTree;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.PartitionedTree;
+import beast.evolution.tree.PartitionedTreeNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Trees written by BinaryPartitionedTreeLogger, read back by BinaryPartitionedTreeLog and turned into Nexus by
+ * BinaryPartitionedTreeLogConverter, against what PartitionedTreeLogger writes for the same states, plain and fancy.
+ * The file always ends in a partly written record, as it would if the run had been killed.
+ *
+ * The tree is ((a:A, b:B):A, (c:C, d:D):D):A under second-type rules, with its heights scaled for each sample. Only
+ * the nodes, elements and transmission structure are set up, which is all that the loggers ask of it.
+ */
+
+public class BinaryPartitionedTreeLogTest {
+
+    private static final String[] TAXA = {"a", "b", "c", "d"};
+    private static final List<String> ELEMENTS = Arrays.asList("A", "B", "C", "D");
+    private static final double[] HEIGHTS = {0, 0.5, 0.2, 1.0, 2.0, 2.5, 4.0};
+    private static final int[] PARENTS = {4, 4, 5, 5, 6, 6, -1};
+    private static final int[] NODE_ELEMENTS = {0, 1, 2, 3, 0, 3, 0};
+    private static final int[] INFECTORS = {-1, 0, 3, 0};
+    private static final double[] INFECTION_HEIGHTS = {5.0, 1.5, 1.0, 3.0};
+    private static final double ROOT_BRANCH_LENGTH = 1.0;
+
+    private static final int EVERY = 10;
+    private static final int STATES = 5;
+
+    private File directory;
+    private Logger.LogFileMode fileMode;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("binarylog").toFile();
+        fileMode = Logger.FILE_MODE;
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        Logger.sampleOffset = -1;
+    }
+
+    @After
+    public void tearDown() {
+        Logger.FILE_MODE = fileMode;
+        Logger.sampleOffset = -1;
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPlain() throws IOException {
+        roundTrip(false);
+    }
+
+    @Test
+    public void testFancy() throws IOException {
+        roundTrip(true);
+    }
+
+    @Test
+    public void testRecords() throws IOException {
+        FixedTree tree = new FixedTree();
+        File file = writeLog(tree);
+
+        try (BinaryPartitionedTreeLog log = new BinaryPartitionedTreeLog(file)) {
+            assertEquals(STATES, log.getSampleCount());
+            assertEquals(HEIGHTS.length, log.getNodeCount());
+            assertEquals(Arrays.asList(TAXA), log.getTaxa());
+            assertEquals(ELEMENTS, log.getElements());
+            assertEquals("host", log.getElementLabel());
+
+            BinaryPartitionedTreeLog.Sample sample = new BinaryPartitionedTreeLog.Sample(log);
+            for(int state=0; state<STATES; state++){
+                log.read(state, sample);
+                double scale = scale(state);
+
+                assertEquals(state*EVERY, sample.sample);
+                assertEquals(HEIGHTS.length - 1, sample.rootNr);
+                assertEquals(ROOT_BRANCH_LENGTH*scale, sample.rootBranchLength, 0);
+                assertArrayEquals(PARENTS, sample.parents);
+                assertArrayEquals(NODE_ELEMENTS, sample.elements);
+                assertArrayEquals(INFECTORS, sample.infectors);
+                for(int i=0; i<HEIGHTS.length; i++){
+                    assertEquals(HEIGHTS[i]*scale, sample.heights[i], 0);
+                }
+                for(int i=0; i<INFECTION_HEIGHTS.length; i++){
+                    assertEquals(INFECTION_HEIGHTS[i]*scale, sample.infectionHeights[i], 0);
+                }
+            }
+        }
+    }
+
+    // Resuming drops the partial record and carries on from the last complete one
+
+    @Test
+    public void testResume() throws IOException {
+        FixedTree tree = new FixedTree();
+        File file = writeLog(tree);
+        long complete = file.length() - 5;
+
+        Logger.FILE_MODE = Logger.LogFileMode.resume;
+        BinaryPartitionedTreeLogger logger = logger(tree, file);
+        logger.init();
+        assertEquals(complete, file.length());
+        assertEquals((STATES - 1)*EVERY, Logger.sampleOffset);
+
+        tree.setScale(scale(STATES));
+        logger.log(0);
+        logger.log(EVERY);
+        logger.close();
+
+        try (BinaryPartitionedTreeLog log = new BinaryPartitionedTreeLog(file)) {
+            assertEquals(STATES + 1, log.getSampleCount());
+            BinaryPartitionedTreeLog.Sample sample = new BinaryPartitionedTreeLog.Sample(log);
+            log.read(STATES, sample);
+            assertEquals(STATES*EVERY, sample.sample);
+            assertEquals(HEIGHTS[HEIGHTS.length - 1]*scale(STATES), sample.heights[HEIGHTS.length - 1], 0);
+        }
+    }
+
+    private void roundTrip(boolean fancy) throws IOException {
+        FixedTree tree = new FixedTree();
+
+        PartitionedTreeLogger textLogger = new PartitionedTreeLogger();
+        textLogger.initByName("partitionedTree", tree, "fancy", fancy);
+        List<String> expected = new ArrayList<>();
+        for(int state=0; state<STATES; state++){
+            tree.setScale(scale(state));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bytes);
+            textLogger.log(state*EVERY, out);
+            out.flush();
+            expected.add(bytes.toString());
+        }
+
+        File file = writeLog(tree);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryPartitionedTreeLog log = new BinaryPartitionedTreeLog(file);
+             PrintStream out = new PrintStream(bytes)) {
+            BinaryPartitionedTreeLogConverter.convert(log, fancy, out);
+        }
+
+        String[] lines = bytes.toString().split("\\R");
+        List<String> converted = new ArrayList<>();
+        for(String line : lines){
+            if(line.startsWith("tree ")){
+                converted.add(line);
+            }
+        }
+        assertEquals(expected, converted);
+        assertEquals("End;", lines[lines.length - 1]);
+    }
+
+    //logs every state, then adds the first few bytes of another record
+
+    private File writeLog(FixedTree tree) throws IOException {
+        File file = new File(directory, "trees.bin");
+        BinaryPartitionedTreeLogger logger = logger(tree, file);
+        logger.init();
+        for(int state=0; state<STATES; state++){
+            tree.setScale(scale(state));
+            logger.log(state*EVERY);
+        }
+        logger.close();
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 0, 42});
+        }
+        return file;
+    }
+
+    private static BinaryPartitionedTreeLogger logger(PartitionedTree tree, File file){
+        BinaryPartitionedTreeLogger logger = new BinaryPartitionedTreeLogger();
+        logger.initByName("fileName", file.getPath(), "logEvery", EVERY, "log", tree);
+        return logger;
+    }
+
+    private static double scale(int state){
+        return 1 + 0.25*state;
+    }
+
+    private static class FixedTree extends EpidemiologicalPartitionedTree {
+
+        private double scale = 1;
+
+        FixedTree(){
+            PartitionedTreeNode[] nodes = new PartitionedTreeNode[HEIGHTS.length];
+            for(int i=0; i<nodes.length; i++){
+                nodes[i] = new PartitionedTreeNode();
+                nodes[i].setNr(i);
+                nodes[i].setHeight(HEIGHTS[i]);
+                nodes[i].setPartitionElementNumber(NODE_ELEMENTS[i]);
+                if(i < TAXA.length){
+                    nodes[i].setID(TAXA[i]);
+                }
+            }
+            for(int i=0; i<nodes.length; i++){
+                if(PARENTS[i] != -1){
+                    nodes[PARENTS[i]].addChild(nodes[i]);
+                }
+            }
+
+            setRoot(nodes[nodes.length - 1]);
+            nodeCount = nodes.length;
+            leafNodeCount = TAXA.length;
+            internalNodeCount = nodeCount - leafNodeCount;
+            initArrays();
+
+            elementList = ELEMENTS;
+            elementLabel = "host";
+            rules = Rules.COTTAM;
+            traitsProcessed = true;
+        }
+
+        void setScale(double scale){
+            this.scale = scale;
+            for(Node node : getNodesAsArray()){
+                node.setHeight(HEIGHTS[node.getNr()]*scale);
+            }
+        }
+
+        @Override
+        public double getInfectionHeightByNr(int elementNo){
+            return elementNo == -1 ? Double.POSITIVE_INFINITY : INFECTION_HEIGHTS[elementNo]*scale;
+        }
+
+        @Override
+        public int getAncestorPartitionElement(int elementNo){
+            return elementNo == -1 ? -1 : INFECTORS[elementNo];
+        }
+
+        @Override
+        public double getRootBranchLength(){
+            return ROOT_BRANCH_LENGTH*scale;
+        }
+    }
+
+}
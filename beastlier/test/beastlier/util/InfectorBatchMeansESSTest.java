@@ -0,0 +1,107 @@
+/*
+* File InfectorBatchMeansESSTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Infector ESSs for hosts whose infector is drawn independently each time, flips with a known probability, or never
+ * changes at all.
+ */
+
+public class InfectorBatchMeansESSTest {
+
+    private static final int N = 100000;
+
+    // host 0 is the index case throughout; host 1's infector is drawn afresh every time, and host 2's changes
+    // between 0 and 1 with probability flip
+
+    private InfectorBatchMeansESS run(double flip, long seed){
+        Random random = new Random(seed);
+        InfectorBatchMeansESS ess = new InfectorBatchMeansESS(3, 64);
+        int[] network = {-1, 0, 0};
+        for(int i=0; i<N; i++){
+            network[1] = random.nextBoolean() ? 0 : 2;
+            if(random.nextDouble() < flip){
+                network[2] = 1 - network[2];
+            }
+            ess.add(network.clone());
+        }
+        return ess;
+    }
+
+    @Test
+    public void testIndependent() {
+        InfectorBatchMeansESS ess = run(0.5, 1);
+        assertEquals(N, ess.getCount());
+        assertTrue(ess.getESS(1) > 0.6*N && ess.getESS(1) < 1.6*N);
+        assertTrue(ess.getESS(2) > 0.6*N && ess.getESS(2) < 1.6*N);
+    }
+
+    @Test
+    public void testSticky() {
+        // a two-state chain that flips with probability p has lag one autocorrelation 1-2p, so an ESS of
+        // n(1-rho)/(1+rho) = np/(1-p)
+        double p = 0.1;
+        InfectorBatchMeansESS ess = run(p, 2);
+        double expected = N*p/(1-p);
+        assertTrue(ess.getESS(2) > 0.6*expected && ess.getESS(2) < 1.6*expected);
+        assertTrue(ess.getESS(1) > 4*expected);
+    }
+
+    @Test
+    public void testSingleInfector() {
+        // the index case has only ever had one "infector", so there is no telling yet
+        InfectorBatchMeansESS ess = run(0.1, 3);
+        assertEquals(0, ess.getESS(0), 0);
+        assertEquals(0, ess.getMinESS(), 0);
+
+        ess.exclude(0);
+        assertEquals(0, ess.getESS(0), 0);
+        assertEquals(ess.getESS(2), ess.getMinESS(), 0);
+    }
+
+    @Test
+    public void testTooFewBatches() {
+        InfectorBatchMeansESS ess = new InfectorBatchMeansESS(2, 64);
+        for(int i=0; i<31; i++){
+            ess.add(new int[]{-1, i % 2 == 0 ? 0 : -1});
+        }
+        assertEquals(0, ess.getESS(1), 0);
+        ess.add(new int[]{-1, 0});
+        assertTrue(ess.getESS(1) > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddBatches() {
+        new InfectorBatchMeansESS(2, 7);
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+* File InfectorCountsTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Infector counts over a handful of three-host networks, where host 0 is always the index case, compared with what
+ * they should be by hand.
+ */
+
+public class InfectorCountsTest {
+
+    private static final int[][] NETWORKS = {{-1, 0, 0}, {-1, 0, 1}, {-1, 2, 0}, {-1, 0, 1}};
+
+    private static InfectorCounts counts(int from, int to){
+        InfectorCounts counts = new InfectorCounts(3);
+        for(int i=from; i<to; i++){
+            counts.add(NETWORKS[i]);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testCounts() {
+        InfectorCounts counts = counts(0, NETWORKS.length);
+
+        assertEquals(4, counts.getTotal());
+        assertEquals(4, counts.getCount(0, -1));
+        assertEquals(3, counts.getCount(1, 0));
+        assertEquals(1, counts.getCount(1, 2));
+        assertEquals(2, counts.getCount(2, 0));
+        assertEquals(2, counts.getCount(2, 1));
+        assertEquals(0, counts.getCount(2, 2));
+
+        assertEquals(0.75, counts.getProbability(1, 0), 0);
+        assertEquals(0.5, counts.getProbability(2, 1), 0);
+        assertEquals(0, counts.getProbability(1, 1), 0);
+    }
+
+    @Test
+    public void testDistinctInfectorsInOrderSeen() {
+        InfectorCounts counts = counts(0, NETWORKS.length);
+
+        assertEquals(1, counts.getDistinctInfectorCount(0));
+        assertEquals(-1, counts.getInfector(0, 0));
+
+        assertEquals(2, counts.getDistinctInfectorCount(1));
+        assertEquals(0, counts.getInfector(1, 0));
+        assertEquals(2, counts.getInfector(1, 1));
+
+        assertEquals(2, counts.getDistinctInfectorCount(2));
+        assertEquals(0, counts.getInfector(2, 0));
+        assertEquals(1, counts.getInfector(2, 1));
+    }
+
+    @Test
+    public void testLogParentCredibility() {
+        InfectorCounts counts = counts(0, NETWORKS.length);
+
+        assertEquals(Math.log(0.75*0.5), counts.getLogParentCredibility(NETWORKS[1]), 1E-12);
+        assertEquals(Math.log(0.25*0.5), counts.getLogParentCredibility(NETWORKS[2]), 1E-12);
+        assertEquals(Double.NEGATIVE_INFINITY, counts.getLogParentCredibility(new int[]{-1, 1, 0}), 0);
+    }
+
+    // Counts made separately and then combined are the same as counts made together
+
+    @Test
+    public void testCombine() {
+        InfectorCounts together = counts(0, NETWORKS.length);
+        InfectorCounts combined = counts(0, 2);
+        combined.add(counts(2, NETWORKS.length));
+
+        assertEquals(together.getTotal(), combined.getTotal());
+        for(int host=0; host<3; host++){
+            assertEquals(together.getDistinctInfectorCount(host), combined.getDistinctInfectorCount(host));
+            for(int infector=-1; infector<3; infector++){
+                assertEquals(together.getCount(host, infector), combined.getCount(host, infector));
+            }
+        }
+    }
+
+    // A host starts with room for four infectors
+
+    @Test
+    public void testManyInfectors() {
+        int hostCount = 12;
+        InfectorCounts counts = new InfectorCounts(hostCount);
+        for(int infector=-1; infector<hostCount-1; infector++){
+            int[] network = new int[hostCount];
+            network[0] = -1;
+            network[hostCount-1] = infector;
+            counts.add(network);
+        }
+
+        assertEquals(hostCount, counts.getDistinctInfectorCount(hostCount-1));
+        for(int i=0; i<hostCount; i++){
+            assertEquals(i-1, counts.getInfector(hostCount-1, i));
+            assertEquals(1, counts.getCount(hostCount-1, i-1));
+        }
+        assertEquals(hostCount, counts.getCount(1, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongHostCount() {
+        new InfectorCounts(3).add(new int[]{-1, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombineWrongHostCount() {
+        new InfectorCounts(3).add(new InfectorCounts(4));
+    }
+
+    @Test
+    public void testNetworkKeys() {
+        Map<InfectorCounts.Network, Integer> seen = new HashMap<>();
+        seen.put(new InfectorCounts.Network(NETWORKS[1].clone()), 1);
+
+        assertTrue(seen.containsKey(new InfectorCounts.Network(NETWORKS[3].clone())));
+        assertFalse(seen.containsKey(new InfectorCounts.Network(NETWORKS[0].clone())));
+        assertEquals(new InfectorCounts.Network(NETWORKS[1]).hashCode(),
+                new InfectorCounts.Network(NETWORKS[3]).hashCode());
+    }
+
+}
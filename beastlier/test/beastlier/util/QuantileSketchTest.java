@@ -0,0 +1,170 @@
+/*
+* File QuantileSketchTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The quantile sketch against the exact quantiles: equal to them until the sketch first fills, then within the rank
+ * error given in its description, for streams in random and sorted order and for merged sketches.
+ */
+
+public class QuantileSketchTest {
+
+    private static final int K = 200;
+
+    @Test
+    public void testExactBeforeCompaction() {
+        Random random = new Random(1);
+        for(int n : new int[]{1, 2, 7, 50, K - 1}){
+            QuantileSketch sketch = new QuantileSketch(K);
+            double[] values = new double[n];
+            for(int i=0; i<n; i++){
+                values[i] = random.nextGaussian();
+                sketch.add(values[i]);
+            }
+            Arrays.sort(values);
+
+            assertEquals(n, sketch.getCount());
+            for(int i=0; i<=100; i++){
+                double p = i/100.0;
+                assertEquals("n " + n + ", p " + p, exactQuantile(values, p), sketch.getQuantile(p), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        QuantileSketch sketch = new QuantileSketch(K);
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    }
+
+    @Test
+    public void testRankError() {
+        for(int n : new int[]{10000, 1000000}){
+            double[] values = gaussians(n, n);
+            checkRankError(sketch(values), values, 0.002);
+
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            checkRankError(sketch(sorted), sorted, 0.002);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        int n = 200000;
+        double[] values = gaussians(n, 2);
+
+        //four pieces, one of them much smaller than the others
+        int[] ends = {70000, 140000, 140100, n};
+        QuantileSketch merged = new QuantileSketch(K);
+        int start = 0;
+        for(int end : ends){
+            merged.merge(sketch(Arrays.copyOfRange(values, start, end)));
+            start = end;
+        }
+
+        assertEquals(n, merged.getCount());
+        //each merge can compact again what has already been compacted, so this is a little worse
+        checkRankError(merged, values, 0.003);
+    }
+
+    @Test
+    public void testMergeExactWhileSmall() {
+        double[] values = gaussians(K - 1, 3);
+        QuantileSketch merged = sketch(Arrays.copyOfRange(values, 0, 60));
+        merged.merge(sketch(Arrays.copyOfRange(values, 60, values.length)));
+        merged.merge(new QuantileSketch(K));
+
+        Arrays.sort(values);
+        for(int i=0; i<=100; i++){
+            double p = i/100.0;
+            assertEquals("p " + p, exactQuantile(values, p), merged.getQuantile(p), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentSizes() {
+        new QuantileSketch(K).merge(new QuantileSketch(2*K));
+    }
+
+    //the mean rank error over the permilles should be below meanError, and none should be more than 2n/k
+
+    private static void checkRankError(QuantileSketch sketch, double[] values, double meanError){
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+
+        double[] ps = new double[999];
+        for(int i=0; i<ps.length; i++){
+            ps[i] = (i + 1)/1000.0;
+        }
+        double[] estimates = sketch.getQuantiles(ps);
+
+        double total = 0;
+        double largest = 0;
+        for(int i=0; i<ps.length; i++){
+            double rank = (Arrays.binarySearch(sorted, estimates[i]) + 1)/(double)n;
+            double error = Math.abs(rank - ps[i]);
+            total += error;
+            largest = Math.max(largest, error);
+        }
+
+        assertTrue("mean rank error " + total/ps.length + " for " + n + " values", total/ps.length < meanError);
+        assertTrue("largest rank error " + largest + " for " + n + " values", largest < 2.0/K);
+    }
+
+    //the smallest value with at least that proportion of the values at or below it
+
+    private static double exactQuantile(double[] sorted, double p){
+        int rank = (int)Math.ceil(p*sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static QuantileSketch sketch(double[] values){
+        QuantileSketch sketch = new QuantileSketch(K);
+        for(double value : values){
+            sketch.add(value);
+        }
+        return sketch;
+    }
+
+    private static double[] gaussians(int n, long seed){
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for(int i=0; i<n; i++){
+            values[i] = random.nextGaussian();
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+* File RunningMomentsTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * Running moments against two-pass sums, including values far from zero where the one-pass textbook formula loses
+ * everything, and merged moments against those of the whole stream.
+ */
+
+public class RunningMomentsTest {
+
+    @Test
+    public void testAgainstTwoPass() {
+        for(double offset : new double[]{0, 1E9}){
+            double[] values = values(10000, offset, 4);
+            RunningMoments moments = new RunningMoments();
+            for(double value : values){
+                moments.add(value);
+            }
+            check(moments, values);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        double[] values = values(10000, 1E6, 5);
+        int[] ends = {1, 3000, 3001, 9000, values.length};
+
+        RunningMoments merged = new RunningMoments();
+        merged.merge(new RunningMoments());
+        int start = 0;
+        for(int end : ends){
+            RunningMoments piece = new RunningMoments();
+            for(int i=start; i<end; i++){
+                piece.add(values[i]);
+            }
+            merged.merge(piece);
+            start = end;
+        }
+        check(merged, values);
+
+        //and merging into an empty one gives the other back
+        RunningMoments empty = new RunningMoments();
+        empty.merge(merged);
+        check(empty, values);
+    }
+
+    @Test
+    public void testFewValues() {
+        RunningMoments moments = new RunningMoments();
+        assertTrue(Double.isNaN(moments.getMean()));
+        assertTrue(Double.isNaN(moments.getVariance()));
+        assertTrue(Double.isNaN(moments.getMin()));
+        assertTrue(Double.isNaN(moments.getMax()));
+
+        moments.add(3);
+        assertEquals(3, moments.getMean(), 0);
+        assertTrue(Double.isNaN(moments.getVariance()));
+        assertEquals(3, moments.getMin(), 0);
+        assertEquals(3, moments.getMax(), 0);
+
+        moments.add(5);
+        assertEquals(4, moments.getMean(), 0);
+        assertEquals(2, moments.getVariance(), 0);
+        assertEquals(Math.sqrt(2), moments.getStandardDeviation(), 0);
+    }
+
+    private static void check(RunningMoments moments, double[] values){
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for(double value : values){
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double mean = sum/values.length;
+        double sumOfSquares = 0;
+        for(double value : values){
+            sumOfSquares += (value - mean)*(value - mean);
+        }
+        double variance = sumOfSquares/(values.length - 1);
+
+        assertEquals(values.length, moments.getCount());
+        assertEquals(mean, moments.getMean(), 1E-13*Math.max(1, Math.abs(mean)));
+        assertEquals(variance, moments.getVariance(), 1E-7*variance);
+        assertEquals(min, moments.getMin(), 0);
+        assertEquals(max, moments.getMax(), 0);
+    }
+
+    //with a standard deviation of 2
+
+    private static double[] values(int n, double offset, long seed){
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for(int i=0; i<n; i++){
+            values[i] = offset + 2*random.nextGaussian();
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+* File TransmissionTreeSummariserTest.java
+*
+* Copyright (C) 2016 Matthew Hall mdhall@ic.ac.uk
+*
+* This file is part of BEASTLIER, a BEAST 2 package.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2
+* of the License, or (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this program; if not, write to the
+* Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+* Boston, MA  02110-1301  USA
+*/
+package beastlier.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Matthew Hall <mdhall@ic.ac.uk>
+ *
+ * The summariser against what beast1/MPCTree.py makes of the same small network logs: the number formatting, the
+ * burn-in in lines and in states, ties between networks and logs cut into chunks in the middle of lines for any
+ * number of threads.
+ */
+
+public class TransmissionTreeSummariserTest {
+
+    //kept in lines 3 to 6 (the first burnin-1 lines go), the networks on lines 4 and 6 tie and 4 should win; from
+    //state 30, the network on line 6 is the best
+    private static final String[] LOG = {
+            "# a comment",
+            "state\tA_infector\tB_infector\tC_infector",
+            "0\tStart\tA\tA",
+            "10\tStart\tA\tB",
+            "20\tC\tA\tB",
+            "30\tStart\tA\tB",
+            "40\tStart\tC\tA",
+            "50\tStart\tA\tA"
+    };
+
+    private static final String HEADER = "Child,Parent,MPC credibility\r\n";
+
+    private static final String FROM_LINE_THREE = HEADER
+            + "A,Start,0.75\r\n"
+            + "B,A,0.75\r\n"
+            + "C,B,0.5\r\n";
+
+    private static final String FROM_STATE_THIRTY = HEADER
+            + "A,Start,1.0\r\n"
+            + "B,A,0.666666666667\r\n"
+            + "C,A,0.666666666667\r\n";
+
+    private static final int[] THREADS = {1, 2, 3, 5, 16};
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("summariser").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPythonString() {
+        assertEquals("0.1", TransmissionTreeSummariser.pythonString(0.1));
+        assertEquals("0.333333333333", TransmissionTreeSummariser.pythonString(1.0/3));
+        assertEquals("0.666666666667", TransmissionTreeSummariser.pythonString(2.0/3));
+        assertEquals("0.3", TransmissionTreeSummariser.pythonString(0.1 + 0.2));
+        assertEquals("1.0", TransmissionTreeSummariser.pythonString(1));
+        assertEquals("100.0", TransmissionTreeSummariser.pythonString(100));
+        assertEquals("-2.5", TransmissionTreeSummariser.pythonString(-2.5));
+        assertEquals("0.0", TransmissionTreeSummariser.pythonString(0));
+        assertEquals("-0.0", TransmissionTreeSummariser.pythonString(-0.0));
+
+        //the switch to exponents below 1e-4 and at twelve digits
+        assertEquals("0.0001", TransmissionTreeSummariser.pythonString(1E-4));
+        assertEquals("1e-05", TransmissionTreeSummariser.pythonString(1E-5));
+        assertEquals("0.000123456789012", TransmissionTreeSummariser.pythonString(0.000123456789012345));
+        assertEquals("123456789012.0", TransmissionTreeSummariser.pythonString(123456789012.0));
+        assertEquals("1.23456789012e+12", TransmissionTreeSummariser.pythonString(1234567890123.0));
+        assertEquals("1e+16", TransmissionTreeSummariser.pythonString(1E16));
+        assertEquals("1e+100", TransmissionTreeSummariser.pythonString(1E100));
+        assertEquals("1.5e-300", TransmissionTreeSummariser.pythonString(1.5E-300));
+        assertEquals("4.94065645841e-324", TransmissionTreeSummariser.pythonString(Double.MIN_VALUE));
+
+        //rounding is of the exact binary value: this one rounds up into the exponent form, the next one is just
+        //below its decimal and rounds down
+        assertEquals("1e+12", TransmissionTreeSummariser.pythonString(999999999999.5));
+        assertEquals("99999.9999999", TransmissionTreeSummariser.pythonString(99999.99999995));
+
+        assertEquals("nan", TransmissionTreeSummariser.pythonString(Double.NaN));
+        assertEquals("inf", TransmissionTreeSummariser.pythonString(Double.POSITIVE_INFINITY));
+        assertEquals("-inf", TransmissionTreeSummariser.pythonString(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testQuantile() {
+        double[] sorted = {1, 2, 4, 8};
+        assertEquals(1, TransmissionTreeSummariser.quantile(sorted, 0), 0);
+        assertEquals(8, TransmissionTreeSummariser.quantile(sorted, 1), 0);
+        assertEquals(3, TransmissionTreeSummariser.quantile(sorted, 0.5), 1E-15);
+        assertEquals(1.3, TransmissionTreeSummariser.quantile(sorted, 0.1), 1E-15);
+        assertEquals(7.2, TransmissionTreeSummariser.quantile(sorted, 0.9333333333333333), 1E-12);
+        assertEquals(5, TransmissionTreeSummariser.quantile(new double[]{5}, 0.975), 0);
+    }
+
+    @Test
+    public void testBurninInLines() throws IOException {
+        for(int threads : THREADS){
+            assertEquals("threads " + threads, FROM_LINE_THREE, summarise(write(LOG, "\n", true), 3, true, threads));
+        }
+    }
+
+    @Test
+    public void testBurninInStates() throws IOException {
+        for(int threads : THREADS){
+            assertEquals("threads " + threads, FROM_STATE_THIRTY,
+                    summarise(write(LOG, "\n", true), 30, false, threads));
+            //states before 30 go, so this is the same
+            assertEquals("threads " + threads, FROM_STATE_THIRTY,
+                    summarise(write(LOG, "\n", true), 21, false, threads));
+        }
+    }
+
+    //everything counts; the networks on lines 1, 2, 4 and 6 all have credibility 5/6 * 5/6 * 1/2, and 1 is the earliest
+
+    @Test
+    public void testNoBurnin() throws IOException {
+        String expected = HEADER
+                + "A,Start,0.833333333333\r\n"
+                + "B,A,0.833333333333\r\n"
+                + "C,A,0.5\r\n";
+        for(int threads : THREADS){
+            assertEquals("threads " + threads, expected, summarise(write(LOG, "\n", true), 1, true, threads));
+            assertEquals("threads " + threads, expected, summarise(write(LOG, "\n", true), 0, false, threads));
+        }
+    }
+
+    @Test
+    public void testLineEndings() throws IOException {
+        for(int threads : THREADS){
+            assertEquals("threads " + threads, FROM_LINE_THREE, summarise(write(LOG, "\r\n", true), 3, true, threads));
+            assertEquals("threads " + threads, FROM_LINE_THREE, summarise(write(LOG, "\n", false), 3, true, threads));
+        }
+    }
+
+    @Test
+    public void testInfectorProbabilities() throws IOException {
+        File log = write(LOG, "\n", true);
+        for(int threads : THREADS){
+            TransmissionTreeSummariser summariser = new TransmissionTreeSummariser(3, true, threads);
+            summariser.readNetworkLog(log);
+            File out = new File(directory, "infectors.csv");
+            summariser.writeInfectorProbabilities(out);
+
+            assertEquals(4, summariser.getCounts().getTotal());
+            assertEquals("threads " + threads, "Child,Infector,Probability\r\n"
+                    + "A,C,0.25\r\n"
+                    + "A,Start,0.75\r\n"
+                    + "B,A,0.75\r\n"
+                    + "B,C,0.25\r\n"
+                    + "C,B,0.5\r\n"
+                    + "C,A,0.5\r\n", read(out));
+        }
+    }
+
+    private String summarise(File log, long burnin, boolean burninInLines, int threads) throws IOException {
+        TransmissionTreeSummariser summariser = new TransmissionTreeSummariser(burnin, burninInLines, threads);
+        summariser.readNetworkLog(log);
+        File out = new File(directory, "mpc.csv");
+        summariser.writeMPCNetwork(out);
+        return read(out);
+    }
+
+    private File write(String[] lines, String lineEnd, boolean finalLineEnd) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for(int i=0; i<lines.length; i++){
+            builder.append(lines[i]);
+            if(i < lines.length - 1 || finalLineEnd){
+                builder.append(lineEnd);
+            }
+        }
+        File file = new File(directory, "network.log");
+        Files.write(file.toPath(), builder.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+}